@@ -1,9 +1,23 @@
 package net.awesomebox.flowMeterReader;
 
-import java.util.ArrayList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
+import net.awesomebox.flowMeterReader.checkpoint.Checkpointable;
+import net.awesomebox.flowMeterReader.config.DetectionConfig;
+import net.awesomebox.flowMeterReader.config.DetectionConfigListener;
+import net.awesomebox.flowMeterReader.pulseDetector.EdgeListener;
+import net.awesomebox.flowMeterReader.pulseDetector.PulseDetector;
+import net.awesomebox.flowMeterReader.pulseDetector.PulseDetectorType;
+import net.awesomebox.flowMeterReader.sampleFilter.SampleFilter;
 
-public class FlowMeterReader
+
+public class FlowMeterReader implements Checkpointable, DetectionConfigListener
 {
 	// ===================================================================
 	// Constants
@@ -16,7 +30,7 @@ public class FlowMeterReader
 	
 	// max time in nanoseconds a pulse can exist for
 	// meaning, this is the max time the amplitude can rise/fall for it to be considered caused by a pulse
-	private static final long MAX_PULSE_DURATION_NS = 625000; // 10 samples at 16000Hz
+	public static final long MAX_PULSE_DURATION_NS = 625000; // 10 samples at 16000Hz
 	
 	// the min amplitude delta for it to be considered a pulse
 	public static final double FM1_PULSE_AMPLITUDE_DELTA_THRESHOLD_RATIO = 0.15d;
@@ -38,11 +52,28 @@ public class FlowMeterReader
 	private final int sampleRate;
 	
 	
+	// finds the pulses in the samples
+	private final PulseDetector pulseDetector;
+	
+	// filters the samples before they are given to the pulse detector. null if not filtering
+	private SampleFilter sampleFilter = null;
+	
+	
+	// -------------------------------------------------------------------
+	// detection config
+	
+	// the settings the pulse detector is using
+	private volatile DetectionConfig detectionConfig = DetectionConfig.DEFAULT;
+	
+	// the settings to switch to at the start of the next reading. Set from any thread
+	private volatile DetectionConfig pendingDetectionConfig = DetectionConfig.DEFAULT;
+	
+	
 	// -------------------------------------------------------------------
-	// derived constants
+	// gaps
 	
-	// max number of samples a pulse can exist for
-	private final int maxPulseDurationNumSamples;
+	// samples skipped since the last reading, given with the next one. null if none
+	private SampleGap pendingGap = null;
 	
 	
 	// -------------------------------------------------------------------
@@ -53,14 +84,6 @@ public class FlowMeterReader
 	private byte    leftoverAudioDataByte;
 	private boolean useLeftoverAudioDataByte = false;
 	
-	// at the end of a processAudioData call, some of then end samples are stored
-	// this way, during the next execution of processAudioData, it can look back
-	// at the samples from the last run in order to calculate the amplitude delta.
-	// the number of samples needed to be back-filled is equal to the number of
-	// samples required to calculate the amplitude delta.
-	private final AudioSample[] backfilledSamples;
-	private int numBackfilledSamples = 0;
-	
 	
 	
 	// ===================================================================
@@ -70,16 +93,125 @@ public class FlowMeterReader
 	
 	public FlowMeterReader(int sampleRate)
 	{
-		this.sampleRate = sampleRate;
-		
-		// calculate derived constants
+		this(sampleRate, PulseDetectorType.EDGE_FOLLOWING);
+	}
+	
+	/**
+	 * @param sampleRate        - Sample rate of the audio data.
+	 * @param pulseDetectorType - Algorithm to detect pulses with.
+	 */
+	public FlowMeterReader(int sampleRate, PulseDetectorType pulseDetectorType)
+	{
+		this(sampleRate, pulseDetectorType.create(sampleRate));
+	}
+	
+	/**
+	 * @param sampleRate    - Sample rate of the audio data.
+	 * @param pulseDetector - Detects pulses in the samples. It should not be shared with other readers.
+	 */
+	public FlowMeterReader(int sampleRate, PulseDetector pulseDetector)
+	{
+		this.sampleRate    = sampleRate;
+		this.pulseDetector = pulseDetector;
+	}
+	
+	
+	
+	// ===================================================================
+	// Static Helpers
+	//
+	// ===================================================================
+	
+	/**
+	 * Calculates the max number of samples a pulse can exist for.
+	 * 
+	 * @param sampleRate - Sample rate of the audio data.
+	 * 
+	 * @return Number of samples that make up {@link #MAX_PULSE_DURATION_NS}. At least 1.
+	 */
+	public static int calculateMaxPulseDurationNumSamples(int sampleRate)
+	{
 		// D = AMPLITUDE_DELTA_DURATION_NS
 		// R = sampleRate
 		// D ns * (R samples/s) * (1s/1000000000ns) = (D * R samples)/1000000000
-		maxPulseDurationNumSamples = (int)Math.max(1, (MAX_PULSE_DURATION_NS * sampleRate) / NS_IN_S);
-		
-		// setup intermediate processAudioData variables
-		backfilledSamples = new AudioSample[maxPulseDurationNumSamples];
+		return (int)Math.max(1, (MAX_PULSE_DURATION_NS * sampleRate) / NS_IN_S);
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public int getSampleRate()
+	{
+		return sampleRate;
+	}
+	
+	public long getNumSamplesProcessed()
+	{
+		return numSamplesProcessed;
+	}
+	
+	public PulseDetector getPulseDetector()
+	{
+		return pulseDetector;
+	}
+	
+	/**
+	 * @return The settings the pulse detector is using. Safe to call from any thread.
+	 */
+	public DetectionConfig getDetectionConfig()
+	{
+		return detectionConfig;
+	}
+	
+	/**
+	 * Switches the pulse detector to new settings at the start of the next reading, so a reading is
+	 * never detected with two sets of settings. Can be called from any thread. Set them before
+	 * restoring a checkpoint so the detector's history is restored with them.
+	 * 
+	 * @param detectionConfig - Settings to switch to.
+	 * 
+	 * @throws IllegalArgumentException If the settings are out of range at the reader's sample rate.
+	 */
+	public void setDetectionConfig(DetectionConfig detectionConfig)
+	{
+		detectionConfig.validate(sampleRate);
+		pendingDetectionConfig = detectionConfig;
+	}
+	
+	@Override
+	public void onDetectionConfigChanged(DetectionConfig config)
+	{
+		setDetectionConfig(config);
+	}
+	
+	/**
+	 * Sets a filter to run the samples through before pulses are detected. The samples in each
+	 * {@link FlowMeterReading} are the filtered samples.
+	 * 
+	 * @param sampleFilter - Filter to use or <code>null</code> to not filter.
+	 */
+	public void setSampleFilter(SampleFilter sampleFilter)
+	{
+		this.sampleFilter = sampleFilter;
+	}
+	
+	public SampleFilter getSampleFilter()
+	{
+		return sampleFilter;
+	}
+	
+	/**
+	 * Sets who to tell about every edge the pulse detector measures.
+	 * 
+	 * @param edgeListener - Listener or <code>null</code> for none.
+	 */
+	public void setEdgeListener(EdgeListener edgeListener)
+	{
+		pulseDetector.setEdgeListener(edgeListener);
 	}
 	
 	
@@ -113,27 +245,121 @@ public class FlowMeterReader
 	 */
 	public FlowMeterReading readFlowMeterAudioData(byte[] data, int dataOffset, int dataLength, boolean bigEndian)
 	{
-		// create audio samples from the audio data
-		AudioSample[] samples = createSamplesFromAudioData(data, dataOffset, dataLength, bigEndian);
+		long firstSampleIndex = numSamplesProcessed;
+		
+		// switch to new settings if we were given any
+		applyPendingDetectionConfig();
+		
+		// create audio samples from the audio data, filtering them if enabled. Without a filter the
+		// raw samples are the samples
+		SampleFilter filter = sampleFilter;
+		
+		int numSamples = calculateNumSamples(dataLength);
+		AudioSample[] samples    = new AudioSample[numSamples];
+		AudioSample[] rawSamples = filter == null? samples : new AudioSample[numSamples];
+		
+		createSamplesFromAudioData(data, dataOffset, dataLength, bigEndian, filter, samples, rawSamples);
 		
 		// detect pulses
-		Pulse[] pulses = detectPulses(samples);
+		Pulse[] pulses = pulseDetector.detectPulses(samples, firstSampleIndex);
+		
+		// hand over any gap before these samples
+		SampleGap gap = pendingGap;
+		pendingGap = null;
 		
 		// done
-		return new FlowMeterReading(samples, pulses);
+		return new FlowMeterReading(samples, rawSamples, pulses, firstSampleIndex, gap);
 	}
 	
 	/**
-	 * Creates {@link AudioSample}s for the given audio data.
+	 * Finishes the pulses still being measured when the stream ends, so a pulse right at the end of
+	 * a recording isn't lost. Reading more after this starts the detector over.
+	 * 
+	 * @return A reading with no samples holding the last pulses and any gap not handed over yet.
+	 */
+	public FlowMeterReading finish()
+	{
+		Pulse[] pulses = pulseDetector.flush(numSamplesProcessed);
+		
+		SampleGap gap = pendingGap;
+		pendingGap = null;
+		
+		return new FlowMeterReading(new AudioSample[0], pulses, numSamplesProcessed, gap);
+	}
+	
+	/**
+	 * Reconfigures the pulse detector with the settings last given to
+	 * {@link #setDetectionConfig}. Only a reference compare when there are none.
+	 */
+	private void applyPendingDetectionConfig()
+	{
+		DetectionConfig newDetectionConfig = pendingDetectionConfig;
+		if (newDetectionConfig == detectionConfig)
+			return;
+		
+		pulseDetector.reconfigure(
+			newDetectionConfig.calculateMaxPulseDurationNumSamples(sampleRate),
+			newDetectionConfig.getFM1PulseAmplitudeDeltaThreshold(),
+			newDetectionConfig.getFM2PulseAmplitudeDeltaThreshold());
+		
+		detectionConfig = newDetectionConfig;
+	}
+	
+	/**
+	 * Skips over samples that are missing from the stream so the samples after them get the right
+	 * indexes and times. The pulse detector is reset so no pulse is detected across the gap, and
+	 * the gap is given with the next {@link FlowMeterReading}.
+	 * 
+	 * @param numSamples - Number of samples missing.
+	 */
+	public void skipSamples(long numSamples)
+	{
+		if (numSamples <= 0)
+			return;
+		
+		// gaps with no samples between them are one gap
+		if (pendingGap == null)
+			pendingGap = new SampleGap(numSamplesProcessed, numSamples);
+		else
+			pendingGap = new SampleGap(pendingGap.startSampleIndex, pendingGap.numSamples + numSamples);
+		
+		numSamplesProcessed += numSamples;
+		
+		// the leftover byte's partner is gone
+		useLeftoverAudioDataByte = false;
+		
+		pulseDetector.reset();
+	}
+	
+	/**
+	 * Calculates how many samples the given number of bytes will make, counting the leftover byte
+	 * from the last read.
+	 * 
+	 * @param dataLength - Number of bytes to read.
+	 * 
+	 * @return Number of samples {@link #createSamplesFromAudioData} will create.
+	 */
+	private int calculateNumSamples(int dataLength)
+	{
+		int totalDataLength = useLeftoverAudioDataByte? dataLength + 1 : dataLength;
+		return totalDataLength / 2; // two bytes are used for each sample
+	}
+	
+	/**
+	 * Creates {@link AudioSample}s for the given audio data. Amplitudes are run through the filter
+	 * as the samples are created so filtering doesn't take another pass over the samples.
 	 * 
 	 * @param data       - Audio data.
 	 * @param dataOffset - Offset to start from in bytes
 	 * @param dataLength - Number of bytes to read.
 	 * @param bigEndian  - If the data is big-endian (true) or little-endian (false).
-	 * 
-	 * @return List of {@link AudioSample}s created from the given audio data.
+	 * @param filter     - Filter to run the amplitudes through or <code>null</code> for none.
+	 * @param samples    - Array to fill with the filtered samples. Must be
+	 *                     {@link #calculateNumSamples} long.
+	 * @param rawSamples - Array to fill with the samples as they were read. May be the same array
+	 *                     as <code>samples</code> when there is no filter.
 	 */
-	private AudioSample[] createSamplesFromAudioData(byte[] data, int dataOffset, int dataLength, boolean bigEndian)
+	private void createSamplesFromAudioData(byte[] data, int dataOffset, int dataLength, boolean bigEndian, SampleFilter filter, AudioSample[] samples, AudioSample[] rawSamples)
 	{
 		// because we need two bytes for every sample, the data length must be kept even
 		int evenDataLength = dataLength;
@@ -141,20 +367,19 @@ public class FlowMeterReader
 		if (useLeftoverAudioDataByte) // account for the offset of using the leftover byte
 			++evenDataLength;
 		
+		// remember how many bytes we have in total so we know if there will be one leftover
+		int totalDataLength = evenDataLength;
+		
 		if (evenDataLength % 2 == 1)
 			--evenDataLength;
 		
 		
-		// calculate ahead how many samples will be created
-		int numSamplesWillBeCreated = evenDataLength / 2; // two bytes are used for each sample
-		
-		// create an array to hold the samples
 		int numSamples = 0;
-		AudioSample[] samples = new AudioSample[numSamplesWillBeCreated];
 		
 		
 		// iterate through the data bytes and create the raw samples
-		for (int i = 0; i < evenDataLength; i += 2)
+		// count samples rather than bytes as using the leftover byte shifts the index by one
+		for (int i = 0; numSamples < samples.length; i += 2)
 		{
 			// select the bytes to use
 			byte byte1;
@@ -193,216 +418,114 @@ public class FlowMeterReader
 			
 			
 			// create an audio sample
-			AudioSample sample = new AudioSample(time, amplitude);
+			AudioSample rawSample = new AudioSample(time, amplitude);
 			
 			// increment the number of samples processed
 			++numSamplesProcessed;
 			
-			// add it to the list of samples
-			samples[numSamples] = sample;
+			// add it to the list of samples, filtered if enabled
+			rawSamples[numSamples] = rawSample;
+			samples[numSamples] = filter == null? rawSample : new AudioSample(time, filter.filter(amplitude));
 			++numSamples;
 		}
 		
 		// check if we have a leftover byte
-		if (evenDataLength < dataLength)
+		if (evenDataLength < totalDataLength)
 		{
 			leftoverAudioDataByte = data[dataOffset + dataLength - 1];
 			useLeftoverAudioDataByte = true;
 		}
-		
-		return samples;
 	}
 	
 	
 	
+	// ===================================================================
+	// Checkpointing
+	//
+	// ===================================================================
+	
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException
+	{
+		out.writeInt(sampleRate);
+		out.writeLong(numSamplesProcessed);
+		
+		out.writeBoolean(useLeftoverAudioDataByte);
+		out.writeByte(leftoverAudioDataByte);
+		
+		// write the detector's and filter's state with their types so they can be skipped if they change
+		writeComponentCheckpoint(out, pulseDetector);
+		writeComponentCheckpoint(out, sampleFilter);
+	}
+	
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException
+	{
+		// the sample rate determines our timebase so a checkpoint from a different sample rate is useless
+		int checkpointSampleRate = in.readInt();
+		if (checkpointSampleRate != sampleRate)
+			throw new IOException("Checkpoint sample rate " + checkpointSampleRate + " does not match " + sampleRate);
+		
+		long    checkpointNumSamplesProcessed      = in.readLong();
+		boolean checkpointUseLeftoverAudioDataByte = in.readBoolean();
+		byte    checkpointLeftoverAudioDataByte    = in.readByte();
+		
+		if (checkpointNumSamplesProcessed < 0)
+			throw new IOException("Invalid checkpoint");
+		
+		// size the detector for the settings it will run with before restoring its history into it
+		applyPendingDetectionConfig();
+		
+		// restore the detector and filter first. They validate their own state and throw before changing anything
+		// if a different detector or filter was used, we only lose the few samples of history it was holding
+		readComponentCheckpoint(in, pulseDetector);
+		readComponentCheckpoint(in, sampleFilter);
+		
+		// everything checks out, restore
+		numSamplesProcessed      = checkpointNumSamplesProcessed;
+		useLeftoverAudioDataByte = checkpointUseLeftoverAudioDataByte;
+		leftoverAudioDataByte    = checkpointLeftoverAudioDataByte;
+	}
+	
 	/**
-	 * Detects pulses in audio samples. The given audio samples are used along with
-	 * any back-filled samples from previous executions.
+	 * Writes the state of a component along with its type.
 	 * 
-	 * @param newSamples - New audio samples to check for pulses in.
-	 * 
-	 * @return The number of pulses found. Index 0 contains pulses for flow meter 1,
-	 * index 1 contains pulses for flow meter 2.
+	 * @param component - Component to write or <code>null</code> if there is none.
 	 */
-	private Pulse[] detectPulses(AudioSample[] newSamples)
+	private static void writeComponentCheckpoint(DataOutput out, Checkpointable component) throws IOException
 	{
-		ArrayList<Pulse> pulsesList = new ArrayList<Pulse>();
-		
-		// if we don't have any new samples, there is nothing to do
-		if (newSamples.length == 0)
-			return new Pulse[0];
-		
-		
-		// combine the back-filled samples and the new samples
-		AudioSample[] samples = new AudioSample[numBackfilledSamples + newSamples.length];
-		
-		for (int i = 0; i < numBackfilledSamples; ++i)
-			samples[i] = backfilledSamples[i];
-		
-		for (int i = 0; i < newSamples.length; ++i)
-			samples[numBackfilledSamples + i] = newSamples[i];
-		
-		
-		int lastFoundEdgeEndIndex = -1;
-		
-		// follow all the edges in the samples and check if they are pulses
-		// make sure we always have enough samples to make the longest possible pulse
-		for (int i = 0; i < samples.length - maxPulseDurationNumSamples; ++i)
+		if (component == null)
 		{
-			// follow the edge
-			int edgeStartIndex = i;
-			int edgeEndIndex = followEdge(samples, edgeStartIndex, maxPulseDurationNumSamples);
-			
-			// check if we followed the edge to the end
-			if (edgeEndIndex == -1)
-			{
-				// we did not. This means the edge was longer than the max pulse duration.
-				// We can only infer that there is no pulse that starts at i, but there may
-				// be one that starts at i+1.
-				continue;
-			}
-			
-			// at this point, we know this edge absolutely is or is not a pulse. Either way,
-			// we should start our next search from the end of this edge
-			i = edgeEndIndex - 1; // -1 to compensate for the ++i in the for loop
-			
-			// we should also not back-fill any samples before the end of the edge
-			// record the end index of this edge
-			lastFoundEdgeEndIndex = edgeEndIndex;
-			
-			
-			AudioSample startSample = samples[edgeStartIndex];
-			AudioSample endSample   = samples[edgeEndIndex];
-			
-			// get the amplitude delta for the edge
-			int edgeAmplitudeDelta = endSample.amplitude - startSample.amplitude;
-			int absEdgeAmplitudeDelta = Math.abs(edgeAmplitudeDelta);
-			
-			// check if this edge was a pulse from flow meter 2
-			if (absEdgeAmplitudeDelta >= FM2_PULSE_AMPLITUDE_DELTA_THRESHOLD)
-			{
-				// it was! create a pulse
-				Pulse pulse = new Pulse(startSample, endSample, 2);
-				pulsesList.add(pulse);
-				
-				continue;
-			}
-						
-			// check if this edge was a pulse from flow meter 1
-			if (absEdgeAmplitudeDelta >= FM1_PULSE_AMPLITUDE_DELTA_THRESHOLD)
-			{
-				// it was! create a pulse
-				Pulse pulse = new Pulse(startSample, endSample, 1);
-				pulsesList.add(pulse);
-				
-				continue;
-			}
-			
-			// this edge was not a pulse
+			out.writeUTF("");
+			out.writeInt(0);
+			return;
 		}
 		
+		ByteArrayOutputStream componentState = new ByteArrayOutputStream();
+		component.writeCheckpoint(new DataOutputStream(componentState));
 		
-		
-		// back-fill samples for the next iteration
-		// try to fill the entire array
-		int backFillFromIndex = samples.length - backfilledSamples.length;
-		
-		// clamp to the number of samples available
-		if (backFillFromIndex < 0)
-			backFillFromIndex = 0;
-		
-		// don't back-fill samples for edges we have already checked
-		if (backFillFromIndex < lastFoundEdgeEndIndex)
-			backFillFromIndex = lastFoundEdgeEndIndex;
-		
-		int numToBackfill = samples.length - backFillFromIndex;
-		
-		// copy samples into the back-filled array
-		for (int i = 0; i < numToBackfill; ++i)
-			backfilledSamples[i] = samples[backFillFromIndex + i];
-		
-		numBackfilledSamples = numToBackfill;
-		
-		
-		// return pulses
-		return pulsesList.toArray(new Pulse[pulsesList.size()]);
+		out.writeUTF(component.getClass().getName());
+		out.writeInt(componentState.size());
+		out.write(componentState.toByteArray());
 	}
 	
 	/**
-	 * Follows an edge starting at the given sample and returns where it ends.
-	 * 
-	 * @param samples                   - Audio samples to use.
-	 * @param startIndex                - Index of the sample to start the edge from.
-	 * @param maxEdgeDurationNumSamples - The maximum number of samples to follow an edge for.
+	 * Reads the state written by {@link #writeComponentCheckpoint}. The state is skipped if it was
+	 * written by a different type of component.
 	 * 
-	 * @return The index of the last sample of the edge or -1 if no end was found. An end will
-	 *         not be found if the duration of the edge exceeds <code>maxEdgeDurationNumSamples</code>
-	 *         or if the end of the samples array is reached.
+	 * @param component - Component to restore or <code>null</code> if there is none.
 	 */
-	private static int followEdge(AudioSample[] samples, int startIndex, int maxEdgeDurationNumSamples)
+	private static void readComponentCheckpoint(DataInput in, Checkpointable component) throws IOException
 	{
-		// follow an edge
-		// an edge is a series of samples that all rise/fall in the same direction.
-		// as soon as the direction changes, the edge ends, and a new one begins
-		// example:
-		
-		// ---|-----|----|--|-|---|---
-		//
-		//         / \
-		//        |   \
-		// \     /     |
-		//  \   /      |         / \
-		//   \ /       |        /   |
-		//             \   / \ /    \
-		//              \ /          \
-		//
-		
-		
-		// direction of the edge: +1 = up, -1 = down, 0 = not yet set
-		int edgeDirection = 0;
-		
-		for (int i = 1; i < maxEdgeDurationNumSamples; ++i)
-		{
-			int curentIndex = startIndex + i;
-			
-			// make sure we don't go outside the samples array
-			if (curentIndex >= samples.length)
-			{
-				// we have reached the end of the samples array
-				// we were unable to find an end to the edge
-				return -1;
-			}
-			
-			AudioSample currentSample  = samples[curentIndex];
-			AudioSample previousSample = samples[curentIndex - 1];
-			
-			// get change in amplitude and direction between this sample and the last
-			int imediateAmplitudeDelta = currentSample.amplitude - previousSample.amplitude;
-			
-			// if we did not move at all, we can't infer the direction
-			if (imediateAmplitudeDelta == 0) {
-				continue;
-			}
-			
-			int imediateDirection = imediateAmplitudeDelta < 0? -1 : 1;
-			
-			// if the edge does not have a direction yet, set one
-			if (edgeDirection == 0)
-			{
-				edgeDirection = imediateDirection;
-				continue;
-			}
-			
-			// check to see if we are still moving in the same direction
-			if (imediateDirection != edgeDirection)
-			{
-				// we have found the edge's end
-				return curentIndex - 1;
-			}
-		}
+		String componentClassName = in.readUTF();
+		int    componentStateLength = in.readInt();
+		if (componentStateLength < 0)
+			throw new IOException("Invalid checkpoint");
+		
+		byte[] componentState = new byte[componentStateLength];
+		in.readFully(componentState);
 		
-		// the duration of the edge has exceeded the max
-		// we were unable to find an end to the edge
-		return -1;
+		if (component != null && componentClassName.equals(component.getClass().getName()))
+			component.readCheckpoint(new DataInputStream(new ByteArrayInputStream(componentState)));
 	}
 }
@@ -8,9 +8,32 @@ public final class FlowMeterReading
 	public final AudioSample[] samples;
 	public final Pulse[]       pulses;
 	
-	public FlowMeterReading(AudioSample[] samples, Pulse[] pulses)
+	// samples as they were read, before any sample filter. The same array as samples if there is
+	// no filter
+	public final AudioSample[] rawSamples;
+	
+	// index of the first sample in the stream (0 being the first sample ever read)
+	public final long firstSampleIndex;
+	
+	// samples missing right before this reading or null if there were none
+	public final SampleGap gap;
+	
+	public FlowMeterReading(AudioSample[] samples, Pulse[] pulses, long firstSampleIndex)
+	{
+		this(samples, pulses, firstSampleIndex, null);
+	}
+	
+	public FlowMeterReading(AudioSample[] samples, Pulse[] pulses, long firstSampleIndex, SampleGap gap)
+	{
+		this(samples, samples, pulses, firstSampleIndex, gap);
+	}
+	
+	public FlowMeterReading(AudioSample[] samples, AudioSample[] rawSamples, Pulse[] pulses, long firstSampleIndex, SampleGap gap)
 	{
-		this.samples = samples;
-		this.pulses  = pulses;
+		this.samples          = samples;
+		this.rawSamples       = rawSamples;
+		this.pulses           = pulses;
+		this.firstSampleIndex = firstSampleIndex;
+		this.gap              = gap;
 	}
 }
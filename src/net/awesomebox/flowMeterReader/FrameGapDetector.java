@@ -0,0 +1,125 @@
+package net.awesomebox.flowMeterReader;
+
+import net.awesomebox.flowMeterReader.metrics.MetricSource;
+import net.awesomebox.flowMeterReader.metrics.MetricsWriter;
+
+/**
+ * Finds frames a capture line lost, so the reader can skip over them.<br />
+ * <br />
+ * A line's frame position counts every frame it has captured. Every captured frame has either been
+ * read or is still in the line's buffer, unless the buffer overran or was flushed. So the frame
+ * position minus the frames read and buffered is how many were lost. Each time that grows, the
+ * frames were lost between the last frame read and the first one still buffered.<br />
+ * <br />
+ * The frame position and the buffered count can't be read at the same instant. Read the frame
+ * position first so any frames captured in between are counted as buffered, which can only make
+ * the loss look smaller. Losses under the tolerance are left until they add up past it.
+ */
+public class FrameGapDetector implements MetricSource
+{
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final long toleranceNumFrames;
+	
+	// frame position at the first check. The line may have captured frames before we started reading
+	private boolean hasStartFramePosition = false;
+	private long    startFramePosition;
+	
+	private long numFramesRead = 0;
+	private long numFramesLost = 0;
+	private long numGaps       = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param toleranceNumFrames - Fewest lost frames to report as a gap.
+	 */
+	public FrameGapDetector(long toleranceNumFrames)
+	{
+		this.toleranceNumFrames = Math.max(1, toleranceNumFrames);
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Counts frames read from the line.
+	 */
+	public synchronized void addFramesRead(long numFrames)
+	{
+		numFramesRead += numFrames;
+	}
+	
+	/**
+	 * Checks for frames lost since the last check. Call after reading, with the frame position
+	 * read before the number of buffered frames.
+	 * 
+	 * @param framePosition     - The line's frame position.
+	 * @param numFramesBuffered - Number of frames waiting in the line's buffer.
+	 * 
+	 * @return Number of frames lost since the last gap, or 0 if none were.
+	 */
+	public synchronized long check(long framePosition, long numFramesBuffered)
+	{
+		if (!hasStartFramePosition)
+		{
+			hasStartFramePosition = true;
+			startFramePosition    = framePosition - numFramesRead - numFramesBuffered;
+			return 0;
+		}
+		
+		// the position went backwards. EX: the line was reopened. Start counting from here
+		if (framePosition - startFramePosition < numFramesRead)
+		{
+			startFramePosition = framePosition - numFramesRead - numFramesBuffered - numFramesLost;
+			return 0;
+		}
+		
+		long lostNumFrames = (framePosition - startFramePosition) - numFramesRead - numFramesBuffered - numFramesLost;
+		
+		if (lostNumFrames < toleranceNumFrames)
+			return 0;
+		
+		numFramesLost += lostNumFrames;
+		++numGaps;
+		
+		return lostNumFrames;
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public synchronized long getNumFramesLost()
+	{
+		return numFramesLost;
+	}
+	
+	public synchronized long getNumGaps()
+	{
+		return numGaps;
+	}
+	
+	@Override
+	public synchronized void writeMetrics(MetricsWriter out)
+	{
+		out.write("capture_gaps_total",        numGaps);
+		out.write("capture_frames_lost_total", numFramesLost);
+		out.write("capture_frames_read_total", numFramesRead);
+	}
+}
@@ -1,14 +1,54 @@
 package net.awesomebox.flowMeterReader;
 
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
 
+import javax.imageio.ImageIO;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.TargetDataLine;
 
+import net.awesomebox.flowMeterReader.archive.SignalArchiveWriter;
+import net.awesomebox.flowMeterReader.batch.BatchAnalyzer;
+import net.awesomebox.flowMeterReader.capture.CaptureWriter;
+import net.awesomebox.flowMeterReader.capture.PulseCapture;
+import net.awesomebox.flowMeterReader.checkpoint.CheckpointFile;
+import net.awesomebox.flowMeterReader.checkpoint.ShutdownSignal;
+import net.awesomebox.flowMeterReader.clock.SampleClock;
+import net.awesomebox.flowMeterReader.clock.SystemClock;
+import net.awesomebox.flowMeterReader.config.DetectionConfigWatcher;
+import net.awesomebox.flowMeterReader.eventBus.PulseEventBus;
+import net.awesomebox.flowMeterReader.eventBus.WaitStrategyType;
+import net.awesomebox.flowMeterReader.export.ExportEvent;
+import net.awesomebox.flowMeterReader.export.ExportFormat;
+import net.awesomebox.flowMeterReader.export.ExportFormatType;
+import net.awesomebox.flowMeterReader.export.FileExportSink;
+import net.awesomebox.flowMeterReader.export.PulseCountIndex;
+import net.awesomebox.flowMeterReader.export.PulseExporter;
+import net.awesomebox.flowMeterReader.flowRate.FlowRateMonitor;
+import net.awesomebox.flowMeterReader.leakDetector.LeakDetector;
+import net.awesomebox.flowMeterReader.leakDetector.LeakDetectorListener;
+import net.awesomebox.flowMeterReader.leakDetector.QuietWindow;
+import net.awesomebox.flowMeterReader.lowLatency.LowLatencyPulseEmitter;
+import net.awesomebox.flowMeterReader.metrics.MetricsServer;
+import net.awesomebox.flowMeterReader.pulseDetector.EdgeFollowingPulseDetector;
+import net.awesomebox.flowMeterReader.pulseDetector.PulseDetector;
+import net.awesomebox.flowMeterReader.pulseDetector.PulseDetectorType;
+import net.awesomebox.flowMeterReader.replay.ReplaySource;
+import net.awesomebox.flowMeterReader.sampleFilter.SampleFilterChain;
+import net.awesomebox.flowMeterReader.signalQuality.SignalQualityMonitor;
+import net.awesomebox.flowMeterReader.signalVisualizer.SampleHistory;
+import net.awesomebox.flowMeterReader.signalVisualizer.SignalRenderer;
+import net.awesomebox.flowMeterReader.signalVisualizer.SignalStoreEventHandler;
 import net.awesomebox.flowMeterReader.signalVisualizer.SignalVisualizer;
 import net.awesomebox.flowMeterReader.signalVisualizerWindow.SignalVisualizerWindow;
 
@@ -19,13 +59,448 @@ public class Main
 	private static final int STARTING_VISUALIZATION_WIDTH  = 1200;
 	private static final int STARTING_VISUALIZATION_HEIGHT = 500;
 	
+	// where and how often to checkpoint the reader's state while streaming from the mic. Counted
+	// pulses are checkpointed sooner so a restart loses as few as possible
+	private static final String CHECKPOINT_FILE_NAME           = "flowMeterReader.checkpoint";
+	private static final long   CHECKPOINT_INTERVAL_NS         = 5 * FlowMeterReader.NS_IN_S;
+	private static final long   CHECKPOINT_CHANGED_INTERVAL_NS = 250 * FlowMeterReader.NS_IN_MS;
 	
+	// longest to wait for the last checkpoint when exiting
+	private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+	
+	// system property used to pick the pulse detection algorithm. EX: -DpulseDetector=hysteresis
+	// The hysteresis detector is faster but merges pulses from the two meters that come within a
+	// max pulse duration of each other, finding about 96% of the pulses when both meters are running
+	private static final String PULSE_DETECTOR_PROPERTY = "pulseDetector";
+	
+	// system property used to turn on filtering before pulse detection. EX: -DsampleFilter=true
+	private static final String SAMPLE_FILTER_PROPERTY = "sampleFilter";
+	
+	
+	// system property used to turn on capturing the samples around pulses and near misses. EX: -DcaptureFile=captures.bin
+	private static final String CAPTURE_FILE_PROPERTY = "captureFile";
+	
+	// how much to capture around each trigger
+	private static final int CAPTURE_PRE_TRIGGER_MS  = 50;
+	private static final int CAPTURE_POST_TRIGGER_MS = 100;
+	
+	// system property used to turn on archiving the signal. EX: -DarchiveFile=signal.fma
+	private static final String ARCHIVE_FILE_PROPERTY = "archiveFile";
+	
+	// system property used to turn on exporting pulses. EX: -Dexport=csv,binary,line-protocol
+	private static final String EXPORT_PROPERTY = "export";
+	
+	// exported pulses are written to this file name with each format's extension
+	private static final String EXPORT_FILE_NAME = "pulses";
+	
+	// system properties used to configure leak detection. EX: -DcontinuousFlowHours=12 -DquietWindows=01:00-05:00,13:00-13:30
+	private static final String CONTINUOUS_FLOW_HOURS_PROPERTY = "continuousFlowHours";
+	private static final String QUIET_WINDOWS_PROPERTY         = "quietWindows";
+	
+	// system properties used to configure how much signal the visualizer keeps and where. Samples are kept
+	// off the heap, in a memory-mapped file if one is given. EX: -DhistoryMinutes=1440 -DhistoryFile=history.bin
+	private static final String HISTORY_MINUTES_PROPERTY = "historyMinutes";
+	private static final String HISTORY_FILE_PROPERTY    = "historyFile";
+	
+	private static final double DEFAULT_HISTORY_MINUTES = 10;
+	
+	// system property used to show a lane for the signal and one for each flow meter's pulses. EX: -Dlanes=true
+	private static final String LANES_PROPERTY = "lanes";
+	
+	// system property used to pick a detection config file that is reloaded when it changes. EX: -DdetectionConfigFile=detection.properties
+	private static final String DETECTION_CONFIG_FILE_PROPERTY = "detectionConfigFile";
+	
+	// system property used to pick how the event bus's consumers wait for events. EX: -DeventBusWaitStrategy=blocking
+	private static final String EVENT_BUS_WAIT_STRATEGY_PROPERTY = "eventBusWaitStrategy";
+	
+	// system property used to turn on serving metrics over HTTP. EX: -DmetricsPort=9100
+	private static final String METRICS_PORT_PROPERTY = "metricsPort";
+	
+	// system property used to serve metrics on another address than loopback. EX: -DmetricsBindAddress=0.0.0.0
+	private static final String METRICS_BIND_ADDRESS_PROPERTY = "metricsBindAddress";
+	
+	// number of bytes to read at a time. Matches a 16kHz mic read
+	private static final int CHUNK_NUM_BYTES = 180;
+	
+	// system property used to hand pulses over as soon as they end and report how long that takes.
+	// Always uses the edge-following detector. EX: -DlowLatency=true
+	private static final String LOW_LATENCY_PROPERTY = "lowLatency";
+	
+	// number of bytes to read at a time in low-latency mode. 1ms at 16kHz
+	private static final int LOW_LATENCY_CHUNK_NUM_BYTES = 32;
+	
+	// how often to redraw in low-latency mode, so redrawing doesn't hold up the reads
+	private static final long LOW_LATENCY_REFRESH_INTERVAL_NS = 20 * FlowMeterReader.NS_IN_MS;
+	
+	// how often to print the pulse latency in low-latency mode
+	private static final long LATENCY_REPORT_INTERVAL_NS = 10 * FlowMeterReader.NS_IN_S;
+	
+	// fewest milliseconds of lost frames to count as a gap
+	private static final int GAP_TOLERANCE_MS = 10;
+	
+	// how much to run the pulse detector for before a rendered range so it is settled
+	private static final int RENDER_PREROLL_MS = 1000;
+	
+	// number of bytes to read at a time when rendering
+	private static final int RENDER_CHUNK_NUM_BYTES = 64 * 1024;
+	
+	
+	/**
+	 * Usage:
+	 * <pre>
+	 * Main                             stream from the mic
+	 * Main replay &lt;file&gt; [speed]       replay a recording as if live. EX: 10, 100x, max. Default 1
+	 * Main count &lt;file&gt; &lt;flowMeterID&gt; &lt;start&gt; &lt;end&gt;
+	 *                                  count the pulses in a binary export between two times.
+	 *                                  EX: 2024-01-31, 2024-01-31T18:30, epoch milliseconds
+	 * Main batch &lt;dir&gt; [numThreads]     analyze every recording under a directory. Default one thread per CPU
+	 * Main render &lt;file&gt; &lt;startS&gt; &lt;endS&gt; &lt;out.png&gt; [width] [height]
+	 *                                  draw seconds startS to endS of a recording with its pulses to a PNG.
+	 *                                  Default 1920x500
+	 * 
+	 * -DpulseDetector=hysteresis       detect with the faster hysteresis detector. It finds about 96%
+	 *                                  of the pulses when both meters are running
+	 * </pre>
+	 */
 	public static void main(String[] args) throws Exception
 	{
+		if (args.length >= 2 && args[0].equals("replay"))
+		{
+			streamFromReplay(new File(args[1]), args.length >= 3? ReplaySource.parseSpeed(args[2]) : 1.0d);
+			return;
+		}
+		
+		if (args.length >= 2 && args[0].equals("batch"))
+		{
+			int numThreads = args.length >= 3? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+			
+			BatchAnalyzer batchAnalyzer = new BatchAnalyzer(getPulseDetectorType(), Boolean.getBoolean(SAMPLE_FILTER_PROPERTY), numThreads, System.out);
+			batchAnalyzer.analyzeDirectory(Paths.get(args[1]));
+			return;
+		}
+		
+		if (args.length >= 5 && args[0].equals("render"))
+		{
+			renderToPNG(
+				new File(args[1]),
+				Double.parseDouble(args[2]),
+				Double.parseDouble(args[3]),
+				new File(args[4]),
+				args.length >= 6? Integer.parseInt(args[5]) : SignalRenderer.DEFAULT_WIDTH,
+				args.length >= 7? Integer.parseInt(args[6]) : SignalRenderer.DEFAULT_HEIGHT);
+			return;
+		}
+		
+		if (args.length >= 5 && args[0].equals("count"))
+		{
+			countPulses(new File(args[1]), Integer.parseInt(args[2]), parseTimeMillis(args[3]), parseTimeMillis(args[4]));
+			return;
+		}
+		
 		streamFromMic();
 		//streamFromFile();
 	}
 	
+	/**
+	 * @return The pulse detection algorithm picked with the {@link #PULSE_DETECTOR_PROPERTY} system property.
+	 */
+	private static PulseDetectorType getPulseDetectorType()
+	{
+		return PulseDetectorType.fromName(System.getProperty(PULSE_DETECTOR_PROPERTY, PulseDetectorType.EDGE_FOLLOWING.name()));
+	}
+	
+	/**
+	 * Creates a reader using the pulse detector and filter picked with system properties.
+	 */
+	private static FlowMeterReader createFlowMeterReader(int sampleRate)
+	{
+		return createFlowMeterReader(sampleRate, false);
+	}
+	
+	/**
+	 * @param lowLatency - If pulses should be found as soon as they end. Uses the edge-following
+	 *                     detector whichever is picked.
+	 */
+	private static FlowMeterReader createFlowMeterReader(int sampleRate, boolean lowLatency)
+	{
+		PulseDetector pulseDetector;
+		if (lowLatency)
+		{
+			pulseDetector = new EdgeFollowingPulseDetector(
+				FlowMeterReader.calculateMaxPulseDurationNumSamples(sampleRate),
+				FlowMeterReader.FM1_PULSE_AMPLITUDE_DELTA_THRESHOLD,
+				FlowMeterReader.FM2_PULSE_AMPLITUDE_DELTA_THRESHOLD,
+				true);
+		}
+		else
+		{
+			pulseDetector = getPulseDetectorType().create(sampleRate);
+		}
+		
+		FlowMeterReader flowMeterReader = new FlowMeterReader(sampleRate, pulseDetector);
+		
+		if (Boolean.getBoolean(SAMPLE_FILTER_PROPERTY))
+			flowMeterReader.setSampleFilter(SampleFilterChain.createDefault());
+		
+		return flowMeterReader;
+	}
+	
+	/**
+	 * Creates a capture stage writing to the file picked with the {@link #CAPTURE_FILE_PROPERTY}
+	 * system property.
+	 * 
+	 * @return The capture stage or <code>null</code> if capturing is off.
+	 */
+	private static PulseCapture createPulseCapture(int sampleRate) throws IOException
+	{
+		String captureFileName = System.getProperty(CAPTURE_FILE_PROPERTY);
+		if (captureFileName == null)
+			return null;
+		
+		CaptureWriter captureWriter = new CaptureWriter(new File(captureFileName), sampleRate, CaptureWriter.DEFAULT_QUEUE_CAPACITY);
+		return new PulseCapture(sampleRate, CAPTURE_PRE_TRIGGER_MS, CAPTURE_POST_TRIGGER_MS, captureWriter);
+	}
+	
+	/**
+	 * Creates an archive writing to the file picked with the {@link #ARCHIVE_FILE_PROPERTY} system property.
+	 * 
+	 * @return The archive or <code>null</code> if archiving is off.
+	 */
+	private static SignalArchiveWriter createSignalArchiveWriter(int sampleRate) throws IOException
+	{
+		String archiveFileName = System.getProperty(ARCHIVE_FILE_PROPERTY);
+		if (archiveFileName == null)
+			return null;
+		
+		return new SignalArchiveWriter(new File(archiveFileName), sampleRate, SignalArchiveWriter.DEFAULT_BLOCK_NUM_SAMPLES);
+	}
+	
+	/**
+	 * Creates the views to show in the window. If the {@link #LANES_PROPERTY} system property is set
+	 * there is a lane for each flow meter's pulses under the signal. They all draw from the given
+	 * visualizer's store. Each lane's paint stats are labeled with its name.
+	 * 
+	 * @return The given visualizer and any other lanes.
+	 */
+	private static SignalVisualizer[] createLanes(SignalVisualizer signalVisualizer)
+	{
+		if (!Boolean.getBoolean(LANES_PROPERTY))
+			return new SignalVisualizer[] {signalVisualizer};
+		
+		SignalVisualizer fm1Lane = new SignalVisualizer(signalVisualizer.getStore(), true);
+		fm1Lane.setPulseFlowMeterIDFilter(1);
+		fm1Lane.setShowFM1PulseBoxes(true);
+		fm1Lane.getPaintStats().setLaneName("fm1");
+		
+		SignalVisualizer fm2Lane = new SignalVisualizer(signalVisualizer.getStore(), true);
+		fm2Lane.setPulseFlowMeterIDFilter(2);
+		fm2Lane.setShowFM2PulseBoxes(true);
+		fm2Lane.getPaintStats().setLaneName("fm2");
+		
+		return new SignalVisualizer[] {signalVisualizer, fm1Lane, fm2Lane};
+	}
+	
+	/**
+	 * Creates the visualizer's sample history, keeping as much as picked with the
+	 * {@link #HISTORY_MINUTES_PROPERTY} system property in the file picked with the
+	 * {@link #HISTORY_FILE_PROPERTY} system property.
+	 */
+	private static SampleHistory createSampleHistory(int sampleRate) throws IOException
+	{
+		double historyMinutes = Double.parseDouble(System.getProperty(HISTORY_MINUTES_PROPERTY, Double.toString(DEFAULT_HISTORY_MINUTES)));
+		long retentionNS = (long)(historyMinutes * 60 * FlowMeterReader.NS_IN_S);
+		
+		String historyFileName = System.getProperty(HISTORY_FILE_PROPERTY);
+		return new SampleHistory(sampleRate, retentionNS, historyFileName == null? null : new File(historyFileName));
+	}
+	
+	/**
+	 * Creates an exporter with a sink for each format picked with the {@link #EXPORT_PROPERTY} system property.
+	 * 
+	 * @return The exporter or <code>null</code> if exporting is off.
+	 */
+	private static PulseExporter createPulseExporter(SampleClock sampleClock) throws IOException
+	{
+		String formatNames = System.getProperty(EXPORT_PROPERTY);
+		if (formatNames == null || formatNames.trim().isEmpty())
+			return null;
+		
+		PulseExporter pulseExporter = new PulseExporter(sampleClock);
+		
+		for (String formatName : formatNames.split(","))
+		{
+			ExportFormat format = ExportFormatType.fromName(formatName).create();
+			File file = new File(System.getProperty("user.dir") + File.separatorChar + EXPORT_FILE_NAME + format.getFileExtension());
+			
+			pulseExporter.addSink(new FileExportSink(file, format));
+		}
+		
+		return pulseExporter;
+	}
+	
+	/**
+	 * Creates a leak detector configured with system properties. Alerts are printed and exported.
+	 * 
+	 * @param pulseExporter - Exporter to send alerts to or <code>null</code>.
+	 */
+	private static LeakDetector createLeakDetector(final int sampleRate, SampleClock sampleClock, final PulseExporter pulseExporter)
+	{
+		double continuousFlowHours = Double.parseDouble(System.getProperty(CONTINUOUS_FLOW_HOURS_PROPERTY, Double.toString(LeakDetector.DEFAULT_CONTINUOUS_FLOW_HOURS)));
+		LeakDetector leakDetector = new LeakDetector(sampleRate, sampleClock, LeakDetector.DEFAULT_BUCKET_S, continuousFlowHours);
+		
+		String quietWindows = System.getProperty(QUIET_WINDOWS_PROPERTY);
+		if (quietWindows != null && !quietWindows.trim().isEmpty())
+			leakDetector.setQuietWindows(QuietWindow.parseList(quietWindows));
+		
+		leakDetector.setListener(new LeakDetectorListener()
+		{
+			@Override
+			public void onLeakAlert(int alertType, int flowMeterID, long startSampleIndex, long endSampleIndex, long numPulses, long timeMillis)
+			{
+				System.err.println(String.format("Possible leak on FM%d: %s for %.0fs (%d pulses)",
+					flowMeterID,
+					LeakDetector.getAlertName(alertType),
+					(double)(endSampleIndex - startSampleIndex) / sampleRate,
+					numPulses));
+				
+				if (pulseExporter != null)
+				{
+					byte type = alertType == LeakDetector.ALERT_CONTINUOUS_FLOW? ExportEvent.TYPE_CONTINUOUS_FLOW : ExportEvent.TYPE_QUIET_WINDOW_FLOW;
+					pulseExporter.exportAlert(type, timeMillis, flowMeterID, startSampleIndex, endSampleIndex);
+				}
+			}
+		});
+		
+		return leakDetector;
+	}
+	
+	/**
+	 * Creates a bus to hand pulses and gaps to consumers on their own threads. Its consumers wait
+	 * with the strategy picked with the {@link #EVENT_BUS_WAIT_STRATEGY_PROPERTY} system property.
+	 * 
+	 * @param signalVisualizer - Visualizer whose store the pulses and gaps are stored in to be drawn.
+	 *                           They are counted into its totals by the caller as they are published.
+	 */
+	private static PulseEventBus createPulseEventBus(SignalVisualizer signalVisualizer)
+	{
+		WaitStrategyType waitStrategyType = WaitStrategyType.fromName(System.getProperty(EVENT_BUS_WAIT_STRATEGY_PROPERTY, WaitStrategyType.SLEEPING.name()));
+		
+		PulseEventBus pulseEventBus = new PulseEventBus(PulseEventBus.DEFAULT_CAPACITY, waitStrategyType.create());
+		pulseEventBus.addConsumer("visualizer", new SignalStoreEventHandler(signalVisualizer.getStore()));
+		
+		return pulseEventBus;
+	}
+	
+	/**
+	 * Starts watching the file picked with the {@link #DETECTION_CONFIG_FILE_PROPERTY} system property.
+	 * 
+	 * @return The watcher or <code>null</code> if no file was picked.
+	 */
+	private static DetectionConfigWatcher createDetectionConfigWatcher(int sampleRate) throws IOException
+	{
+		String detectionConfigFileName = System.getProperty(DETECTION_CONFIG_FILE_PROPERTY);
+		if (detectionConfigFileName == null)
+			return null;
+		
+		DetectionConfigWatcher detectionConfigWatcher = new DetectionConfigWatcher(new File(detectionConfigFileName), sampleRate);
+		System.out.println("Watching " + detectionConfigWatcher.getFile() + " for detection config changes: " + detectionConfigWatcher.getConfig());
+		
+		return detectionConfigWatcher;
+	}
+	
+	/**
+	 * Closes what streaming used in the given order, carrying on past any that fail.
+	 * 
+	 * @param closeables - What to close. Any can be <code>null</code> if it was never created.
+	 */
+	private static void closeAll(Closeable... closeables)
+	{
+		for (Closeable closeable : closeables)
+		{
+			if (closeable == null)
+				continue;
+			
+			try
+			{
+				closeable.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Starts a metrics server on the port picked with the {@link #METRICS_PORT_PROPERTY} system property.
+	 * It only serves this machine unless {@link #METRICS_BIND_ADDRESS_PROPERTY} says otherwise.
+	 * 
+	 * @return The server or <code>null</code> if serving metrics is off.
+	 */
+	private static MetricsServer createMetricsServer() throws IOException
+	{
+		String port = System.getProperty(METRICS_PORT_PROPERTY);
+		if (port == null)
+			return null;
+		
+		String bindAddress = System.getProperty(METRICS_BIND_ADDRESS_PROPERTY);
+		InetAddress address = bindAddress == null? InetAddress.getLoopbackAddress() : InetAddress.getByName(bindAddress.trim());
+		
+		MetricsServer metricsServer = new MetricsServer(address, Integer.parseInt(port.trim()));
+		System.out.println("Serving metrics at http://" + metricsServer.getAddress().getHostAddress() + ":" + metricsServer.getPort() + MetricsServer.PATH);
+		
+		return metricsServer;
+	}
+	
+	/**
+	 * Parses a local time (EX: <code>2024-01-31</code>, <code>2024-01-31T18:30</code>,
+	 * <code>2024-01-31T18:30:15</code>) or milliseconds since the epoch.
+	 */
+	private static long parseTimeMillis(String str) throws ParseException
+	{
+		str = str.trim();
+		if (str.matches("-?\\d+"))
+			return Long.parseLong(str);
+		
+		String pattern;
+		switch (str.length())
+		{
+			case 10: pattern = "yyyy-MM-dd";            break;
+			case 16: pattern = "yyyy-MM-dd'T'HH:mm";    break;
+			default: pattern = "yyyy-MM-dd'T'HH:mm:ss"; break;
+		}
+		
+		SimpleDateFormat dateFormat = new SimpleDateFormat(pattern);
+		dateFormat.setLenient(false);
+		return dateFormat.parse(str).getTime();
+	}
+	
+	/**
+	 * Prints the number of pulses a flow meter had between two times using the index beside a
+	 * binary export. The index is only read if it exists, so this is safe while the export is
+	 * being written. Otherwise it is built first.
+	 */
+	private static void countPulses(File file, int flowMeterID, long startMillis, long endMillis) throws IOException
+	{
+		boolean readOnly = PulseCountIndex.getIndexFile(file).exists();
+		
+		long startTimeNS = System.nanoTime();
+		PulseCountIndex countIndex = new PulseCountIndex(file, readOnly);
+		
+		try
+		{
+			long numPulses = countIndex.countPulses(flowMeterID, startMillis, endMillis);
+			long elapsedUS = (System.nanoTime() - startTimeNS) / 1000;
+			
+			System.out.println(numPulses);
+			System.err.println("Counted in " + elapsedUS + "us using " + countIndex.getNumEntries() + " index entries");
+		}
+		finally
+		{
+			countIndex.close();
+		}
+	}
+	
 	private static void streamFromMic() throws Exception
 	{
 		// create our format
@@ -51,50 +526,528 @@ public class Main
 		
 		// create the visualizer
 		int sampleRate = (int)audioFormat.getSampleRate();
-		SignalVisualizer signalVisualizer = new SignalVisualizer(sampleRate, 10 * FlowMeterReader.NS_IN_S, true);
+		SampleHistory sampleHistory = createSampleHistory(sampleRate);
+		SignalVisualizer signalVisualizer = new SignalVisualizer(sampleRate, sampleHistory, true);
+		
+		// create the reader
+		boolean lowLatency = Boolean.getBoolean(LOW_LATENCY_PROPERTY);
+		FlowMeterReader flowMeterReader = createFlowMeterReader(sampleRate, lowLatency);
+		
+		// detect with the settings in the config file and switch when it changes if asked to. The
+		// settings are set before restoring so the detector's history is restored at their size
+		DetectionConfigWatcher detectionConfigWatcher = createDetectionConfigWatcher(sampleRate);
+		if (detectionConfigWatcher != null)
+			flowMeterReader.setDetectionConfig(detectionConfigWatcher.getConfig());
+		
+		
+		// map sample indexes to wall-clock time
+		SampleClock sampleClock = new SampleClock(sampleRate, SystemClock.INSTANCE);
+		
+		// export pulses if asked to
+		PulseExporter pulseExporter = createPulseExporter(sampleClock);
+		
+		// watch for leaks. Its buckets are checkpointed so a restart doesn't start the flow runs over
+		LeakDetector leakDetector = createLeakDetector(sampleRate, sampleClock, pulseExporter);
+		
+		
+		// restore the state from the last run so time and counts continue where they left off
+		File checkpointFile = new File(System.getProperty("user.dir") + File.separatorChar + CHECKPOINT_FILE_NAME);
+		CheckpointFile checkpoint = new CheckpointFile(checkpointFile, CHECKPOINT_INTERVAL_NS, CHECKPOINT_CHANGED_INTERVAL_NS, flowMeterReader, signalVisualizer, leakDetector);
+		
+		try
+		{
+			if (checkpoint.restore())
+				System.out.println("Restored checkpoint at sample " + flowMeterReader.getNumSamplesProcessed());
+		}
+		catch (IOException e)
+		{
+			// start fresh
+			System.err.println("Unable to restore checkpoint, starting fresh: " + e.getMessage());
+			
+			signalVisualizer = new SignalVisualizer(sampleRate, sampleHistory, true);
+			flowMeterReader = createFlowMeterReader(sampleRate, lowLatency);
+			if (detectionConfigWatcher != null)
+				flowMeterReader.setDetectionConfig(detectionConfigWatcher.getConfig());
+			leakDetector = createLeakDetector(sampleRate, sampleClock, pulseExporter);
+			
+			checkpoint = new CheckpointFile(checkpointFile, CHECKPOINT_INTERVAL_NS, CHECKPOINT_CHANGED_INTERVAL_NS, flowMeterReader, signalVisualizer, leakDetector);
+		}
+		
+		// write a last checkpoint when asked to exit
+		ShutdownSignal shutdownSignal = new ShutdownSignal(SHUTDOWN_TIMEOUT_MS);
+		
+		// follow changes to the config file. Set the settings again in case it changed while restoring
+		if (detectionConfigWatcher != null)
+		{
+			detectionConfigWatcher.addListener(flowMeterReader);
+			flowMeterReader.setDetectionConfig(detectionConfigWatcher.getConfig());
+		}
+		
+		
+		// capture the samples around pulses and archive the signal if asked to
+		PulseCapture pulseCapture = createPulseCapture(sampleRate);
+		SignalArchiveWriter signalArchiveWriter = createSignalArchiveWriter(sampleRate);
+		
+		// watch for frames the line loses
+		int frameSize = audioFormat.getFrameSize();
+		FrameGapDetector frameGapDetector = new FrameGapDetector(sampleRate * GAP_TOLERANCE_MS / 1000);
+		
+		// hand pulses over as soon as they are found and time it if asked to
+		LowLatencyPulseEmitter pulseEmitter = lowLatency? new LowLatencyPulseEmitter(sampleRate, SystemClock.INSTANCE) : null;
+		
+		// hand pulses and gaps to the consumers that don't need to keep up with the signal
+		PulseEventBus pulseEventBus = createPulseEventBus(signalVisualizer);
+		
+		// estimate the flow rates, watch the signal quality and serve metrics if asked to
+		FlowRateMonitor flowRateMonitor = new FlowRateMonitor(sampleRate);
+		SignalQualityMonitor signalQualityMonitor = new SignalQualityMonitor(sampleRate);
+		flowMeterReader.setEdgeListener(signalQualityMonitor);
+		MetricsServer metricsServer = createMetricsServer();
+		if (metricsServer != null)
+		{
+			metricsServer.addSource(sampleClock);
+			metricsServer.addSource(frameGapDetector);
+			if (detectionConfigWatcher != null)
+				metricsServer.addSource(detectionConfigWatcher);
+			if (pulseEmitter != null)
+				metricsServer.addSource(pulseEmitter);
+			metricsServer.addSource(pulseEventBus);
+			metricsServer.addSource(flowRateMonitor);
+			metricsServer.addSource(signalQualityMonitor);
+			metricsServer.addSource(leakDetector);
+			if (pulseExporter != null)
+				metricsServer.addSource(pulseExporter);
+		}
+		
 		
 		// create the visualizer window
-		SignalVisualizerWindow signalVisualizerWindow = new SignalVisualizerWindow(signalVisualizer, STARTING_VISUALIZATION_WIDTH, STARTING_VISUALIZATION_HEIGHT);
-		signalVisualizerWindow.show();
+		SignalVisualizer[] lanes = createLanes(signalVisualizer);
+		if (metricsServer != null)
+		{
+			for (SignalVisualizer lane : lanes)
+				metricsServer.addSource(lane.getPaintStats());
+		}
 		
-		// create the reader
-		FlowMeterReader flowMeterReader = new FlowMeterReader(sampleRate);
+		SignalVisualizerWindow signalVisualizerWindow = new SignalVisualizerWindow(lanes, flowMeterReader, flowRateMonitor, signalQualityMonitor, STARTING_VISUALIZATION_WIDTH, STARTING_VISUALIZATION_HEIGHT);
+		signalVisualizerWindow.show();
 		
 		
 		// start listening
 		line.start();
 		
 		byte[] audioByteBuffer = new byte[line.getBufferSize()];
+		int chunkNumBytes = lowLatency? LOW_LATENCY_CHUNK_NUM_BYTES : CHUNK_NUM_BYTES;
+		
+		long lastRefreshTimeNS       = 0;
+		long lastLatencyReportTimeNS = System.nanoTime();
+		
+		try
+		{
+			while (true)
+			{
+				// save our state one last time and stop if the process is exiting
+				if (shutdownSignal.isRequested())
+				{
+					try
+					{
+						checkpoint.checkpoint();
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+					
+					break;
+				}
+				
+				// check if we should pause
+				if (signalVisualizerWindow.getStreamerShouldPause())
+				{
+					Thread.sleep(100);
+					line.flush();
+					continue;
+				}
+				
+				// skip over frames lost to an overrun or a flush so the samples after them get the right
+				// indexes. The frame position has to be read before the number of buffered frames
+				long framePosition = line.getLongFramePosition();
+				long numFramesLost = frameGapDetector.check(framePosition, line.available() / frameSize);
+				if (numFramesLost > 0)
+				{
+					System.err.println("Lost " + numFramesLost + " frames");
+					flowMeterReader.skipSamples(numFramesLost * audioFormat.getChannels());
+				}
+				
+				// read bytes from the line
+				int numBytesRead = line.read(audioByteBuffer, 0, chunkNumBytes);
+				frameGapDetector.addFramesRead(numBytesRead / frameSize);
+				
+				if (line.available() > line.getBufferSize() / 2)
+					System.err.println("Getting behind! " + line.available());
+				
+				// check if we read any bytes
+				if (numBytesRead <= 0)
+					continue;
+				
+				// read the audio data
+				FlowMeterReading reading = flowMeterReader.readFlowMeterAudioData(audioByteBuffer, 0, numBytesRead, audioFormat.isBigEndian());
+				
+				// hand the pulses over before anything else. The samples still in the line's buffer
+				// have been captured too
+				if (pulseEmitter != null)
+				{
+					long endSampleIndex = reading.firstSampleIndex + reading.samples.length;
+					pulseEmitter.anchor(endSampleIndex + line.available() / frameSize, SystemClock.INSTANCE.nanoTime());
+					pulseEmitter.emit(reading.pulses);
+				}
+				
+				// then to the consumers on their own threads. The totals are counted here so they
+				// are exact when checkpointed, however far behind the visualizer is
+				signalVisualizer.countPulsesAndGap(reading.pulses, reading.gap);
+				pulseEventBus.publish(reading);
+				
+				// anchor the newest sample to the clock. That is the newest one in the line's buffer,
+				// which was captured by now even though it hasn't been read yet
+				sampleClock.addAnchor(reading.firstSampleIndex + reading.samples.length - 1 + line.available() / frameSize);
+				
+				// capture around pulses
+				if (pulseCapture != null)
+				{
+					pulseCapture.setDetectionConfig(flowMeterReader.getDetectionConfig());
+					pulseCapture.process(reading);
+				}
+				
+				// archive the signal
+				if (signalArchiveWriter != null)
+					signalArchiveWriter.write(reading);
+				
+				// export pulses and gaps
+				if (pulseExporter != null)
+					pulseExporter.export(reading);
+				
+				// estimate the flow rates
+				flowRateMonitor.process(reading);
+				
+				// watch the signal quality
+				signalQualityMonitor.process(reading);
+				
+				// watch for leaks
+				leakDetector.process(reading);
+				
+				// update the visualizer. Its pulses and gaps come through the bus
+				signalVisualizer.addSamples(reading.samples, reading.firstSampleIndex);
+				
+				// with small reads, redrawing after every one would hold up the next
+				long nowNS = System.nanoTime();
+				if (!lowLatency || nowNS - lastRefreshTimeNS >= LOW_LATENCY_REFRESH_INTERVAL_NS)
+				{
+					lastRefreshTimeNS = nowNS;
+					
+					for (SignalVisualizer lane : lanes)
+						lane.refresh();
+					
+					// update the visualizer window
+					signalVisualizerWindow.refresh();
+				}
+				
+				// report how quickly pulses are being handed over
+				if (pulseEmitter != null && nowNS - lastLatencyReportTimeNS >= LATENCY_REPORT_INTERVAL_NS)
+				{
+					lastLatencyReportTimeNS = nowNS;
+					
+					System.out.println(String.format("Pulse latency p50 %.2fms, p99 %.2fms over %d pulses",
+						pulseEmitter.getLatencyQuantileMS(0.5d),
+						pulseEmitter.getLatencyQuantileMS(0.99d),
+						pulseEmitter.getNumPulses()));
+				}
+				
+				// save our state every so often, and soon after counting pulses. The archive is flushed
+				// at the same time so it is never behind the checkpoint
+				if (reading.pulses.length > 0)
+					checkpoint.markChanged();
+				
+				try
+				{
+					if (checkpoint.checkpointIfDue() && signalArchiveWriter != null)
+						signalArchiveWriter.flush();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+		finally
+		{
+			line.close();
+			
+			// let the consumers finish before anything they use is closed. Closing the archive
+			// flushes it and writes its index
+			closeAll(pulseEventBus, pulseCapture, signalArchiveWriter, pulseExporter, metricsServer, detectionConfigWatcher);
+			
+			// the samples are closed with the last lane
+			closeAll(lanes);
+			
+			// let the process exit
+			shutdownSignal.done();
+		}
+	}
+	
+	private static void streamFromReplay(File file, double speed) throws Exception
+	{
+		ReplaySource replaySource = ReplaySource.open(file, speed);
+		AudioFormat audioFormat = replaySource.getAudioFormat();
+		
+		
+		// create the visualizer
+		int sampleRate = (int)audioFormat.getSampleRate();
+		SampleHistory sampleHistory = createSampleHistory(sampleRate);
+		SignalVisualizer signalVisualizer = new SignalVisualizer(sampleRate, sampleHistory, true);
+		
+		// create the reader
+		FlowMeterReader flowMeterReader = createFlowMeterReader(sampleRate);
+		
+		// detect with the settings in the config file and switch when it changes if asked to
+		DetectionConfigWatcher detectionConfigWatcher = createDetectionConfigWatcher(sampleRate);
+		if (detectionConfigWatcher != null)
+		{
+			flowMeterReader.setDetectionConfig(detectionConfigWatcher.getConfig());
+			detectionConfigWatcher.addListener(flowMeterReader);
+		}
+		
+		// capture the samples around pulses and archive the signal if asked to
+		PulseCapture pulseCapture = createPulseCapture(sampleRate);
+		SignalArchiveWriter signalArchiveWriter = createSignalArchiveWriter(sampleRate);
+		
+		// map sample indexes to wall-clock time as if the replay were live
+		SampleClock sampleClock = new SampleClock(sampleRate, replaySource.getClock());
+		
+		// export pulses if asked to
+		PulseExporter pulseExporter = createPulseExporter(sampleClock);
+		
+		// hand pulses and gaps to the consumers that don't need to keep up with the signal
+		PulseEventBus pulseEventBus = createPulseEventBus(signalVisualizer);
+		
+		// estimate the flow rates, watch the signal quality, watch for leaks and serve metrics if asked to
+		FlowRateMonitor flowRateMonitor = new FlowRateMonitor(sampleRate);
+		SignalQualityMonitor signalQualityMonitor = new SignalQualityMonitor(sampleRate);
+		flowMeterReader.setEdgeListener(signalQualityMonitor);
+		LeakDetector leakDetector = createLeakDetector(sampleRate, sampleClock, pulseExporter);
+		MetricsServer metricsServer = createMetricsServer();
+		if (metricsServer != null)
+		{
+			metricsServer.addSource(sampleClock);
+			if (detectionConfigWatcher != null)
+				metricsServer.addSource(detectionConfigWatcher);
+			metricsServer.addSource(pulseEventBus);
+			metricsServer.addSource(flowRateMonitor);
+			metricsServer.addSource(signalQualityMonitor);
+			metricsServer.addSource(leakDetector);
+			if (pulseExporter != null)
+				metricsServer.addSource(pulseExporter);
+		}
+		
+		// create the visualizer window
+		SignalVisualizer[] lanes = createLanes(signalVisualizer);
+		if (metricsServer != null)
+		{
+			for (SignalVisualizer lane : lanes)
+				metricsServer.addSource(lane.getPaintStats());
+		}
+		
+		SignalVisualizerWindow signalVisualizerWindow = new SignalVisualizerWindow(lanes, flowMeterReader, flowRateMonitor, signalQualityMonitor, STARTING_VISUALIZATION_WIDTH, STARTING_VISUALIZATION_HEIGHT);
+		signalVisualizerWindow.show();
+		
+		
+		// replay the file in mic-sized chunks
+		byte[] audioByteBuffer = new byte[CHUNK_NUM_BYTES];
+		int numBytesRead;
+		boolean paused = false;
+		
 		while (true)
 		{
 			// check if we should pause
 			if (signalVisualizerWindow.getStreamerShouldPause())
 			{
 				Thread.sleep(100);
-				line.flush();
+				paused = true;
 				continue;
 			}
 			
-			// read bytes from the line
-			int numBytesRead = line.read(audioByteBuffer, 0, 180);
-			
-			if (line.available() > line.getBufferSize() / 2)
-				System.err.println("Getting behind! " + line.available());
+			// don't rush to make up for the time spent paused
+			if (paused)
+			{
+				replaySource.resetPacing();
+				paused = false;
+			}
 			
-			// check if we read any bytes
-			if (numBytesRead <= 0)
+			numBytesRead = replaySource.read(audioByteBuffer, 0, audioByteBuffer.length);
+			if (numBytesRead == 0)
 				continue;
 			
-			// read the audio data
-			FlowMeterReading reading = flowMeterReader.readFlowMeterAudioData(audioByteBuffer, 0, numBytesRead, audioFormat.isBigEndian());
+			// skip over holes in an archive like frames lost live
+			flowMeterReader.skipSamples(replaySource.getNumFramesSkipped() * audioFormat.getChannels());
 			
-			// update the visualizer
-			signalVisualizer.addSamples(reading.samples);
-			signalVisualizer.addPulses(reading.pulses);
-			signalVisualizer.refresh();
+			// read the audio data. At the end, finish the pulses still being measured
+			boolean ended = numBytesRead < 0;
+			FlowMeterReading reading = ended
+				? flowMeterReader.finish()
+				: flowMeterReader.readFlowMeterAudioData(audioByteBuffer, 0, numBytesRead, audioFormat.isBigEndian());
+			
+			// hand the pulses and gaps to the consumers on their own threads. The totals are
+			// counted here so they don't depend on how far behind the visualizer is
+			signalVisualizer.countPulsesAndGap(reading.pulses, reading.gap);
+			pulseEventBus.publish(reading);
+			
+			// anchor the newest sample to the clock
+			if (!ended)
+				sampleClock.addAnchor(reading.firstSampleIndex + reading.samples.length - 1);
+			
+			// capture around pulses
+			if (pulseCapture != null)
+			{
+				pulseCapture.setDetectionConfig(flowMeterReader.getDetectionConfig());
+				pulseCapture.process(reading);
+			}
+			
+			// archive the signal
+			if (signalArchiveWriter != null)
+				signalArchiveWriter.write(reading);
+			
+			// export pulses and gaps
+			if (pulseExporter != null)
+				pulseExporter.export(reading);
+			
+			// estimate the flow rates
+			flowRateMonitor.process(reading);
+			
+			// watch the signal quality
+			signalQualityMonitor.process(reading);
+			
+			// watch for leaks
+			leakDetector.process(reading);
+			
+			// update the visualizer. Its pulses and gaps come through the bus
+			signalVisualizer.addSamples(reading.samples, reading.firstSampleIndex);
+			for (SignalVisualizer lane : lanes)
+				lane.refresh();
 			
 			// update the visualizer window
 			signalVisualizerWindow.refresh();
+			
+			if (ended)
+				break;
+		}
+		
+		replaySource.close();
+		
+		// let the consumers finish before anything they use is closed
+		closeAll(pulseEventBus, pulseCapture, signalArchiveWriter, pulseExporter, metricsServer, detectionConfigWatcher);
+		
+		// the samples are closed with the last lane
+		closeAll(lanes);
+		
+		System.out.println("Done replaying");
+		System.out.println("Replayed " + flowMeterReader.getNumSamplesProcessed() + " samples");
+	}
+	
+	/**
+	 * Draws part of a recording with its pulses to a PNG, without a window.
+	 * 
+	 * @param startS - Seconds from the start of the recording to draw from.
+	 * @param endS   - Seconds from the start of the recording to draw to.
+	 */
+	private static void renderToPNG(File file, double startS, double endS, File outFile, int width, int height) throws Exception
+	{
+		long startTimeNS = System.nanoTime();
+		
+		ReplaySource source = ReplaySource.open(file, ReplaySource.MAX_SPEED);
+		AudioFormat audioFormat = source.getAudioFormat();
+		int sampleRate = (int)audioFormat.getSampleRate();
+		
+		long startSampleIndex   = (long)(startS * sampleRate);
+		long endSampleIndex     = (long)(endS   * sampleRate);
+		long prerollSampleIndex = Math.max(0, startSampleIndex - (long)RENDER_PREROLL_MS * sampleRate / 1000);
+		
+		String historyFileName = System.getProperty(HISTORY_FILE_PROPERTY);
+		SampleHistory sampleHistory = new SampleHistory(sampleRate, 0, historyFileName == null? null : new File(historyFileName));
+		PulseBuffer pulses = new PulseBuffer();
+		
+		try
+		{
+			byte[] buffer = new byte[RENDER_CHUNK_NUM_BYTES];
+			
+			// skip to the preroll without decoding. Holes in an archive count toward it
+			int frameSize = audioFormat.getFrameSize();
+			long numFramesToSkip = prerollSampleIndex;
+			while (numFramesToSkip > 0)
+			{
+				int numBytesRead = source.read(buffer, 0, (int)Math.min(buffer.length, numFramesToSkip * frameSize));
+				if (numBytesRead < 0)
+					break;
+				
+				numFramesToSkip -= source.getNumFramesSkipped() + numBytesRead / frameSize;
+			}
+			
+			// the reader counts from where skipping stopped. A hole can take it past the preroll
+			long readerStartSampleIndex = prerollSampleIndex - numFramesToSkip;
+			FlowMeterReader flowMeterReader = createFlowMeterReader(sampleRate);
+			
+			int numBytesRead;
+			while ((numBytesRead = source.read(buffer, 0, buffer.length)) >= 0)
+			{
+				if (numBytesRead == 0)
+					continue;
+				
+				flowMeterReader.skipSamples(source.getNumFramesSkipped() * audioFormat.getChannels());
+				
+				FlowMeterReading reading = flowMeterReader.readFlowMeterAudioData(buffer, 0, numBytesRead, audioFormat.isBigEndian());
+				long firstSampleIndex = readerStartSampleIndex + reading.firstSampleIndex;
+				
+				// keep the samples in the range
+				int from = (int)Math.max(0, Math.min(reading.samples.length, startSampleIndex - firstSampleIndex));
+				int to   = (int)Math.max(0, Math.min(reading.samples.length, endSampleIndex   - firstSampleIndex));
+				if (from < to)
+					sampleHistory.add(Arrays.copyOfRange(reading.samples, from, to), firstSampleIndex + from);
+				
+				for (Pulse pulse : reading.pulses)
+				{
+					long pulseStartSampleIndex = readerStartSampleIndex + pulse.startSampleIndex;
+					if (pulseStartSampleIndex >= startSampleIndex && pulseStartSampleIndex < endSampleIndex)
+						pulses.add(pulseStartSampleIndex, pulse.getDurationNumSamples(), pulse.getAmplitudeDelta(), pulse.flowMeterID);
+				}
+				
+				if (firstSampleIndex + reading.samples.length >= endSampleIndex)
+					break;
+			}
+			
+			long readTimeNS = System.nanoTime();
+			
+			// draw
+			SignalRenderer renderer = new SignalRenderer(sampleRate, sampleHistory, pulses);
+			BufferedImage image = renderer.render(
+				startSampleIndex * FlowMeterReader.NS_IN_S / sampleRate,
+				endSampleIndex   * FlowMeterReader.NS_IN_S / sampleRate,
+				width,
+				height,
+				Runtime.getRuntime().availableProcessors());
+			
+			long renderTimeNS = System.nanoTime();
+			
+			ImageIO.write(image, "png", outFile);
+			
+			System.err.println(String.format("Rendered %.1fs with %d pulses to %s. Read %dms, draw %dms, write %dms",
+				(double)(sampleHistory.getEndSampleIndex() - sampleHistory.getOldestSampleIndex()) / sampleRate,
+				pulses.size(),
+				outFile,
+				(readTimeNS   - startTimeNS)  / FlowMeterReader.NS_IN_MS,
+				(renderTimeNS - readTimeNS)   / FlowMeterReader.NS_IN_MS,
+				(System.nanoTime() - renderTimeNS) / FlowMeterReader.NS_IN_MS));
+		}
+		finally
+		{
+			source.close();
+			sampleHistory.close();
 		}
 	}
 	
@@ -119,7 +1072,7 @@ public class Main
 		signalVisualizerWindow.show();
 		
 		// create the reader
-		FlowMeterReader flowMeterReader = new FlowMeterReader(sampleRate);
+		FlowMeterReader flowMeterReader = createFlowMeterReader(sampleRate);
 		
 		
 		// read the audio stream
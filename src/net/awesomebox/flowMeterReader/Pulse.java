@@ -1,18 +1,43 @@
 package net.awesomebox.flowMeterReader;
 
 /**
- * Represents a detected pulse.
+ * Represents a detected pulse.<br />
+ * <br />
+ * Only the amplitude delta is kept from the samples the pulse was found in, so holding on to a
+ * pulse does not keep any {@link AudioSample}s alive.
  */
 public class Pulse
 {
-	public final AudioSample startSample;
-	public final AudioSample endSample;
-	public final int         flowMeterID;
+	public final int flowMeterID;
 	
-	public Pulse(AudioSample startSample, AudioSample endSample, int flowMeterID)
+	// index of the start and end samples in the stream (0 being the first sample ever read)
+	public final long startSampleIndex;
+	public final long endSampleIndex;
+	
+	// change in amplitude from the start sample to the end sample
+	public final int amplitudeDelta;
+	
+	public Pulse(int flowMeterID, long startSampleIndex, long endSampleIndex, int amplitudeDelta)
+	{
+		this.flowMeterID      = flowMeterID;
+		this.startSampleIndex = startSampleIndex;
+		this.endSampleIndex   = endSampleIndex;
+		this.amplitudeDelta   = amplitudeDelta;
+	}
+	
+	/**
+	 * @return The change in amplitude from the start sample to the end sample.
+	 */
+	public int getAmplitudeDelta()
+	{
+		return amplitudeDelta;
+	}
+	
+	/**
+	 * @return The number of samples from the start sample to the end sample.
+	 */
+	public int getDurationNumSamples()
 	{
-		this.startSample = startSample;
-		this.endSample   = endSample;
-		this.flowMeterID = flowMeterID;
+		return (int)(endSampleIndex - startSampleIndex);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,252 @@
+package net.awesomebox.flowMeterReader;
+
+import java.util.Arrays;
+
+/**
+ * Stores pulses in parallel primitive arrays.<br />
+ * <br />
+ * Unlike a list of {@link Pulse}s, there is no object per pulse and each pulse only costs 15 bytes,
+ * so millions of pulses fit in tens of megabytes. Pulses are expected
+ * to be added in order of their start sample index.
+ */
+public class PulseBuffer
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+	
+	// some VMs reserve header words in arrays
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private long [] startSampleIndexes;
+	private short[] durationsNumSamples;
+	private int  [] amplitudeDeltas;
+	private byte [] flowMeterIDs;
+	
+	private int size = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	public PulseBuffer()
+	{
+		this(DEFAULT_INITIAL_CAPACITY);
+	}
+	
+	/**
+	 * @param initialCapacity - Number of pulses to make room for up front.
+	 */
+	public PulseBuffer(int initialCapacity)
+	{
+		if (initialCapacity < 1)
+			initialCapacity = 1;
+		
+		startSampleIndexes  = new long [initialCapacity];
+		durationsNumSamples = new short[initialCapacity];
+		amplitudeDeltas     = new int  [initialCapacity];
+		flowMeterIDs        = new byte [initialCapacity];
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public long getStartSampleIndex(int index)
+	{
+		checkIndex(index);
+		return startSampleIndexes[index];
+	}
+	
+	public int getDurationNumSamples(int index)
+	{
+		checkIndex(index);
+		return durationsNumSamples[index];
+	}
+	
+	public long getEndSampleIndex(int index)
+	{
+		checkIndex(index);
+		return startSampleIndexes[index] + durationsNumSamples[index];
+	}
+	
+	public int getAmplitudeDelta(int index)
+	{
+		checkIndex(index);
+		return amplitudeDeltas[index];
+	}
+	
+	public int getFlowMeterID(int index)
+	{
+		checkIndex(index);
+		return flowMeterIDs[index];
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Adds a pulse.
+	 * 
+	 * @param pulse - Pulse to add.
+	 */
+	public void add(Pulse pulse)
+	{
+		add(pulse.startSampleIndex, pulse.getDurationNumSamples(), pulse.getAmplitudeDelta(), pulse.flowMeterID);
+	}
+	
+	/**
+	 * Adds all of the given pulses.
+	 * 
+	 * @param pulses - Pulses to add.
+	 */
+	public void add(Pulse[] pulses)
+	{
+		ensureCapacity(size + pulses.length);
+		
+		for (int i = 0; i < pulses.length; ++i)
+			add(pulses[i]);
+	}
+	
+	/**
+	 * Adds a pulse.
+	 * 
+	 * @param startSampleIndex   - Index of the pulse's start sample in the stream.
+	 * @param durationNumSamples - Number of samples from the pulse's start to its end.
+	 * @param amplitudeDelta     - Change in amplitude from the pulse's start to its end.
+	 * @param flowMeterID        - ID of the flow meter the pulse came from.
+	 */
+	public void add(long startSampleIndex, int durationNumSamples, int amplitudeDelta, int flowMeterID)
+	{
+		if (durationNumSamples < 0 || durationNumSamples > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Duration out of range: " + durationNumSamples);
+		
+		ensureCapacity(size + 1);
+		
+		startSampleIndexes [size] = startSampleIndex;
+		durationsNumSamples[size] = (short)durationNumSamples;
+		amplitudeDeltas    [size] = amplitudeDelta;
+		flowMeterIDs       [size] = (byte)flowMeterID;
+		++size;
+	}
+	
+	/**
+	 * Finds the first pulse that starts at or after the given sample index.
+	 * 
+	 * @param sampleIndex - Sample index to search for.
+	 * 
+	 * @return Index of the pulse or {@link #size} if every pulse starts before the given sample index.
+	 */
+	public int indexOfFirstStartingAtOrAfter(long sampleIndex)
+	{
+		// binary search for the lowest index whose start is >= sampleIndex
+		int low  = 0;
+		int high = size;
+		
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			
+			if (startSampleIndexes[mid] < sampleIndex)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		
+		return low;
+	}
+	
+	/**
+	 * Removes the given number of pulses from the start of the buffer.
+	 * 
+	 * @param numPulses - Number of pulses to remove.
+	 */
+	public void removeOldest(int numPulses)
+	{
+		if (numPulses <= 0)
+			return;
+		
+		if (numPulses >= size)
+		{
+			clear();
+			return;
+		}
+		
+		int numRemaining = size - numPulses;
+		System.arraycopy(startSampleIndexes,  numPulses, startSampleIndexes,  0, numRemaining);
+		System.arraycopy(durationsNumSamples, numPulses, durationsNumSamples, 0, numRemaining);
+		System.arraycopy(amplitudeDeltas,     numPulses, amplitudeDeltas,     0, numRemaining);
+		System.arraycopy(flowMeterIDs,        numPulses, flowMeterIDs,        0, numRemaining);
+		size = numRemaining;
+	}
+	
+	/**
+	 * Removes all pulses. The memory is kept for reuse.
+	 */
+	public void clear()
+	{
+		size = 0;
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	private void checkIndex(int index)
+	{
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+	}
+	
+	/**
+	 * Grows the arrays so they can hold at least the given number of pulses.
+	 */
+	private void ensureCapacity(int minCapacity)
+	{
+		if (minCapacity < 0)
+			throw new OutOfMemoryError("Too many pulses");
+		
+		if (minCapacity <= startSampleIndexes.length)
+			return;
+		
+		// grow by half again like ArrayList does to keep adds cheap on average
+		int newCapacity = startSampleIndexes.length + (startSampleIndexes.length >> 1);
+		if (newCapacity < minCapacity || newCapacity < 0)
+			newCapacity = minCapacity;
+		if (newCapacity > MAX_CAPACITY)
+			newCapacity = MAX_CAPACITY;
+		
+		startSampleIndexes  = Arrays.copyOf(startSampleIndexes,  newCapacity);
+		durationsNumSamples = Arrays.copyOf(durationsNumSamples, newCapacity);
+		amplitudeDeltas     = Arrays.copyOf(amplitudeDeltas,     newCapacity);
+		flowMeterIDs        = Arrays.copyOf(flowMeterIDs,        newCapacity);
+	}
+}
@@ -0,0 +1,25 @@
+package net.awesomebox.flowMeterReader;
+
+/**
+ * Represents samples missing from the stream. EX: the capture line overran or was flushed.
+ */
+public final class SampleGap
+{
+	// index of the first missing sample in the stream (0 being the first sample ever read)
+	public final long startSampleIndex;
+	public final long numSamples;
+	
+	public SampleGap(long startSampleIndex, long numSamples)
+	{
+		this.startSampleIndex = startSampleIndex;
+		this.numSamples       = numSamples;
+	}
+	
+	/**
+	 * @return Index of the first sample after the gap.
+	 */
+	public long getEndSampleIndex()
+	{
+		return startSampleIndex + numSamples;
+	}
+}
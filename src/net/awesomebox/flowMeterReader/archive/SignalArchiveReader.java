@@ -0,0 +1,499 @@
+package net.awesomebox.flowMeterReader.archive;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+
+/**
+ * Reads the samples archived by a {@link SignalArchiveWriter}.<br />
+ * <br />
+ * Samples are decoded back into the big-endian 16-bit audio data
+ * {@link FlowMeterReader#readFlowMeterAudioData} takes, starting from any time in the archive.<br />
+ * <br />
+ * A read never goes across a hole in the archived stream. When the next sample is after a hole,
+ * {@link #getNumHoleSamples} says how many samples are missing and the next read starts after it,
+ * so the hole can be handed on as a gap with {@link FlowMeterReader#skipSamples}.
+ */
+public class SignalArchiveReader implements Closeable
+{
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final RandomAccessFile file;
+	private final int sampleRate;
+	
+	// where each block starts
+	private long[] blockSampleIndexes;
+	private long[] blockFileOffsets;
+	private int    numBlocks;
+	
+	// sample index after the last archived sample
+	private long endSampleIndex;
+	
+	// the decoded block being read
+	private int     currentBlock = -1;
+	private long    currentBlockFirstSampleIndex;
+	private short[] currentBlockAmplitudes = new short[0];
+	private int     currentBlockNumSamples = 0;
+	private int     currentBlockPosition   = 0;
+	
+	// reused for decoding
+	private byte[] payload = new byte[0];
+	private final CRC32 crc = new CRC32();
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	public SignalArchiveReader(File file) throws IOException
+	{
+		this.file = new RandomAccessFile(file, "r");
+		
+		try
+		{
+			if (this.file.readInt() != SignalArchiveWriter.MAGIC)
+				throw new IOException("Not a signal archive: " + file);
+			
+			short version = this.file.readShort();
+			if (version != SignalArchiveWriter.VERSION)
+				throw new IOException("Unsupported signal archive version " + version + ": " + file);
+			
+			sampleRate = this.file.readInt();
+			
+			if (!readIndex())
+				scanBlocks();
+		}
+		catch (IOException e)
+		{
+			this.file.close();
+			throw e;
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public int getSampleRate()
+	{
+		return sampleRate;
+	}
+	
+	/**
+	 * @return The format of the data returned by {@link #read}: 16 bit, signed, mono, big-endian.
+	 */
+	public AudioFormat getAudioFormat()
+	{
+		return new AudioFormat(sampleRate, 16, 1, true, true);
+	}
+	
+	public int getNumBlocks()
+	{
+		return numBlocks;
+	}
+	
+	/**
+	 * @return Index of the first archived sample in the stream.
+	 */
+	public long getStartSampleIndex()
+	{
+		return numBlocks == 0? 0 : blockSampleIndexes[0];
+	}
+	
+	/**
+	 * @return Index of the sample after the last archived sample in the stream.
+	 */
+	public long getEndSampleIndex()
+	{
+		return endSampleIndex;
+	}
+	
+	/**
+	 * @return Index in the stream of the next sample {@link #read} will return.
+	 */
+	public long getPositionSampleIndex()
+	{
+		if (currentBlock == -1)
+			return getStartSampleIndex();
+		
+		long numHoleSamples = getNumHoleSamples();
+		if (numHoleSamples > 0)
+			return currentBlockFirstSampleIndex + currentBlockNumSamples + numHoleSamples;
+		
+		return currentBlockFirstSampleIndex + currentBlockPosition;
+	}
+	
+	/**
+	 * @return Number of samples missing from the archive between the last sample read and the next
+	 *         sample {@link #read} will return, or 0 if there is no hole there.
+	 */
+	public long getNumHoleSamples()
+	{
+		if (currentBlock == -1 || currentBlockPosition < currentBlockNumSamples || currentBlock + 1 >= numBlocks)
+			return 0;
+		
+		return blockSampleIndexes[currentBlock + 1] - (currentBlockFirstSampleIndex + currentBlockNumSamples);
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Moves to the sample at the given time. If the time falls in a hole, moves to the first sample after it.
+	 * 
+	 * @param timeNS - Time in nanoseconds since the first sample of the stream.
+	 */
+	public void seekToTimeNS(long timeNS) throws IOException
+	{
+		seekToSampleIndex((long)((double)timeNS * sampleRate / FlowMeterReader.NS_IN_S));
+	}
+	
+	/**
+	 * Moves to the given sample. If the sample falls in a hole, moves to the first sample after it.
+	 * 
+	 * @param sampleIndex - Index of the sample in the stream.
+	 */
+	public void seekToSampleIndex(long sampleIndex) throws IOException
+	{
+		if (numBlocks == 0)
+			return;
+		
+		// find the last block starting at or before the sample
+		int block = Arrays.binarySearch(blockSampleIndexes, 0, numBlocks, sampleIndex);
+		if (block < 0)
+			block = Math.max(0, -block - 2);
+		
+		loadBlock(block);
+		
+		// in the hole after the block, move to the start of the next one
+		if (sampleIndex >= currentBlockFirstSampleIndex + currentBlockNumSamples && block + 1 < numBlocks)
+		{
+			loadBlock(block + 1);
+			return;
+		}
+		
+		currentBlockPosition = (int)Math.max(0, Math.min(currentBlockNumSamples, sampleIndex - currentBlockFirstSampleIndex));
+	}
+	
+	/**
+	 * Reads the next samples as big-endian 16-bit audio data. Stops early at a hole. A read at a
+	 * hole moves past it and reads the samples after it.
+	 * 
+	 * @param buffer - Buffer to read into.
+	 * @param offset - Offset to start reading into at in bytes.
+	 * @param length - Max number of bytes to read. Rounded down to whole samples.
+	 * 
+	 * @return The number of bytes read or -1 at the end of the archive.
+	 */
+	public int read(byte[] buffer, int offset, int length) throws IOException
+	{
+		int numSamples = length / 2;
+		int numSamplesRead = 0;
+		
+		while (numSamplesRead < numSamples)
+		{
+			if (currentBlock == -1 || currentBlockPosition == currentBlockNumSamples)
+			{
+				if (currentBlock + 1 >= numBlocks)
+					break;
+				
+				// leave the hole for the next read so it can be seen with getNumHoleSamples
+				if (numSamplesRead > 0 && getNumHoleSamples() > 0)
+					break;
+				
+				loadBlock(currentBlock + 1);
+			}
+			
+			int num = Math.min(numSamples - numSamplesRead, currentBlockNumSamples - currentBlockPosition);
+			for (int i = 0; i < num; ++i)
+			{
+				short amplitude = currentBlockAmplitudes[currentBlockPosition++];
+				buffer[offset++] = (byte)(amplitude >> 8);
+				buffer[offset++] = (byte)amplitude;
+			}
+			
+			numSamplesRead += num;
+		}
+		
+		if (numSamplesRead == 0 && numSamples > 0)
+			return -1;
+		
+		return numSamplesRead * 2;
+	}
+	
+	/**
+	 * @return A stream of the archive from the current position, for anything that takes audio.
+	 *         Holes are not in the stream, so the samples after a hole follow straight on from the
+	 *         ones before it. Closing the stream closes this reader.
+	 */
+	public AudioInputStream toAudioInputStream() throws IOException
+	{
+		InputStream inputStream = new InputStream()
+		{
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				return SignalArchiveReader.this.read(b, off, len);
+			}
+			
+			@Override
+			public int read() throws IOException
+			{
+				throw new IOException("Signal archives can only be read a whole sample at a time");
+			}
+			
+			@Override
+			public void close() throws IOException
+			{
+				SignalArchiveReader.this.close();
+			}
+		};
+		
+		return new AudioInputStream(inputStream, getAudioFormat(), countRemainingSamples());
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	/**
+	 * Reads the index the writer writes when it is closed.
+	 * 
+	 * @return <code>false</code> if there is no valid index.
+	 */
+	private boolean readIndex() throws IOException
+	{
+		long length = file.length();
+		if (length < SignalArchiveWriter.HEADER_NUM_BYTES + SignalArchiveWriter.FOOTER_NUM_BYTES)
+			return false;
+		
+		file.seek(length - SignalArchiveWriter.FOOTER_NUM_BYTES);
+		int  indexSize       = file.readInt();
+		long indexFileOffset = file.readLong();
+		if (file.readInt() != SignalArchiveWriter.INDEX_MAGIC)
+			return false;
+		
+		if (indexSize < 0 || indexFileOffset < SignalArchiveWriter.HEADER_NUM_BYTES || indexFileOffset + indexSize * 16L != length - SignalArchiveWriter.FOOTER_NUM_BYTES)
+			return false;
+		
+		blockSampleIndexes = new long[indexSize];
+		blockFileOffsets   = new long[indexSize];
+		
+		file.seek(indexFileOffset);
+		for (int i = 0; i < indexSize; ++i)
+		{
+			blockSampleIndexes[i] = file.readLong();
+			blockFileOffsets  [i] = file.readLong();
+		}
+		numBlocks = indexSize;
+		
+		// the end is the end of the last block
+		endSampleIndex = 0;
+		if (numBlocks > 0)
+		{
+			endSampleIndex = blockSampleIndexes[numBlocks - 1] + readBlockNumSamples(numBlocks - 1);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Rebuilds the index by walking the blocks. Stops at the first block that is cut off or corrupt.
+	 */
+	private void scanBlocks() throws IOException
+	{
+		blockSampleIndexes = new long[64];
+		blockFileOffsets   = new long[64];
+		numBlocks = 0;
+		endSampleIndex = 0;
+		
+		long offset = SignalArchiveWriter.HEADER_NUM_BYTES;
+		long length = file.length();
+		
+		while (offset + 8 + 4 + 4 <= length)
+		{
+			file.seek(offset);
+			long firstSampleIndex = file.readLong();
+			int  numSamples       = file.readInt();
+			int  payloadLength    = file.readInt();
+			
+			long blockLength = 8 + 4 + 4 + (long)payloadLength + 4;
+			if (numSamples < 0 || payloadLength < 0 || offset + blockLength > length)
+				break;
+			
+			if (readPayload(offset) == -1)
+				break;
+			
+			if (numBlocks == blockSampleIndexes.length)
+			{
+				blockSampleIndexes = Arrays.copyOf(blockSampleIndexes, numBlocks * 2);
+				blockFileOffsets   = Arrays.copyOf(blockFileOffsets,   numBlocks * 2);
+			}
+			
+			blockSampleIndexes[numBlocks] = firstSampleIndex;
+			blockFileOffsets  [numBlocks] = offset;
+			++numBlocks;
+			
+			endSampleIndex = firstSampleIndex + numSamples;
+			offset += blockLength;
+		}
+	}
+	
+	/**
+	 * Reads a block's payload into {@link #payload} and checks it.
+	 * 
+	 * @return The length of the payload or -1 if it is corrupt.
+	 */
+	private int readPayload(long blockFileOffset) throws IOException
+	{
+		file.seek(blockFileOffset + 8 + 4);
+		int payloadLength = file.readInt();
+		
+		if (payload.length < payloadLength)
+			payload = new byte[payloadLength];
+		
+		file.readFully(payload, 0, payloadLength);
+		
+		crc.reset();
+		crc.update(payload, 0, payloadLength);
+		if (file.readInt() != (int)crc.getValue())
+			return -1;
+		
+		return payloadLength;
+	}
+	
+	private void loadBlock(int block) throws IOException
+	{
+		file.seek(blockFileOffsets[block]);
+		long firstSampleIndex = file.readLong();
+		int  numSamples       = file.readInt();
+		
+		int payloadLength = readPayload(blockFileOffsets[block]);
+		if (payloadLength == -1)
+			throw new IOException("Corrupt block " + block + " at offset " + blockFileOffsets[block]);
+		
+		if (currentBlockAmplitudes.length < numSamples)
+			currentBlockAmplitudes = new short[numSamples];
+		
+		decode(payload, payloadLength, numSamples, currentBlockAmplitudes);
+		
+		currentBlock                 = block;
+		currentBlockFirstSampleIndex = firstSampleIndex;
+		currentBlockNumSamples       = numSamples;
+		currentBlockPosition         = 0;
+	}
+	
+	/**
+	 * Decodes a block payload written by {@link SignalArchiveWriter#encode}.
+	 */
+	private static void decode(byte[] payload, int payloadLength, int numAmplitudes, short[] amplitudes) throws IOException
+	{
+		if (payloadLength < 1)
+			throw new EOFException("Block payload is empty");
+		
+		int predictionOrder = payload[0];
+		if (predictionOrder != SignalArchiveWriter.PREDICTION_ORDER_LAST && predictionOrder != SignalArchiveWriter.PREDICTION_ORDER_LINE)
+			throw new IOException("Unknown prediction order: " + predictionOrder);
+		
+		int offset = 1;
+		int i = 0;
+		
+		while (i < numAmplitudes)
+		{
+			// read a varint
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do
+			{
+				if (offset >= payloadLength || shift > 28)
+					throw new EOFException("Block payload ended early");
+				
+				b = payload[offset++];
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			}
+			while ((b & 0x80) != 0);
+			
+			if (i == 0)
+			{
+				// the first amplitude is stored as is
+				amplitudes[i++] = (short)SignalArchiveWriter.unzigzag(value);
+			}
+			else if ((value & SignalArchiveWriter.TOKEN_TYPE_RUN) != 0)
+			{
+				// a run of perfect predictions
+				int runLength = Math.min(value >>> 1, numAmplitudes - i);
+				for (int j = 0; j < runLength; ++j, ++i)
+					amplitudes[i] = (short)SignalArchiveWriter.predict(amplitudes, i, predictionOrder);
+			}
+			else
+			{
+				amplitudes[i] = (short)(SignalArchiveWriter.predict(amplitudes, i, predictionOrder) + SignalArchiveWriter.unzigzag(value >>> 1));
+				++i;
+			}
+		}
+	}
+	
+	/**
+	 * @return Number of archived samples from the current position to the end, not counting holes.
+	 */
+	private long countRemainingSamples() throws IOException
+	{
+		if (numBlocks == 0)
+			return 0;
+		
+		long numSamples = 0;
+		int block = currentBlock;
+		
+		if (block != -1)
+		{
+			numSamples += currentBlockNumSamples - currentBlockPosition;
+		}
+		
+		for (int i = block + 1; i < numBlocks; ++i)
+			numSamples += readBlockNumSamples(i);
+		
+		return numSamples;
+	}
+	
+	/**
+	 * Reads how many samples a block holds from its header.
+	 */
+	private int readBlockNumSamples(int block) throws IOException
+	{
+		file.seek(blockFileOffsets[block] + 8);
+		return file.readInt();
+	}
+}
@@ -0,0 +1,418 @@
+package net.awesomebox.flowMeterReader.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import net.awesomebox.flowMeterReader.AudioSample;
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+import net.awesomebox.flowMeterReader.FlowMeterReading;
+
+/**
+ * Archives samples in a compact, block-framed file.<br />
+ * <br />
+ * Between pulses the signal barely moves, so each amplitude is stored as how far it is from a
+ * prediction as a zigzag varint (1 byte for misses under 32) and runs of perfect predictions are
+ * stored as a single run length. Each block predicts either the last amplitude or a straight line
+ * through the last two, whichever makes it smaller; the line wins during the slow decay after each
+ * edge. Samples are grouped into blocks that can each be decoded on their
+ * own, and an index of where each block starts is written at the end so readers can jump straight
+ * to any time. If the writer is killed before it is closed, readers rebuild the index by scanning
+ * the blocks; only the block being filled is lost.<br />
+ * <br />
+ * File layout (all fixed-width values big-endian):
+ * <pre>
+ * int   magic
+ * short version
+ * int   sample rate
+ * 
+ * repeated for each block:
+ * long  first sample index
+ * int   number of samples
+ * int   payload length
+ * byte[] payload: prediction order, first amplitude, then a token for each miss or run of hits (varints)
+ * int   CRC32 of the payload
+ * 
+ * index:
+ * (long first sample index, long file offset) for each block
+ * int   number of blocks
+ * long  file offset of the index
+ * int   index magic
+ * </pre>
+ * Usage: <code>SignalArchiveWriter &lt;in.wav&gt; &lt;out.fma&gt;</code> archives a recording.
+ */
+public class SignalArchiveWriter implements Closeable
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	static final int   MAGIC       = 0x464D5241; // "FMRA"
+	static final int   INDEX_MAGIC = 0x464D5249; // "FMRI"
+	static final short VERSION     = 1;
+	
+	static final int HEADER_NUM_BYTES = 4 + 2 + 4;
+	static final int FOOTER_NUM_BYTES = 4 + 8 + 4;
+	
+	public static final String FILE_EXTENSION = ".fma";
+	
+	// about a second at 16kHz
+	public static final int DEFAULT_BLOCK_NUM_SAMPLES = 16384;
+	
+	// the last bit of each token says if it is a miss or a run of perfect predictions
+	static final int TOKEN_TYPE_RUN = 1;
+	
+	// how many previous amplitudes a prediction is made from
+	static final int PREDICTION_ORDER_LAST = 1;
+	static final int PREDICTION_ORDER_LINE = 2;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final DataOutputStream out;
+	private long fileOffset = 0;
+	
+	// the block being filled
+	private final short[] blockAmplitudes;
+	private int  blockNumSamples       = 0;
+	private long blockFirstSampleIndex = 0;
+	
+	// reused for encoding, one for each prediction order. Every token fits in 3 bytes
+	private final byte[] lastPayload;
+	private final byte[] linePayload;
+	private final CRC32 crc = new CRC32();
+	
+	// where each block starts
+	private long[] indexSampleIndexes = new long[64];
+	private long[] indexFileOffsets   = new long[64];
+	private int    indexSize = 0;
+	
+	private long numSamplesWritten = 0;
+	private boolean closed = false;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * Creates (or replaces) an archive file.
+	 * 
+	 * @param file            - File to write to.
+	 * @param sampleRate      - Sample rate of the samples.
+	 * @param blockNumSamples - Max number of samples in each block.
+	 */
+	public SignalArchiveWriter(File file, int sampleRate, int blockNumSamples) throws IOException
+	{
+		if (blockNumSamples < 1)
+			throw new IllegalArgumentException("Block size must be positive: " + blockNumSamples);
+		
+		blockAmplitudes = new short[blockNumSamples];
+		lastPayload     = new byte[blockNumSamples * 3 + 4];
+		linePayload     = new byte[blockNumSamples * 3 + 4];
+		
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(sampleRate);
+		fileOffset += HEADER_NUM_BYTES;
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public long getNumSamplesWritten()
+	{
+		return numSamplesWritten;
+	}
+	
+	/**
+	 * @return Number of bytes written to the file so far, not counting the block being filled.
+	 */
+	public long getNumBytesWritten()
+	{
+		return fileOffset;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Archives the samples from a reading as they were read, before any sample filter, so the
+	 * archive can be replayed through different filters.
+	 */
+	public void write(FlowMeterReading reading) throws IOException
+	{
+		write(reading.rawSamples, reading.firstSampleIndex);
+	}
+	
+	/**
+	 * Archives samples.
+	 * 
+	 * @param samples          - Samples to archive.
+	 * @param firstSampleIndex - Index of the first sample in the stream. If this skips ahead of the
+	 *                           last sample written, the skipped samples are recorded as missing.
+	 */
+	public void write(AudioSample[] samples, long firstSampleIndex) throws IOException
+	{
+		if (closed)
+			throw new IOException("Archive is closed");
+		
+		// start a new block at a hole in the stream
+		if (blockNumSamples > 0 && firstSampleIndex != blockFirstSampleIndex + blockNumSamples)
+			writeBlock();
+		
+		for (int i = 0; i < samples.length; ++i)
+		{
+			if (blockNumSamples == 0)
+				blockFirstSampleIndex = firstSampleIndex + i;
+			
+			blockAmplitudes[blockNumSamples++] = samples[i].amplitude;
+			
+			if (blockNumSamples == blockAmplitudes.length)
+				writeBlock();
+		}
+		
+		numSamplesWritten += samples.length;
+	}
+	
+	/**
+	 * Writes the block being filled and flushes the file. Everything written so far will survive the
+	 * process being killed.
+	 */
+	public void flush() throws IOException
+	{
+		if (blockNumSamples > 0)
+			writeBlock();
+		
+		out.flush();
+	}
+	
+	/**
+	 * Writes the block being filled and the index, and closes the file.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+		
+		try
+		{
+			if (blockNumSamples > 0)
+				writeBlock();
+			
+			long indexFileOffset = fileOffset;
+			for (int i = 0; i < indexSize; ++i)
+			{
+				out.writeLong(indexSampleIndexes[i]);
+				out.writeLong(indexFileOffsets[i]);
+			}
+			
+			out.writeInt(indexSize);
+			out.writeLong(indexFileOffset);
+			out.writeInt(INDEX_MAGIC);
+		}
+		finally
+		{
+			closed = true;
+			out.close();
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	private void writeBlock() throws IOException
+	{
+		// use whichever prediction is smaller
+		byte[] payload = lastPayload;
+		int payloadLength = encode(blockAmplitudes, blockNumSamples, PREDICTION_ORDER_LAST, lastPayload);
+		
+		int linePayloadLength = encode(blockAmplitudes, blockNumSamples, PREDICTION_ORDER_LINE, linePayload);
+		if (linePayloadLength < payloadLength)
+		{
+			payload       = linePayload;
+			payloadLength = linePayloadLength;
+		}
+		
+		crc.reset();
+		crc.update(payload, 0, payloadLength);
+		
+		addToIndex(blockFirstSampleIndex, fileOffset);
+		
+		out.writeLong(blockFirstSampleIndex);
+		out.writeInt(blockNumSamples);
+		out.writeInt(payloadLength);
+		out.write(payload, 0, payloadLength);
+		out.writeInt((int)crc.getValue());
+		fileOffset += 8 + 4 + 4 + payloadLength + 4;
+		
+		blockNumSamples = 0;
+	}
+	
+	private void addToIndex(long sampleIndex, long offset)
+	{
+		if (indexSize == indexSampleIndexes.length)
+		{
+			indexSampleIndexes = Arrays.copyOf(indexSampleIndexes, indexSize * 2);
+			indexFileOffsets   = Arrays.copyOf(indexFileOffsets,   indexSize * 2);
+		}
+		
+		indexSampleIndexes[indexSize] = sampleIndex;
+		indexFileOffsets  [indexSize] = offset;
+		++indexSize;
+	}
+	
+	/**
+	 * Encodes amplitudes into a block payload.
+	 * 
+	 * @param predictionOrder - {@link #PREDICTION_ORDER_LAST} or {@link #PREDICTION_ORDER_LINE}.
+	 * 
+	 * @return The number of bytes used.
+	 */
+	static int encode(short[] amplitudes, int numAmplitudes, int predictionOrder, byte[] payload)
+	{
+		payload[0] = (byte)predictionOrder;
+		if (numAmplitudes == 0)
+			return 1;
+		
+		int length = writeVarint(payload, 1, zigzag(amplitudes[0]));
+		int runLength = 0;
+		
+		for (int i = 1; i < numAmplitudes; ++i)
+		{
+			int miss = amplitudes[i] - predict(amplitudes, i, predictionOrder);
+			
+			if (miss == 0)
+			{
+				++runLength;
+				continue;
+			}
+			
+			if (runLength > 0)
+			{
+				length = writeRun(payload, length, runLength);
+				runLength = 0;
+			}
+			
+			length = writeVarint(payload, length, zigzag(miss) << 1);
+		}
+		
+		if (runLength > 0)
+			length = writeRun(payload, length, runLength);
+		
+		return length;
+	}
+	
+	/**
+	 * Predicts the amplitude at the given index from the ones before it.
+	 */
+	static int predict(short[] amplitudes, int index, int predictionOrder)
+	{
+		if (predictionOrder == PREDICTION_ORDER_LINE && index >= 2)
+			return 2 * amplitudes[index - 1] - amplitudes[index - 2];
+		
+		return amplitudes[index - 1];
+	}
+	
+	private static int writeRun(byte[] payload, int offset, int runLength)
+	{
+		// a single hit is just as small as a miss of 0
+		if (runLength == 1)
+			return writeVarint(payload, offset, 0);
+		
+		return writeVarint(payload, offset, (runLength << 1) | TOKEN_TYPE_RUN);
+	}
+	
+	static int zigzag(int value)
+	{
+		return (value << 1) ^ (value >> 31);
+	}
+	
+	static int unzigzag(int value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**
+	 * Writes an unsigned varint: 7 bits per byte, low bits first, high bit set on all but the last byte.
+	 * 
+	 * @return The offset after the varint.
+	 */
+	private static int writeVarint(byte[] buffer, int offset, int value)
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			buffer[offset++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		
+		buffer[offset++] = (byte)value;
+		return offset;
+	}
+	
+	
+	
+	// ===================================================================
+	// Main
+	//
+	// ===================================================================
+	
+	public static void main(String[] args) throws Exception
+	{
+		File inFile  = new File(args[0]);
+		File outFile = new File(args[1]);
+		
+		AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(inFile);
+		AudioFormat audioFormat = audioInputStream.getFormat();
+		int sampleRate = (int)audioFormat.getSampleRate();
+		
+		FlowMeterReader flowMeterReader = new FlowMeterReader(sampleRate);
+		
+		try (SignalArchiveWriter writer = new SignalArchiveWriter(outFile, sampleRate, DEFAULT_BLOCK_NUM_SAMPLES))
+		{
+			byte[] buffer = new byte[65536];
+			int numBytesRead;
+			while ((numBytesRead = audioInputStream.read(buffer)) > -1)
+				writer.write(flowMeterReader.readFlowMeterAudioData(buffer, 0, numBytesRead, audioFormat.isBigEndian()));
+		}
+		
+		audioInputStream.close();
+		
+		long rawNumBytes = flowMeterReader.getNumSamplesProcessed() * 2;
+		System.out.println(String.format("%d samples: %d bytes raw, %d bytes archived (%.1fx)",
+			flowMeterReader.getNumSamplesProcessed(),
+			rawNumBytes,
+			outFile.length(),
+			(double)rawNumBytes / outFile.length()));
+	}
+}
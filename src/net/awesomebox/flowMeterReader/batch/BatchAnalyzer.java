@@ -0,0 +1,294 @@
+package net.awesomebox.flowMeterReader.batch;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+import net.awesomebox.flowMeterReader.FlowMeterReading;
+import net.awesomebox.flowMeterReader.archive.SignalArchiveWriter;
+import net.awesomebox.flowMeterReader.flowRate.FlowRateEstimator;
+import net.awesomebox.flowMeterReader.flowRate.FlowRateMonitor;
+import net.awesomebox.flowMeterReader.pulseDetector.PulseDetectorType;
+import net.awesomebox.flowMeterReader.replay.ReplaySource;
+import net.awesomebox.flowMeterReader.sampleFilter.SampleFilterChain;
+
+/**
+ * Analyzes every recording in a directory tree and prints a summary line for each.<br />
+ * <br />
+ * Files are analyzed in parallel on a fixed number of threads, each with its own
+ * {@link FlowMeterReader}. Files are handed to the threads through a small queue as the tree is
+ * walked. When the queue is full the walking thread analyzes the next file itself, which keeps the
+ * walk from getting ahead of the workers. Lines are printed as files finish, so memory stays the
+ * same no matter how many files there are.
+ */
+public class BatchAnalyzer
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	// recordings and signal archives
+	private static final String[] FILE_EXTENSIONS = {".wav", SignalArchiveWriter.FILE_EXTENSION};
+	
+	// number of bytes read at a time
+	private static final int CHUNK_NUM_BYTES = 64 * 1024;
+	
+	// number of files waiting for a thread per thread
+	private static final int QUEUE_CAPACITY_PER_THREAD = 2;
+	
+	private static final String HEADER_FORMAT = "%10s %9s %9s %8s %8s %9s %9s %7s %7s %8s  %s";
+	private static final String ROW_FORMAT    = "%10.1f %9d %9d %8.2f %8.2f %9.1f %9.1f %6.1f%% %6.1f%% %7.0fx  %s";
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final PulseDetectorType pulseDetectorType;
+	private final boolean sampleFilter;
+	private final int numThreads;
+	private final PrintStream out;
+	
+	// totals over every file
+	private final AtomicInteger   numFiles        = new AtomicInteger();
+	private final AtomicInteger   numFailedFiles  = new AtomicInteger();
+	private final AtomicLong      totalDurationMS = new AtomicLong();
+	private final AtomicLongArray totalNumPulses  = new AtomicLongArray(FlowRateMonitor.NUM_FLOW_METERS);
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param pulseDetectorType - Pulse detection algorithm to use.
+	 * @param sampleFilter      - If samples should be filtered before pulse detection.
+	 * @param numThreads        - Number of files to analyze at once.
+	 * @param out               - Where to print the summary.
+	 */
+	public BatchAnalyzer(PulseDetectorType pulseDetectorType, boolean sampleFilter, int numThreads, PrintStream out)
+	{
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		
+		this.pulseDetectorType = pulseDetectorType;
+		this.sampleFilter      = sampleFilter;
+		this.numThreads        = numThreads;
+		this.out               = out;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Analyzes every recording under a directory and prints a line for each, followed by totals.
+	 */
+	public void analyzeDirectory(Path dir) throws IOException, InterruptedException
+	{
+		out.println(String.format(HEADER_FORMAT,
+			"duration", "FM1", "FM2", "FM1 Hz", "FM2 Hz", "FM1 p50ms", "FM2 p50ms", "FM1 jit", "FM2 jit", "speed", "file"));
+		
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			numThreads, numThreads,
+			0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(numThreads * QUEUE_CAPACITY_PER_THREAD),
+			new ThreadPoolExecutor.CallerRunsPolicy());
+		
+		long startTimeNS = System.nanoTime();
+		
+		try
+		{
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs)
+				{
+					if (attrs.isRegularFile() && isRecording(file))
+					{
+						executor.execute(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								analyzeAndPrint(file);
+							}
+						});
+					}
+					
+					return FileVisitResult.CONTINUE;
+				}
+				
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e)
+				{
+					printError(file, e);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		finally
+		{
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		
+		double elapsedS  = (System.nanoTime() - startTimeNS) / 1e9;
+		double durationS = totalDurationMS.get() / 1000.0d;
+		
+		out.println();
+		out.println(String.format("%d files (%d failed), %.1fs of audio in %.1fs (%.0fx). FM1: %d pulses, FM2: %d pulses",
+			numFiles.get(),
+			numFailedFiles.get(),
+			durationS,
+			elapsedS,
+			elapsedS > 0? durationS / elapsedS : 0,
+			totalNumPulses.get(0),
+			totalNumPulses.get(1)));
+	}
+	
+	/**
+	 * Analyzes one recording.
+	 */
+	public FileSummary analyzeFile(Path file) throws IOException, UnsupportedAudioFileException, InterruptedException
+	{
+		long startTimeNS = System.nanoTime();
+		
+		ReplaySource source = ReplaySource.open(file.toFile(), ReplaySource.MAX_SPEED);
+		try
+		{
+			AudioFormat audioFormat = source.getAudioFormat();
+			int sampleRate = (int)audioFormat.getSampleRate();
+			
+			FlowMeterReader flowMeterReader = new FlowMeterReader(sampleRate, pulseDetectorType);
+			if (sampleFilter)
+				flowMeterReader.setSampleFilter(SampleFilterChain.createDefault());
+			
+			FlowRateMonitor flowRateMonitor = new FlowRateMonitor(sampleRate);
+			
+			byte[] buffer = new byte[CHUNK_NUM_BYTES];
+			int numBytesRead;
+			while ((numBytesRead = source.read(buffer, 0, buffer.length)) >= 0)
+			{
+				if (numBytesRead == 0)
+					continue;
+				
+				flowMeterReader.skipSamples(source.getNumFramesSkipped() * audioFormat.getChannels());
+				
+				FlowMeterReading reading = flowMeterReader.readFlowMeterAudioData(buffer, 0, numBytesRead, audioFormat.isBigEndian());
+				flowRateMonitor.process(reading);
+			}
+			
+			flowRateMonitor.process(flowMeterReader.finish());
+			
+			int numFlowMeters = FlowRateMonitor.NUM_FLOW_METERS;
+			long[]   numPulses            = new long[numFlowMeters];
+			double[] medianIntervalMS     = new double[numFlowMeters];
+			double[] intervalJitterRatios = new double[numFlowMeters];
+			
+			for (int i = 0; i < numFlowMeters; ++i)
+			{
+				FlowRateEstimator estimator = flowRateMonitor.getEstimator(i + 1);
+				numPulses[i]            = estimator.getNumPulses();
+				medianIntervalMS[i]     = estimator.getIntervalQuantileMS(0.5d);
+				intervalJitterRatios[i] = estimator.getIntervalJitterRatio();
+			}
+			
+			double durationS = (double)flowMeterReader.getNumSamplesProcessed() / sampleRate;
+			return new FileSummary(file, durationS, numPulses, medianIntervalMS, intervalJitterRatios, System.nanoTime() - startTimeNS);
+		}
+		finally
+		{
+			source.close();
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	private static boolean isRecording(Path file)
+	{
+		String name = file.getFileName().toString().toLowerCase();
+		for (String extension : FILE_EXTENSIONS)
+		{
+			if (name.endsWith(extension))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	private void analyzeAndPrint(Path file)
+	{
+		FileSummary summary;
+		try
+		{
+			summary = analyzeFile(file);
+		}
+		catch (Exception e)
+		{
+			printError(file, e);
+			return;
+		}
+		
+		numFiles.incrementAndGet();
+		totalDurationMS.addAndGet((long)(summary.durationS * 1000));
+		for (int i = 0; i < FlowRateMonitor.NUM_FLOW_METERS; ++i)
+			totalNumPulses.addAndGet(i, summary.numPulses[i]);
+		
+		String line = String.format(ROW_FORMAT,
+			summary.durationS,
+			summary.numPulses[0],
+			summary.numPulses[1],
+			summary.getAverageRateHz(1),
+			summary.getAverageRateHz(2),
+			summary.medianIntervalMS[0],
+			summary.medianIntervalMS[1],
+			summary.intervalJitterRatios[0] * 100,
+			summary.intervalJitterRatios[1] * 100,
+			summary.getSpeed(),
+			summary.file);
+		
+		synchronized (out)
+		{
+			out.println(line);
+		}
+	}
+	
+	private void printError(Path file, Exception e)
+	{
+		numFiles.incrementAndGet();
+		numFailedFiles.incrementAndGet();
+		
+		synchronized (out)
+		{
+			out.println(String.format("%10s %s  %s", "FAILED", e, file));
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package net.awesomebox.flowMeterReader.batch;
+
+import java.nio.file.Path;
+
+/**
+ * The results of analyzing one recording.
+ */
+public final class FileSummary
+{
+	public final Path file;
+	
+	// length of the recording in seconds
+	public final double durationS;
+	
+	// indexed by flow meter ID - 1
+	public final long[]   numPulses;
+	public final double[] medianIntervalMS;
+	public final double[] intervalJitterRatios;
+	
+	// how long the analysis took in nanoseconds
+	public final long elapsedNS;
+	
+	public FileSummary(Path file, double durationS, long[] numPulses, double[] medianIntervalMS, double[] intervalJitterRatios, long elapsedNS)
+	{
+		this.file                 = file;
+		this.durationS            = durationS;
+		this.numPulses            = numPulses;
+		this.medianIntervalMS     = medianIntervalMS;
+		this.intervalJitterRatios = intervalJitterRatios;
+		this.elapsedNS            = elapsedNS;
+	}
+	
+	/**
+	 * @return Average pulses per second over the whole recording.
+	 */
+	public double getAverageRateHz(int flowMeterID)
+	{
+		return durationS > 0? numPulses[flowMeterID - 1] / durationS : 0;
+	}
+	
+	/**
+	 * @return How many times faster than real time the recording was analyzed.
+	 */
+	public double getSpeed()
+	{
+		return elapsedNS > 0? durationS * 1e9 / elapsedNS : 0;
+	}
+}
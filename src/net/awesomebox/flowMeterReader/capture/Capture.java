@@ -0,0 +1,48 @@
+package net.awesomebox.flowMeterReader.capture;
+
+/**
+ * Raw samples captured around a trigger.
+ */
+public final class Capture
+{
+	// why the capture was triggered
+	public static final byte REASON_FM1_PULSE     = 1;
+	public static final byte REASON_FM2_PULSE     = 2;
+	public static final byte REASON_FM1_NEAR_MISS = 3;
+	public static final byte REASON_FM2_NEAR_MISS = 4;
+	
+	
+	// index of the first captured sample in the stream
+	public final long firstSampleIndex;
+	
+	// index of the sample that triggered the capture in the stream
+	public final long triggerSampleIndex;
+	
+	public final byte reason;
+	
+	public final short[] amplitudes;
+	
+	
+	public Capture(long firstSampleIndex, long triggerSampleIndex, byte reason, short[] amplitudes)
+	{
+		this.firstSampleIndex   = firstSampleIndex;
+		this.triggerSampleIndex = triggerSampleIndex;
+		this.reason             = reason;
+		this.amplitudes         = amplitudes;
+	}
+	
+	/**
+	 * @return Human readable name of the given reason.
+	 */
+	public static String getReasonName(byte reason)
+	{
+		switch (reason)
+		{
+			case REASON_FM1_PULSE:     return "FM1 pulse";
+			case REASON_FM2_PULSE:     return "FM2 pulse";
+			case REASON_FM1_NEAR_MISS: return "FM1 near miss";
+			case REASON_FM2_NEAR_MISS: return "FM2 near miss";
+			default:                   return "unknown";
+		}
+	}
+}
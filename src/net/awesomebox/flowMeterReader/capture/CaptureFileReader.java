@@ -0,0 +1,115 @@
+package net.awesomebox.flowMeterReader.capture;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the captures written by a {@link CaptureWriter}.<br />
+ * <br />
+ * Usage: <code>CaptureFileReader &lt;file&gt;</code> lists the captures in a file.
+ */
+public class CaptureFileReader implements Closeable
+{
+	// sanity limit so a corrupt length doesn't allocate gigabytes
+	private static final int MAX_CAPTURE_NUM_SAMPLES = 16 * 1024 * 1024;
+	
+	private final DataInputStream in;
+	private final int sampleRate;
+	
+	
+	public CaptureFileReader(File file) throws IOException
+	{
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		
+		try
+		{
+			if (in.readInt() != CaptureWriter.MAGIC)
+				throw new IOException("Not a capture file: " + file);
+			
+			short version = in.readShort();
+			if (version != CaptureWriter.VERSION)
+				throw new IOException("Unsupported capture file version " + version + ": " + file);
+			
+			sampleRate = in.readInt();
+		}
+		catch (IOException e)
+		{
+			in.close();
+			throw e;
+		}
+	}
+	
+	public int getSampleRate()
+	{
+		return sampleRate;
+	}
+	
+	/**
+	 * @return The next capture or <code>null</code> at the end of the file. A capture cut off by
+	 *         the writer being killed is treated as the end of the file.
+	 */
+	public Capture next() throws IOException
+	{
+		long firstSampleIndex;
+		try
+		{
+			firstSampleIndex = in.readLong();
+		}
+		catch (EOFException e)
+		{
+			return null;
+		}
+		
+		try
+		{
+			int  triggerOffset = in.readInt();
+			byte reason        = in.readByte();
+			int  numSamples    = in.readInt();
+			
+			if (numSamples < 0 || numSamples > MAX_CAPTURE_NUM_SAMPLES)
+				throw new IOException("Invalid capture length: " + numSamples);
+			
+			short[] amplitudes = new short[numSamples];
+			for (int i = 0; i < numSamples; ++i)
+				amplitudes[i] = in.readShort();
+			
+			return new Capture(firstSampleIndex, firstSampleIndex + triggerOffset, reason, amplitudes);
+		}
+		catch (EOFException e)
+		{
+			return null;
+		}
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		in.close();
+	}
+	
+	
+	public static void main(String[] args) throws IOException
+	{
+		try (CaptureFileReader reader = new CaptureFileReader(new File(args[0])))
+		{
+			int sampleRate = reader.getSampleRate();
+			System.out.println(String.format("%8s %14s %12s %14s %8s", "#", "trigger index", "trigger s", "reason", "samples"));
+			
+			Capture capture;
+			for (int i = 0; (capture = reader.next()) != null; ++i)
+			{
+				System.out.println(String.format("%8d %14d %12.4f %14s %8d",
+					i,
+					capture.triggerSampleIndex,
+					(double)capture.triggerSampleIndex / sampleRate,
+					Capture.getReasonName(capture.reason),
+					capture.amplitudes.length));
+			}
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package net.awesomebox.flowMeterReader.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes {@link Capture}s to a file on a background thread.<br />
+ * <br />
+ * Captures are handed over through a bounded queue and written in batches with one flush per
+ * batch. If the disk can't keep up and the queue fills, new captures are dropped (and counted)
+ * instead of blocking the caller, so detection is never held up by I/O.<br />
+ * <br />
+ * File layout (all values big-endian):
+ * <pre>
+ * int   magic
+ * short version
+ * int   sample rate
+ * 
+ * repeated for each capture:
+ * long  first sample index
+ * int   trigger offset from the first sample
+ * byte  reason
+ * int   number of samples
+ * short[] amplitudes
+ * </pre>
+ */
+public class CaptureWriter implements Closeable
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	static final int   MAGIC   = 0x464D4350; // "FMCP"
+	static final short VERSION = 1;
+	
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+	
+	// most captures to write between flushes
+	private static final int MAX_BATCH_SIZE = 64;
+	
+	// how long the writer waits for a capture before checking if it was closed
+	private static final long POLL_TIMEOUT_MS = 100;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final File file;
+	private final DataOutputStream out;
+	private final ArrayBlockingQueue<Capture> queue;
+	private final Thread thread;
+	
+	private volatile boolean closed = false;
+	
+	// the first error the writer ran into. Once set, nothing more is written
+	private volatile IOException error = null;
+	
+	private final AtomicLong numWritten = new AtomicLong();
+	private final AtomicLong numDropped = new AtomicLong();
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * Creates (or replaces) the capture file and starts the writer thread.
+	 * 
+	 * @param file          - File to write to.
+	 * @param sampleRate    - Sample rate of the captured samples.
+	 * @param queueCapacity - Max number of captures waiting to be written.
+	 */
+	public CaptureWriter(File file, int sampleRate, int queueCapacity) throws IOException
+	{
+		this.file  = file;
+		this.queue = new ArrayBlockingQueue<Capture>(queueCapacity);
+		
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(sampleRate);
+		out.flush();
+		
+		thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writeLoop();
+			}
+		}, "CaptureWriter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public File getFile()
+	{
+		return file;
+	}
+	
+	public long getNumWritten()
+	{
+		return numWritten.get();
+	}
+	
+	/**
+	 * @return Number of captures dropped because the queue was full or the writer failed.
+	 */
+	public long getNumDropped()
+	{
+		return numDropped.get();
+	}
+	
+	public int getQueueSize()
+	{
+		return queue.size();
+	}
+	
+	/**
+	 * @return The error that stopped the writer or <code>null</code> if it is fine.
+	 */
+	public IOException getError()
+	{
+		return error;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Queues a capture to be written. Never blocks.
+	 * 
+	 * @return <code>false</code> if the capture was dropped.
+	 */
+	public boolean offer(Capture capture)
+	{
+		if (closed || error != null || !queue.offer(capture))
+		{
+			numDropped.incrementAndGet();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Writes everything still queued and closes the file.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		closed = true;
+		
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		
+		out.close();
+		
+		if (error != null)
+			throw error;
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	private void writeLoop()
+	{
+		ArrayList<Capture> batch = new ArrayList<Capture>(MAX_BATCH_SIZE);
+		
+		try
+		{
+			while (!closed || !queue.isEmpty())
+			{
+				Capture capture = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				if (capture == null)
+					continue;
+				
+				// grab whatever else is waiting so it all goes out with one flush
+				batch.add(capture);
+				queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+				
+				for (int i = 0; i < batch.size(); ++i)
+					write(batch.get(i));
+				
+				out.flush();
+				numWritten.addAndGet(batch.size());
+				batch.clear();
+			}
+		}
+		catch (IOException e)
+		{
+			error = e;
+			numDropped.addAndGet(batch.size() + queue.size());
+			queue.clear();
+		}
+		catch (InterruptedException e)
+		{
+			// exit
+		}
+	}
+	
+	private void write(Capture capture) throws IOException
+	{
+		out.writeLong(capture.firstSampleIndex);
+		out.writeInt((int)(capture.triggerSampleIndex - capture.firstSampleIndex));
+		out.writeByte(capture.reason);
+		out.writeInt(capture.amplitudes.length);
+		
+		for (int i = 0; i < capture.amplitudes.length; ++i)
+			out.writeShort(capture.amplitudes[i]);
+	}
+}
@@ -0,0 +1,380 @@
+package net.awesomebox.flowMeterReader.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import net.awesomebox.flowMeterReader.FlowMeterReading;
+import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.config.DetectionConfig;
+
+/**
+ * Captures the samples around pulses and near misses.<br />
+ * <br />
+ * The most recent samples are kept in a small ring. When a pulse is detected, or an edge comes
+ * close to either flow meter's pulse threshold without reaching it, the samples from a set time before to a set
+ * time after are copied out of the ring and handed to a {@link CaptureWriter}. Triggers close
+ * together are merged into one capture, up to a max length.<br />
+ * <br />
+ * The samples captured are the ones the pulse detector saw, so they are filtered if the reader has
+ * a sample filter. Give it the reader's detection settings with {@link #setDetectionConfig} so near
+ * misses are judged against the thresholds in use.
+ */
+public class PulseCapture implements Closeable
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	// an edge at least this ratio of a flow meter's threshold that does not reach it is a near miss
+	// for that flow meter. A near miss for flow meter 2 is still a flow meter 1 pulse
+	public static final double DEFAULT_NEAR_MISS_RATIO = 0.6d;
+	
+	// how many times the pre + post trigger time merged captures can grow to
+	private static final int MAX_CAPTURE_LENGTH_MULTIPLIER = 4;
+	
+	// near miss trigger states
+	private static final int NEAR_MISS_ARMED    = 0;
+	private static final int NEAR_MISS_TRACKING = 1;
+	private static final int NEAR_MISS_SETTLING = 2;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final CaptureWriter writer;
+	
+	private final int sampleRate;
+	private final int preTriggerNumSamples;
+	private final int postTriggerNumSamples;
+	private final int maxCaptureNumSamples;
+	
+	private boolean capturePulses     = true;
+	private boolean captureNearMisses = true;
+	
+	
+	// -------------------------------------------------------------------
+	// ring of recent amplitudes
+	
+	private short[] ring;
+	private int     ringMask;
+	
+	// stream indexes of the oldest sample in the ring and the sample after the newest
+	private long ringStartSampleIndex = 0;
+	private long ringEndSampleIndex   = 0;
+	
+	
+	// -------------------------------------------------------------------
+	// near miss detection
+	
+	private DetectionConfig detectionConfig;
+	
+	// number of samples an edge can take. Same as the pulse detector's max pulse duration
+	private int edgeWindowNumSamples;
+	
+	private int fm1NearMissThreshold;
+	private int fm1PulseThreshold;
+	private int fm2NearMissThreshold;
+	private int fm2PulseThreshold;
+	
+	private int  nearMissState = NEAR_MISS_ARMED;
+	private int  nearMissPeakDelta;
+	private long nearMissTriggerSampleIndex;
+	private int  nearMissRemainingSamples;
+	
+	
+	// -------------------------------------------------------------------
+	// the capture waiting for its post trigger samples
+	
+	private boolean pending = false;
+	private long    pendingStartSampleIndex;
+	private long    pendingEndSampleIndex; // exclusive
+	private long    pendingTriggerSampleIndex;
+	private byte    pendingReason;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param sampleRate    - Sample rate of the samples.
+	 * @param preTriggerMS  - Milliseconds to capture before each trigger.
+	 * @param postTriggerMS - Milliseconds to capture after each trigger.
+	 * @param writer        - Where to send the captures.
+	 */
+	public PulseCapture(int sampleRate, int preTriggerMS, int postTriggerMS, CaptureWriter writer)
+	{
+		this.writer     = writer;
+		this.sampleRate = sampleRate;
+		
+		preTriggerNumSamples  = (int)((long)preTriggerMS  * sampleRate / 1000);
+		postTriggerNumSamples = (int)((long)postTriggerMS * sampleRate / 1000);
+		maxCaptureNumSamples  = Math.max(1, (preTriggerNumSamples + postTriggerNumSamples) * MAX_CAPTURE_LENGTH_MULTIPLIER);
+		
+		// sized by the settings, and grown if they change
+		ring = new short[0];
+		setDetectionConfig(DetectionConfig.DEFAULT);
+	}
+	
+	
+	
+	// ===================================================================
+	// Settings
+	//
+	// ===================================================================
+	
+	public void setCapturePulses(boolean capturePulses)
+	{
+		this.capturePulses = capturePulses;
+	}
+	
+	public void setCaptureNearMisses(boolean captureNearMisses)
+	{
+		this.captureNearMisses = captureNearMisses;
+	}
+	
+	/**
+	 * Switches to the pulse detector's current settings. Call before each reading with the reader's
+	 * settings. Only a reference compare when they haven't changed.
+	 */
+	public void setDetectionConfig(DetectionConfig detectionConfig)
+	{
+		if (detectionConfig == this.detectionConfig)
+			return;
+		
+		this.detectionConfig = detectionConfig;
+		
+		edgeWindowNumSamples = detectionConfig.calculateMaxPulseDurationNumSamples(sampleRate);
+		fm1PulseThreshold    = detectionConfig.getFM1PulseAmplitudeDeltaThreshold();
+		fm1NearMissThreshold = (int)(fm1PulseThreshold * DEFAULT_NEAR_MISS_RATIO);
+		fm2PulseThreshold    = detectionConfig.getFM2PulseAmplitudeDeltaThreshold();
+		fm2NearMissThreshold = (int)(fm2PulseThreshold * DEFAULT_NEAR_MISS_RATIO);
+		
+		// an edge being followed was judged by the old settings
+		nearMissState = NEAR_MISS_ARMED;
+		
+		// room for the longest capture plus pulses that are reported a little late. Pulses can be
+		// reported up to a few max pulse durations after they start, so grow with it
+		int ringSize = Integer.highestOneBit(maxCaptureNumSamples + preTriggerNumSamples + edgeWindowNumSamples * 4) << 1;
+		if (ringSize > ring.length)
+			resizeRing(ringSize);
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Adds the samples from a reading and captures around its pulses and any near misses.
+	 */
+	public void process(FlowMeterReading reading)
+	{
+		// start over if there is a hole in the stream
+		if (reading.firstSampleIndex != ringEndSampleIndex)
+		{
+			flush();
+			ringStartSampleIndex = reading.firstSampleIndex;
+			ringEndSampleIndex   = reading.firstSampleIndex;
+			nearMissState        = NEAR_MISS_ARMED;
+		}
+		
+		Pulse[] pulses = reading.pulses;
+		int pulseIndex = 0;
+		
+		for (int i = 0; i < reading.samples.length; ++i)
+		{
+			long sampleIndex = ringEndSampleIndex;
+			short amplitude = reading.samples[i].amplitude;
+			
+			ring[(int)(sampleIndex & ringMask)] = amplitude;
+			++ringEndSampleIndex;
+			
+			if (ringEndSampleIndex - ringStartSampleIndex > ring.length)
+				ringStartSampleIndex = ringEndSampleIndex - ring.length;
+			
+			// trigger on pulses as soon as their start is in the ring. Pulses that started in an
+			// earlier reading trigger on the first sample
+			while (pulseIndex < pulses.length && pulses[pulseIndex].startSampleIndex <= sampleIndex)
+			{
+				if (capturePulses)
+					trigger(pulses[pulseIndex].startSampleIndex, pulses[pulseIndex].flowMeterID == 2? Capture.REASON_FM2_PULSE : Capture.REASON_FM1_PULSE);
+				
+				++pulseIndex;
+			}
+			
+			if (captureNearMisses)
+				checkNearMiss(sampleIndex, amplitude);
+			
+			if (pending && ringEndSampleIndex >= pendingEndSampleIndex)
+				emitPending();
+		}
+	}
+	
+	/**
+	 * Sends the pending capture, if any, with whatever samples it has so far.
+	 */
+	public void flush()
+	{
+		if (!pending)
+			return;
+		
+		if (pendingEndSampleIndex > ringEndSampleIndex)
+			pendingEndSampleIndex = ringEndSampleIndex;
+		
+		emitPending();
+	}
+	
+	/**
+	 * Flushes the pending capture and closes the writer.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		flush();
+		writer.close();
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	/**
+	 * Watches for edges that come close to either flow meter's pulse threshold without reaching it.
+	 * Edges are followed from the lower flow meter 1 near miss threshold and judged by their peak.
+	 */
+	private void checkNearMiss(long sampleIndex, short amplitude)
+	{
+		long windowStartSampleIndex = sampleIndex - edgeWindowNumSamples;
+		if (windowStartSampleIndex < ringStartSampleIndex)
+			return;
+		
+		int absDelta = Math.abs(amplitude - ring[(int)(windowStartSampleIndex & ringMask)]);
+		
+		switch (nearMissState)
+		{
+			case NEAR_MISS_ARMED:
+				if (absDelta >= fm1NearMissThreshold)
+				{
+					nearMissState              = NEAR_MISS_TRACKING;
+					nearMissPeakDelta          = absDelta;
+					nearMissTriggerSampleIndex = sampleIndex;
+					nearMissRemainingSamples   = edgeWindowNumSamples;
+				}
+				break;
+			
+			case NEAR_MISS_TRACKING:
+				if (absDelta > nearMissPeakDelta)
+					nearMissPeakDelta = absDelta;
+				
+				// follow the edge for as long as a pulse can take before deciding
+				if (--nearMissRemainingSamples == 0)
+				{
+					if (nearMissPeakDelta < fm1PulseThreshold)
+						trigger(nearMissTriggerSampleIndex, Capture.REASON_FM1_NEAR_MISS);
+					else if (nearMissPeakDelta >= fm2NearMissThreshold && nearMissPeakDelta < fm2PulseThreshold)
+						trigger(nearMissTriggerSampleIndex, Capture.REASON_FM2_NEAR_MISS);
+					
+					nearMissState = NEAR_MISS_SETTLING;
+				}
+				break;
+			
+			case NEAR_MISS_SETTLING:
+				// wait for the edge to settle before arming again
+				if (absDelta < fm1NearMissThreshold / 2)
+					nearMissState = NEAR_MISS_ARMED;
+				break;
+		}
+	}
+	
+	/**
+	 * Moves the samples in the ring into a bigger one.
+	 */
+	private void resizeRing(int ringSize)
+	{
+		short[] resizedRing = new short[ringSize];
+		int resizedRingMask = ringSize - 1;
+		
+		for (long sampleIndex = ringStartSampleIndex; sampleIndex < ringEndSampleIndex; ++sampleIndex)
+			resizedRing[(int)(sampleIndex & resizedRingMask)] = ring[(int)(sampleIndex & ringMask)];
+		
+		ring     = resizedRing;
+		ringMask = resizedRingMask;
+	}
+	
+	private void trigger(long triggerSampleIndex, byte reason)
+	{
+		long startSampleIndex = Math.max(triggerSampleIndex - preTriggerNumSamples, ringStartSampleIndex);
+		long endSampleIndex   = triggerSampleIndex + postTriggerNumSamples + 1;
+		
+		if (pending)
+		{
+			if (startSampleIndex <= pendingEndSampleIndex)
+			{
+				// merge into the pending capture
+				pendingStartSampleIndex = Math.min(pendingStartSampleIndex, startSampleIndex);
+				pendingEndSampleIndex   = Math.min(Math.max(pendingEndSampleIndex, endSampleIndex), pendingStartSampleIndex + maxCaptureNumSamples);
+				
+				// keep the most interesting reason
+				if (getReasonPriority(reason) > getReasonPriority(pendingReason))
+				{
+					pendingReason             = reason;
+					pendingTriggerSampleIndex = triggerSampleIndex;
+				}
+				return;
+			}
+			
+			emitPending();
+		}
+		
+		pending                   = true;
+		pendingStartSampleIndex   = startSampleIndex;
+		pendingEndSampleIndex     = endSampleIndex;
+		pendingTriggerSampleIndex = triggerSampleIndex;
+		pendingReason             = reason;
+	}
+	
+	/**
+	 * Pulses are more interesting than near misses, except that a flow meter 2 near miss is also
+	 * a flow meter 1 pulse and is the more interesting of the two.
+	 */
+	private static int getReasonPriority(byte reason)
+	{
+		switch (reason)
+		{
+			case Capture.REASON_FM2_PULSE:     return 3;
+			case Capture.REASON_FM2_NEAR_MISS: return 2;
+			case Capture.REASON_FM1_PULSE:     return 1;
+			default:                           return 0;
+		}
+	}
+	
+	private void emitPending()
+	{
+		pending = false;
+		
+		// the ring may have moved past the start if a reading was larger than the ring
+		long startSampleIndex = Math.max(pendingStartSampleIndex, ringStartSampleIndex);
+		long endSampleIndex   = Math.min(pendingEndSampleIndex,   ringEndSampleIndex);
+		int numSamples = (int)(endSampleIndex - startSampleIndex);
+		if (numSamples <= 0)
+			return;
+		
+		short[] amplitudes = new short[numSamples];
+		for (int i = 0; i < numSamples; ++i)
+			amplitudes[i] = ring[(int)((startSampleIndex + i) & ringMask)];
+		
+		writer.offer(new Capture(startSampleIndex, pendingTriggerSampleIndex, pendingReason, amplitudes));
+	}
+}
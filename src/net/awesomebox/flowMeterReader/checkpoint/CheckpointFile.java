@@ -0,0 +1,283 @@
+package net.awesomebox.flowMeterReader.checkpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+import net.awesomebox.flowMeterReader.clock.Clock;
+import net.awesomebox.flowMeterReader.clock.SystemClock;
+
+/**
+ * Periodically writes the state of a set of {@link Checkpointable}s to a file and restores it on startup.<br />
+ * <br />
+ * A checkpoint is first written to a temporary file, synced to disk, and then renamed over the
+ * previous checkpoint. This way the checkpoint file always contains either the old or the new
+ * checkpoint in its entirety, no matter when the process is killed.<br />
+ * <br />
+ * File layout (all values big-endian):
+ * <pre>
+ * int   magic
+ * short version
+ * int   payload length
+ * byte[] payload
+ * long  CRC32 of the payload
+ * </pre>
+ * The payload contains the number of parts followed by each part's length and bytes, in the
+ * order the parts were given to the constructor. New parts go at the end, so a checkpoint written
+ * before they were added still restores the parts it has.
+ */
+public class CheckpointFile
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	private static final int   MAGIC   = 0x464D5243; // "FMRC"
+	private static final short VERSION = 1;
+	
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final File file;
+	private final File tempFile;
+	
+	// how often checkpointIfDue should write a checkpoint in nanoseconds, and how often once
+	// something that must not be lost has changed
+	private final long intervalNS;
+	private final long changedIntervalNS;
+	
+	// what the interval is measured with
+	private final Clock clock;
+	
+	// things to checkpoint, in order
+	private final Checkpointable[] parts;
+	
+	// time of the last checkpoint in nanoseconds
+	private long lastCheckpointTimeNS;
+	
+	// if markChanged was called since the last checkpoint
+	private boolean changed = false;
+	
+	// reused between checkpoints so we don't build up garbage
+	private final ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream partBuffer    = new ByteArrayOutputStream();
+	private final CRC32 crc = new CRC32();
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param file       - File to write the checkpoint to.
+	 * @param intervalNS - How often {@link #checkpointIfDue} should write a checkpoint in nanoseconds.
+	 * @param parts      - Things to checkpoint. They must be given in the same order when restoring.
+	 */
+	public CheckpointFile(File file, long intervalNS, Checkpointable... parts)
+	{
+		this(file, intervalNS, intervalNS, SystemClock.INSTANCE, parts);
+	}
+	
+	/**
+	 * @param changedIntervalNS - How often {@link #checkpointIfDue} should write a checkpoint in
+	 *                            nanoseconds once {@link #markChanged} has been called.
+	 */
+	public CheckpointFile(File file, long intervalNS, long changedIntervalNS, Checkpointable... parts)
+	{
+		this(file, intervalNS, changedIntervalNS, SystemClock.INSTANCE, parts);
+	}
+	
+	/**
+	 * @param clock - Clock to measure the intervals with.
+	 */
+	public CheckpointFile(File file, long intervalNS, long changedIntervalNS, Clock clock, Checkpointable... parts)
+	{
+		this.file              = file;
+		this.tempFile          = new File(file.getPath() + TEMP_FILE_SUFFIX);
+		this.intervalNS        = intervalNS;
+		this.changedIntervalNS = changedIntervalNS;
+		this.clock             = clock;
+		this.parts             = parts;
+		
+		lastCheckpointTimeNS = clock.nanoTime();
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Restores the state of all parts from the checkpoint file.<br />
+	 * <br />
+	 * The whole file is read and validated before any part is restored. If this throws after
+	 * validation (for example, a part rejects the checkpoint because the sample rate changed),
+	 * some parts may already be restored and they should all be recreated.
+	 * 
+	 * @return <code>true</code> if the state was restored or <code>false</code> if there was no
+	 *         checkpoint file.
+	 * 
+	 * @throws IOException If the checkpoint file could not be read or is invalid.
+	 */
+	public boolean restore() throws IOException
+	{
+		if (!file.exists())
+			return false;
+		
+		// read and validate the whole file first
+		byte[] payload;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+		{
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a checkpoint file: " + file);
+			
+			short version = in.readShort();
+			if (version != VERSION)
+				throw new IOException("Unsupported checkpoint version " + version + ": " + file);
+			
+			int payloadLength = in.readInt();
+			if (payloadLength < 0 || payloadLength > file.length())
+				throw new IOException("Corrupt checkpoint length: " + file);
+			
+			payload = new byte[payloadLength];
+			in.readFully(payload);
+			
+			crc.reset();
+			crc.update(payload, 0, payload.length);
+			if (in.readLong() != crc.getValue())
+				throw new IOException("Checkpoint checksum mismatch: " + file);
+		}
+		
+		// split the payload into parts
+		DataInputStream payloadIn = new DataInputStream(new ByteArrayInputStream(payload));
+		
+		// parts added since the checkpoint was written are left as they are
+		int numParts = payloadIn.readInt();
+		if (numParts < 0 || numParts > parts.length)
+			throw new IOException("Checkpoint has " + numParts + " parts, expected at most " + parts.length + ": " + file);
+		
+		byte[][] partBytes = new byte[numParts][];
+		for (int i = 0; i < numParts; ++i)
+		{
+			int partLength = payloadIn.readInt();
+			if (partLength < 0 || partLength > payload.length)
+				throw new IOException("Corrupt checkpoint part length: " + file);
+			
+			partBytes[i] = new byte[partLength];
+			payloadIn.readFully(partBytes[i]);
+		}
+		
+		// restore each part and make sure it read exactly what it wrote
+		for (int i = 0; i < numParts; ++i)
+		{
+			ByteArrayInputStream partStream = new ByteArrayInputStream(partBytes[i]);
+			parts[i].readCheckpoint(new DataInputStream(partStream));
+			
+			if (partStream.available() != 0)
+				throw new IOException("Checkpoint part " + i + " has " + partStream.available() + " unread bytes: " + file);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Notes that something that must not be lost has changed, EX: a pulse was counted, so the next
+	 * checkpoint is due after the shorter changed interval.
+	 */
+	public void markChanged()
+	{
+		changed = true;
+	}
+	
+	/**
+	 * Writes a checkpoint if at least the interval has passed since the last one, or the changed
+	 * interval if {@link #markChanged} has been called since.
+	 * 
+	 * @return <code>true</code> if a checkpoint was written.
+	 */
+	public boolean checkpointIfDue() throws IOException
+	{
+		long sinceLastNS = clock.nanoTime() - lastCheckpointTimeNS;
+		if (sinceLastNS < intervalNS && !(changed && sinceLastNS >= changedIntervalNS))
+			return false;
+		
+		checkpoint();
+		return true;
+	}
+	
+	/**
+	 * Writes a checkpoint now.<br />
+	 * <br />
+	 * All parts are written in one go so they are consistent with each other. This must be called
+	 * from the same thread that updates the parts.
+	 */
+	public void checkpoint() throws IOException
+	{
+		lastCheckpointTimeNS = clock.nanoTime();
+		changed = false;
+		
+		// serialize all the parts
+		payloadBuffer.reset();
+		DataOutputStream payloadOut = new DataOutputStream(payloadBuffer);
+		payloadOut.writeInt(parts.length);
+		
+		for (int i = 0; i < parts.length; ++i)
+		{
+			partBuffer.reset();
+			parts[i].writeCheckpoint(new DataOutputStream(partBuffer));
+			
+			payloadOut.writeInt(partBuffer.size());
+			partBuffer.writeTo(payloadOut);
+		}
+		payloadOut.flush();
+		
+		byte[] payload = payloadBuffer.toByteArray();
+		crc.reset();
+		crc.update(payload, 0, payload.length);
+		
+		
+		// write to the temp file and make sure it is on disk before replacing the old checkpoint
+		try (FileOutputStream fileOut = new FileOutputStream(tempFile))
+		{
+			DataOutputStream out = new DataOutputStream(fileOut);
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(payload.length);
+			out.write(payload);
+			out.writeLong(crc.getValue());
+			out.flush();
+			
+			fileOut.getChannel().force(true);
+		}
+		
+		// replace the old checkpoint
+		try
+		{
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package net.awesomebox.flowMeterReader.checkpoint;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Something whose state can be written to and restored from a {@link CheckpointFile}.
+ */
+public interface Checkpointable
+{
+	/**
+	 * Writes the current state.
+	 * 
+	 * @param out - Output to write the state to.
+	 */
+	public void writeCheckpoint(DataOutput out) throws IOException;
+	
+	/**
+	 * Restores state previously written by {@link #writeCheckpoint}.<br />
+	 * <br />
+	 * Implementations should validate everything they read before changing any state so a
+	 * bad checkpoint does not leave the object half restored.
+	 * 
+	 * @param in - Input to read the state from.
+	 */
+	public void readCheckpoint(DataInput in) throws IOException;
+}
@@ -0,0 +1,80 @@
+package net.awesomebox.flowMeterReader.checkpoint;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets a loop write a last checkpoint when the process is asked to exit.<br />
+ * <br />
+ * A checkpoint must be written from the thread that updates the parts, so a shutdown hook can't
+ * write it itself. Instead the hook sets a flag and waits. The loop checks the flag between
+ * readings, writes the checkpoint, and calls {@link #done} so the hook lets the process exit.
+ */
+public class ShutdownSignal
+{
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private volatile boolean requested = false;
+	
+	private final CountDownLatch doneLatch = new CountDownLatch(1);
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * Adds a shutdown hook that waits for {@link #done}.
+	 * 
+	 * @param timeoutMS - Longest the hook waits in milliseconds, in case the loop is stuck.
+	 */
+	public ShutdownSignal(final long timeoutMS)
+	{
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				requested = true;
+				
+				try
+				{
+					if (!doneLatch.await(timeoutMS, TimeUnit.MILLISECONDS))
+						System.err.println("Exiting without a final checkpoint");
+				}
+				catch (InterruptedException e)
+				{
+					// exit
+				}
+			}
+		}, "ShutdownSignal"));
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * @return If the process has been asked to exit.
+	 */
+	public boolean isRequested()
+	{
+		return requested;
+	}
+	
+	/**
+	 * Lets the process exit. Call once the last checkpoint has been written, or failed to be.
+	 */
+	public void done()
+	{
+		doneLatch.countDown();
+	}
+}
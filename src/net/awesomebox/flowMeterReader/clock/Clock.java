@@ -0,0 +1,21 @@
+package net.awesomebox.flowMeterReader.clock;
+
+/**
+ * Source of time for anything that does work on a schedule.<br />
+ * <br />
+ * Live streaming uses {@link SystemClock}. Replays use a {@link VirtualClock} that follows the
+ * audio being replayed, so scheduled work happens at the same points in the audio no matter how
+ * fast it is replayed.
+ */
+public interface Clock
+{
+	/**
+	 * @return Monotonic time in nanoseconds. Only differences between values are meaningful.
+	 */
+	public long nanoTime();
+	
+	/**
+	 * @return Wall-clock time in milliseconds since the epoch.
+	 */
+	public long currentTimeMillis();
+}
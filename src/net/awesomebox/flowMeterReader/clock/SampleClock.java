@@ -0,0 +1,329 @@
+package net.awesomebox.flowMeterReader.clock;
+
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+import net.awesomebox.flowMeterReader.metrics.MetricSource;
+import net.awesomebox.flowMeterReader.metrics.MetricsWriter;
+
+/**
+ * Turns sample indexes into wall-clock times, correcting for the sound card's clock drifting
+ * against the system's.<br />
+ * <br />
+ * Counting samples alone drifts by however many parts per million the sound card's clock is off,
+ * which adds up to seconds over days. Instead, every so often the index of the newest sample is
+ * paired with the time on a {@link Clock} to make an anchor. A line is fit through the anchors'
+ * monotonic times with a streaming least squares regression. Older anchors are given less weight
+ * so the fit follows the drift as it changes with temperature. The fit's monotonic time is turned
+ * into wall-clock time with a smoothed offset, so a step in the wall clock does not bend the line.<br />
+ * <br />
+ * Anchors far off the line are ignored. If several in a row are off, the stream has jumped (EX: it
+ * was paused and flushed) and the fit starts over from the newest anchor.<br />
+ * <br />
+ * Mapping a sample index is a multiply and an add.
+ */
+public class SampleClock implements MetricSource
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final long DEFAULT_ANCHOR_INTERVAL_MS = 1000;
+	
+	// anchors the fit is effectively over. About an hour at the default interval
+	public static final int DEFAULT_WINDOW_NUM_ANCHORS = 3600;
+	
+	// anchors further off the line than this are outliers
+	private static final long MAX_RESIDUAL_NS = 250 * FlowMeterReader.NS_IN_MS;
+	
+	// number of outliers in a row before starting over
+	private static final int NUM_OUTLIERS_BEFORE_RESET = 5;
+	
+	// changes in the wall-clock offset bigger than this are taken right away instead of smoothed
+	private static final double OFFSET_STEP_MS = 1000;
+	
+	// the nominal sample rate is used until the fit spans at least this many seconds
+	private static final int MIN_FIT_SPAN_S = 60;
+	
+	// number of anchors the wall-clock offset is smoothed over
+	private static final int OFFSET_WINDOW_NUM_ANCHORS = 60;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final Clock clock;
+	
+	private final long   anchorIntervalNS;
+	private final double decay;
+	private final double nominalNSPerSample;
+	private final long   minFitSpanNumSamples;
+	
+	// time of the last anchor taken by addAnchor(long)
+	private long lastAnchorNS;
+	
+	
+	// -------------------------------------------------------------------
+	// fit of monotonic time against sample index. Both are measured from the first anchor
+	
+	private boolean hasOrigin = false;
+	private long originSampleIndex;
+	private long originNS;
+	
+	// exponentially weighted means and co-moments
+	private double weight;
+	private double meanX;
+	private double meanY;
+	private double cxx;
+	private double cxy;
+	
+	// anchors in the current fit and the newest one's sample index from the origin
+	private long   numFitAnchors = 0;
+	private double lastX         = 0;
+	
+	private long numAnchors       = 0;
+	private long numOutliers      = 0;
+	private long numResets        = 0;
+	private int  numOutliersInRow = 0;
+	
+	// exponentially weighted mean squared residual in ns^2
+	private double meanSquaredResidualNS = 0;
+	
+	// wall-clock time minus monotonic time in milliseconds
+	private double epochOffsetMS;
+	
+	
+	// -------------------------------------------------------------------
+	// the mapping: epoch milliseconds = baseMillis + (sample index - origin) * millisPerSample
+	
+	private double baseMillis;
+	private double millisPerSample;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	public SampleClock(int sampleRate, Clock clock)
+	{
+		this(sampleRate, clock, DEFAULT_ANCHOR_INTERVAL_MS, DEFAULT_WINDOW_NUM_ANCHORS);
+	}
+	
+	/**
+	 * @param sampleRate       - Nominal sample rate of the stream.
+	 * @param clock            - Clock to anchor to.
+	 * @param anchorIntervalMS - Least time between anchors taken by {@link #addAnchor(long)}.
+	 * @param windowNumAnchors - Number of anchors the fit is effectively over.
+	 */
+	public SampleClock(int sampleRate, Clock clock, long anchorIntervalMS, int windowNumAnchors)
+	{
+		if (windowNumAnchors < 2)
+			throw new IllegalArgumentException("Window must be at least 2 anchors: " + windowNumAnchors);
+		
+		this.clock                = clock;
+		this.anchorIntervalNS     = anchorIntervalMS * FlowMeterReader.NS_IN_MS;
+		this.decay                = 1 - 1.0d / windowNumAnchors;
+		this.nominalNSPerSample   = (double)FlowMeterReader.NS_IN_S / sampleRate;
+		this.minFitSpanNumSamples = (long)MIN_FIT_SPAN_S * sampleRate;
+		this.millisPerSample      = nominalNSPerSample / FlowMeterReader.NS_IN_MS;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Anchors a sample index to the clock's current time if the anchor interval has passed. Call
+	 * right after reading, with the index of the newest sample read. Cheap enough to call for every
+	 * reading.
+	 * 
+	 * @return If an anchor was added.
+	 */
+	public synchronized boolean addAnchor(long sampleIndex)
+	{
+		long nowNS = clock.nanoTime();
+		if (numAnchors > 0 && nowNS - lastAnchorNS < anchorIntervalNS)
+			return false;
+		
+		lastAnchorNS = nowNS;
+		return addAnchor(sampleIndex, nowNS, clock.currentTimeMillis());
+	}
+	
+	/**
+	 * Anchors a sample index to a time.
+	 * 
+	 * @param sampleIndex - Index of a sample in the stream.
+	 * @param nanoTime    - Monotonic time the sample was read at in nanoseconds.
+	 * @param epochMillis - Wall-clock time the sample was read at in milliseconds since the epoch.
+	 * 
+	 * @return <code>false</code> if the anchor was ignored as an outlier.
+	 */
+	public synchronized boolean addAnchor(long sampleIndex, long nanoTime, long epochMillis)
+	{
+		if (!hasOrigin)
+			startOver(sampleIndex, nanoTime);
+		
+		double x = sampleIndex - originSampleIndex;
+		double y = nanoTime    - originNS;
+		
+		// check the anchor against the fit
+		if (numFitAnchors >= 2)
+		{
+			double residualNS = y - (meanY + getSlope() * (x - meanX));
+			if (Math.abs(residualNS) > MAX_RESIDUAL_NS)
+			{
+				++numOutliers;
+				if (++numOutliersInRow < NUM_OUTLIERS_BEFORE_RESET)
+					return false;
+				
+				// the stream jumped
+				++numResets;
+				startOver(sampleIndex, nanoTime);
+				x = 0;
+				y = 0;
+			}
+			else
+			{
+				meanSquaredResidualNS = decay * meanSquaredResidualNS + (1 - decay) * residualNS * residualNS;
+			}
+		}
+		
+		numOutliersInRow = 0;
+		
+		// weighted incremental update. Older anchors fade by the decay each time
+		weight = decay * weight + 1;
+		double dx = x - meanX;
+		double dy = y - meanY;
+		meanX += dx / weight;
+		meanY += dy / weight;
+		cxx = decay * cxx + dx * (x - meanX);
+		cxy = decay * cxy + dx * (y - meanY);
+		
+		lastX = x;
+		++numFitAnchors;
+		++numAnchors;
+		
+		// smooth the wall-clock offset unless the wall clock was stepped
+		double offsetMS = epochMillis - (double)nanoTime / FlowMeterReader.NS_IN_MS;
+		if (numFitAnchors == 1 || Math.abs(offsetMS - epochOffsetMS) > OFFSET_STEP_MS)
+			epochOffsetMS = offsetMS;
+		else
+			epochOffsetMS += (offsetMS - epochOffsetMS) / OFFSET_WINDOW_NUM_ANCHORS;
+		
+		// update the mapping
+		double slope = getSlope();
+		double interceptNS = meanY - slope * meanX;
+		
+		millisPerSample = slope / FlowMeterReader.NS_IN_MS;
+		baseMillis      = (originNS + interceptNS) / FlowMeterReader.NS_IN_MS + epochOffsetMS;
+		
+		return true;
+	}
+	
+	/**
+	 * @return The wall-clock time of a sample in milliseconds since the epoch. The clock's current
+	 *         time if there are no anchors yet.
+	 */
+	public synchronized long toEpochMillis(long sampleIndex)
+	{
+		if (!hasOrigin)
+			return clock.currentTimeMillis();
+		
+		return (long)Math.floor(baseMillis + (sampleIndex - originSampleIndex) * millisPerSample);
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	/**
+	 * @return How fast the sound card's clock runs compared to the system's in parts per million.
+	 *         Positive when it is slow, so each sample takes longer than nominal.
+	 */
+	public synchronized double getDriftPPM()
+	{
+		return (getSlope() / nominalNSPerSample - 1) * 1e6;
+	}
+	
+	/**
+	 * @return Root mean square distance of the anchors from the fit in milliseconds.
+	 */
+	public synchronized double getResidualRMSMS()
+	{
+		return Math.sqrt(meanSquaredResidualNS) / FlowMeterReader.NS_IN_MS;
+	}
+	
+	public synchronized long getNumAnchors()
+	{
+		return numAnchors;
+	}
+	
+	public synchronized long getNumOutliers()
+	{
+		return numOutliers;
+	}
+	
+	/**
+	 * @return Number of times the fit started over because the stream jumped.
+	 */
+	public synchronized long getNumResets()
+	{
+		return numResets;
+	}
+	
+	@Override
+	public synchronized void writeMetrics(MetricsWriter out)
+	{
+		out.write("sample_clock_drift_ppm",       getDriftPPM());
+		out.write("sample_clock_residual_rms_ms", getResidualRMSMS());
+		out.write("sample_clock_anchors_total",   numAnchors);
+		out.write("sample_clock_outliers_total",  numOutliers);
+		out.write("sample_clock_resets_total",    numResets);
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	/**
+	 * @return Nanoseconds per sample from the fit, or the nominal value until the fit spans enough time.
+	 */
+	private double getSlope()
+	{
+		if (numFitAnchors < 2 || cxx <= 0 || lastX < minFitSpanNumSamples)
+			return nominalNSPerSample;
+		
+		return cxy / cxx;
+	}
+	
+	private void startOver(long sampleIndex, long nanoTime)
+	{
+		hasOrigin         = true;
+		originSampleIndex = sampleIndex;
+		originNS          = nanoTime;
+		
+		weight = 0;
+		meanX  = 0;
+		meanY  = 0;
+		cxx    = 0;
+		cxy    = 0;
+		
+		numFitAnchors         = 0;
+		lastX                 = 0;
+		numOutliersInRow      = 0;
+		meanSquaredResidualNS = 0;
+	}
+}
@@ -0,0 +1,25 @@
+package net.awesomebox.flowMeterReader.clock;
+
+/**
+ * The real time as told by the system.
+ */
+public class SystemClock implements Clock
+{
+	public static final SystemClock INSTANCE = new SystemClock();
+	
+	private SystemClock()
+	{
+	}
+	
+	@Override
+	public long nanoTime()
+	{
+		return System.nanoTime();
+	}
+	
+	@Override
+	public long currentTimeMillis()
+	{
+		return System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,86 @@
+package net.awesomebox.flowMeterReader.clock;
+
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+
+/**
+ * A clock that only moves when told to.<br />
+ * <br />
+ * Time starts at 0 nanoseconds, which is the given wall-clock time. It is safe to read from any
+ * thread while one thread advances it.
+ */
+public class VirtualClock implements Clock
+{
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	// wall-clock time in milliseconds at 0 nanoseconds
+	private final long startTimeMillis;
+	
+	private volatile long timeNS = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param startTimeMillis - Wall-clock time in milliseconds since the epoch the clock starts at.
+	 */
+	public VirtualClock(long startTimeMillis)
+	{
+		this.startTimeMillis = startTimeMillis;
+	}
+	
+	
+	
+	// ===================================================================
+	// Clock
+	//
+	// ===================================================================
+	
+	@Override
+	public long nanoTime()
+	{
+		return timeNS;
+	}
+	
+	@Override
+	public long currentTimeMillis()
+	{
+		return startTimeMillis + timeNS / FlowMeterReader.NS_IN_MS;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Moves the clock to the given time.
+	 * 
+	 * @param timeNS - Nanoseconds since the clock started. Must not be before the current time.
+	 */
+	public void setNanoTime(long timeNS)
+	{
+		if (timeNS < this.timeNS)
+			throw new IllegalArgumentException("Clock can not go backwards: " + timeNS + " < " + this.timeNS);
+		
+		this.timeNS = timeNS;
+	}
+	
+	/**
+	 * Moves the clock forward.
+	 * 
+	 * @param durationNS - Nanoseconds to move forward by.
+	 */
+	public void advance(long durationNS)
+	{
+		setNanoTime(timeNS + durationNS);
+	}
+}
@@ -0,0 +1,253 @@
+package net.awesomebox.flowMeterReader.config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import net.awesomebox.flowMeterReader.AudioSample;
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+
+/**
+ * The settings pulses are detected with. Instances never change, so one can be handed between
+ * threads and a reader can tell it has been given a new one by comparing references.<br />
+ * <br />
+ * Loaded from a properties file. Any setting left out keeps its default:
+ * <pre>
+ * maxPulseDurationNS                   = 625000
+ * fm1PulseAmplitudeDeltaThresholdRatio = 0.15
+ * fm2PulseAmplitudeDeltaThresholdRatio = 0.75
+ * </pre>
+ * The max pulse duration must come to between {@link #MIN_MAX_PULSE_DURATION_NUM_SAMPLES} and
+ * {@link #MAX_MAX_PULSE_DURATION_NUM_SAMPLES} samples at the sample rate it is loaded for.
+ */
+public class DetectionConfig
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final String MAX_PULSE_DURATION_NS_KEY                     = "maxPulseDurationNS";
+	public static final String FM1_PULSE_AMPLITUDE_DELTA_THRESHOLD_RATIO_KEY = "fm1PulseAmplitudeDeltaThresholdRatio";
+	public static final String FM2_PULSE_AMPLITUDE_DELTA_THRESHOLD_RATIO_KEY = "fm2PulseAmplitudeDeltaThresholdRatio";
+	
+	// range of the max pulse duration in samples. An edge needs at least 2 samples to be measured
+	// and pulse durations are stored as shorts
+	public static final int MIN_MAX_PULSE_DURATION_NUM_SAMPLES = 2;
+	public static final int MAX_MAX_PULSE_DURATION_NUM_SAMPLES = Short.MAX_VALUE;
+	
+	/**
+	 * The settings in {@link FlowMeterReader}'s constants.
+	 */
+	public static final DetectionConfig DEFAULT = new DetectionConfig(
+		FlowMeterReader.MAX_PULSE_DURATION_NS,
+		FlowMeterReader.FM1_PULSE_AMPLITUDE_DELTA_THRESHOLD_RATIO,
+		FlowMeterReader.FM2_PULSE_AMPLITUDE_DELTA_THRESHOLD_RATIO);
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	// max time in nanoseconds a pulse can exist for
+	private final long maxPulseDurationNS;
+	
+	// the min amplitude delta for it to be considered a pulse as a ratio of full scale
+	private final double fm1PulseAmplitudeDeltaThresholdRatio;
+	private final double fm2PulseAmplitudeDeltaThresholdRatio;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param maxPulseDurationNS                   - Max time a pulse can exist for in nanoseconds.
+	 * @param fm1PulseAmplitudeDeltaThresholdRatio - Min amplitude delta for a pulse from flow meter 1 as a ratio of full scale.
+	 * @param fm2PulseAmplitudeDeltaThresholdRatio - Min amplitude delta for a pulse from flow meter 2 as a ratio of full scale.
+	 * 
+	 * @throws IllegalArgumentException If a setting is out of range.
+	 */
+	public DetectionConfig(long maxPulseDurationNS, double fm1PulseAmplitudeDeltaThresholdRatio, double fm2PulseAmplitudeDeltaThresholdRatio)
+	{
+		if (maxPulseDurationNS <= 0)
+			throw new IllegalArgumentException("Max pulse duration must be positive: " + maxPulseDurationNS);
+		
+		if (!(fm1PulseAmplitudeDeltaThresholdRatio > 0 && fm1PulseAmplitudeDeltaThresholdRatio <= 1))
+			throw new IllegalArgumentException("Flow meter 1 threshold ratio must be in (0, 1]: " + fm1PulseAmplitudeDeltaThresholdRatio);
+		
+		if (!(fm2PulseAmplitudeDeltaThresholdRatio > 0 && fm2PulseAmplitudeDeltaThresholdRatio <= 1))
+			throw new IllegalArgumentException("Flow meter 2 threshold ratio must be in (0, 1]: " + fm2PulseAmplitudeDeltaThresholdRatio);
+		
+		// pulses are checked against flow meter 2's threshold first
+		if (fm2PulseAmplitudeDeltaThresholdRatio < fm1PulseAmplitudeDeltaThresholdRatio)
+			throw new IllegalArgumentException("Flow meter 2 threshold ratio must not be less than flow meter 1's");
+		
+		this.maxPulseDurationNS                   = maxPulseDurationNS;
+		this.fm1PulseAmplitudeDeltaThresholdRatio = fm1PulseAmplitudeDeltaThresholdRatio;
+		this.fm2PulseAmplitudeDeltaThresholdRatio = fm2PulseAmplitudeDeltaThresholdRatio;
+	}
+	
+	
+	
+	// ===================================================================
+	// Loading
+	//
+	// ===================================================================
+	
+	/**
+	 * Loads settings from a properties file.
+	 * 
+	 * @param sampleRate - Sample rate the settings will be detected at.
+	 * 
+	 * @throws IOException If the file can not be read or a setting is invalid.
+	 */
+	public static DetectionConfig load(File file, int sampleRate) throws IOException
+	{
+		Properties properties = new Properties();
+		
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			properties.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
+		
+		return fromProperties(properties, sampleRate);
+	}
+	
+	/**
+	 * @param sampleRate - Sample rate the settings will be detected at.
+	 * 
+	 * @throws IOException If a setting is invalid.
+	 */
+	public static DetectionConfig fromProperties(Properties properties, int sampleRate) throws IOException
+	{
+		try
+		{
+			DetectionConfig config = new DetectionConfig(
+				Long  .parseLong  (properties.getProperty(MAX_PULSE_DURATION_NS_KEY,                     Long  .toString(DEFAULT.maxPulseDurationNS)).trim()),
+				Double.parseDouble(properties.getProperty(FM1_PULSE_AMPLITUDE_DELTA_THRESHOLD_RATIO_KEY, Double.toString(DEFAULT.fm1PulseAmplitudeDeltaThresholdRatio)).trim()),
+				Double.parseDouble(properties.getProperty(FM2_PULSE_AMPLITUDE_DELTA_THRESHOLD_RATIO_KEY, Double.toString(DEFAULT.fm2PulseAmplitudeDeltaThresholdRatio)).trim()));
+			
+			config.validate(sampleRate);
+			return config;
+		}
+		catch (IllegalArgumentException e)
+		{
+			// also catches NumberFormatException
+			throw new IOException("Invalid detection config: " + e.getMessage());
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public long getMaxPulseDurationNS()
+	{
+		return maxPulseDurationNS;
+	}
+	
+	public double getFM1PulseAmplitudeDeltaThresholdRatio()
+	{
+		return fm1PulseAmplitudeDeltaThresholdRatio;
+	}
+	
+	public double getFM2PulseAmplitudeDeltaThresholdRatio()
+	{
+		return fm2PulseAmplitudeDeltaThresholdRatio;
+	}
+	
+	public int getFM1PulseAmplitudeDeltaThreshold()
+	{
+		return (int)(fm1PulseAmplitudeDeltaThresholdRatio * AudioSample.AMPLITUDE_MAX_VALUE);
+	}
+	
+	public int getFM2PulseAmplitudeDeltaThreshold()
+	{
+		return (int)(fm2PulseAmplitudeDeltaThresholdRatio * AudioSample.AMPLITUDE_MAX_VALUE);
+	}
+	
+	/**
+	 * Checks the settings can be detected at the given sample rate.
+	 * 
+	 * @throws IllegalArgumentException If the max pulse duration is out of range in samples.
+	 */
+	public void validate(int sampleRate)
+	{
+		if (sampleRate <= 0)
+			throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+		
+		// anything this long is far out of range anyway
+		if (maxPulseDurationNS > Long.MAX_VALUE / sampleRate)
+			throw new IllegalArgumentException("Max pulse duration is too long: " + maxPulseDurationNS + "ns");
+		
+		long numSamples = (maxPulseDurationNS * sampleRate) / FlowMeterReader.NS_IN_S;
+		if (numSamples < MIN_MAX_PULSE_DURATION_NUM_SAMPLES || numSamples > MAX_MAX_PULSE_DURATION_NUM_SAMPLES)
+		{
+			throw new IllegalArgumentException("Max pulse duration must be between "
+				+ MIN_MAX_PULSE_DURATION_NUM_SAMPLES + " and " + MAX_MAX_PULSE_DURATION_NUM_SAMPLES
+				+ " samples at " + sampleRate + "Hz: " + maxPulseDurationNS + "ns is " + numSamples);
+		}
+	}
+	
+	/**
+	 * Only in range for settings that passed {@link #validate} at the given sample rate.
+	 * 
+	 * @see FlowMeterReader#calculateMaxPulseDurationNumSamples(int)
+	 */
+	public int calculateMaxPulseDurationNumSamples(int sampleRate)
+	{
+		return (int)Math.max(1, (maxPulseDurationNS * sampleRate) / FlowMeterReader.NS_IN_S);
+	}
+	
+	
+	
+	// ===================================================================
+	// Object
+	//
+	// ===================================================================
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (!(obj instanceof DetectionConfig))
+			return false;
+		
+		DetectionConfig other = (DetectionConfig)obj;
+		return maxPulseDurationNS                   == other.maxPulseDurationNS
+			&& fm1PulseAmplitudeDeltaThresholdRatio == other.fm1PulseAmplitudeDeltaThresholdRatio
+			&& fm2PulseAmplitudeDeltaThresholdRatio == other.fm2PulseAmplitudeDeltaThresholdRatio;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		long bits = maxPulseDurationNS;
+		bits = bits * 31 + Double.doubleToLongBits(fm1PulseAmplitudeDeltaThresholdRatio);
+		bits = bits * 31 + Double.doubleToLongBits(fm2PulseAmplitudeDeltaThresholdRatio);
+		
+		return (int)(bits ^ (bits >>> 32));
+	}
+	
+	@Override
+	public String toString()
+	{
+		return MAX_PULSE_DURATION_NS_KEY + "=" + maxPulseDurationNS
+			+ " " + FM1_PULSE_AMPLITUDE_DELTA_THRESHOLD_RATIO_KEY + "=" + fm1PulseAmplitudeDeltaThresholdRatio
+			+ " " + FM2_PULSE_AMPLITUDE_DELTA_THRESHOLD_RATIO_KEY + "=" + fm2PulseAmplitudeDeltaThresholdRatio;
+	}
+}
@@ -0,0 +1,11 @@
+package net.awesomebox.flowMeterReader.config;
+
+public interface DetectionConfigListener
+{
+	/**
+	 * Called when the config file has changed to different settings. Called on the watcher's thread.
+	 * 
+	 * @param config - The new settings.
+	 */
+	public void onDetectionConfigChanged(DetectionConfig config);
+}
@@ -0,0 +1,235 @@
+package net.awesomebox.flowMeterReader.config;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import net.awesomebox.flowMeterReader.metrics.MetricSource;
+import net.awesomebox.flowMeterReader.metrics.MetricsWriter;
+
+/**
+ * Watches a {@link DetectionConfig} file and tells the listeners whenever it changes to different
+ * settings, so thresholds can be tuned without restarting and dropping pulses.<br />
+ * <br />
+ * The file's directory is watched on a daemon thread, so files that editors replace rather than
+ * write over are seen too. The file is reloaded once it has stopped changing for a moment. A file
+ * that can't be read or has invalid settings is reported and the last good settings are kept.
+ * Saving the file without changing any settings does not notify the listeners.
+ */
+public class DetectionConfigWatcher implements Closeable, MetricSource
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	// how long the file must go without changing before it is reloaded. A save can truncate the
+	// file and write it in separate steps, and the empty file in between would load as the defaults
+	private static final long SETTLE_MS = 100;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final File file;
+	private final int  sampleRate;
+	
+	private final WatchService watchService;
+	private final Thread       thread;
+	
+	private final CopyOnWriteArrayList<DetectionConfigListener> listeners = new CopyOnWriteArrayList<DetectionConfigListener>();
+	
+	// the last good settings
+	private volatile DetectionConfig config;
+	
+	// only changed on the watcher's thread
+	private volatile long numReloads      = 0;
+	private volatile long numReloadErrors = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * Loads the file and starts watching it.
+	 * 
+	 * @param sampleRate - Sample rate the settings will be detected at. Settings out of range at it are invalid.
+	 * 
+	 * @throws IOException If the file can not be loaded or watched.
+	 */
+	public DetectionConfigWatcher(File file, int sampleRate) throws IOException
+	{
+		this.file       = file.getAbsoluteFile();
+		this.sampleRate = sampleRate;
+		this.config     = DetectionConfig.load(this.file, sampleRate);
+		
+		watchService = FileSystems.getDefault().newWatchService();
+		this.file.getParentFile().toPath().register(watchService,
+			StandardWatchEventKinds.ENTRY_CREATE,
+			StandardWatchEventKinds.ENTRY_MODIFY);
+		
+		thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				watch();
+			}
+		}, "DetectionConfigWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	public File getFile()
+	{
+		return file;
+	}
+	
+	/**
+	 * @return The last good settings loaded from the file.
+	 */
+	public DetectionConfig getConfig()
+	{
+		return config;
+	}
+	
+	public void addListener(DetectionConfigListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	@Override
+	public void writeMetrics(MetricsWriter out)
+	{
+		out.write("detection_config_reloads_total",       numReloads);
+		out.write("detection_config_reload_errors_total", numReloadErrors);
+	}
+	
+	/**
+	 * Stops watching the file.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		watchService.close();
+		
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	/**
+	 * Waits for changes in the file's directory until the watch service is closed.
+	 */
+	private void watch()
+	{
+		Path fileName = file.toPath().getFileName();
+		
+		try
+		{
+			while (true)
+			{
+				if (!takeChanged(watchService.take(), fileName))
+					continue;
+				
+				// one save can give several events. Wait for them to stop and only reload once
+				WatchKey key;
+				while ((key = watchService.poll(SETTLE_MS, TimeUnit.MILLISECONDS)) != null)
+					takeChanged(key, fileName);
+				
+				reload();
+			}
+		}
+		catch (ClosedWatchServiceException e)
+		{
+			// closed
+		}
+		catch (InterruptedException e)
+		{
+			// stopped
+		}
+	}
+	
+	/**
+	 * Takes the events from a key and resets it.
+	 * 
+	 * @return If any of the events could be the file changing.
+	 */
+	private boolean takeChanged(WatchKey key, Path fileName)
+	{
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context()))
+				changed = true;
+		}
+		
+		if (!key.reset())
+			System.err.println("Stopped watching " + file + ". Its directory is gone");
+		
+		return changed;
+	}
+	
+	/**
+	 * Loads the file and tells the listeners if the settings are different.
+	 */
+	private void reload()
+	{
+		DetectionConfig newConfig;
+		try
+		{
+			newConfig = DetectionConfig.load(file, sampleRate);
+		}
+		catch (IOException e)
+		{
+			// the file may be half written. Keep the last good settings, the next write will reload it
+			++numReloadErrors;
+			System.err.println("Unable to reload " + file + ", keeping the current detection config: " + e.getMessage());
+			return;
+		}
+		
+		if (newConfig.equals(config))
+			return;
+		
+		config = newConfig;
+		++numReloads;
+		System.out.println("Reloaded detection config: " + newConfig);
+		
+		for (DetectionConfigListener listener : listeners)
+			listener.onDetectionConfigChanged(newConfig);
+	}
+}
@@ -0,0 +1,53 @@
+package net.awesomebox.flowMeterReader.eventBus;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocks on a condition until the producer signals that events have been published. Uses no CPU
+ * while there are no events, but the producer takes a lock for each publish to signal.
+ */
+public class BlockingWaitStrategy implements WaitStrategy
+{
+	private final ReentrantLock lock            = new ReentrantLock();
+	private final Condition     eventsPublished = lock.newCondition();
+	
+	
+	@Override
+	public long waitFor(long sequence, AtomicLong published, AtomicBoolean closed) throws InterruptedException
+	{
+		long numPublished = published.get();
+		if (numPublished > sequence)
+			return numPublished;
+		
+		lock.lock();
+		try
+		{
+			// checked while holding the lock so a signal can't be missed
+			while ((numPublished = published.get()) <= sequence && !closed.get())
+				eventsPublished.await();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+		return numPublished;
+	}
+	
+	@Override
+	public void signalAll()
+	{
+		lock.lock();
+		try
+		{
+			eventsPublished.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package net.awesomebox.flowMeterReader.eventBus;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks for events in a tight loop. Sees them soonest but keeps a core busy the whole time. Only
+ * for consumers with a core to themselves.
+ */
+public class BusySpinWaitStrategy implements WaitStrategy
+{
+	@Override
+	public long waitFor(long sequence, AtomicLong published, AtomicBoolean closed)
+	{
+		long numPublished;
+		while ((numPublished = published.get()) <= sequence && !closed.get())
+		{
+			// spin
+		}
+		
+		return numPublished;
+	}
+	
+	@Override
+	public void signalAll()
+	{
+		// nothing waits
+	}
+}
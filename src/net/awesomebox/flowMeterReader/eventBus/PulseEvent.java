@@ -0,0 +1,27 @@
+package net.awesomebox.flowMeterReader.eventBus;
+
+import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.SampleGap;
+
+/**
+ * A slot in a {@link PulseEventBus}.<br />
+ * <br />
+ * Slots are made once when the bus is made and filled in again each time around the ring, so
+ * publishing never allocates. Don't hold on to an event after it has been handled. The pulse or gap
+ * in it never changes and can be kept.
+ */
+public final class PulseEvent
+{
+	// event types
+	public static final byte TYPE_PULSE = 1;
+	public static final byte TYPE_GAP   = 2;
+	
+	
+	public byte type;
+	
+	// the pulse for pulse events. null otherwise
+	public Pulse pulse;
+	
+	// the missing samples for gap events. null otherwise
+	public SampleGap gap;
+}
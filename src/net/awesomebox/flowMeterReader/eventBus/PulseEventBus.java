@@ -0,0 +1,268 @@
+package net.awesomebox.flowMeterReader.eventBus;
+
+import java.io.Closeable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.awesomebox.flowMeterReader.FlowMeterReading;
+import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.SampleGap;
+import net.awesomebox.flowMeterReader.metrics.MetricSource;
+import net.awesomebox.flowMeterReader.metrics.MetricsWriter;
+
+/**
+ * Hands the pulses and gaps from each reading to any number of consumers, each on its own thread.<br />
+ * <br />
+ * Events go around a ring of slots made up front. There is one producer, the thread reading the
+ * signal, and it only writes the count of events published. Each consumer only writes the count of
+ * events it has handled, and takes every event published since in one batch, so consumers never
+ * wait on each other and a slow one only falls behind by itself. A slot is only reused once every
+ * consumer has handled it.<br />
+ * <br />
+ * Publishing never blocks. If the slowest consumer is a whole ring behind, new events are dropped
+ * and counted, the same as the export queues. How far behind each consumer is can be seen in the
+ * metrics.
+ */
+public class PulseEventBus implements Closeable, MetricSource
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final int DEFAULT_CAPACITY = 4096;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final int capacity;
+	private final int mask;
+	
+	private final PulseEvent[] events;
+	
+	private final WaitStrategy waitStrategy;
+	
+	private final CopyOnWriteArrayList<PulseEventConsumer> consumers = new CopyOnWriteArrayList<PulseEventConsumer>();
+	
+	// number of events published. Only ever increases
+	private final AtomicLong published = new AtomicLong();
+	
+	private final AtomicBoolean closed = new AtomicBoolean();
+	
+	private final AtomicLong numDropped = new AtomicLong();
+	
+	// the fewest events any consumer had handled when last checked. Only used by the producer, so
+	// the consumers are only checked when the ring looks full
+	private long cachedMinConsumed = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param capacity     - Number of slots in the ring. Rounded up to a power of 2.
+	 * @param waitStrategy - How consumers wait for events.
+	 */
+	public PulseEventBus(int capacity, WaitStrategy waitStrategy)
+	{
+		this.capacity     = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask         = this.capacity - 1;
+		this.waitStrategy = waitStrategy;
+		
+		events = new PulseEvent[this.capacity];
+		for (int i = 0; i < this.capacity; ++i)
+			events[i] = new PulseEvent();
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public int getCapacity()
+	{
+		return capacity;
+	}
+	
+	/**
+	 * @return Number of events published. Safe to call from any thread.
+	 */
+	public long getNumPublished()
+	{
+		return published.get();
+	}
+	
+	/**
+	 * @return Number of events dropped because the ring was full. Safe to call from any thread.
+	 */
+	public long getNumDropped()
+	{
+		return numDropped.get();
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Starts a consumer on its own thread. It gets the events published from now on. Add consumers
+	 * before publishing starts or from the producer thread.
+	 * 
+	 * @param name    - Name of the consumer for its thread and metrics.
+	 * @param handler - Handles the events.
+	 * 
+	 * @return The consumer.
+	 */
+	public PulseEventConsumer addConsumer(String name, PulseEventHandler handler)
+	{
+		if (closed.get())
+			throw new IllegalStateException("Bus already closed");
+		
+		PulseEventConsumer consumer = new PulseEventConsumer(name, handler, this, published.get());
+		consumers.add(consumer);
+		consumer.start();
+		
+		return consumer;
+	}
+	
+	/**
+	 * Publishes the gap and pulses in a reading as one batch. Never blocks. Only call from the
+	 * producer thread.
+	 */
+	public void publish(FlowMeterReading reading)
+	{
+		long start = published.get();
+		long next  = start;
+		
+		if (reading.gap != null)
+			next = put(next, PulseEvent.TYPE_GAP, null, reading.gap);
+		
+		for (int i = 0; i < reading.pulses.length; ++i)
+			next = put(next, PulseEvent.TYPE_PULSE, reading.pulses[i], null);
+		
+		if (next == start)
+			return;
+		
+		// publish the batch. The ordered write makes the slots visible before the new count
+		published.lazySet(next);
+		waitStrategy.signalAll();
+	}
+	
+	@Override
+	public void writeMetrics(MetricsWriter out)
+	{
+		long numPublished = published.get();
+		
+		out.write("event_bus_capacity",        capacity);
+		out.write("event_bus_published_total", numPublished);
+		out.write("event_bus_dropped_total",   numDropped.get());
+		
+		for (PulseEventConsumer consumer : consumers)
+		{
+			out.write("event_bus_consumer_lag",           "consumer", consumer.getName(), numPublished - consumer.getNumConsumed());
+			out.write("event_bus_consumer_handled_total", "consumer", consumer.getName(), consumer.getNumConsumed());
+			out.write("event_bus_consumer_batches_total", "consumer", consumer.getName(), consumer.getNumBatches());
+			out.write("event_bus_consumer_errors_total",  "consumer", consumer.getName(), consumer.getNumErrors());
+		}
+	}
+	
+	/**
+	 * Stops the consumers once they have handled everything published.
+	 */
+	@Override
+	public void close()
+	{
+		closed.set(true);
+		waitStrategy.signalAll();
+		
+		for (PulseEventConsumer consumer : consumers)
+			consumer.join();
+	}
+	
+	
+	
+	// ===================================================================
+	// Consumer Interface
+	//
+	// ===================================================================
+	
+	PulseEvent getEvent(long sequence)
+	{
+		return events[(int)(sequence & mask)];
+	}
+	
+	AtomicLong getPublished()
+	{
+		return published;
+	}
+	
+	AtomicBoolean getClosed()
+	{
+		return closed;
+	}
+	
+	WaitStrategy getWaitStrategy()
+	{
+		return waitStrategy;
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	/**
+	 * Fills in the slot for an event if every consumer is done with it.
+	 * 
+	 * @return Sequence of the next event. The same sequence if the event was dropped.
+	 */
+	private long put(long sequence, byte type, Pulse pulse, SampleGap gap)
+	{
+		if (sequence - cachedMinConsumed >= capacity)
+		{
+			cachedMinConsumed = getMinConsumed(sequence);
+			
+			if (sequence - cachedMinConsumed >= capacity)
+			{
+				numDropped.incrementAndGet();
+				return sequence;
+			}
+		}
+		
+		PulseEvent event = events[(int)(sequence & mask)];
+		event.type  = type;
+		event.pulse = pulse;
+		event.gap   = gap;
+		
+		return sequence + 1;
+	}
+	
+	/**
+	 * @param sequence - Returned if there are no consumers.
+	 * 
+	 * @return The fewest events any consumer has handled.
+	 */
+	private long getMinConsumed(long sequence)
+	{
+		long minConsumed = sequence;
+		for (PulseEventConsumer consumer : consumers)
+			minConsumed = Math.min(minConsumed, consumer.getNumConsumed());
+		
+		return minConsumed;
+	}
+}
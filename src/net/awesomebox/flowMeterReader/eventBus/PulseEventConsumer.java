@@ -0,0 +1,178 @@
+package net.awesomebox.flowMeterReader.eventBus;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a {@link PulseEventHandler} on its own thread, keeping track of how far through a
+ * {@link PulseEventBus}'s events it is. Made with {@link PulseEventBus#addConsumer}.
+ */
+public class PulseEventConsumer
+{
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final String            name;
+	private final PulseEventHandler handler;
+	private final PulseEventBus     bus;
+	
+	private final Thread thread;
+	
+	// number of events handled, counting the ones published before the consumer was added. Only
+	// written by the consumer's thread
+	private final AtomicLong consumed;
+	
+	private volatile long numBatches = 0;
+	private volatile long numErrors  = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param firstSequence - Sequence of the first event to handle.
+	 */
+	PulseEventConsumer(String name, PulseEventHandler handler, PulseEventBus bus, long firstSequence)
+	{
+		this.name     = name;
+		this.handler  = handler;
+		this.bus      = bus;
+		this.consumed = new AtomicLong(firstSequence);
+		
+		thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				consumeLoop();
+			}
+		}, "PulseEventConsumer " + name);
+		thread.setDaemon(true);
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * @return Number of events handled. Safe to call from any thread.
+	 */
+	public long getNumConsumed()
+	{
+		return consumed.get();
+	}
+	
+	/**
+	 * @return Number of times the consumer woke up to handle events.
+	 */
+	public long getNumBatches()
+	{
+		return numBatches;
+	}
+	
+	/**
+	 * @return Number of events the handler threw on.
+	 */
+	public long getNumErrors()
+	{
+		return numErrors;
+	}
+	
+	
+	
+	// ===================================================================
+	// Bus Interface
+	//
+	// ===================================================================
+	
+	void start()
+	{
+		thread.start();
+	}
+	
+	/**
+	 * Waits for the thread to finish after the bus is closed.
+	 */
+	void join()
+	{
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	private void consumeLoop()
+	{
+		AtomicLong    published    = bus.getPublished();
+		AtomicBoolean closed       = bus.getClosed();
+		WaitStrategy  waitStrategy = bus.getWaitStrategy();
+		
+		long nextSequence = consumed.get();
+		
+		try
+		{
+			while (true)
+			{
+				// check before waiting so everything published before close is handled
+				boolean closing = closed.get();
+				
+				long numPublished = waitStrategy.waitFor(nextSequence, published, closed);
+				if (numPublished <= nextSequence)
+				{
+					if (closing)
+						break;
+					
+					continue;
+				}
+				
+				// handle everything published since the last batch
+				for (long sequence = nextSequence; sequence < numPublished; ++sequence)
+				{
+					try
+					{
+						handler.onPulseEvent(bus.getEvent(sequence), sequence, sequence == numPublished - 1);
+					}
+					catch (RuntimeException e)
+					{
+						// one bad event shouldn't stop the rest
+						++numErrors;
+						e.printStackTrace();
+					}
+				}
+				
+				// free the slots only after they have been handled
+				nextSequence = numPublished;
+				consumed.lazySet(nextSequence);
+				++numBatches;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// stopped
+		}
+	}
+}
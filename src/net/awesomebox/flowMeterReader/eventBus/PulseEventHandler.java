@@ -0,0 +1,13 @@
+package net.awesomebox.flowMeterReader.eventBus;
+
+public interface PulseEventHandler
+{
+	/**
+	 * Called for each event in the order they were published. Called on the consumer's own thread.
+	 * 
+	 * @param event      - The event. Only valid until this returns.
+	 * @param sequence   - Number of events published before this one.
+	 * @param endOfBatch - If this is the last event available for now. Work can be saved up until then.
+	 */
+	public void onPulseEvent(PulseEvent event, long sequence, boolean endOfBatch);
+}
@@ -0,0 +1,87 @@
+package net.awesomebox.flowMeterReader.eventBus;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spins, then yields, then sleeps between checks. Uses next to no CPU while there are no events,
+ * at the cost of seeing a new event up to the sleep time late.
+ */
+public class SleepingWaitStrategy implements WaitStrategy
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final long DEFAULT_SLEEP_NS = 100000;
+	
+	// number of checks before yielding and then before sleeping
+	private static final int NUM_SPINS  = 100;
+	private static final int NUM_YIELDS = 100;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final long sleepNS;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	public SleepingWaitStrategy()
+	{
+		this(DEFAULT_SLEEP_NS);
+	}
+	
+	/**
+	 * @param sleepNS - How long to sleep between checks in nanoseconds once done spinning and yielding.
+	 */
+	public SleepingWaitStrategy(long sleepNS)
+	{
+		this.sleepNS = sleepNS;
+	}
+	
+	
+	
+	// ===================================================================
+	// WaitStrategy
+	//
+	// ===================================================================
+	
+	@Override
+	public long waitFor(long sequence, AtomicLong published, AtomicBoolean closed)
+	{
+		int numTries = 0;
+		
+		long numPublished;
+		while ((numPublished = published.get()) <= sequence && !closed.get())
+		{
+			if (numTries < NUM_SPINS)
+				++numTries;
+			else if (numTries < NUM_SPINS + NUM_YIELDS)
+			{
+				++numTries;
+				Thread.yield();
+			}
+			else
+				LockSupport.parkNanos(sleepNS);
+		}
+		
+		return numPublished;
+	}
+	
+	@Override
+	public void signalAll()
+	{
+		// sleepers wake up on their own
+	}
+}
@@ -0,0 +1,27 @@
+package net.awesomebox.flowMeterReader.eventBus;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How a consumer of a {@link PulseEventBus} waits for events. Trades how quickly a consumer sees
+ * new events against how much CPU it uses while there are none.
+ */
+public interface WaitStrategy
+{
+	/**
+	 * Waits until the event at the sequence has been published or the bus is closed.
+	 * 
+	 * @param sequence  - Sequence of the event to wait for.
+	 * @param published - Number of events published.
+	 * @param closed    - Set when the bus is closed.
+	 * 
+	 * @return Number of events published. Only at or before the sequence if the bus was closed.
+	 */
+	public long waitFor(long sequence, AtomicLong published, AtomicBoolean closed) throws InterruptedException;
+	
+	/**
+	 * Wakes any waiting consumers. Called after events are published and when the bus is closed.
+	 */
+	public void signalAll();
+}
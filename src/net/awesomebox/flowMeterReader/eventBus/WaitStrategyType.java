@@ -0,0 +1,76 @@
+package net.awesomebox.flowMeterReader.eventBus;
+
+/**
+ * The available ways for consumers to wait for events.
+ */
+public enum WaitStrategyType
+{
+	/**
+	 * @see BusySpinWaitStrategy
+	 */
+	BUSY_SPIN
+	{
+		@Override
+		public WaitStrategy create()
+		{
+			return new BusySpinWaitStrategy();
+		}
+	},
+	
+	/**
+	 * @see YieldingWaitStrategy
+	 */
+	YIELDING
+	{
+		@Override
+		public WaitStrategy create()
+		{
+			return new YieldingWaitStrategy();
+		}
+	},
+	
+	/**
+	 * @see SleepingWaitStrategy
+	 */
+	SLEEPING
+	{
+		@Override
+		public WaitStrategy create()
+		{
+			return new SleepingWaitStrategy();
+		}
+	},
+	
+	/**
+	 * @see BlockingWaitStrategy
+	 */
+	BLOCKING
+	{
+		@Override
+		public WaitStrategy create()
+		{
+			return new BlockingWaitStrategy();
+		}
+	};
+	
+	
+	/**
+	 * @return A new wait strategy of this type with the default settings.
+	 */
+	public abstract WaitStrategy create();
+	
+	/**
+	 * Gets a type by name. Names are case insensitive and may use dashes instead of underscores
+	 * (EX: <code>busy-spin</code>).
+	 * 
+	 * @param name - Name of the type.
+	 * 
+	 * @return The type.
+	 * 
+	 * @throws IllegalArgumentException If there is no type with the given name.
+	 */
+	public static WaitStrategyType fromName(String name)
+	{
+		return valueOf(name.trim().replace('-', '_').toUpperCase());
+	}
+}
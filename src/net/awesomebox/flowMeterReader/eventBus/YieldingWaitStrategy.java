@@ -0,0 +1,38 @@
+package net.awesomebox.flowMeterReader.eventBus;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spins for a little while and then yields the thread between checks. Sees events almost as soon
+ * as spinning but lets other threads run while there are none.
+ */
+public class YieldingWaitStrategy implements WaitStrategy
+{
+	// number of checks before yielding
+	private static final int NUM_SPINS = 100;
+	
+	
+	@Override
+	public long waitFor(long sequence, AtomicLong published, AtomicBoolean closed)
+	{
+		int numSpinsLeft = NUM_SPINS;
+		
+		long numPublished;
+		while ((numPublished = published.get()) <= sequence && !closed.get())
+		{
+			if (numSpinsLeft > 0)
+				--numSpinsLeft;
+			else
+				Thread.yield();
+		}
+		
+		return numPublished;
+	}
+	
+	@Override
+	public void signalAll()
+	{
+		// nothing waits
+	}
+}
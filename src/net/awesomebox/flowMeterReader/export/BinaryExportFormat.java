@@ -0,0 +1,149 @@
+package net.awesomebox.flowMeterReader.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Fixed-width binary records, so record N is always at <code>HEADER_NUM_BYTES + N * RECORD_NUM_BYTES</code>.<br />
+ * <br />
+ * File layout (all values big-endian):
+ * <pre>
+ * int   magic
+ * short version
+ * short record size
+ * 
+ * repeated for each event:
+ * long  time in milliseconds since the epoch
+ * long  sample index
+ * int   amplitude delta
+ * int   duration in samples
+ * byte  type
+ * byte  flow meter ID
+ * </pre>
+ * Version 1 stored the duration as a short, cut off at {@link Short#MAX_VALUE}.
+ */
+public class BinaryExportFormat implements ExportFormat
+{
+	public static final int   MAGIC   = 0x464D5245; // "FMRE"
+	public static final short VERSION = 2;
+	
+	public static final int HEADER_NUM_BYTES = 4 + 2 + 2;
+	public static final int RECORD_NUM_BYTES = 8 + 8 + 4 + 4 + 1 + 1;
+	
+	// offsets of the fields in a record
+	static final int TIME_OFFSET          = 0;
+	static final int SAMPLE_INDEX_OFFSET  = 8;
+	static final int AMPLITUDE_OFFSET     = 16;
+	static final int DURATION_OFFSET      = 20;
+	static final int TYPE_OFFSET          = 24;
+	static final int FLOW_METER_ID_OFFSET = 25;
+	
+	// reused for every record
+	private final byte[] record = new byte[RECORD_NUM_BYTES];
+	
+	
+	@Override
+	public String getFileExtension()
+	{
+		return ".bin";
+	}
+	
+	@Override
+	public void writeHeader(OutputStream out) throws IOException
+	{
+		byte[] header = new byte[HEADER_NUM_BYTES];
+		putInt  (header, 0, MAGIC);
+		putShort(header, 4, VERSION);
+		putShort(header, 6, RECORD_NUM_BYTES);
+		out.write(header);
+	}
+	
+	@Override
+	public void writeEvent(ExportEvent event, OutputStream out) throws IOException
+	{
+		putLong (record, TIME_OFFSET,         event.timeMillis);
+		putLong (record, SAMPLE_INDEX_OFFSET, event.sampleIndex);
+		putInt  (record, AMPLITUDE_OFFSET,    event.amplitudeDelta);
+		putInt  (record, DURATION_OFFSET,     event.durationNumSamples);
+		record[TYPE_OFFSET]          = event.type;
+		record[FLOW_METER_ID_OFFSET] = (byte)event.flowMeterID;
+		
+		out.write(record);
+	}
+	
+	/**
+	 * Gets an existing file ready to be appended to. A record cut off by a crash is cut off the end
+	 * so the records after it line up again, and a header cut off is removed so it is written again.
+	 * 
+	 * @throws IOException If the file is not a binary export file of this version.
+	 */
+	public static void prepareForAppend(File file) throws IOException
+	{
+		if (!file.exists())
+			return;
+		
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{
+			long length = raf.length();
+			if (length < HEADER_NUM_BYTES)
+			{
+				raf.setLength(0);
+				return;
+			}
+			
+			int   magic          = raf.readInt();
+			short version        = raf.readShort();
+			short recordNumBytes = raf.readShort();
+			
+			if (magic != MAGIC || version != VERSION || recordNumBytes != RECORD_NUM_BYTES)
+				throw new IOException("Not a version " + VERSION + " binary export file: " + file);
+			
+			long wholeLength = HEADER_NUM_BYTES + getNumRecords(length) * RECORD_NUM_BYTES;
+			if (wholeLength < length)
+				raf.setLength(wholeLength);
+		}
+	}
+	
+	/**
+	 * @return The number of whole records in a file of the given length.
+	 */
+	public static long getNumRecords(long fileLength)
+	{
+		return Math.max(0, (fileLength - HEADER_NUM_BYTES) / RECORD_NUM_BYTES);
+	}
+	
+	static long getLong(byte[] buffer, int offset)
+	{
+		return ((long)getInt(buffer, offset) << 32) | (getInt(buffer, offset + 4) & 0xFFFFFFFFl);
+	}
+	
+	static int getInt(byte[] buffer, int offset)
+	{
+		return ((buffer[offset]     & 0xFF) << 24)
+			| ((buffer[offset + 1] & 0xFF) << 16)
+			| ((buffer[offset + 2] & 0xFF) << 8)
+			|  (buffer[offset + 3] & 0xFF);
+	}
+	
+	private static void putLong(byte[] buffer, int offset, long value)
+	{
+		putInt(buffer, offset,     (int)(value >>> 32));
+		putInt(buffer, offset + 4, (int)value);
+	}
+	
+	private static void putInt(byte[] buffer, int offset, int value)
+	{
+		buffer[offset]     = (byte)(value >>> 24);
+		buffer[offset + 1] = (byte)(value >>> 16);
+		buffer[offset + 2] = (byte)(value >>> 8);
+		buffer[offset + 3] = (byte)value;
+	}
+	
+	private static void putShort(byte[] buffer, int offset, int value)
+	{
+		buffer[offset]     = (byte)(value >>> 8);
+		buffer[offset + 1] = (byte)value;
+	}
+}
@@ -0,0 +1,58 @@
+package net.awesomebox.flowMeterReader.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * One comma separated line per event with a header line at the start of the file.
+ */
+public class CsvExportFormat implements ExportFormat
+{
+	private static final String HEADER = "time_ms,type,flow_meter_id,sample_index,duration_samples,amplitude_delta\n";
+	
+	// reused for every line
+	private final StringBuilder line = new StringBuilder(64);
+	private byte[] lineBytes = new byte[64];
+	
+	
+	@Override
+	public String getFileExtension()
+	{
+		return ".csv";
+	}
+	
+	@Override
+	public void writeHeader(OutputStream out) throws IOException
+	{
+		out.write(HEADER.getBytes("US-ASCII"));
+	}
+	
+	@Override
+	public void writeEvent(ExportEvent event, OutputStream out) throws IOException
+	{
+		line.setLength(0);
+		line.append(event.timeMillis).append(',')
+			.append(ExportEvent.getTypeName(event.type)).append(',')
+			.append(event.flowMeterID).append(',')
+			.append(event.sampleIndex).append(',')
+			.append(event.durationNumSamples).append(',')
+			.append(event.amplitudeDelta).append('\n');
+		
+		writeASCII(line, out);
+	}
+	
+	/**
+	 * Writes the characters as ASCII without creating a string.
+	 */
+	private void writeASCII(CharSequence chars, OutputStream out) throws IOException
+	{
+		int length = chars.length();
+		if (lineBytes.length < length)
+			lineBytes = new byte[length * 2];
+		
+		for (int i = 0; i < length; ++i)
+			lineBytes[i] = (byte)chars.charAt(i);
+		
+		out.write(lineBytes, 0, length);
+	}
+}
@@ -0,0 +1,53 @@
+package net.awesomebox.flowMeterReader.export;
+
+/**
+ * An event to export.<br />
+ * <br />
+ * Events are copied in and out of an {@link ExportEventQueue} field by field, so one instance is
+ * reused for every event a sink writes. Don't hold on to it.
+ */
+public final class ExportEvent
+{
+	// event types
+	public static final byte TYPE_PULSE             = 1;
+	public static final byte TYPE_CONTINUOUS_FLOW   = 2;
+	public static final byte TYPE_QUIET_WINDOW_FLOW = 3;
+	public static final byte TYPE_GAP               = 4;
+	
+	
+	public byte type;
+	
+	// wall-clock time of the event in milliseconds since the epoch. When a pulse or gap started or
+	// when an alert was raised
+	public long timeMillis;
+	
+	// flow meter the event is for. 0 for gaps
+	public int flowMeterID;
+	
+	// index of the sample the event starts at in the stream. For alerts, where the flow started. For
+	// gaps, the first missing sample
+	public long sampleIndex;
+	
+	// number of samples the event lasts for. For alerts, how long the flow had lasted when the alert
+	// was raised. For gaps, the number of missing samples
+	public int durationNumSamples;
+	
+	// change in amplitude over the event. 0 for alerts
+	public int amplitudeDelta;
+	
+	
+	/**
+	 * @return Name of the event type as used in the text formats.
+	 */
+	public static String getTypeName(byte type)
+	{
+		switch (type)
+		{
+			case TYPE_PULSE:             return "pulse";
+			case TYPE_CONTINUOUS_FLOW:   return "continuous_flow";
+			case TYPE_QUIET_WINDOW_FLOW: return "quiet_window_flow";
+			case TYPE_GAP:               return "gap";
+			default:                     return "unknown";
+		}
+	}
+}
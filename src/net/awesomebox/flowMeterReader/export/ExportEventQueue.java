@@ -0,0 +1,145 @@
+package net.awesomebox.flowMeterReader.export;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue of {@link ExportEvent}s for one producer thread and one consumer thread.<br />
+ * <br />
+ * Events are stored field by field in parallel primitive arrays, so offering and polling never
+ * allocate. The producer only writes the tail and the consumer only writes the head, so neither
+ * ever waits on the other. When the queue is full, new events are dropped and counted.
+ */
+public class ExportEventQueue
+{
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final int capacity;
+	private final int mask;
+	
+	private final byte[] types;
+	private final long[] timesMillis;
+	private final byte[] flowMeterIDs;
+	private final long[] sampleIndexes;
+	private final int [] durationsNumSamples;
+	private final int [] amplitudeDeltas;
+	
+	// index of the next event to poll and the next event to offer. Only ever increase
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	
+	private final AtomicLong numDropped = new AtomicLong();
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param capacity - Max number of events in the queue. Rounded up to a power of 2.
+	 */
+	public ExportEventQueue(int capacity)
+	{
+		this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask     = this.capacity - 1;
+		
+		types               = new byte[this.capacity];
+		timesMillis         = new long[this.capacity];
+		flowMeterIDs        = new byte[this.capacity];
+		sampleIndexes       = new long[this.capacity];
+		durationsNumSamples = new int [this.capacity];
+		amplitudeDeltas     = new int [this.capacity];
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public int getCapacity()
+	{
+		return capacity;
+	}
+	
+	/**
+	 * @return Number of events waiting. Safe to call from any thread.
+	 */
+	public int size()
+	{
+		return (int)(tail.get() - head.get());
+	}
+	
+	/**
+	 * @return Number of events dropped because the queue was full. Safe to call from any thread.
+	 */
+	public long getNumDropped()
+	{
+		return numDropped.get();
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Adds an event. Only call from the producer thread.
+	 * 
+	 * @return <code>false</code> if the queue was full and the event was dropped.
+	 */
+	public boolean offer(byte type, long timeMillis, int flowMeterID, long sampleIndex, int durationNumSamples, int amplitudeDelta)
+	{
+		long t = tail.get();
+		if (t - head.get() >= capacity)
+		{
+			numDropped.incrementAndGet();
+			return false;
+		}
+		
+		int i = (int)(t & mask);
+		types              [i] = type;
+		timesMillis        [i] = timeMillis;
+		flowMeterIDs       [i] = (byte)flowMeterID;
+		sampleIndexes      [i] = sampleIndex;
+		durationsNumSamples[i] = durationNumSamples;
+		amplitudeDeltas    [i] = amplitudeDelta;
+		
+		// publish the event. The ordered write makes the fields visible before the new tail
+		tail.lazySet(t + 1);
+		return true;
+	}
+	
+	/**
+	 * Removes the oldest event. Only call from the consumer thread.
+	 * 
+	 * @param event - Event to copy the oldest event into.
+	 * 
+	 * @return <code>false</code> if the queue was empty.
+	 */
+	public boolean poll(ExportEvent event)
+	{
+		long h = head.get();
+		if (h == tail.get())
+			return false;
+		
+		int i = (int)(h & mask);
+		event.type               = types[i];
+		event.timeMillis         = timesMillis[i];
+		event.flowMeterID        = flowMeterIDs[i];
+		event.sampleIndex        = sampleIndexes[i];
+		event.durationNumSamples = durationsNumSamples[i];
+		event.amplitudeDelta     = amplitudeDeltas[i];
+		
+		// free the slot only after it has been read
+		head.lazySet(h + 1);
+		return true;
+	}
+}
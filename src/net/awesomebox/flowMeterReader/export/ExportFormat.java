@@ -0,0 +1,27 @@
+package net.awesomebox.flowMeterReader.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes {@link ExportEvent}s to a file in a particular format.<br />
+ * <br />
+ * Formats are only ever used from a sink's writer thread and may keep scratch buffers between calls.
+ */
+public interface ExportFormat
+{
+	/**
+	 * @return The extension for files in this format, including the dot.
+	 */
+	public String getFileExtension();
+	
+	/**
+	 * Writes whatever goes at the start of a new file.
+	 */
+	public void writeHeader(OutputStream out) throws IOException;
+	
+	/**
+	 * Writes an event.
+	 */
+	public void writeEvent(ExportEvent event, OutputStream out) throws IOException;
+}
@@ -0,0 +1,64 @@
+package net.awesomebox.flowMeterReader.export;
+
+/**
+ * The available export formats.
+ */
+public enum ExportFormatType
+{
+	/**
+	 * @see CsvExportFormat
+	 */
+	CSV
+	{
+		@Override
+		public ExportFormat create()
+		{
+			return new CsvExportFormat();
+		}
+	},
+	
+	/**
+	 * @see BinaryExportFormat
+	 */
+	BINARY
+	{
+		@Override
+		public ExportFormat create()
+		{
+			return new BinaryExportFormat();
+		}
+	},
+	
+	/**
+	 * @see LineProtocolExportFormat
+	 */
+	LINE_PROTOCOL
+	{
+		@Override
+		public ExportFormat create()
+		{
+			return new LineProtocolExportFormat();
+		}
+	};
+	
+	
+	/**
+	 * @return A new format of this type.
+	 */
+	public abstract ExportFormat create();
+	
+	/**
+	 * Gets a type by name. Names are case insensitive and may use dashes instead of underscores
+	 * (EX: <code>line-protocol</code>).
+	 * 
+	 * @param name - Name of the type.
+	 * 
+	 * @return The type.
+	 * 
+	 * @throws IllegalArgumentException If there is no type with the given name.
+	 */
+	public static ExportFormatType fromName(String name)
+	{
+		return valueOf(name.trim().replace('-', '_').toUpperCase());
+	}
+}
@@ -0,0 +1,311 @@
+package net.awesomebox.flowMeterReader.export;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes exported events to a file on a background thread.<br />
+ * <br />
+ * Events are handed over through an {@link ExportEventQueue}, so offering an event never blocks or
+ * touches the disk. The writer thread commits in groups: the file is flushed (and optionally synced)
+ * once every N events or every T milliseconds, whichever comes first, instead of once per event.<br />
+ * <br />
+ * Files are appended to, so a restart continues the same file. The format's header is only written
+ * to new files. A binary record cut off by a crash is trimmed off before appending.<br />
+ * <br />
+ * Binary files can have a {@link PulseCountIndex} kept beside them. It is added to as events are
+ * written and flushed with each commit.
+ */
+public class FileExportSink implements Closeable
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final int  DEFAULT_QUEUE_CAPACITY    = 8192;
+	public static final int  DEFAULT_FLUSH_NUM_EVENTS  = 256;
+	public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+	
+	// how long the writer sleeps when there is nothing to write
+	private static final long IDLE_PARK_NS = 1000000;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final File file;
+	private final ExportFormat format;
+	private final ExportEventQueue queue;
+	
+	// null if the file is not indexed
+	private final PulseCountIndex countIndex;
+	
+	private final FileOutputStream fileOut;
+	private final BufferedOutputStream out;
+	
+	// group commit settings
+	private final int     flushNumEvents;
+	private final long    flushIntervalNS;
+	private final boolean sync;
+	
+	private final Thread thread;
+	private volatile boolean closed = false;
+	
+	// the error that stopped the writer, if any
+	private volatile IOException error = null;
+	
+	private final AtomicLong numWritten = new AtomicLong();
+	private final AtomicLong numCommits = new AtomicLong();
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * Opens a file with the default queue capacity and group commit settings. Binary files are indexed.
+	 */
+	public FileExportSink(File file, ExportFormat format) throws IOException
+	{
+		this(file, format, DEFAULT_QUEUE_CAPACITY, DEFAULT_FLUSH_NUM_EVENTS, DEFAULT_FLUSH_INTERVAL_MS, false, format instanceof BinaryExportFormat);
+	}
+	
+	/**
+	 * @param file            - File to append to.
+	 * @param format          - Format to write events in.
+	 * @param queueCapacity   - Max number of events waiting to be written. More are dropped.
+	 * @param flushNumEvents  - Commit after this many events.
+	 * @param flushIntervalMS - Commit at least this often in milliseconds while there are uncommitted events.
+	 * @param sync            - If each commit should also wait for the data to reach the disk.
+	 * @param countIndex      - If a {@link PulseCountIndex} should be kept beside the file. Only for binary files.
+	 */
+	public FileExportSink(File file, ExportFormat format, int queueCapacity, int flushNumEvents, long flushIntervalMS, boolean sync, boolean countIndex) throws IOException
+	{
+		if (countIndex && !(format instanceof BinaryExportFormat))
+			throw new IllegalArgumentException("Only binary files can be indexed");
+		
+		this.file            = file;
+		this.format          = format;
+		this.queue           = new ExportEventQueue(queueCapacity);
+		this.flushNumEvents  = Math.max(1, flushNumEvents);
+		this.flushIntervalNS = flushIntervalMS * 1000000;
+		this.sync            = sync;
+		
+		if (format instanceof BinaryExportFormat)
+			BinaryExportFormat.prepareForAppend(file);
+		
+		boolean isNewFile = !file.exists() || file.length() == 0;
+		
+		fileOut = new FileOutputStream(file, true);
+		out = new BufferedOutputStream(fileOut, 65536);
+		
+		if (isNewFile)
+		{
+			format.writeHeader(out);
+			out.flush();
+		}
+		
+		// brings itself up to date with what is already in the file
+		this.countIndex = countIndex? new PulseCountIndex(file, false) : null;
+		
+		thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writeLoop();
+			}
+		}, "FileExportSink " + file.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public File getFile()
+	{
+		return file;
+	}
+	
+	/**
+	 * @return The file's index or <code>null</code> if it is not indexed. Counts only include committed events.
+	 */
+	public PulseCountIndex getCountIndex()
+	{
+		return countIndex;
+	}
+	
+	/**
+	 * @return Number of events waiting to be written.
+	 */
+	public int getQueueDepth()
+	{
+		return queue.size();
+	}
+	
+	public int getQueueCapacity()
+	{
+		return queue.getCapacity();
+	}
+	
+	/**
+	 * @return Number of events dropped because the queue was full.
+	 */
+	public long getNumDropped()
+	{
+		return queue.getNumDropped();
+	}
+	
+	/**
+	 * @return Number of events written and committed.
+	 */
+	public long getNumWritten()
+	{
+		return numWritten.get();
+	}
+	
+	public long getNumCommits()
+	{
+		return numCommits.get();
+	}
+	
+	/**
+	 * @return The error that stopped the writer or <code>null</code> if it is fine.
+	 */
+	public IOException getError()
+	{
+		return error;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Queues an event to be written. Never blocks. Only call from one thread.
+	 * 
+	 * @return <code>false</code> if the event was dropped.
+	 */
+	public boolean offer(byte type, long timeMillis, int flowMeterID, long sampleIndex, int durationNumSamples, int amplitudeDelta)
+	{
+		return queue.offer(type, timeMillis, flowMeterID, sampleIndex, durationNumSamples, amplitudeDelta);
+	}
+	
+	/**
+	 * Writes everything still queued and closes the file.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		closed = true;
+		LockSupport.unpark(thread);
+		
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		
+		out.close();
+		
+		if (countIndex != null)
+			countIndex.close();
+		
+		if (error != null)
+			throw error;
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	private void writeLoop()
+	{
+		ExportEvent event = new ExportEvent();
+		int numUncommitted = 0;
+		long lastCommitTimeNS = System.nanoTime();
+		
+		try
+		{
+			while (true)
+			{
+				// check before draining so everything offered before close is written
+				boolean closing = closed;
+				
+				boolean wroteAny = false;
+				while (queue.poll(event))
+				{
+					format.writeEvent(event, out);
+					wroteAny = true;
+					
+					if (countIndex != null)
+						countIndex.add(event.timeMillis, event.type, event.flowMeterID);
+					
+					if (++numUncommitted >= flushNumEvents)
+					{
+						commit(numUncommitted);
+						numUncommitted = 0;
+						lastCommitTimeNS = System.nanoTime();
+					}
+				}
+				
+				if (numUncommitted > 0 && (closing || System.nanoTime() - lastCommitTimeNS >= flushIntervalNS))
+				{
+					commit(numUncommitted);
+					numUncommitted = 0;
+					lastCommitTimeNS = System.nanoTime();
+				}
+				
+				if (closing)
+					break;
+				
+				if (!wroteAny)
+					LockSupport.parkNanos(IDLE_PARK_NS);
+			}
+		}
+		catch (IOException e)
+		{
+			error = e;
+		}
+	}
+	
+	private void commit(int numEvents) throws IOException
+	{
+		out.flush();
+		
+		if (sync)
+			fileOut.getChannel().force(false);
+		
+		// only after the events it covers are in the file
+		if (countIndex != null)
+			countIndex.flush();
+		
+		numWritten.addAndGet(numEvents);
+		numCommits.incrementAndGet();
+	}
+}
@@ -0,0 +1,54 @@
+package net.awesomebox.flowMeterReader.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * InfluxDB line protocol, ready to be loaded with <code>influx write</code>. EX:
+ * <pre>
+ * flow_meter_pulse,flow_meter=1 sample_index=12345i,duration_samples=2i,amplitude_delta=-9021i 1500000000000000000
+ * </pre>
+ * Timestamps are in nanoseconds.
+ */
+public class LineProtocolExportFormat implements ExportFormat
+{
+	private static final String MEASUREMENT_PREFIX = "flow_meter_";
+	
+	// reused for every line
+	private final StringBuilder line = new StringBuilder(128);
+	private byte[] lineBytes = new byte[128];
+	
+	
+	@Override
+	public String getFileExtension()
+	{
+		return ".lp";
+	}
+	
+	@Override
+	public void writeHeader(OutputStream out) throws IOException
+	{
+		// line protocol has no header
+	}
+	
+	@Override
+	public void writeEvent(ExportEvent event, OutputStream out) throws IOException
+	{
+		line.setLength(0);
+		line.append(MEASUREMENT_PREFIX).append(ExportEvent.getTypeName(event.type))
+			.append(",flow_meter=").append(event.flowMeterID)
+			.append(" sample_index=").append(event.sampleIndex).append('i')
+			.append(",duration_samples=").append(event.durationNumSamples).append('i')
+			.append(",amplitude_delta=").append(event.amplitudeDelta).append('i')
+			.append(' ').append(event.timeMillis).append("000000\n");
+		
+		int length = line.length();
+		if (lineBytes.length < length)
+			lineBytes = new byte[length * 2];
+		
+		for (int i = 0; i < length; ++i)
+			lineBytes[i] = (byte)line.charAt(i);
+		
+		out.write(lineBytes, 0, length);
+	}
+}
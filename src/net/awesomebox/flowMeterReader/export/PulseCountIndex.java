@@ -0,0 +1,488 @@
+package net.awesomebox.flowMeterReader.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Counts the pulses a flow meter had between two times in a {@link BinaryExportFormat} file
+ * without reading every record.<br />
+ * <br />
+ * Records are grouped into fixed-size time buckets. The index, kept in a file beside the data,
+ * has an entry for each bucket with at least one record: the bucket, the index of its first
+ * record and the number of pulses each flow meter had before it. The count before any time is
+ * then the entry for its bucket plus a scan of the records in that one bucket. Entries are found
+ * with a binary search, so a count takes O(log n) small reads plus one bucket's worth of records.<br />
+ * <br />
+ * The index is added to as records are written and is brought up to date with the data file when
+ * opened for writing, so it survives restarts and crashes. Records whose time goes backwards are
+ * counted in the newest bucket.<br />
+ * <br />
+ * File layout (all values big-endian):
+ * <pre>
+ * int   magic
+ * short version
+ * short number of flow meters
+ * int   bucket size in milliseconds
+ * 
+ * repeated for each bucket with at least one record, in order:
+ * long   bucket index (time / bucket size)
+ * long   index of the bucket's first record in the data file
+ * long[] number of pulses each flow meter had before the bucket
+ * </pre>
+ */
+public class PulseCountIndex implements Closeable
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final int   MAGIC   = 0x464D5258; // "FMRX"
+	public static final short VERSION = 1;
+	
+	public static final String FILE_EXTENSION = ".idx";
+	
+	public static final int DEFAULT_BUCKET_MS = 60 * 1000;
+	
+	public static final int NUM_FLOW_METERS = 2;
+	
+	private static final int HEADER_NUM_BYTES = 4 + 2 + 2 + 4;
+	private static final int ENTRY_NUM_BYTES  = 8 + 8 + 8 * NUM_FLOW_METERS;
+	
+	// number of records read at a time when scanning
+	private static final int SCAN_NUM_RECORDS = 1024;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final File dataFile;
+	private final File indexFile;
+	private final boolean readOnly;
+	
+	private final RandomAccessFile dataRaf;
+	private final RandomAccessFile indexRaf;
+	
+	private int bucketMS;
+	
+	// state after the last record added
+	private long lastBucketIndex = Long.MIN_VALUE;
+	private long numRecords      = 0;
+	private final long[] numPulses = new long[NUM_FLOW_METERS];
+	
+	// entries not yet written to the file
+	private final ByteArrayOutputStream pendingEntryBytes = new ByteArrayOutputStream();
+	private final DataOutputStream      pendingEntries    = new DataOutputStream(pendingEntryBytes);
+	
+	// reused for reads
+	private final byte[] entryBuffer = new byte[ENTRY_NUM_BYTES];
+	private final byte[] scanBuffer  = new byte[SCAN_NUM_RECORDS * BinaryExportFormat.RECORD_NUM_BYTES];
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * Opens the index of a data file.<br />
+	 * <br />
+	 * When opened for writing, the index is created if it does not exist, rebuilt if it is damaged,
+	 * and brought up to date with the data file. When opened read-only, the index must exist. Counts
+	 * are still exact if it is behind the data file, just slower.
+	 * 
+	 * @param dataFile - File written in the {@link BinaryExportFormat}.
+	 * @param readOnly - If the index should only be read. Use when another process is writing it.
+	 */
+	public PulseCountIndex(File dataFile, boolean readOnly) throws IOException
+	{
+		this.dataFile  = dataFile;
+		this.indexFile = getIndexFile(dataFile);
+		this.readOnly  = readOnly;
+		
+		if (readOnly && !indexFile.exists())
+			throw new FileNotFoundException("No index for " + dataFile + ": " + indexFile);
+		
+		dataRaf  = new RandomAccessFile(dataFile,  "r");
+		indexRaf = new RandomAccessFile(indexFile, readOnly? "r" : "rw");
+		
+		try
+		{
+			checkDataHeader();
+			
+			if (readOnly)
+			{
+				if (!readHeader())
+					throw new IOException("Damaged index: " + indexFile);
+			}
+			else
+			{
+				open();
+			}
+		}
+		catch (IOException e)
+		{
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return The file the index of a data file is kept in.
+	 */
+	public static File getIndexFile(File dataFile)
+	{
+		return new File(dataFile.getPath() + FILE_EXTENSION);
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public File getDataFile()
+	{
+		return dataFile;
+	}
+	
+	public int getBucketMS()
+	{
+		return bucketMS;
+	}
+	
+	/**
+	 * @return Number of buckets in the index file.
+	 */
+	public synchronized long getNumEntries() throws IOException
+	{
+		return Math.max(0, (indexRaf.length() - HEADER_NUM_BYTES) / ENTRY_NUM_BYTES);
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Adds the next record written to the data file. Entries are kept in memory until
+	 * {@link #flush}.
+	 */
+	public synchronized void add(long timeMillis, byte type, int flowMeterID) throws IOException
+	{
+		if (readOnly)
+			throw new IllegalStateException("Index is read-only");
+		
+		// records whose time goes backwards go in the newest bucket
+		long bucketIndex = Math.max(getBucketIndex(timeMillis), lastBucketIndex);
+		
+		if (bucketIndex != lastBucketIndex)
+		{
+			pendingEntries.writeLong(bucketIndex);
+			pendingEntries.writeLong(numRecords);
+			for (int i = 0; i < NUM_FLOW_METERS; ++i)
+				pendingEntries.writeLong(numPulses[i]);
+			
+			lastBucketIndex = bucketIndex;
+		}
+		
+		if (type == ExportEvent.TYPE_PULSE && flowMeterID >= 1 && flowMeterID <= NUM_FLOW_METERS)
+			++numPulses[flowMeterID - 1];
+		
+		++numRecords;
+	}
+	
+	/**
+	 * Writes the entries added so far. Only call after the records they cover have been flushed to
+	 * the data file, so the index never points past the data.
+	 */
+	public synchronized void flush() throws IOException
+	{
+		if (pendingEntryBytes.size() == 0)
+			return;
+		
+		indexRaf.seek(HEADER_NUM_BYTES + getNumEntries() * ENTRY_NUM_BYTES);
+		indexRaf.write(pendingEntryBytes.toByteArray());
+		pendingEntryBytes.reset();
+	}
+	
+	/**
+	 * @param flowMeterID - 1 or 2.
+	 * @param startMillis - Start of the range in milliseconds since the epoch. Included.
+	 * @param endMillis   - End of the range in milliseconds since the epoch. Not included.
+	 * 
+	 * @return Number of pulses the flow meter had in the range.
+	 */
+	public synchronized long countPulses(int flowMeterID, long startMillis, long endMillis) throws IOException
+	{
+		if (endMillis <= startMillis)
+			return 0;
+		
+		return countPulsesBefore(flowMeterID, endMillis) - countPulsesBefore(flowMeterID, startMillis);
+	}
+	
+	/**
+	 * @param flowMeterID - 1 or 2.
+	 * @param timeMillis  - Time in milliseconds since the epoch.
+	 * 
+	 * @return Number of pulses the flow meter had before the given time.
+	 */
+	public synchronized long countPulsesBefore(int flowMeterID, long timeMillis) throws IOException
+	{
+		if (flowMeterID < 1 || flowMeterID > NUM_FLOW_METERS)
+			throw new IllegalArgumentException("Invalid flow meter ID: " + flowMeterID);
+		
+		long numDataRecords = BinaryExportFormat.getNumRecords(dataRaf.length());
+		long numEntries     = getNumEntries();
+		
+		long entryIndex = findLastEntryAtOrBefore(getBucketIndex(timeMillis), numEntries);
+		if (entryIndex == -1)
+		{
+			// an empty index may be behind the data
+			return numEntries == 0? scanPulses(flowMeterID, 0, numDataRecords, timeMillis) : 0;
+		}
+		
+		readEntry(entryIndex);
+		long entryBucketIndex = BinaryExportFormat.getLong(entryBuffer, 0);
+		long entryRecordIndex = BinaryExportFormat.getLong(entryBuffer, 8);
+		long entryNumPulses   = BinaryExportFormat.getLong(entryBuffer, 16 + (flowMeterID - 1) * 8);
+		
+		// the last entry's bucket runs to the end of the data
+		long endRecordIndex = numDataRecords;
+		if (entryIndex + 1 < numEntries)
+		{
+			// the time is past the end of the entry's bucket, so the next entry has the count
+			if (entryBucketIndex < getBucketIndex(timeMillis))
+			{
+				readEntry(entryIndex + 1);
+				return BinaryExportFormat.getLong(entryBuffer, 16 + (flowMeterID - 1) * 8);
+			}
+			
+			readEntry(entryIndex + 1);
+			endRecordIndex = Math.min(BinaryExportFormat.getLong(entryBuffer, 8), numDataRecords);
+		}
+		
+		return entryNumPulses + scanPulses(flowMeterID, entryRecordIndex, endRecordIndex, timeMillis);
+	}
+	
+	/**
+	 * Writes any pending entries and closes the files.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			if (!readOnly)
+				flush();
+		}
+		finally
+		{
+			dataRaf.close();
+			indexRaf.close();
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	private void checkDataHeader() throws IOException
+	{
+		// a new data file may not have its header yet
+		if (dataRaf.length() < BinaryExportFormat.HEADER_NUM_BYTES)
+			return;
+		
+		dataRaf.seek(0);
+		int   magic          = dataRaf.readInt();
+		short version        = dataRaf.readShort();
+		short recordNumBytes = dataRaf.readShort();
+		
+		if (magic != BinaryExportFormat.MAGIC || version != BinaryExportFormat.VERSION || recordNumBytes != BinaryExportFormat.RECORD_NUM_BYTES)
+			throw new IOException("Not a binary export file: " + dataFile);
+	}
+	
+	/**
+	 * Reads the header of the index file.
+	 * 
+	 * @return <code>false</code> if the index file is empty or not an index.
+	 */
+	private boolean readHeader() throws IOException
+	{
+		if (indexRaf.length() < HEADER_NUM_BYTES)
+			return false;
+		
+		indexRaf.seek(0);
+		int   magic          = indexRaf.readInt();
+		short version        = indexRaf.readShort();
+		short numFlowMeters  = indexRaf.readShort();
+		int   headerBucketMS = indexRaf.readInt();
+		
+		if (magic != MAGIC || version != VERSION || numFlowMeters != NUM_FLOW_METERS || headerBucketMS <= 0)
+			return false;
+		
+		bucketMS = headerBucketMS;
+		return true;
+	}
+	
+	/**
+	 * Gets the index ready for writing, rebuilding it if needed, and adds any records in the data
+	 * file it does not cover yet.
+	 */
+	private void open() throws IOException
+	{
+		long numDataRecords = BinaryExportFormat.getNumRecords(dataRaf.length());
+		long startRecordIndex = 0;
+		
+		boolean valid = readHeader();
+		if (valid)
+		{
+			// drop a partly written entry
+			long numEntries = getNumEntries();
+			indexRaf.setLength(HEADER_NUM_BYTES + numEntries * ENTRY_NUM_BYTES);
+			
+			if (numEntries > 0)
+			{
+				// pick up from the start of the last bucket
+				readEntry(numEntries - 1);
+				lastBucketIndex  = BinaryExportFormat.getLong(entryBuffer, 0);
+				startRecordIndex = BinaryExportFormat.getLong(entryBuffer, 8);
+				for (int i = 0; i < NUM_FLOW_METERS; ++i)
+					numPulses[i] = BinaryExportFormat.getLong(entryBuffer, 16 + i * 8);
+				
+				// the data file was replaced or cut short
+				if (startRecordIndex > numDataRecords)
+					valid = false;
+			}
+		}
+		
+		if (!valid)
+		{
+			bucketMS         = DEFAULT_BUCKET_MS;
+			lastBucketIndex  = Long.MIN_VALUE;
+			startRecordIndex = 0;
+			for (int i = 0; i < NUM_FLOW_METERS; ++i)
+				numPulses[i] = 0;
+			
+			indexRaf.setLength(0);
+			indexRaf.writeInt(MAGIC);
+			indexRaf.writeShort(VERSION);
+			indexRaf.writeShort(NUM_FLOW_METERS);
+			indexRaf.writeInt(bucketMS);
+		}
+		
+		numRecords = startRecordIndex;
+		
+		// catch up with the data file
+		for (long recordIndex = startRecordIndex; recordIndex < numDataRecords; recordIndex += SCAN_NUM_RECORDS)
+		{
+			int numScanRecords = readRecords(recordIndex, Math.min(SCAN_NUM_RECORDS, numDataRecords - recordIndex));
+			for (int i = 0; i < numScanRecords; ++i)
+			{
+				int offset = i * BinaryExportFormat.RECORD_NUM_BYTES;
+				add(BinaryExportFormat.getLong(scanBuffer, offset + BinaryExportFormat.TIME_OFFSET),
+					scanBuffer[offset + BinaryExportFormat.TYPE_OFFSET],
+					scanBuffer[offset + BinaryExportFormat.FLOW_METER_ID_OFFSET]);
+			}
+		}
+		
+		flush();
+	}
+	
+	/**
+	 * @return Index of the last entry whose bucket is at or before the given bucket, or -1 if there is none.
+	 */
+	private long findLastEntryAtOrBefore(long bucketIndex, long numEntries) throws IOException
+	{
+		long low  = 0;
+		long high = numEntries - 1;
+		long found = -1;
+		
+		while (low <= high)
+		{
+			long mid = (low + high) >>> 1;
+			readEntry(mid);
+			
+			if (BinaryExportFormat.getLong(entryBuffer, 0) <= bucketIndex)
+			{
+				found = mid;
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+		
+		return found;
+	}
+	
+	private void readEntry(long entryIndex) throws IOException
+	{
+		indexRaf.seek(HEADER_NUM_BYTES + entryIndex * ENTRY_NUM_BYTES);
+		indexRaf.readFully(entryBuffer);
+	}
+	
+	/**
+	 * Reads records from the data file into the scan buffer.
+	 * 
+	 * @return Number of records read.
+	 */
+	private int readRecords(long recordIndex, long maxNumRecords) throws IOException
+	{
+		int numRecordsToRead = (int)Math.min(maxNumRecords, SCAN_NUM_RECORDS);
+		
+		dataRaf.seek(BinaryExportFormat.HEADER_NUM_BYTES + recordIndex * BinaryExportFormat.RECORD_NUM_BYTES);
+		dataRaf.readFully(scanBuffer, 0, numRecordsToRead * BinaryExportFormat.RECORD_NUM_BYTES);
+		
+		return numRecordsToRead;
+	}
+	
+	/**
+	 * @return Number of pulses from the flow meter before the given time in a range of records.
+	 */
+	private long scanPulses(int flowMeterID, long startRecordIndex, long endRecordIndex, long timeMillis) throws IOException
+	{
+		long count = 0;
+		
+		for (long recordIndex = startRecordIndex; recordIndex < endRecordIndex; recordIndex += SCAN_NUM_RECORDS)
+		{
+			int numScanRecords = readRecords(recordIndex, endRecordIndex - recordIndex);
+			for (int i = 0; i < numScanRecords; ++i)
+			{
+				int offset = i * BinaryExportFormat.RECORD_NUM_BYTES;
+				if (scanBuffer[offset + BinaryExportFormat.TYPE_OFFSET]          == ExportEvent.TYPE_PULSE
+				 && scanBuffer[offset + BinaryExportFormat.FLOW_METER_ID_OFFSET] == flowMeterID
+				 && BinaryExportFormat.getLong(scanBuffer, offset + BinaryExportFormat.TIME_OFFSET) < timeMillis)
+					++count;
+			}
+		}
+		
+		return count;
+	}
+	
+	private long getBucketIndex(long timeMillis)
+	{
+		// round down for times before the epoch too
+		long bucketIndex = timeMillis / bucketMS;
+		if (timeMillis < 0 && timeMillis % bucketMS != 0)
+			--bucketIndex;
+		
+		return bucketIndex;
+	}
+}
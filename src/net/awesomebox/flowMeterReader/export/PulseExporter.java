@@ -0,0 +1,169 @@
+package net.awesomebox.flowMeterReader.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.awesomebox.flowMeterReader.FlowMeterReading;
+import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.SampleGap;
+import net.awesomebox.flowMeterReader.clock.SampleClock;
+import net.awesomebox.flowMeterReader.metrics.MetricSource;
+import net.awesomebox.flowMeterReader.metrics.MetricsWriter;
+
+/**
+ * Sends the pulses and gaps from each reading, and any alerts, to every sink.<br />
+ * <br />
+ * Each pulse is timestamped with the wall-clock time its start sample was recorded at, mapped from
+ * its sample index by the sample clock. Gaps are exported so the data's coverage can be checked.
+ */
+public class PulseExporter implements Closeable, MetricSource
+{
+	private final SampleClock sampleClock;
+	
+	private final ArrayList<FileExportSink> sinks = new ArrayList<FileExportSink>();
+	
+	
+	/**
+	 * @param sampleClock - Clock to timestamp pulses with.
+	 */
+	public PulseExporter(SampleClock sampleClock)
+	{
+		this.sampleClock = sampleClock;
+	}
+	
+	public void addSink(FileExportSink sink)
+	{
+		sinks.add(sink);
+	}
+	
+	public List<FileExportSink> getSinks()
+	{
+		return sinks;
+	}
+	
+	/**
+	 * @return Total number of events dropped by all sinks.
+	 */
+	public long getNumDropped()
+	{
+		long numDropped = 0;
+		for (int i = 0; i < sinks.size(); ++i)
+			numDropped += sinks.get(i).getNumDropped();
+		
+		return numDropped;
+	}
+	
+	/**
+	 * @return The most events waiting in any one sink.
+	 */
+	public int getMaxQueueDepth()
+	{
+		int maxQueueDepth = 0;
+		for (int i = 0; i < sinks.size(); ++i)
+			maxQueueDepth = Math.max(maxQueueDepth, sinks.get(i).getQueueDepth());
+		
+		return maxQueueDepth;
+	}
+	
+	/**
+	 * Exports the pulses and any gap in a reading. Never blocks.
+	 */
+	public void export(FlowMeterReading reading)
+	{
+		if (sinks.isEmpty())
+			return;
+		
+		if (reading.gap != null)
+			exportGap(reading.gap);
+		
+		for (int i = 0; i < reading.pulses.length; ++i)
+		{
+			Pulse pulse = reading.pulses[i];
+			long timeMillis = sampleClock.toEpochMillis(pulse.startSampleIndex);
+			
+			for (int j = 0; j < sinks.size(); ++j)
+			{
+				sinks.get(j).offer(
+					ExportEvent.TYPE_PULSE,
+					timeMillis,
+					pulse.flowMeterID,
+					pulse.startSampleIndex,
+					pulse.getDurationNumSamples(),
+					pulse.getAmplitudeDelta());
+			}
+		}
+	}
+	
+	/**
+	 * Exports an alert. Never blocks. Call from the same thread as {@link #export}.
+	 * 
+	 * @param type             - Alert event type. EX: {@link ExportEvent#TYPE_CONTINUOUS_FLOW}
+	 * @param timeMillis       - Wall-clock time the alert was raised at in milliseconds since the epoch.
+	 * @param flowMeterID      - Flow meter the alert is for.
+	 * @param startSampleIndex - Index of the sample the alert's flow started at in the stream.
+	 * @param endSampleIndex   - Index of the sample the alert was raised at in the stream.
+	 */
+	public void exportAlert(byte type, long timeMillis, int flowMeterID, long startSampleIndex, long endSampleIndex)
+	{
+		int durationNumSamples = (int)Math.min(endSampleIndex - startSampleIndex, Integer.MAX_VALUE);
+		
+		for (int i = 0; i < sinks.size(); ++i)
+			sinks.get(i).offer(type, timeMillis, flowMeterID, startSampleIndex, durationNumSamples, 0);
+	}
+	
+	/**
+	 * Exports samples missing from the stream.
+	 */
+	public void exportGap(SampleGap gap)
+	{
+		long timeMillis = sampleClock.toEpochMillis(gap.startSampleIndex);
+		int  durationNumSamples = (int)Math.min(gap.numSamples, Integer.MAX_VALUE);
+		
+		for (int i = 0; i < sinks.size(); ++i)
+			sinks.get(i).offer(ExportEvent.TYPE_GAP, timeMillis, 0, gap.startSampleIndex, durationNumSamples, 0);
+	}
+	
+	@Override
+	public void writeMetrics(MetricsWriter out)
+	{
+		for (int i = 0; i < sinks.size(); ++i)
+		{
+			FileExportSink sink = sinks.get(i);
+			String fileName = sink.getFile().getName();
+			
+			out.write("export_queue_depth",    "file", fileName, sink.getQueueDepth());
+			out.write("export_queue_capacity", "file", fileName, sink.getQueueCapacity());
+			out.write("export_dropped_total",  "file", fileName, sink.getNumDropped());
+			out.write("export_written_total",  "file", fileName, sink.getNumWritten());
+			out.write("export_commits_total",  "file", fileName, sink.getNumCommits());
+			out.write("export_error",          "file", fileName, sink.getError() != null? 1 : 0);
+		}
+	}
+	
+	/**
+	 * Closes every sink, writing everything still queued.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		IOException firstError = null;
+		
+		for (int i = 0; i < sinks.size(); ++i)
+		{
+			try
+			{
+				sinks.get(i).close();
+			}
+			catch (IOException e)
+			{
+				if (firstError == null)
+					firstError = e;
+			}
+		}
+		
+		if (firstError != null)
+			throw firstError;
+	}
+}
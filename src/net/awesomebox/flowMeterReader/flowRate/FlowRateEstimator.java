@@ -0,0 +1,303 @@
+package net.awesomebox.flowMeterReader.flowRate;
+
+/**
+ * Estimates one flow meter's pulse rate from the sample indexes of its pulses.<br />
+ * <br />
+ * A meter's pulse rate is proportional to the flow through it. Three views are kept:
+ * <ul>
+ * <li>the instantaneous rate from the last interval between pulses</li>
+ * <li>an exponentially weighted moving average (EWMA) of the rate with a time constant in seconds,
+ * so it smooths over the same amount of time at any flow</li>
+ * <li>a histogram plus the running mean and standard deviation of the intervals, which show jitter
+ * and meter wear</li>
+ * </ul>
+ * An interval longer than the max interval means the flow stopped. It ends the current run: the
+ * EWMA starts over at the next interval and the gap is left out of the interval stats. Samples
+ * missing from the stream end the run the same way, since pulses in them were never seen.<br />
+ * <br />
+ * Adding a pulse is O(1) and never allocates. Methods are synchronized so the stats can be read
+ * from other threads while pulses are being added.
+ */
+public class FlowRateEstimator
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final double DEFAULT_EWMA_TIME_CONSTANT_S = 5.0d;
+	public static final double DEFAULT_MAX_INTERVAL_S       = 5.0d;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final int sampleRate;
+	
+	private final double ewmaTimeConstantNumSamples;
+	private final long   maxIntervalNumSamples;
+	
+	private long numPulses = 0;
+	private long lastPulseSampleIndex;
+	
+	// false before the first pulse and after a gap, when there is no pulse to measure an interval from
+	private boolean hasLastPulse = false;
+	
+	// 0 when the flow is stopped
+	private long   lastIntervalNumSamples = 0;
+	private double ewmaRateHz = 0;
+	
+	// number of times the flow started again after stopping
+	private long numRuns = 0;
+	
+	
+	// -------------------------------------------------------------------
+	// interval stats
+	
+	private final IntervalHistogram intervalHistogram = new IntervalHistogram();
+	
+	private long shortestIntervalNumSamples = Long.MAX_VALUE;
+	private long longestIntervalNumSamples  = 0;
+	
+	// running mean and sum of squared differences from the mean (Welford's method)
+	private double intervalMean = 0;
+	private double intervalM2   = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	public FlowRateEstimator(int sampleRate)
+	{
+		this(sampleRate, DEFAULT_EWMA_TIME_CONSTANT_S, DEFAULT_MAX_INTERVAL_S);
+	}
+	
+	/**
+	 * @param sampleRate         - Sample rate the pulse sample indexes are at.
+	 * @param ewmaTimeConstantS  - Time constant of the moving average in seconds.
+	 * @param maxIntervalS       - Longest interval between pulses in seconds before the flow is considered stopped.
+	 */
+	public FlowRateEstimator(int sampleRate, double ewmaTimeConstantS, double maxIntervalS)
+	{
+		if (!(ewmaTimeConstantS > 0) || !(maxIntervalS > 0))
+			throw new IllegalArgumentException("Time constant and max interval must be positive");
+		
+		this.sampleRate                 = sampleRate;
+		this.ewmaTimeConstantNumSamples = ewmaTimeConstantS * sampleRate;
+		this.maxIntervalNumSamples      = (long)(maxIntervalS * sampleRate);
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Adds a pulse. Pulses must be added in order.
+	 * 
+	 * @param sampleIndex - Index of the pulse's start sample in the stream.
+	 */
+	public synchronized void addPulse(long sampleIndex)
+	{
+		++numPulses;
+		if (!hasLastPulse)
+		{
+			hasLastPulse = true;
+			lastPulseSampleIndex = sampleIndex;
+			return;
+		}
+		
+		long intervalNumSamples = sampleIndex - lastPulseSampleIndex;
+		if (intervalNumSamples <= 0)
+			return;
+		
+		lastPulseSampleIndex = sampleIndex;
+		
+		if (intervalNumSamples > maxIntervalNumSamples)
+		{
+			// the flow stopped and this pulse starts it again
+			lastIntervalNumSamples = 0;
+			ewmaRateHz = 0;
+			return;
+		}
+		
+		double rateHz = (double)sampleRate / intervalNumSamples;
+		
+		if (lastIntervalNumSamples == 0)
+		{
+			// first interval of a run
+			ewmaRateHz = rateHz;
+			++numRuns;
+		}
+		else
+		{
+			// weight by how much time the interval covers so the average is over time, not pulses
+			double alpha = 1 - Math.exp(-intervalNumSamples / ewmaTimeConstantNumSamples);
+			ewmaRateHz += alpha * (rateHz - ewmaRateHz);
+		}
+		
+		lastIntervalNumSamples = intervalNumSamples;
+		
+		// interval stats
+		intervalHistogram.add(intervalNumSamples);
+		
+		if (intervalNumSamples < shortestIntervalNumSamples) shortestIntervalNumSamples = intervalNumSamples;
+		if (intervalNumSamples > longestIntervalNumSamples)  longestIntervalNumSamples  = intervalNumSamples;
+		
+		long   n     = intervalHistogram.getTotalCount();
+		double delta = intervalNumSamples - intervalMean;
+		intervalMean += delta / n;
+		intervalM2   += delta * (intervalNumSamples - intervalMean);
+	}
+	
+	/**
+	 * Ends the current run because samples are missing from the stream. The interval from the last
+	 * pulse to the next one is not counted.
+	 */
+	public synchronized void skipGap()
+	{
+		hasLastPulse           = false;
+		lastIntervalNumSamples = 0;
+		ewmaRateHz             = 0;
+	}
+	
+	/**
+	 * Clears the interval stats. The rate estimates are kept.
+	 */
+	public synchronized void clearIntervalStats()
+	{
+		intervalHistogram.clear();
+		shortestIntervalNumSamples = Long.MAX_VALUE;
+		longestIntervalNumSamples  = 0;
+		intervalMean = 0;
+		intervalM2   = 0;
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public int getSampleRate()
+	{
+		return sampleRate;
+	}
+	
+	public synchronized long getNumPulses()
+	{
+		return numPulses;
+	}
+	
+	/**
+	 * @return Number of times pulses started again after at least the max interval without any.
+	 */
+	public synchronized long getNumRuns()
+	{
+		return numRuns;
+	}
+	
+	/**
+	 * @param currentSampleIndex - Index of the newest sample in the stream.
+	 * 
+	 * @return The rate from the last interval between pulses in pulses per second. Drops as the
+	 *         time since the last pulse grows past the last interval and is 0 once the flow has stopped.
+	 */
+	public synchronized double getRateHz(long currentSampleIndex)
+	{
+		long sinceLastPulseNumSamples = getNumSamplesSinceLastPulse(currentSampleIndex);
+		if (sinceLastPulseNumSamples < 0)
+			return 0;
+		
+		return (double)sampleRate / Math.max(lastIntervalNumSamples, sinceLastPulseNumSamples);
+	}
+	
+	/**
+	 * @param currentSampleIndex - Index of the newest sample in the stream.
+	 * 
+	 * @return The moving average of the rate in pulses per second, or 0 once the flow has stopped.
+	 */
+	public synchronized double getAverageRateHz(long currentSampleIndex)
+	{
+		if (getNumSamplesSinceLastPulse(currentSampleIndex) < 0)
+			return 0;
+		
+		return ewmaRateHz;
+	}
+	
+	/**
+	 * @return Number of intervals in the interval stats.
+	 */
+	public synchronized long getNumIntervals()
+	{
+		return intervalHistogram.getTotalCount();
+	}
+	
+	/**
+	 * @param quantile - Between 0 and 1. EX: 0.99
+	 * 
+	 * @return The interval between pulses at the given quantile in milliseconds, or 0 if there are none.
+	 */
+	public synchronized double getIntervalQuantileMS(double quantile)
+	{
+		return intervalHistogram.getQuantile(quantile) * 1000 / sampleRate;
+	}
+	
+	public synchronized double getMinIntervalMS()
+	{
+		return intervalHistogram.getTotalCount() == 0? 0 : (double)shortestIntervalNumSamples * 1000 / sampleRate;
+	}
+	
+	public synchronized double getMaxIntervalMS()
+	{
+		return (double)longestIntervalNumSamples * 1000 / sampleRate;
+	}
+	
+	public synchronized double getMeanIntervalMS()
+	{
+		return intervalMean * 1000 / sampleRate;
+	}
+	
+	/**
+	 * @return Standard deviation of the interval divided by its mean. 0 for perfectly even pulses.
+	 */
+	public synchronized double getIntervalJitterRatio()
+	{
+		long n = intervalHistogram.getTotalCount();
+		if (n < 2 || intervalMean == 0)
+			return 0;
+		
+		return Math.sqrt(intervalM2 / (n - 1)) / intervalMean;
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	/**
+	 * @return Number of samples since the last pulse, or -1 if the flow is stopped.
+	 */
+	private long getNumSamplesSinceLastPulse(long currentSampleIndex)
+	{
+		if (lastIntervalNumSamples == 0)
+			return -1;
+		
+		long sinceLastPulseNumSamples = Math.max(0, currentSampleIndex - lastPulseSampleIndex);
+		if (sinceLastPulseNumSamples > maxIntervalNumSamples)
+			return -1;
+		
+		return sinceLastPulseNumSamples;
+	}
+}
@@ -0,0 +1,116 @@
+package net.awesomebox.flowMeterReader.flowRate;
+
+import net.awesomebox.flowMeterReader.FlowMeterReading;
+import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.metrics.MetricSource;
+import net.awesomebox.flowMeterReader.metrics.MetricsWriter;
+
+/**
+ * Keeps a {@link FlowRateEstimator} for each flow meter and feeds it the pulses from each reading.
+ */
+public class FlowRateMonitor implements MetricSource
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final int NUM_FLOW_METERS = 2;
+	
+	// interval quantiles published as metrics
+	private static final double[] METRIC_QUANTILES = {0.5d, 0.9d, 0.99d};
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	// indexed by flow meter ID - 1
+	private final FlowRateEstimator[] estimators = new FlowRateEstimator[NUM_FLOW_METERS];
+	
+	// index of the sample after the newest one seen
+	private volatile long endSampleIndex = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	public FlowRateMonitor(int sampleRate)
+	{
+		for (int i = 0; i < NUM_FLOW_METERS; ++i)
+			estimators[i] = new FlowRateEstimator(sampleRate);
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Adds the pulses from a reading. A gap before the reading ends every meter's current run.
+	 */
+	public void process(FlowMeterReading reading)
+	{
+		if (reading.gap != null)
+		{
+			for (int i = 0; i < NUM_FLOW_METERS; ++i)
+				estimators[i].skipGap();
+		}
+		
+		for (int i = 0; i < reading.pulses.length; ++i)
+		{
+			Pulse pulse = reading.pulses[i];
+			getEstimator(pulse.flowMeterID).addPulse(pulse.startSampleIndex);
+		}
+		
+		endSampleIndex = reading.firstSampleIndex + reading.samples.length;
+	}
+	
+	/**
+	 * @param flowMeterID - 1 or 2.
+	 */
+	public FlowRateEstimator getEstimator(int flowMeterID)
+	{
+		return estimators[flowMeterID - 1];
+	}
+	
+	/**
+	 * @return Index of the newest sample seen. Pass to the estimators' rate getters.
+	 */
+	public long getCurrentSampleIndex()
+	{
+		return endSampleIndex - 1;
+	}
+	
+	@Override
+	public void writeMetrics(MetricsWriter out)
+	{
+		long currentSampleIndex = getCurrentSampleIndex();
+		
+		for (int i = 0; i < NUM_FLOW_METERS; ++i)
+		{
+			FlowRateEstimator estimator = estimators[i];
+			String flowMeterID = Integer.toString(i + 1);
+			
+			out.write("flow_meter_pulses_total",       "flow_meter", flowMeterID, estimator.getNumPulses());
+			out.write("flow_meter_runs_total",         "flow_meter", flowMeterID, estimator.getNumRuns());
+			out.write("flow_meter_rate_hz",            "flow_meter", flowMeterID, estimator.getRateHz(currentSampleIndex));
+			out.write("flow_meter_rate_average_hz",    "flow_meter", flowMeterID, estimator.getAverageRateHz(currentSampleIndex));
+			out.write("flow_meter_interval_count",     "flow_meter", flowMeterID, estimator.getNumIntervals());
+			out.write("flow_meter_interval_min_ms",    "flow_meter", flowMeterID, estimator.getMinIntervalMS());
+			out.write("flow_meter_interval_max_ms",    "flow_meter", flowMeterID, estimator.getMaxIntervalMS());
+			out.write("flow_meter_interval_mean_ms",   "flow_meter", flowMeterID, estimator.getMeanIntervalMS());
+			out.write("flow_meter_interval_jitter",    "flow_meter", flowMeterID, estimator.getIntervalJitterRatio());
+			
+			for (double quantile : METRIC_QUANTILES)
+				out.write("flow_meter_interval_ms", "flow_meter", flowMeterID, "quantile", Double.toString(quantile), estimator.getIntervalQuantileMS(quantile));
+		}
+	}
+}
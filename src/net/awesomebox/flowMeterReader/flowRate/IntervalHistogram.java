@@ -0,0 +1,133 @@
+package net.awesomebox.flowMeterReader.flowRate;
+
+/**
+ * Fixed-size histogram with logarithmic buckets for positive intervals.<br />
+ * <br />
+ * Each power of two is split into {@link #SUB_BUCKETS_PER_POWER} buckets, so every value is
+ * counted to within about 6% of its true value no matter how large it is. Values below
+ * {@link #SUB_BUCKETS_PER_POWER} get a bucket each and are exact. Adding a value is a few bit
+ * operations and never allocates.
+ */
+public class IntervalHistogram
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	private static final int SUB_BUCKET_BITS      = 3;
+	public  static final int SUB_BUCKETS_PER_POWER = 1 << SUB_BUCKET_BITS;
+	
+	// values are clamped to 2^MAX_POWER - 1
+	private static final int MAX_POWER = 40;
+	
+	private static final int NUM_BUCKETS = (MAX_POWER - SUB_BUCKET_BITS + 1) * SUB_BUCKETS_PER_POWER;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final long[] counts = new long[NUM_BUCKETS];
+	private long totalCount = 0;
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Counts a value. Values less than 1 are counted as 1.
+	 */
+	public void add(long value)
+	{
+		++counts[getBucketIndex(value)];
+		++totalCount;
+	}
+	
+	/**
+	 * Counts every value counted by another histogram.
+	 */
+	public void add(IntervalHistogram other)
+	{
+		for (int i = 0; i < NUM_BUCKETS; ++i)
+			counts[i] += other.counts[i];
+		
+		totalCount += other.totalCount;
+	}
+	
+	public long getTotalCount()
+	{
+		return totalCount;
+	}
+	
+	/**
+	 * @param quantile - Between 0 and 1. EX: 0.5 for the median.
+	 * 
+	 * @return The value at the given quantile, or 0 if nothing has been counted.
+	 */
+	public double getQuantile(double quantile)
+	{
+		if (totalCount == 0)
+			return 0;
+		
+		// the rank of the value we are looking for, starting at 1
+		long rank = Math.max(1, (long)Math.ceil(quantile * totalCount));
+		
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; ++i)
+		{
+			count += counts[i];
+			if (count >= rank)
+				return getBucketMidpoint(i);
+		}
+		
+		return getBucketMidpoint(NUM_BUCKETS - 1);
+	}
+	
+	public void clear()
+	{
+		for (int i = 0; i < NUM_BUCKETS; ++i)
+			counts[i] = 0;
+		
+		totalCount = 0;
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	private static int getBucketIndex(long value)
+	{
+		if (value < SUB_BUCKETS_PER_POWER)
+			return (int)Math.max(1, value);
+		
+		int power = 63 - Long.numberOfLeadingZeros(value);
+		if (power >= MAX_POWER)
+			return NUM_BUCKETS - 1;
+		
+		// the bits right below the highest one bit pick the sub-bucket
+		int subBucket = (int)(value >>> (power - SUB_BUCKET_BITS)) & (SUB_BUCKETS_PER_POWER - 1);
+		return (power - SUB_BUCKET_BITS + 1) * SUB_BUCKETS_PER_POWER + subBucket;
+	}
+	
+	private static double getBucketMidpoint(int bucketIndex)
+	{
+		if (bucketIndex < SUB_BUCKETS_PER_POWER)
+			return bucketIndex;
+		
+		int power     = bucketIndex / SUB_BUCKETS_PER_POWER + SUB_BUCKET_BITS - 1;
+		int subBucket = bucketIndex % SUB_BUCKETS_PER_POWER;
+		
+		double bucketWidth = (double)(1l << (power - SUB_BUCKET_BITS));
+		double bucketStart = (double)(1l << power) + subBucket * bucketWidth;
+		return bucketStart + (bucketWidth - 1) / 2;
+	}
+}
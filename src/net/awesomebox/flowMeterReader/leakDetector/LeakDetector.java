@@ -0,0 +1,593 @@
+package net.awesomebox.flowMeterReader.leakDetector;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+import net.awesomebox.flowMeterReader.FlowMeterReading;
+import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.SampleGap;
+import net.awesomebox.flowMeterReader.checkpoint.Checkpointable;
+import net.awesomebox.flowMeterReader.clock.SampleClock;
+import net.awesomebox.flowMeterReader.metrics.MetricSource;
+import net.awesomebox.flowMeterReader.metrics.MetricsWriter;
+
+/**
+ * Watches the pulse counts of every flow meter on the stream for signs of a leak.<br />
+ * <br />
+ * Pulses are counted in fixed-size time buckets per meter. The last few hours of buckets are kept
+ * in a ring, so the state per meter stays the same size no matter how long the detector runs.
+ * Two kinds of alerts are raised:
+ * <ul>
+ * <li><b>Continuous flow</b> - a meter has not had a single zero-flow bucket for the configured
+ * number of hours. Something is always running, such as a dripping tap or a running toilet.</li>
+ * <li><b>Quiet window flow</b> - a meter counted pulses during a time of day when no water should be
+ * used, such as the middle of the night.</li>
+ * </ul>
+ * Each alert is raised once. It is raised again after the flow stops (a zero-flow bucket) or the
+ * quiet window ends.<br />
+ * <br />
+ * Buckets follow the sample indexes of the stream, so they are not thrown off by the wall clock
+ * changing. Quiet windows are in local time and use the sample clock to tell when each pulse was.<br />
+ * <br />
+ * Nothing is known about the flow during a gap in the stream, so the buckets it covers are skipped
+ * rather than judged as zero flow. A run of flow carries on across a gap unless the gap is longer
+ * than the whole ring.
+ */
+public class LeakDetector implements MetricSource, Checkpointable
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	// alert types
+	public static final int ALERT_CONTINUOUS_FLOW   = 1;
+	public static final int ALERT_QUIET_WINDOW_FLOW = 2;
+	
+	public static final int    DEFAULT_BUCKET_S                = 60;
+	public static final double DEFAULT_CONTINUOUS_FLOW_HOURS   = 24.0d;
+	public static final int    DEFAULT_ZERO_FLOW_MAX_PULSES    = 0;
+	public static final int    DEFAULT_QUIET_WINDOW_MIN_PULSES = 4;
+	
+	public static final int NUM_FLOW_METERS = 2;
+	
+	private static final long MS_IN_MINUTE = 60 * 1000;
+	private static final long MS_IN_DAY    = 24 * 60 * MS_IN_MINUTE;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final int         sampleRate;
+	private final SampleClock sampleClock;
+	
+	private final long bucketNumSamples;
+	private final long continuousFlowNumSamples;
+	
+	// a bucket with this many pulses or fewer counts as zero flow
+	private int zeroFlowMaxPulses = DEFAULT_ZERO_FLOW_MAX_PULSES;
+	
+	// number of pulses in a quiet window before raising an alert
+	private int quietWindowMinPulses = DEFAULT_QUIET_WINDOW_MIN_PULSES;
+	
+	private QuietWindow[] quietWindows = new QuietWindow[0];
+	private TimeZone timeZone = TimeZone.getDefault();
+	
+	private LeakDetectorListener listener;
+	
+	// indexed by flow meter ID - 1
+	private final MeterState[] meterStates = new MeterState[NUM_FLOW_METERS];
+	
+	// bucket the newest samples are being counted in. Counted from the start of the stream
+	private long currentBucketIndex = 0;
+	
+	// index of the sample after the newest one seen
+	private long endSampleIndex = 0;
+	
+	private boolean inQuietWindow = false;
+	
+	
+	/**
+	 * State kept for each flow meter.
+	 */
+	private static class MeterState
+	{
+		// pulse counts of the most recent buckets
+		final int[] bucketCounts;
+		
+		// sum of the bucket counts
+		long windowNumPulses = 0;
+		
+		// the current run of buckets with flow. -1 when there is none
+		long    flowStartSampleIndex = -1;
+		long    flowNumPulses        = 0;
+		boolean continuousFlowAlerted = false;
+		
+		// pulses during the current quiet window
+		long    quietWindowStartSampleIndex = -1;
+		long    quietWindowNumPulses        = 0;
+		boolean quietWindowAlerted          = false;
+		
+		long numContinuousFlowAlerts  = 0;
+		long numQuietWindowFlowAlerts = 0;
+		
+		MeterState(int numBuckets)
+		{
+			bucketCounts = new int[numBuckets];
+		}
+		
+		void writeCheckpoint(DataOutput out) throws IOException
+		{
+			for (int i = 0; i < bucketCounts.length; ++i)
+				out.writeInt(bucketCounts[i]);
+			
+			out.writeLong   (flowStartSampleIndex);
+			out.writeLong   (flowNumPulses);
+			out.writeBoolean(continuousFlowAlerted);
+			out.writeLong   (quietWindowStartSampleIndex);
+			out.writeLong   (quietWindowNumPulses);
+			out.writeBoolean(quietWindowAlerted);
+			out.writeLong   (numContinuousFlowAlerts);
+			out.writeLong   (numQuietWindowFlowAlerts);
+		}
+		
+		/**
+		 * @return A new state read from a checkpoint.
+		 */
+		static MeterState readCheckpoint(DataInput in, int numBuckets) throws IOException
+		{
+			MeterState meterState = new MeterState(numBuckets);
+			
+			for (int i = 0; i < numBuckets; ++i)
+			{
+				meterState.bucketCounts[i] = in.readInt();
+				if (meterState.bucketCounts[i] < 0)
+					throw new IOException("Invalid checkpoint");
+				
+				meterState.windowNumPulses += meterState.bucketCounts[i];
+			}
+			
+			meterState.flowStartSampleIndex        = in.readLong();
+			meterState.flowNumPulses               = in.readLong();
+			meterState.continuousFlowAlerted       = in.readBoolean();
+			meterState.quietWindowStartSampleIndex = in.readLong();
+			meterState.quietWindowNumPulses        = in.readLong();
+			meterState.quietWindowAlerted          = in.readBoolean();
+			meterState.numContinuousFlowAlerts     = in.readLong();
+			meterState.numQuietWindowFlowAlerts    = in.readLong();
+			
+			if (meterState.flowStartSampleIndex < -1 || meterState.flowNumPulses < 0
+			 || meterState.quietWindowStartSampleIndex < -1 || meterState.quietWindowNumPulses < 0
+			 || meterState.numContinuousFlowAlerts < 0 || meterState.numQuietWindowFlowAlerts < 0)
+				throw new IOException("Invalid checkpoint");
+			
+			return meterState;
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	public LeakDetector(int sampleRate, SampleClock sampleClock)
+	{
+		this(sampleRate, sampleClock, DEFAULT_BUCKET_S, DEFAULT_CONTINUOUS_FLOW_HOURS);
+	}
+	
+	/**
+	 * @param sampleRate          - Sample rate of the readings.
+	 * @param sampleClock         - Clock used to tell when quiet windows are and to timestamp alerts.
+	 * @param bucketS             - Size of each bucket in seconds.
+	 * @param continuousFlowHours - Hours of flow without a zero-flow bucket before raising an alert.
+	 */
+	public LeakDetector(int sampleRate, SampleClock sampleClock, int bucketS, double continuousFlowHours)
+	{
+		if (bucketS <= 0 || !(continuousFlowHours > 0))
+			throw new IllegalArgumentException("Bucket size and continuous flow hours must be positive");
+		
+		this.sampleRate               = sampleRate;
+		this.sampleClock              = sampleClock;
+		this.bucketNumSamples         = (long)bucketS * sampleRate;
+		this.continuousFlowNumSamples = (long)(continuousFlowHours * 60 * 60 * sampleRate);
+		
+		int numBuckets = (int)((continuousFlowNumSamples + bucketNumSamples - 1) / bucketNumSamples);
+		for (int i = 0; i < NUM_FLOW_METERS; ++i)
+			meterStates[i] = new MeterState(numBuckets);
+	}
+	
+	
+	
+	// ===================================================================
+	// Settings
+	//
+	// ===================================================================
+	
+	public void setListener(LeakDetectorListener listener)
+	{
+		this.listener = listener;
+	}
+	
+	public synchronized void setQuietWindows(QuietWindow... quietWindows)
+	{
+		this.quietWindows = quietWindows.clone();
+	}
+	
+	public QuietWindow[] getQuietWindows()
+	{
+		return quietWindows.clone();
+	}
+	
+	/**
+	 * @param timeZone - Time zone quiet windows are in. Defaults to the system's.
+	 */
+	public synchronized void setTimeZone(TimeZone timeZone)
+	{
+		this.timeZone = timeZone;
+	}
+	
+	/**
+	 * @param zeroFlowMaxPulses - A bucket with this many pulses or fewer counts as zero flow. Raise
+	 *                            above 0 if stray pulses keep the continuous flow alert from resetting.
+	 */
+	public synchronized void setZeroFlowMaxPulses(int zeroFlowMaxPulses)
+	{
+		this.zeroFlowMaxPulses = zeroFlowMaxPulses;
+	}
+	
+	/**
+	 * @param quietWindowMinPulses - Number of pulses during a quiet window before raising an alert.
+	 */
+	public synchronized void setQuietWindowMinPulses(int quietWindowMinPulses)
+	{
+		this.quietWindowMinPulses = Math.max(1, quietWindowMinPulses);
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Counts the pulses from a reading and raises any alerts.
+	 */
+	public synchronized void process(FlowMeterReading reading)
+	{
+		long readingEndSampleIndex = reading.firstSampleIndex + reading.samples.length;
+		
+		if (reading.gap != null)
+			skipGap(reading.gap);
+		
+		for (int i = 0; i < reading.pulses.length; ++i)
+		{
+			Pulse pulse = reading.pulses[i];
+			MeterState meterState = meterStates[pulse.flowMeterID - 1];
+			
+			advanceToSampleIndex(pulse.startSampleIndex);
+			
+			// count the pulse
+			++meterState.bucketCounts[getBucketSlot(currentBucketIndex)];
+			++meterState.windowNumPulses;
+			
+			if (meterState.flowStartSampleIndex == -1)
+			{
+				meterState.flowStartSampleIndex = pulse.startSampleIndex;
+				meterState.flowNumPulses        = 0;
+			}
+			++meterState.flowNumPulses;
+			
+			// check the quiet windows
+			long pulseTimeMillis = sampleClock.toEpochMillis(pulse.startSampleIndex);
+			if (isInQuietWindow(pulseTimeMillis))
+				countQuietWindowPulse(pulse.flowMeterID, meterState, pulse.startSampleIndex, pulseTimeMillis);
+			else
+				resetQuietWindow(meterState);
+		}
+		
+		advanceToSampleIndex(readingEndSampleIndex - 1);
+		endSampleIndex = readingEndSampleIndex;
+		
+		// start over once each quiet window ends
+		inQuietWindow = isInQuietWindow(sampleClock.toEpochMillis(readingEndSampleIndex - 1));
+		if (!inQuietWindow)
+		{
+			for (int i = 0; i < NUM_FLOW_METERS; ++i)
+				resetQuietWindow(meterStates[i]);
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	/**
+	 * @return Seconds the meter has had flow in every bucket for, or 0 if its last bucket had none.
+	 */
+	public synchronized double getContinuousFlowS(int flowMeterID)
+	{
+		MeterState meterState = meterStates[flowMeterID - 1];
+		if (meterState.flowStartSampleIndex == -1)
+			return 0;
+		
+		return (double)(endSampleIndex - meterState.flowStartSampleIndex) / sampleRate;
+	}
+	
+	/**
+	 * @return Number of pulses the meter counted over the continuous flow hours.
+	 */
+	public synchronized long getWindowNumPulses(int flowMeterID)
+	{
+		return meterStates[flowMeterID - 1].windowNumPulses;
+	}
+	
+	public synchronized long getNumAlerts(int flowMeterID, int alertType)
+	{
+		MeterState meterState = meterStates[flowMeterID - 1];
+		return alertType == ALERT_CONTINUOUS_FLOW? meterState.numContinuousFlowAlerts : meterState.numQuietWindowFlowAlerts;
+	}
+	
+	/**
+	 * @return If the end of the last reading was in a quiet window.
+	 */
+	public synchronized boolean isInQuietWindow()
+	{
+		return inQuietWindow;
+	}
+	
+	/**
+	 * @return Name of an alert type as used in logs and metrics.
+	 */
+	public static String getAlertName(int alertType)
+	{
+		switch (alertType)
+		{
+			case ALERT_CONTINUOUS_FLOW:   return "continuous_flow";
+			case ALERT_QUIET_WINDOW_FLOW: return "quiet_window_flow";
+			default:                      return "unknown";
+		}
+	}
+	
+	@Override
+	public synchronized void writeMetrics(MetricsWriter out)
+	{
+		out.write("leak_quiet_window", inQuietWindow? 1 : 0);
+		
+		for (int flowMeterID = 1; flowMeterID <= NUM_FLOW_METERS; ++flowMeterID)
+		{
+			MeterState meterState = meterStates[flowMeterID - 1];
+			String id = Integer.toString(flowMeterID);
+			
+			out.write("leak_continuous_flow_seconds", "flow_meter", id, getContinuousFlowS(flowMeterID));
+			out.write("leak_window_pulses",           "flow_meter", id, meterState.windowNumPulses);
+			out.write("leak_quiet_window_pulses",     "flow_meter", id, meterState.quietWindowNumPulses);
+			
+			out.write("leak_alerts_total", "flow_meter", id, "type", getAlertName(ALERT_CONTINUOUS_FLOW),   meterState.numContinuousFlowAlerts);
+			out.write("leak_alerts_total", "flow_meter", id, "type", getAlertName(ALERT_QUIET_WINDOW_FLOW), meterState.numQuietWindowFlowAlerts);
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	/**
+	 * Closes buckets until the one containing the given sample is the current one.
+	 */
+	private void advanceToSampleIndex(long sampleIndex)
+	{
+		advanceToSampleIndex(sampleIndex, true);
+	}
+	
+	/**
+	 * Moves past the buckets a gap covers without judging them. The bucket the gap starts in was
+	 * only partly seen, so it isn't judged either.
+	 */
+	private void skipGap(SampleGap gap)
+	{
+		if (gap.getEndSampleIndex() / bucketNumSamples > currentBucketIndex)
+			advanceToSampleIndex(gap.getEndSampleIndex(), false);
+		
+		endSampleIndex = Math.max(endSampleIndex, gap.getEndSampleIndex());
+	}
+	
+	/**
+	 * Moves buckets until the one containing the given sample is the current one.
+	 * 
+	 * @param closeBuckets - If the buckets moved past should be judged for flow. <code>false</code>
+	 *                       when nothing is known about them.
+	 */
+	private void advanceToSampleIndex(long sampleIndex, boolean closeBuckets)
+	{
+		long bucketIndex = sampleIndex / bucketNumSamples;
+		
+		while (currentBucketIndex < bucketIndex)
+		{
+			if (closeBuckets)
+				closeCurrentBucket();
+			
+			// moving past more buckets than the ring holds leaves nothing of it. Clear the ring and
+			// skip to the end
+			if (bucketIndex - currentBucketIndex > meterStates[0].bucketCounts.length)
+			{
+				for (int i = 0; i < NUM_FLOW_METERS; ++i)
+				{
+					MeterState meterState = meterStates[i];
+					Arrays.fill(meterState.bucketCounts, 0);
+					meterState.windowNumPulses = 0;
+					endFlow(meterState);
+				}
+				
+				currentBucketIndex = bucketIndex;
+				break;
+			}
+			
+			++currentBucketIndex;
+			
+			// reuse the oldest bucket
+			int slot = getBucketSlot(currentBucketIndex);
+			for (int i = 0; i < NUM_FLOW_METERS; ++i)
+			{
+				MeterState meterState = meterStates[i];
+				meterState.windowNumPulses -= meterState.bucketCounts[slot];
+				meterState.bucketCounts[slot] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Ends runs of flow on meters with no flow in the current bucket and raises continuous flow
+	 * alerts on meters that have had flow for long enough.
+	 */
+	private void closeCurrentBucket()
+	{
+		int  slot                 = getBucketSlot(currentBucketIndex);
+		long bucketEndSampleIndex = (currentBucketIndex + 1) * bucketNumSamples;
+		
+		for (int i = 0; i < NUM_FLOW_METERS; ++i)
+		{
+			MeterState meterState = meterStates[i];
+			
+			if (meterState.bucketCounts[slot] <= zeroFlowMaxPulses)
+			{
+				endFlow(meterState);
+				continue;
+			}
+			
+			if (meterState.flowStartSampleIndex == -1 || meterState.continuousFlowAlerted)
+				continue;
+			
+			if (bucketEndSampleIndex - meterState.flowStartSampleIndex >= continuousFlowNumSamples)
+			{
+				meterState.continuousFlowAlerted = true;
+				++meterState.numContinuousFlowAlerts;
+				
+				raiseAlert(ALERT_CONTINUOUS_FLOW, i + 1,
+					meterState.flowStartSampleIndex, bucketEndSampleIndex, meterState.flowNumPulses,
+					sampleClock.toEpochMillis(bucketEndSampleIndex));
+			}
+		}
+	}
+	
+	private void countQuietWindowPulse(int flowMeterID, MeterState meterState, long sampleIndex, long timeMillis)
+	{
+		if (meterState.quietWindowNumPulses++ == 0)
+			meterState.quietWindowStartSampleIndex = sampleIndex;
+		
+		if (!meterState.quietWindowAlerted && meterState.quietWindowNumPulses >= quietWindowMinPulses)
+		{
+			meterState.quietWindowAlerted = true;
+			++meterState.numQuietWindowFlowAlerts;
+			
+			raiseAlert(ALERT_QUIET_WINDOW_FLOW, flowMeterID,
+				meterState.quietWindowStartSampleIndex, sampleIndex, meterState.quietWindowNumPulses,
+				timeMillis);
+		}
+	}
+	
+	private static void endFlow(MeterState meterState)
+	{
+		meterState.flowStartSampleIndex  = -1;
+		meterState.flowNumPulses         = 0;
+		meterState.continuousFlowAlerted = false;
+	}
+	
+	private static void resetQuietWindow(MeterState meterState)
+	{
+		meterState.quietWindowStartSampleIndex = -1;
+		meterState.quietWindowNumPulses        = 0;
+		meterState.quietWindowAlerted          = false;
+	}
+	
+	private void raiseAlert(int alertType, int flowMeterID, long startSampleIndex, long endSampleIndex, long numPulses, long timeMillis)
+	{
+		if (listener != null)
+			listener.onLeakAlert(alertType, flowMeterID, startSampleIndex, endSampleIndex, numPulses, timeMillis);
+	}
+	
+	private boolean isInQuietWindow(long timeMillis)
+	{
+		if (quietWindows.length == 0)
+			return false;
+		
+		long localMillis = timeMillis + timeZone.getOffset(timeMillis);
+		int minuteOfDay = (int)((((localMillis % MS_IN_DAY) + MS_IN_DAY) % MS_IN_DAY) / MS_IN_MINUTE);
+		
+		for (int i = 0; i < quietWindows.length; ++i)
+		{
+			if (quietWindows[i].contains(minuteOfDay))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	private int getBucketSlot(long bucketIndex)
+	{
+		return (int)(bucketIndex % meterStates[0].bucketCounts.length);
+	}
+	
+	
+	
+	// ===================================================================
+	// Checkpointing
+	//
+	// ===================================================================
+	
+	@Override
+	public synchronized void writeCheckpoint(DataOutput out) throws IOException
+	{
+		out.writeLong(bucketNumSamples);
+		out.writeInt (meterStates[0].bucketCounts.length);
+		
+		out.writeLong   (currentBucketIndex);
+		out.writeLong   (endSampleIndex);
+		out.writeBoolean(inQuietWindow);
+		
+		for (int i = 0; i < NUM_FLOW_METERS; ++i)
+			meterStates[i].writeCheckpoint(out);
+	}
+	
+	@Override
+	public synchronized void readCheckpoint(DataInput in) throws IOException
+	{
+		long checkpointBucketNumSamples = in.readLong();
+		int  checkpointNumBuckets       = in.readInt();
+		
+		// buckets of another size can't be carried over
+		int numBuckets = meterStates[0].bucketCounts.length;
+		if (checkpointBucketNumSamples != bucketNumSamples || checkpointNumBuckets != numBuckets)
+			throw new IOException("Checkpoint leak detector buckets do not match");
+		
+		long    checkpointCurrentBucketIndex = in.readLong();
+		long    checkpointEndSampleIndex     = in.readLong();
+		boolean checkpointInQuietWindow      = in.readBoolean();
+		
+		if (checkpointCurrentBucketIndex < 0 || checkpointEndSampleIndex < 0)
+			throw new IOException("Invalid checkpoint");
+		
+		MeterState[] checkpointMeterStates = new MeterState[NUM_FLOW_METERS];
+		for (int i = 0; i < NUM_FLOW_METERS; ++i)
+			checkpointMeterStates[i] = MeterState.readCheckpoint(in, numBuckets);
+		
+		currentBucketIndex = checkpointCurrentBucketIndex;
+		endSampleIndex     = checkpointEndSampleIndex;
+		inQuietWindow      = checkpointInQuietWindow;
+		System.arraycopy(checkpointMeterStates, 0, meterStates, 0, NUM_FLOW_METERS);
+	}
+}
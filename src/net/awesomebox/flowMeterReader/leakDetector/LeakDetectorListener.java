@@ -0,0 +1,16 @@
+package net.awesomebox.flowMeterReader.leakDetector;
+
+public interface LeakDetectorListener
+{
+	/**
+	 * Called when a possible leak is found. Called on the thread that gives the detector its readings.
+	 * 
+	 * @param alertType        - {@link LeakDetector#ALERT_CONTINUOUS_FLOW} or {@link LeakDetector#ALERT_QUIET_WINDOW_FLOW}.
+	 * @param flowMeterID      - Flow meter the flow was on.
+	 * @param startSampleIndex - Index of the sample the flow started at in the stream.
+	 * @param endSampleIndex   - Index of the sample the alert was raised at in the stream.
+	 * @param numPulses        - Number of pulses counted from the start to the end.
+	 * @param timeMillis       - Wall-clock time the alert was raised at in milliseconds since the epoch.
+	 */
+	public void onLeakAlert(int alertType, int flowMeterID, long startSampleIndex, long endSampleIndex, long numPulses, long timeMillis);
+}
@@ -0,0 +1,91 @@
+package net.awesomebox.flowMeterReader.leakDetector;
+
+/**
+ * A time of day when no water should be flowing. EX: <code>01:00-05:00</code><br />
+ * <br />
+ * Windows repeat every day and may wrap past midnight (EX: <code>23:00-06:00</code>). The start is
+ * included and the end is not.
+ */
+public final class QuietWindow
+{
+	private static final int MINUTES_IN_DAY = 24 * 60;
+	
+	public final int startMinuteOfDay;
+	public final int endMinuteOfDay;
+	
+	
+	/**
+	 * @param startMinuteOfDay - Minute of the day the window starts at. 0 to 1439.
+	 * @param endMinuteOfDay   - Minute of the day the window ends at. 0 to 1439.
+	 */
+	public QuietWindow(int startMinuteOfDay, int endMinuteOfDay)
+	{
+		if (startMinuteOfDay < 0 || startMinuteOfDay >= MINUTES_IN_DAY || endMinuteOfDay < 0 || endMinuteOfDay >= MINUTES_IN_DAY)
+			throw new IllegalArgumentException("Minute of day out of range: " + startMinuteOfDay + "-" + endMinuteOfDay);
+		
+		if (startMinuteOfDay == endMinuteOfDay)
+			throw new IllegalArgumentException("Quiet window is empty");
+		
+		this.startMinuteOfDay = startMinuteOfDay;
+		this.endMinuteOfDay   = endMinuteOfDay;
+	}
+	
+	/**
+	 * Parses a window. EX: <code>01:00-05:00</code>
+	 */
+	public static QuietWindow parse(String str)
+	{
+		String[] parts = str.trim().split("-");
+		if (parts.length != 2)
+			throw new IllegalArgumentException("Quiet windows look like 01:00-05:00: " + str);
+		
+		return new QuietWindow(parseMinuteOfDay(parts[0]), parseMinuteOfDay(parts[1]));
+	}
+	
+	/**
+	 * Parses a comma separated list of windows. EX: <code>01:00-05:00,13:00-13:30</code>
+	 */
+	public static QuietWindow[] parseList(String str)
+	{
+		String[] parts = str.split(",");
+		QuietWindow[] quietWindows = new QuietWindow[parts.length];
+		
+		for (int i = 0; i < parts.length; ++i)
+			quietWindows[i] = parse(parts[i]);
+		
+		return quietWindows;
+	}
+	
+	/**
+	 * @param minuteOfDay - 0 to 1439.
+	 */
+	public boolean contains(int minuteOfDay)
+	{
+		if (startMinuteOfDay < endMinuteOfDay)
+			return minuteOfDay >= startMinuteOfDay && minuteOfDay < endMinuteOfDay;
+		
+		// wraps past midnight
+		return minuteOfDay >= startMinuteOfDay || minuteOfDay < endMinuteOfDay;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.format("%02d:%02d-%02d:%02d", startMinuteOfDay / 60, startMinuteOfDay % 60, endMinuteOfDay / 60, endMinuteOfDay % 60);
+	}
+	
+	
+	private static int parseMinuteOfDay(String str)
+	{
+		String[] parts = str.trim().split(":");
+		if (parts.length != 2)
+			throw new IllegalArgumentException("Times look like 01:00: " + str);
+		
+		int hour   = Integer.parseInt(parts[0]);
+		int minute = Integer.parseInt(parts[1]);
+		if (hour < 0 || hour > 23 || minute < 0 || minute > 59)
+			throw new IllegalArgumentException("Time out of range: " + str);
+		
+		return hour * 60 + minute;
+	}
+}
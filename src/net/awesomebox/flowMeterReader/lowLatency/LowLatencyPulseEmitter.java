@@ -0,0 +1,173 @@
+package net.awesomebox.flowMeterReader.lowLatency;
+
+import java.util.ArrayList;
+
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.clock.Clock;
+import net.awesomebox.flowMeterReader.flowRate.IntervalHistogram;
+import net.awesomebox.flowMeterReader.metrics.MetricSource;
+import net.awesomebox.flowMeterReader.metrics.MetricsWriter;
+
+/**
+ * Hands pulses to the listeners as soon as they are found and measures how long that took from
+ * when the line captured the sample that gave the pulse away.<br />
+ * <br />
+ * A pulse is given away by the sample after its end, the first one moving the other way. The time
+ * that sample was captured is worked out from an anchor set after each read: how many samples the
+ * line had captured by then, counting the ones still buffered. Latency is counted in microseconds
+ * from that time to when the listeners are called.
+ */
+public class LowLatencyPulseEmitter implements MetricSource
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	// quantiles reported and written as metrics
+	public static final double[] QUANTILES = {0.5d, 0.99d};
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final int   sampleRate;
+	private final Clock clock;
+	
+	private final ArrayList<PulseListener> listeners = new ArrayList<PulseListener>();
+	
+	// samples before this index had been captured by the line at this time
+	private long anchorEndSampleIndex = -1;
+	private long anchorTimeNS;
+	
+	// microseconds from capture to the listeners
+	private final IntervalHistogram latencyHistogram = new IntervalHistogram();
+	private long lastLatencyUS = 0;
+	private long numPulses     = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param sampleRate - Sample rate of the line.
+	 * @param clock      - Clock to time with. Should be the one the anchors are taken with.
+	 */
+	public LowLatencyPulseEmitter(int sampleRate, Clock clock)
+	{
+		this.sampleRate = sampleRate;
+		this.clock      = clock;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	public void addListener(PulseListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Records how far the line had captured at a point in time. Call right after each read, before
+	 * the pulses are emitted.
+	 * 
+	 * @param endSampleIndex - Index of the sample after the newest one captured, counting the ones
+	 *                         still buffered in the line.
+	 * @param timeNS         - {@link Clock#nanoTime} when the line was checked.
+	 */
+	public synchronized void anchor(long endSampleIndex, long timeNS)
+	{
+		anchorEndSampleIndex = endSampleIndex;
+		anchorTimeNS         = timeNS;
+	}
+	
+	/**
+	 * Hands each pulse to the listeners and records its latency.
+	 */
+	public void emit(Pulse[] pulses)
+	{
+		for (int i = 0; i < pulses.length; ++i)
+		{
+			long emitTimeNS = clock.nanoTime();
+			
+			for (int j = 0; j < listeners.size(); ++j)
+				listeners.get(j).onPulse(pulses[i]);
+			
+			recordLatency(pulses[i].endSampleIndex + 1, emitTimeNS);
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public synchronized long getNumPulses()
+	{
+		return numPulses;
+	}
+	
+	public synchronized double getLastLatencyMS()
+	{
+		return lastLatencyUS / 1000.0d;
+	}
+	
+	/**
+	 * @param quantile - Between 0 and 1. EX: 0.99 for the 99th percentile.
+	 * 
+	 * @return Latency at the given quantile over every pulse emitted in milliseconds.
+	 */
+	public synchronized double getLatencyQuantileMS(double quantile)
+	{
+		return latencyHistogram.getQuantile(quantile) / 1000;
+	}
+	
+	@Override
+	public synchronized void writeMetrics(MetricsWriter out)
+	{
+		out.write("pulse_emitted_total",   numPulses);
+		out.write("pulse_latency_last_ms", getLastLatencyMS());
+		
+		for (double quantile : QUANTILES)
+			out.write("pulse_latency_ms", "quantile", Double.toString(quantile), getLatencyQuantileMS(quantile));
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	/**
+	 * @param givenAwayBySampleIndex - Index of the first sample the pulse could be found with.
+	 * @param emitTimeNS             - When the listeners were called.
+	 */
+	private synchronized void recordLatency(long givenAwayBySampleIndex, long emitTimeNS)
+	{
+		++numPulses;
+		
+		if (anchorEndSampleIndex < 0)
+			return;
+		
+		// the sample was captured once the whole of it had been recorded
+		long numSamplesAfter = anchorEndSampleIndex - (givenAwayBySampleIndex + 1);
+		long captureTimeNS   = anchorTimeNS - numSamplesAfter * FlowMeterReader.NS_IN_S / sampleRate;
+		
+		lastLatencyUS = Math.max((emitTimeNS - captureTimeNS) / 1000, 0);
+		latencyHistogram.add(lastLatencyUS);
+	}
+}
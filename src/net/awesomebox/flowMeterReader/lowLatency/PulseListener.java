@@ -0,0 +1,14 @@
+package net.awesomebox.flowMeterReader.lowLatency;
+
+import net.awesomebox.flowMeterReader.Pulse;
+
+public interface PulseListener
+{
+	/**
+	 * Called on the reading thread as soon as a pulse is found, before anything else is done with
+	 * the reading. Should return quickly.
+	 * 
+	 * @param pulse - The pulse found.
+	 */
+	public void onPulse(Pulse pulse);
+}
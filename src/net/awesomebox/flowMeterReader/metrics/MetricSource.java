@@ -0,0 +1,14 @@
+package net.awesomebox.flowMeterReader.metrics;
+
+/**
+ * Something that publishes metrics through a {@link MetricsServer}.
+ */
+public interface MetricSource
+{
+	/**
+	 * Writes the current value of each metric. Called from the server's thread.
+	 * 
+	 * @param out - Where to write the metrics.
+	 */
+	public void writeMetrics(MetricsWriter out);
+}
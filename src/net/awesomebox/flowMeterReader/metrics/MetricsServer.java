@@ -0,0 +1,181 @@
+package net.awesomebox.flowMeterReader.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics of a set of {@link MetricSource}s over HTTP at <code>/metrics</code> in the
+ * Prometheus text format.<br />
+ * <br />
+ * Requests are handled on a single daemon thread, so a slow scraper never holds up the audio loop.
+ * Sources are only asked for their metrics when a request comes in.<br />
+ * <br />
+ * Only serves this machine unless given another address to bind to.
+ */
+public class MetricsServer implements Closeable
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final String PATH = "/metrics";
+	
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final HttpServer server;
+	private final ExecutorService executor;
+	
+	private final CopyOnWriteArrayList<MetricSource> sources = new CopyOnWriteArrayList<MetricSource>();
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * Starts serving on the given port on the loopback interface.
+	 */
+	public MetricsServer(int port) throws IOException
+	{
+		this(InetAddress.getLoopbackAddress(), port);
+	}
+	
+	/**
+	 * Starts serving on the given address and port.
+	 * 
+	 * @param bindAddress - Address to serve on. The wildcard address serves on all interfaces.
+	 * @param port        - Port to serve on. 0 to pick a free one.
+	 */
+	public MetricsServer(InetAddress bindAddress, int port) throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+		server.createContext(PATH, new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				handleRequest(exchange);
+			}
+		});
+		
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "MetricsServer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		server.setExecutor(executor);
+		server.start();
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	public void addSource(MetricSource source)
+	{
+		sources.add(source);
+	}
+	
+	public void removeSource(MetricSource source)
+	{
+		sources.remove(source);
+	}
+	
+	/**
+	 * @return The address being served on.
+	 */
+	public InetAddress getAddress()
+	{
+		return server.getAddress().getAddress();
+	}
+	
+	/**
+	 * @return The port being served on.
+	 */
+	public int getPort()
+	{
+		return server.getAddress().getPort();
+	}
+	
+	/**
+	 * @return The current metrics of every source.
+	 */
+	public String collect()
+	{
+		MetricsWriter out = new MetricsWriter();
+		for (MetricSource source : sources)
+			source.writeMetrics(out);
+		
+		return out.toString();
+	}
+	
+	@Override
+	public void close()
+	{
+		server.stop(0);
+		executor.shutdownNow();
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	private void handleRequest(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			if (!exchange.getRequestMethod().equals("GET"))
+			{
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			
+			byte[] body = collect().getBytes(StandardCharsets.UTF_8);
+			
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, body.length);
+			
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+}
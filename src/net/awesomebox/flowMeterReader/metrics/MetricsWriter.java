@@ -0,0 +1,97 @@
+package net.awesomebox.flowMeterReader.metrics;
+
+/**
+ * Builds a page of metrics in the Prometheus text format, one metric per line.<br />
+ * <br />
+ * EX: <code>flow_meter_rate_hz{flow_meter="1"} 12.5</code>
+ */
+public class MetricsWriter
+{
+	private final StringBuilder sb = new StringBuilder();
+	
+	
+	/**
+	 * Writes a metric with no labels.
+	 */
+	public void write(String name, double value)
+	{
+		write(name, null, null, value);
+	}
+	
+	/**
+	 * Writes a metric with a single label.
+	 */
+	public void write(String name, String labelName, String labelValue, double value)
+	{
+		sb.append(name);
+		if (labelName != null)
+			appendLabel('{', labelName, labelValue).append('}');
+		
+		appendValue(value);
+	}
+	
+	/**
+	 * Writes a metric with two labels.
+	 */
+	public void write(String name, String labelName1, String labelValue1, String labelName2, String labelValue2, double value)
+	{
+		sb.append(name);
+		appendLabel('{', labelName1, labelValue1);
+		appendLabel(',', labelName2, labelValue2).append('}');
+		
+		appendValue(value);
+	}
+	
+	/**
+	 * Writes a metric with three labels.
+	 */
+	public void write(String name, String labelName1, String labelValue1, String labelName2, String labelValue2, String labelName3, String labelValue3, double value)
+	{
+		sb.append(name);
+		appendLabel('{', labelName1, labelValue1);
+		appendLabel(',', labelName2, labelValue2);
+		appendLabel(',', labelName3, labelValue3).append('}');
+		
+		appendValue(value);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return sb.toString();
+	}
+	
+	
+	private StringBuilder appendLabel(char separator, String labelName, String labelValue)
+	{
+		sb.append(separator).append(labelName).append("=\"");
+		
+		for (int i = 0; i < labelValue.length(); ++i)
+		{
+			char c = labelValue.charAt(i);
+			if      (c == '\\') sb.append("\\\\");
+			else if (c == '"')  sb.append("\\\"");
+			else if (c == '\n') sb.append("\\n");
+			else                sb.append(c);
+		}
+		
+		return sb.append('"');
+	}
+	
+	private void appendValue(double value)
+	{
+		sb.append(' ');
+		
+		// counters read better without a trailing .0
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			sb.append((long)value);
+		else if (value == Double.POSITIVE_INFINITY)
+			sb.append("+Inf");
+		else if (value == Double.NEGATIVE_INFINITY)
+			sb.append("-Inf");
+		else
+			sb.append(value);
+		
+		sb.append('\n');
+	}
+}
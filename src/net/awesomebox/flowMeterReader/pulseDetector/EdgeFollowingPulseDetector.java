@@ -0,0 +1,445 @@
+package net.awesomebox.flowMeterReader.pulseDetector;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import net.awesomebox.flowMeterReader.AudioSample;
+import net.awesomebox.flowMeterReader.Pulse;
+
+/**
+ * Detects pulses by following edges.<br />
+ * <br />
+ * An edge is a series of samples that all rise/fall in the same direction. Any edge that is no
+ * longer than the max pulse duration and whose amplitude changes by at least a flow meter's
+ * threshold is a pulse from that flow meter.<br />
+ * <br />
+ * Normally an edge is only followed once there are enough samples after its start for the longest
+ * pulse, so a pulse is found up to the max pulse duration after it ends. In low-latency mode edges
+ * are followed as far as the samples go. A pulse is found as soon as the sample after its end shows
+ * the direction reversing, and an edge that runs off the end of the samples is followed again once
+ * more arrive. The same pulses are found either way.
+ */
+public class EdgeFollowingPulseDetector implements PulseDetector
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	// followEdge results for edges without an end
+	private static final int EDGE_TOO_LONG       = -1;
+	private static final int EDGE_OUT_OF_SAMPLES = -2;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	// max number of samples a pulse can exist for
+	private int maxPulseDurationNumSamples;
+	
+	// the min amplitude delta for it to be considered a pulse
+	private int fm1PulseAmplitudeDeltaThreshold;
+	private int fm2PulseAmplitudeDeltaThreshold;
+	
+	// if pulses should be found as soon as they end rather than a max pulse duration later
+	private final boolean lowLatency;
+	
+	// told about every edge followed. null if none
+	private EdgeListener edgeListener = null;
+	
+	
+	// -------------------------------------------------------------------
+	// intermediate detectPulses variables
+	
+	// at the end of a detectPulses call, some of then end samples are stored
+	// this way, during the next execution of detectPulses, it can look back
+	// at the samples from the last run in order to calculate the amplitude delta.
+	// the number of samples needed to be back-filled is equal to the number of
+	// samples required to calculate the amplitude delta.
+	private AudioSample[] backfilledSamples;
+	private int numBackfilledSamples = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param maxPulseDurationNumSamples      - Max number of samples a pulse can exist for.
+	 * @param fm1PulseAmplitudeDeltaThreshold - Min amplitude delta for an edge to be a pulse from flow meter 1.
+	 * @param fm2PulseAmplitudeDeltaThreshold - Min amplitude delta for an edge to be a pulse from flow meter 2.
+	 */
+	public EdgeFollowingPulseDetector(int maxPulseDurationNumSamples, int fm1PulseAmplitudeDeltaThreshold, int fm2PulseAmplitudeDeltaThreshold)
+	{
+		this(maxPulseDurationNumSamples, fm1PulseAmplitudeDeltaThreshold, fm2PulseAmplitudeDeltaThreshold, false);
+	}
+	
+	/**
+	 * @param maxPulseDurationNumSamples      - Max number of samples a pulse can exist for.
+	 * @param fm1PulseAmplitudeDeltaThreshold - Min amplitude delta for an edge to be a pulse from flow meter 1.
+	 * @param fm2PulseAmplitudeDeltaThreshold - Min amplitude delta for an edge to be a pulse from flow meter 2.
+	 * @param lowLatency                      - If pulses should be found as soon as they end.
+	 */
+	public EdgeFollowingPulseDetector(int maxPulseDurationNumSamples, int fm1PulseAmplitudeDeltaThreshold, int fm2PulseAmplitudeDeltaThreshold, boolean lowLatency)
+	{
+		this.maxPulseDurationNumSamples      = maxPulseDurationNumSamples;
+		this.fm1PulseAmplitudeDeltaThreshold = fm1PulseAmplitudeDeltaThreshold;
+		this.fm2PulseAmplitudeDeltaThreshold = fm2PulseAmplitudeDeltaThreshold;
+		this.lowLatency                      = lowLatency;
+		
+		backfilledSamples = new AudioSample[maxPulseDurationNumSamples];
+	}
+	
+	
+	
+	// ===================================================================
+	// Detection
+	//
+	// ===================================================================
+	
+	/**
+	 * Detects pulses in audio samples. The given audio samples are used along with
+	 * any back-filled samples from previous executions.
+	 * 
+	 * @param newSamples          - New audio samples to check for pulses in.
+	 * @param firstNewSampleIndex - Index of the first new sample in the stream.
+	 * 
+	 * @return The pulses found.
+	 */
+	@Override
+	public Pulse[] detectPulses(AudioSample[] newSamples, long firstNewSampleIndex)
+	{
+		ArrayList<Pulse> pulsesList = new ArrayList<Pulse>();
+		
+		// if we don't have any new samples, there is nothing to do
+		if (newSamples.length == 0)
+			return new Pulse[0];
+		
+		
+		// combine the back-filled samples and the new samples
+		AudioSample[] samples = new AudioSample[numBackfilledSamples + newSamples.length];
+		
+		for (int i = 0; i < numBackfilledSamples; ++i)
+			samples[i] = backfilledSamples[i];
+		
+		for (int i = 0; i < newSamples.length; ++i)
+			samples[numBackfilledSamples + i] = newSamples[i];
+		
+		// index of the first sample in the stream so we can give pulses their sample indexes
+		long firstSampleIndex = firstNewSampleIndex - numBackfilledSamples;
+		
+		
+		int lastFoundEdgeEndIndex = -1;
+		
+		// start of an edge that ran off the end of the samples. -1 if none
+		int unfinishedEdgeStartIndex = -1;
+		
+		// follow all the edges in the samples and check if they are pulses
+		// make sure we always have enough samples to make the longest possible pulse, unless we
+		// are following edges as far as the samples go
+		int edgeStartIndexEnd = lowLatency? samples.length : samples.length - maxPulseDurationNumSamples;
+		
+		for (int i = 0; i < edgeStartIndexEnd; ++i)
+		{
+			// follow the edge
+			int edgeStartIndex = i;
+			int edgeEndIndex = followEdge(samples, edgeStartIndex, maxPulseDurationNumSamples);
+			
+			// check if we ran out of samples. Only happens in low-latency mode. Follow it again
+			// once there are more
+			if (edgeEndIndex == EDGE_OUT_OF_SAMPLES)
+			{
+				unfinishedEdgeStartIndex = edgeStartIndex;
+				break;
+			}
+			
+			// check if we followed the edge to the end
+			if (edgeEndIndex == EDGE_TOO_LONG)
+			{
+				// we did not. This means the edge was longer than the max pulse duration.
+				// We can only infer that there is no pulse that starts at i, but there may
+				// be one that starts at i+1.
+				continue;
+			}
+			
+			// at this point, we know this edge absolutely is or is not a pulse. Either way,
+			// we should start our next search from the end of this edge
+			i = edgeEndIndex - 1; // -1 to compensate for the ++i in the for loop
+			
+			// we should also not back-fill any samples before the end of the edge
+			// record the end index of this edge
+			lastFoundEdgeEndIndex = edgeEndIndex;
+			
+			checkEdge(samples, edgeStartIndex, edgeEndIndex, firstSampleIndex, pulsesList);
+		}
+		
+		
+		
+		// back-fill samples for the next iteration
+		// try to fill the entire array
+		int backFillFromIndex = samples.length - backfilledSamples.length;
+		
+		// clamp to the number of samples available
+		if (backFillFromIndex < 0)
+			backFillFromIndex = 0;
+		
+		// don't back-fill samples for edges we have already checked
+		if (backFillFromIndex < lastFoundEdgeEndIndex)
+			backFillFromIndex = lastFoundEdgeEndIndex;
+		
+		// in low-latency mode every edge before the unfinished one has been checked
+		if (lowLatency)
+			backFillFromIndex = unfinishedEdgeStartIndex >= 0? unfinishedEdgeStartIndex : samples.length;
+		
+		int numToBackfill = samples.length - backFillFromIndex;
+		
+		// copy samples into the back-filled array
+		for (int i = 0; i < numToBackfill; ++i)
+			backfilledSamples[i] = samples[backFillFromIndex + i];
+		
+		numBackfilledSamples = numToBackfill;
+		
+		
+		// return pulses
+		return pulsesList.toArray(new Pulse[pulsesList.size()]);
+	}
+	
+	@Override
+	public Pulse[] flush(long endSampleIndex)
+	{
+		ArrayList<Pulse> pulsesList = new ArrayList<Pulse>();
+		
+		// the back-filled samples are the last ones given
+		AudioSample[] samples = Arrays.copyOf(backfilledSamples, numBackfilledSamples);
+		long firstSampleIndex = endSampleIndex - numBackfilledSamples;
+		
+		// follow the edges that were waiting for more samples. Any edge still going ends with the stream
+		for (int i = 0; i < samples.length - 1; ++i)
+		{
+			int edgeStartIndex = i;
+			int edgeEndIndex = followEdge(samples, edgeStartIndex, maxPulseDurationNumSamples);
+			
+			if (edgeEndIndex == EDGE_TOO_LONG)
+				continue;
+			
+			if (edgeEndIndex == EDGE_OUT_OF_SAMPLES)
+				edgeEndIndex = samples.length - 1;
+			
+			checkEdge(samples, edgeStartIndex, edgeEndIndex, firstSampleIndex, pulsesList);
+			
+			i = edgeEndIndex - 1; // -1 to compensate for the ++i in the for loop
+		}
+		
+		reset();
+		
+		return pulsesList.toArray(new Pulse[pulsesList.size()]);
+	}
+	
+	/**
+	 * Checks if an edge is a pulse from one of the flow meters and adds it if it is.
+	 * 
+	 * @param samples          - Audio samples the edge is in.
+	 * @param edgeStartIndex   - Index of the edge's first sample.
+	 * @param edgeEndIndex     - Index of the edge's last sample.
+	 * @param firstSampleIndex - Index of the first sample in the stream.
+	 * @param pulsesList       - Where to add the pulse.
+	 */
+	private void checkEdge(AudioSample[] samples, int edgeStartIndex, int edgeEndIndex, long firstSampleIndex, ArrayList<Pulse> pulsesList)
+	{
+		AudioSample startSample = samples[edgeStartIndex];
+		AudioSample endSample   = samples[edgeEndIndex];
+		
+		// get the amplitude delta for the edge
+		int edgeAmplitudeDelta = endSample.amplitude - startSample.amplitude;
+		int absEdgeAmplitudeDelta = Math.abs(edgeAmplitudeDelta);
+		
+		if (edgeListener != null)
+			edgeListener.onEdge(edgeAmplitudeDelta);
+		
+		// check if this edge was a pulse from flow meter 2
+		if (absEdgeAmplitudeDelta >= fm2PulseAmplitudeDeltaThreshold)
+		{
+			// it was! create a pulse
+			pulsesList.add(new Pulse(2, firstSampleIndex + edgeStartIndex, firstSampleIndex + edgeEndIndex, edgeAmplitudeDelta));
+			return;
+		}
+		
+		// check if this edge was a pulse from flow meter 1
+		if (absEdgeAmplitudeDelta >= fm1PulseAmplitudeDeltaThreshold)
+		{
+			// it was! create a pulse
+			pulsesList.add(new Pulse(1, firstSampleIndex + edgeStartIndex, firstSampleIndex + edgeEndIndex, edgeAmplitudeDelta));
+			return;
+		}
+		
+		// this edge was not a pulse
+	}
+	
+	/**
+	 * Follows an edge starting at the given sample and returns where it ends.
+	 * 
+	 * @param samples                   - Audio samples to use.
+	 * @param startIndex                - Index of the sample to start the edge from.
+	 * @param maxEdgeDurationNumSamples - The maximum number of samples to follow an edge for.
+	 * 
+	 * @return The index of the last sample of the edge, {@link #EDGE_TOO_LONG} if the duration of the
+	 *         edge exceeds <code>maxEdgeDurationNumSamples</code>, or {@link #EDGE_OUT_OF_SAMPLES} if
+	 *         the end of the samples array is reached first.
+	 */
+	private static int followEdge(AudioSample[] samples, int startIndex, int maxEdgeDurationNumSamples)
+	{
+		// follow an edge
+		// an edge is a series of samples that all rise/fall in the same direction.
+		// as soon as the direction changes, the edge ends, and a new one begins
+		// example:
+		
+		// ---|-----|----|--|-|---|---
+		//
+		//         / \
+		//        |   \
+		// \     /     |
+		//  \   /      |         / \
+		//   \ /       |        /   |
+		//             \   / \ /    \
+		//              \ /          \
+		//
+		
+		
+		// direction of the edge: +1 = up, -1 = down, 0 = not yet set
+		int edgeDirection = 0;
+		
+		for (int i = 1; i < maxEdgeDurationNumSamples; ++i)
+		{
+			int curentIndex = startIndex + i;
+			
+			// make sure we don't go outside the samples array
+			if (curentIndex >= samples.length)
+			{
+				// we have reached the end of the samples array
+				// we were unable to find an end to the edge yet
+				return EDGE_OUT_OF_SAMPLES;
+			}
+			
+			AudioSample currentSample  = samples[curentIndex];
+			AudioSample previousSample = samples[curentIndex - 1];
+			
+			// get change in amplitude and direction between this sample and the last
+			int imediateAmplitudeDelta = currentSample.amplitude - previousSample.amplitude;
+			
+			// if we did not move at all, we can't infer the direction
+			if (imediateAmplitudeDelta == 0) {
+				continue;
+			}
+			
+			int imediateDirection = imediateAmplitudeDelta < 0? -1 : 1;
+			
+			// if the edge does not have a direction yet, set one
+			if (edgeDirection == 0)
+			{
+				edgeDirection = imediateDirection;
+				continue;
+			}
+			
+			// check to see if we are still moving in the same direction
+			if (imediateDirection != edgeDirection)
+			{
+				// we have found the edge's end
+				return curentIndex - 1;
+			}
+		}
+		
+		// the duration of the edge has exceeded the max
+		// we were unable to find an end to the edge
+		return EDGE_TOO_LONG;
+	}
+	
+	
+	
+	@Override
+	public void setEdgeListener(EdgeListener edgeListener)
+	{
+		this.edgeListener = edgeListener;
+	}
+	
+	/**
+	 * Resizes the back-filled samples to the new max pulse duration, keeping the newest ones.
+	 */
+	@Override
+	public void reconfigure(int maxPulseDurationNumSamples, int fm1PulseAmplitudeDeltaThreshold, int fm2PulseAmplitudeDeltaThreshold)
+	{
+		if (maxPulseDurationNumSamples != backfilledSamples.length)
+		{
+			AudioSample[] resizedBackfilledSamples = new AudioSample[maxPulseDurationNumSamples];
+			
+			int numToKeep = Math.min(numBackfilledSamples, resizedBackfilledSamples.length);
+			System.arraycopy(backfilledSamples, numBackfilledSamples - numToKeep, resizedBackfilledSamples, 0, numToKeep);
+			
+			backfilledSamples    = resizedBackfilledSamples;
+			numBackfilledSamples = numToKeep;
+		}
+		
+		this.maxPulseDurationNumSamples      = maxPulseDurationNumSamples;
+		this.fm1PulseAmplitudeDeltaThreshold = fm1PulseAmplitudeDeltaThreshold;
+		this.fm2PulseAmplitudeDeltaThreshold = fm2PulseAmplitudeDeltaThreshold;
+	}
+	
+	@Override
+	public void reset()
+	{
+		for (int i = 0; i < numBackfilledSamples; ++i)
+			backfilledSamples[i] = null;
+		
+		numBackfilledSamples = 0;
+	}
+	
+	
+	
+	// ===================================================================
+	// Checkpointing
+	//
+	// ===================================================================
+	
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException
+	{
+		out.writeInt(numBackfilledSamples);
+		for (int i = 0; i < numBackfilledSamples; ++i)
+		{
+			out.writeLong (backfilledSamples[i].timeNS);
+			out.writeShort(backfilledSamples[i].amplitude);
+		}
+	}
+	
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException
+	{
+		int checkpointNumBackfilledSamples = in.readInt();
+		if (checkpointNumBackfilledSamples < 0)
+			throw new IOException("Invalid checkpoint");
+		
+		// the checkpoint may be from a longer max pulse duration. Keep the newest samples that fit
+		int numToSkip = Math.max(0, checkpointNumBackfilledSamples - backfilledSamples.length);
+		
+		AudioSample[] checkpointBackfilledSamples = new AudioSample[checkpointNumBackfilledSamples - numToSkip];
+		for (int i = 0; i < checkpointNumBackfilledSamples; ++i)
+		{
+			AudioSample sample = new AudioSample(in.readLong(), in.readShort());
+			if (i >= numToSkip)
+				checkpointBackfilledSamples[i - numToSkip] = sample;
+		}
+		
+		// everything checks out, restore
+		for (int i = 0; i < checkpointBackfilledSamples.length; ++i)
+			backfilledSamples[i] = checkpointBackfilledSamples[i];
+		
+		numBackfilledSamples = checkpointBackfilledSamples.length;
+	}
+}
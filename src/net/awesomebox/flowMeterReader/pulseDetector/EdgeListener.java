@@ -0,0 +1,12 @@
+package net.awesomebox.flowMeterReader.pulseDetector;
+
+public interface EdgeListener
+{
+	/**
+	 * Called on the detecting thread for every edge a detector measures, whether it turned out to
+	 * be a pulse or not.
+	 * 
+	 * @param amplitudeDelta - Change in amplitude from the start of the edge to its end.
+	 */
+	public void onEdge(int amplitudeDelta);
+}
@@ -0,0 +1,59 @@
+package net.awesomebox.flowMeterReader.pulseDetector;
+
+import net.awesomebox.flowMeterReader.AudioSample;
+import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.checkpoint.Checkpointable;
+
+/**
+ * Finds pulses from the flow meters in a stream of audio samples.<br />
+ * <br />
+ * Samples are given to a detector over multiple calls and are treated as one continuous stream,
+ * so a detector may keep whatever state it needs to find pulses that span calls.
+ */
+public interface PulseDetector extends Checkpointable
+{
+	/**
+	 * Detects pulses in the given samples.
+	 * 
+	 * @param newSamples          - New audio samples to check for pulses in.
+	 * @param firstNewSampleIndex - Index of the first new sample in the stream.
+	 * 
+	 * @return The pulses found.
+	 */
+	public Pulse[] detectPulses(AudioSample[] newSamples, long firstNewSampleIndex);
+	
+	/**
+	 * Finishes any pulse still being measured, for when the stream has ended. The detector is left
+	 * as if the stream were starting over.
+	 * 
+	 * @param endSampleIndex - Index after the last sample given.
+	 * 
+	 * @return The pulses found.
+	 */
+	public Pulse[] flush(long endSampleIndex);
+	
+	/**
+	 * Forgets the samples seen so far, as if the stream were starting over. Called when samples are
+	 * missing from the stream so that nothing is detected across the gap.
+	 */
+	public void reset();
+	
+	/**
+	 * Changes what the detector looks for. Called between {@link #detectPulses} calls, so the
+	 * samples kept from before carry on into the next call. Where fewer samples are now needed the
+	 * oldest are dropped, which may lose a pulse spanning the change.
+	 * 
+	 * @param maxPulseDurationNumSamples      - Max number of samples a pulse can exist for.
+	 * @param fm1PulseAmplitudeDeltaThreshold - Min amplitude delta for a pulse from flow meter 1.
+	 * @param fm2PulseAmplitudeDeltaThreshold - Min amplitude delta for a pulse from flow meter 2.
+	 */
+	public void reconfigure(int maxPulseDurationNumSamples, int fm1PulseAmplitudeDeltaThreshold, int fm2PulseAmplitudeDeltaThreshold);
+	
+	/**
+	 * Sets who to tell about every edge measured, so the spread of amplitude deltas can be seen
+	 * next to the thresholds.
+	 * 
+	 * @param edgeListener - Listener or <code>null</code> for none.
+	 */
+	public void setEdgeListener(EdgeListener edgeListener);
+}
@@ -0,0 +1,241 @@
+package net.awesomebox.flowMeterReader.pulseDetector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+import net.awesomebox.flowMeterReader.FlowMeterReading;
+import net.awesomebox.flowMeterReader.PulseBuffer;
+import net.awesomebox.flowMeterReader.signalGenerator.PulseScorer;
+import net.awesomebox.flowMeterReader.signalGenerator.SyntheticSignalGenerator;
+
+/**
+ * Compares the accuracy and throughput of the pulse detectors.<br />
+ * <br />
+ * Every detector is run over each recording in <code>res/</code> and over a synthetic signal.
+ * The recordings have no ground truth, so detectors are compared against the edge-following
+ * detector there. The synthetic signal's pulses are known, so detectors are scored against those.<br />
+ * <br />
+ * Usage: <code>PulseDetectorComparison [resDirectory]</code>
+ */
+public class PulseDetectorComparison
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	// number of bytes to give the reader at a time when checking accuracy. Matches Main's mic reads.
+	private static final int ACCURACY_CHUNK_NUM_BYTES = 180;
+	
+	// number of bytes to give the reader at a time and how many times to go over the signal when timing
+	private static final int THROUGHPUT_CHUNK_NUM_BYTES = 4096;
+	private static final int THROUGHPUT_NUM_PASSES      = 20;
+	
+	// synthetic signal params
+	private static final int    SYNTHETIC_SAMPLE_RATE           = 16000;
+	private static final int    SYNTHETIC_DURATION_S            = 60;
+	private static final long   SYNTHETIC_SEED                  = 42;
+	private static final double SYNTHETIC_FM1_RATE_HZ           = 14.6d;
+	private static final double SYNTHETIC_FM2_RATE_HZ           = 6.2d;
+	private static final double SYNTHETIC_FM1_AMPLITUDE         = 0.3d;
+	private static final double SYNTHETIC_FM2_AMPLITUDE         = 0.8d;
+	private static final double SYNTHETIC_NOISE                 = 0.01d;
+	private static final int    SYNTHETIC_RISE_TIME_NUM_SAMPLES = 1;
+	
+	
+	
+	// ===================================================================
+	// Signals
+	//
+	// ===================================================================
+	
+	/**
+	 * Audio data to run the detectors over.
+	 */
+	private static class Signal
+	{
+		public final String  name;
+		public final byte[]  data;
+		public final int     sampleRate;
+		public final boolean bigEndian;
+		
+		// the actual pulses or null if unknown
+		public final PulseBuffer groundTruth;
+		
+		public Signal(String name, byte[] data, int sampleRate, boolean bigEndian, PulseBuffer groundTruth)
+		{
+			this.name        = name;
+			this.data        = data;
+			this.sampleRate  = sampleRate;
+			this.bigEndian   = bigEndian;
+			this.groundTruth = groundTruth;
+		}
+	}
+	
+	private static Signal loadRecording(File file) throws Exception
+	{
+		AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(file);
+		AudioFormat audioFormat = audioInputStream.getFormat();
+		
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] buffer = new byte[65536];
+		int numBytesRead;
+		while ((numBytesRead = audioInputStream.read(buffer)) > -1)
+			data.write(buffer, 0, numBytesRead);
+		
+		audioInputStream.close();
+		
+		return new Signal(file.getName(), data.toByteArray(), (int)audioFormat.getSampleRate(), audioFormat.isBigEndian(), null);
+	}
+	
+	/**
+	 * Creates a signal like the ones the flow meters make along with its known pulses.
+	 */
+	private static Signal createSyntheticSignal()
+	{
+		SyntheticSignalGenerator generator = new SyntheticSignalGenerator(SYNTHETIC_SAMPLE_RATE, SYNTHETIC_SEED);
+		generator.addFlowMeter(1, SYNTHETIC_FM1_RATE_HZ, SYNTHETIC_FM1_AMPLITUDE);
+		generator.addFlowMeter(2, SYNTHETIC_FM2_RATE_HZ, SYNTHETIC_FM2_AMPLITUDE);
+		generator.setRiseTimeNumSamples(SYNTHETIC_RISE_TIME_NUM_SAMPLES);
+		generator.setNoiseRatio(SYNTHETIC_NOISE);
+		
+		// a meter 1 switch at the same time as a meter 2 switch can't be told apart
+		generator.setMinPulseSeparationNumSamples(FlowMeterReader.calculateMaxPulseDurationNumSamples(SYNTHETIC_SAMPLE_RATE) * 2);
+		
+		byte[] data = new byte[SYNTHETIC_SAMPLE_RATE * SYNTHETIC_DURATION_S * 2];
+		generator.generate(data, 0, data.length / 2);
+		
+		return new Signal("synthetic", data, SYNTHETIC_SAMPLE_RATE, true, generator.getGroundTruth());
+	}
+	
+	
+	
+	// ===================================================================
+	// Running
+	//
+	// ===================================================================
+	
+	/**
+	 * Runs a detector over a signal.
+	 * 
+	 * @return All the pulses found.
+	 */
+	private static PulseBuffer detect(Signal signal, PulseDetectorType type, int chunkNumBytes)
+	{
+		FlowMeterReader flowMeterReader = new FlowMeterReader(signal.sampleRate, type);
+		PulseBuffer pulses = new PulseBuffer();
+		
+		for (int offset = 0; offset < signal.data.length; offset += chunkNumBytes)
+		{
+			int length = Math.min(chunkNumBytes, signal.data.length - offset);
+			FlowMeterReading reading = flowMeterReader.readFlowMeterAudioData(signal.data, offset, length, signal.bigEndian);
+			pulses.add(reading.pulses);
+		}
+		
+		pulses.add(flowMeterReader.finish().pulses);
+		
+		return pulses;
+	}
+	
+	private static PulseBuffer copy(PulseBuffer pulses)
+	{
+		PulseBuffer copy = new PulseBuffer(pulses.size());
+		for (int i = 0; i < pulses.size(); ++i)
+			copy.add(pulses.getStartSampleIndex(i), pulses.getDurationNumSamples(i), pulses.getAmplitudeDelta(i), pulses.getFlowMeterID(i));
+		
+		return copy;
+	}
+	
+	private static int countPulses(PulseBuffer pulses, int flowMeterID)
+	{
+		int count = 0;
+		for (int i = 0; i < pulses.size(); ++i)
+		{
+			if (pulses.getFlowMeterID(i) == flowMeterID)
+				++count;
+		}
+		
+		return count;
+	}
+	
+	
+	
+	// ===================================================================
+	// Main
+	//
+	// ===================================================================
+	
+	public static void main(String[] args) throws Exception
+	{
+		File resDirectory = new File(args.length > 0? args[0] : System.getProperty("user.dir") + File.separatorChar + "res");
+		
+		// gather the signals
+		ArrayList<Signal> signals = new ArrayList<Signal>();
+		
+		File[] files = resDirectory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				if (file.getName().toLowerCase().endsWith(".wav"))
+					signals.add(loadRecording(file));
+			}
+		}
+		
+		signals.add(createSyntheticSignal());
+		
+		
+		System.out.println(String.format("%-20s %-16s %8s %8s %10s %10s %12s",
+			"signal", "detector", "FM1", "FM2", "recall", "precision", "Msamples/s"));
+		
+		for (Signal signal : signals)
+		{
+			int toleranceNumSamples = FlowMeterReader.calculateMaxPulseDurationNumSamples(signal.sampleRate);
+			
+			// with no ground truth, compare against the original detector
+			PulseBuffer reference = signal.groundTruth;
+			if (reference == null)
+				reference = detect(signal, PulseDetectorType.EDGE_FOLLOWING, ACCURACY_CHUNK_NUM_BYTES);
+			
+			for (PulseDetectorType type : PulseDetectorType.values())
+			{
+				// accuracy
+				PulseBuffer pulses = detect(signal, type, ACCURACY_CHUNK_NUM_BYTES);
+				
+				PulseScorer scorer = new PulseScorer(toleranceNumSamples);
+				scorer.addExpected(copy(reference));
+				scorer.addFound(pulses);
+				scorer.finish();
+				
+				// throughput. Run once first so the JIT has a chance to warm up
+				detect(signal, type, THROUGHPUT_CHUNK_NUM_BYTES);
+				
+				long startTimeNS = System.nanoTime();
+				for (int i = 0; i < THROUGHPUT_NUM_PASSES; ++i)
+					detect(signal, type, THROUGHPUT_CHUNK_NUM_BYTES);
+				long elapsedNS = System.nanoTime() - startTimeNS;
+				
+				double numSamples = (signal.data.length / 2) * (double)THROUGHPUT_NUM_PASSES;
+				double samplesPerS = numSamples / ((double)elapsedNS / FlowMeterReader.NS_IN_S);
+				
+				System.out.println(String.format("%-20s %-16s %8d %8d %9.1f%% %9.1f%% %12.2f",
+					signal.name,
+					type.name().toLowerCase(),
+					countPulses(pulses, 1),
+					countPulses(pulses, 2),
+					scorer.getRecall() * 100,
+					scorer.getPrecision() * 100,
+					samplesPerS / 1000000));
+			}
+		}
+		
+		System.out.println();
+		System.out.println("Recordings are scored against edge_following. The synthetic signal is scored against its known pulses.");
+	}
+}
@@ -0,0 +1,67 @@
+package net.awesomebox.flowMeterReader.pulseDetector;
+
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+
+/**
+ * The available pulse detection algorithms.
+ */
+public enum PulseDetectorType
+{
+	/**
+	 * @see EdgeFollowingPulseDetector
+	 */
+	EDGE_FOLLOWING
+	{
+		@Override
+		public PulseDetector create(int sampleRate)
+		{
+			return new EdgeFollowingPulseDetector(
+				FlowMeterReader.calculateMaxPulseDurationNumSamples(sampleRate),
+				FlowMeterReader.FM1_PULSE_AMPLITUDE_DELTA_THRESHOLD,
+				FlowMeterReader.FM2_PULSE_AMPLITUDE_DELTA_THRESHOLD);
+		}
+	},
+	
+	/**
+	 * Faster, but finds about 96% of the pulses when both meters are running.
+	 * 
+	 * @see HysteresisPulseDetector
+	 */
+	HYSTERESIS
+	{
+		@Override
+		public PulseDetector create(int sampleRate)
+		{
+			return new HysteresisPulseDetector(
+				FlowMeterReader.calculateMaxPulseDurationNumSamples(sampleRate),
+				FlowMeterReader.FM1_PULSE_AMPLITUDE_DELTA_THRESHOLD,
+				FlowMeterReader.FM2_PULSE_AMPLITUDE_DELTA_THRESHOLD,
+				HysteresisPulseDetector.DEFAULT_RELEASE_RATIO);
+		}
+	};
+	
+	
+	/**
+	 * Creates a detector of this type with the default thresholds.
+	 * 
+	 * @param sampleRate - Sample rate of the samples that will be given to the detector.
+	 * 
+	 * @return A new detector.
+	 */
+	public abstract PulseDetector create(int sampleRate);
+	
+	/**
+	 * Gets a type by name. Names are case insensitive and may use dashes instead of underscores
+	 * (EX: <code>edge-following</code>).
+	 * 
+	 * @param name - Name of the type.
+	 * 
+	 * @return The type.
+	 * 
+	 * @throws IllegalArgumentException If there is no type with the given name.
+	 */
+	public static PulseDetectorType fromName(String name)
+	{
+		return valueOf(name.trim().replace('-', '_').toUpperCase());
+	}
+}
@@ -0,0 +1,288 @@
+package net.awesomebox.flowMeterReader.replay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+import net.awesomebox.flowMeterReader.archive.SignalArchiveReader;
+import net.awesomebox.flowMeterReader.archive.SignalArchiveWriter;
+import net.awesomebox.flowMeterReader.clock.Clock;
+import net.awesomebox.flowMeterReader.clock.SystemClock;
+import net.awesomebox.flowMeterReader.clock.VirtualClock;
+
+/**
+ * Replays recorded audio as if it were coming from the mic, sped up by a given factor.<br />
+ * <br />
+ * Each chunk is handed out at the time it would have finished recording, divided by the speed.
+ * A {@link VirtualClock} is moved to the end of each chunk as it is handed out, so anything that
+ * does work on a schedule sees the same time it would have seen live.<br />
+ * <br />
+ * If the caller falls behind, chunks are handed out without waiting until it catches up. At
+ * {@link #MAX_SPEED} chunks are never waited for.<br />
+ * <br />
+ * Signal archives are replayed block by block so their holes are kept. A chunk never spans a
+ * hole; {@link #getNumFramesSkipped} gives the frames missing before each chunk so they can be
+ * handed to {@link FlowMeterReader#skipSamples} like frames lost live. The clock moves across a
+ * hole without waiting for it.
+ */
+public class ReplaySource implements Closeable
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	// exactly one of these is used
+	private final AudioInputStream    audioInputStream;
+	private final SignalArchiveReader archiveReader;
+	
+	private final AudioFormat audioFormat;
+	
+	// how many times faster than real time to replay
+	private final double speed;
+	
+	// follows the audio being replayed
+	private final VirtualClock virtualClock;
+	
+	// used for pacing
+	private final Clock realClock;
+	
+	// frames read and skipped over so far
+	private long numFramesRead = 0;
+	
+	// frames missing right before the chunk last read
+	private long numFramesSkipped = 0;
+	
+	// real and virtual time pacing is measured from
+	private long pacingStartRealNS;
+	private long pacingStartVirtualNS;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param audioInputStream - Audio to replay.
+	 * @param speed            - How many times faster than real time to replay. {@link #MAX_SPEED} for no pacing.
+	 * @param startTimeMillis  - Wall-clock time the audio started recording at in milliseconds since the epoch.
+	 */
+	public ReplaySource(AudioInputStream audioInputStream, double speed, long startTimeMillis)
+	{
+		this(audioInputStream, speed, startTimeMillis, SystemClock.INSTANCE);
+	}
+	
+	/**
+	 * @param realClock - Clock to pace against.
+	 */
+	public ReplaySource(AudioInputStream audioInputStream, double speed, long startTimeMillis, Clock realClock)
+	{
+		this(audioInputStream, null, audioInputStream.getFormat(), speed, startTimeMillis, realClock);
+	}
+	
+	/**
+	 * @param archiveReader   - Signal archive to replay from its current position.
+	 * @param speed           - How many times faster than real time to replay. {@link #MAX_SPEED} for no pacing.
+	 * @param startTimeMillis - Wall-clock time the archive's first sample was recorded at in milliseconds since the epoch.
+	 */
+	public ReplaySource(SignalArchiveReader archiveReader, double speed, long startTimeMillis)
+	{
+		this(null, archiveReader, archiveReader.getAudioFormat(), speed, startTimeMillis, SystemClock.INSTANCE);
+	}
+	
+	private ReplaySource(AudioInputStream audioInputStream, SignalArchiveReader archiveReader, AudioFormat audioFormat, double speed, long startTimeMillis, Clock realClock)
+	{
+		if (!(speed > 0))
+			throw new IllegalArgumentException("Speed must be positive: " + speed);
+		
+		this.audioInputStream = audioInputStream;
+		this.archiveReader    = archiveReader;
+		this.audioFormat      = audioFormat;
+		this.speed            = speed;
+		this.virtualClock     = new VirtualClock(startTimeMillis);
+		this.realClock        = realClock;
+		
+		resetPacing();
+	}
+	
+	/**
+	 * Opens an audio file or signal archive for replay. The recording is assumed to have ended when
+	 * the file was last modified.
+	 * 
+	 * @param file  - Audio file to replay.
+	 * @param speed - How many times faster than real time to replay. {@link #MAX_SPEED} for no pacing.
+	 */
+	public static ReplaySource open(File file, double speed) throws IOException, UnsupportedAudioFileException
+	{
+		if (file.getName().endsWith(SignalArchiveWriter.FILE_EXTENSION))
+		{
+			SignalArchiveReader archiveReader = new SignalArchiveReader(file);
+			
+			// the recording spans its holes too
+			long durationMS = (archiveReader.getEndSampleIndex() - archiveReader.getStartSampleIndex()) * 1000 / archiveReader.getSampleRate();
+			
+			return new ReplaySource(archiveReader, speed, file.lastModified() - durationMS);
+		}
+		
+		AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(file);
+		AudioFormat audioFormat = audioInputStream.getFormat();
+		
+		long durationMS = 0;
+		if (audioInputStream.getFrameLength() != AudioSystem.NOT_SPECIFIED)
+			durationMS = (long)(audioInputStream.getFrameLength() * 1000 / audioFormat.getFrameRate());
+		
+		return new ReplaySource(audioInputStream, speed, file.lastModified() - durationMS);
+	}
+	
+	/**
+	 * Parses a replay speed. EX: <code>10</code>, <code>100x</code>, <code>max</code>
+	 */
+	public static double parseSpeed(String str)
+	{
+		str = str.trim().toLowerCase();
+		if (str.equals("max"))
+			return MAX_SPEED;
+		
+		if (str.endsWith("x"))
+			str = str.substring(0, str.length() - 1);
+		
+		double speed = Double.parseDouble(str);
+		if (!(speed > 0))
+			throw new IllegalArgumentException("Speed must be positive: " + str);
+		
+		return speed;
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public AudioFormat getAudioFormat()
+	{
+		return audioFormat;
+	}
+	
+	public double getSpeed()
+	{
+		return speed;
+	}
+	
+	/**
+	 * @return Number of frames missing from the recording right before the chunk last read. Always
+	 *         0 unless replaying a signal archive with holes.
+	 */
+	public long getNumFramesSkipped()
+	{
+		return numFramesSkipped;
+	}
+	
+	/**
+	 * @return A clock that follows the audio being replayed.
+	 */
+	public Clock getClock()
+	{
+		return virtualClock;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Reads the next chunk of audio, waiting until it is due.
+	 * 
+	 * @param buffer - Buffer to read into.
+	 * @param offset - Offset to start reading into at in bytes.
+	 * @param length - Max number of bytes to read. Rounded down to whole frames.
+	 * 
+	 * @return The number of bytes read or -1 at the end of the audio.
+	 */
+	public int read(byte[] buffer, int offset, int length) throws IOException, InterruptedException
+	{
+		int frameSize = audioFormat.getFrameSize();
+		
+		int numBytesRead;
+		if (archiveReader != null)
+		{
+			numFramesSkipped = archiveReader.getNumHoleSamples();
+			numBytesRead = archiveReader.read(buffer, offset, length - length % frameSize);
+		}
+		else
+		{
+			numFramesSkipped = 0;
+			numBytesRead = audioInputStream.read(buffer, offset, length - length % frameSize);
+		}
+		
+		if (numBytesRead <= 0)
+		{
+			numFramesSkipped = 0;
+			return numBytesRead;
+		}
+		
+		// nothing was recorded during a hole, so don't wait for it
+		if (numFramesSkipped > 0)
+		{
+			numFramesRead += numFramesSkipped;
+			pacingStartVirtualNS += (long)(numFramesSkipped * FlowMeterReader.NS_IN_S / (double)audioFormat.getFrameRate());
+		}
+		
+		numFramesRead += numBytesRead / frameSize;
+		
+		// wait until the chunk would have finished recording
+		long chunkEndVirtualNS = (long)(numFramesRead * FlowMeterReader.NS_IN_S / (double)audioFormat.getFrameRate());
+		
+		if (speed != MAX_SPEED)
+		{
+			long dueRealNS = pacingStartRealNS + (long)((chunkEndVirtualNS - pacingStartVirtualNS) / speed);
+			long waitNS = dueRealNS - realClock.nanoTime();
+			if (waitNS > 0)
+				TimeUnit.NANOSECONDS.sleep(waitNS);
+		}
+		
+		virtualClock.setNanoTime(chunkEndVirtualNS);
+		return numBytesRead;
+	}
+	
+	/**
+	 * Starts pacing from the current position. Call after pausing so the replay does not rush to
+	 * make up for the time spent paused.
+	 */
+	public void resetPacing()
+	{
+		pacingStartRealNS    = realClock.nanoTime();
+		pacingStartVirtualNS = virtualClock.nanoTime();
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		if (archiveReader != null)
+			archiveReader.close();
+		else
+			audioInputStream.close();
+	}
+}
@@ -0,0 +1,118 @@
+package net.awesomebox.flowMeterReader.sampleFilter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import net.awesomebox.flowMeterReader.AudioSample;
+
+/**
+ * Removes DC offset and slow drift with a single-pole high-pass filter:
+ * <pre>
+ * y[n] = x[n] - x[n-1] + pole * y[n-1]
+ * </pre>
+ * Sharp edges pass through untouched while anything slower than the cutoff is pulled back to 0.<br />
+ * <br />
+ * The output saturates at the amplitude range and the filter carries on from the saturated value.
+ * A swing from one rail to the other still comes out as a full swing instead of being cut in half
+ * against the rail it would have overshot.
+ */
+public class DCBlockingFilter implements SampleFilter
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	// about a 13Hz cutoff at 16000Hz
+	public static final double DEFAULT_POLE = 0.995d;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final double pole;
+	
+	private short  previousInput  = 0;
+	private double previousOutput = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	public DCBlockingFilter()
+	{
+		this(DEFAULT_POLE);
+	}
+	
+	/**
+	 * @param pole - Where to put the filter's pole. Must be between 0 and 1. The closer to 1, the
+	 *               lower the cutoff frequency. The cutoff is about
+	 *               <code>(1 - pole) * sampleRate / (2 * PI)</code>.
+	 */
+	public DCBlockingFilter(double pole)
+	{
+		if (pole <= 0 || pole >= 1)
+			throw new IllegalArgumentException("Pole must be between 0 and 1: " + pole);
+		
+		this.pole = pole;
+	}
+	
+	
+	
+	// ===================================================================
+	// Filtering
+	//
+	// ===================================================================
+	
+	@Override
+	public short filter(short amplitude)
+	{
+		double output = amplitude - previousInput + pole * previousOutput;
+		
+		// the output can go past the range of the input after a large step. Keep the saturated
+		// value as the state so the next step starts from where the output really is
+		if (output > AudioSample.AMPLITUDE_MAX_VALUE)
+			output = AudioSample.AMPLITUDE_MAX_VALUE;
+		else if (output < AudioSample.AMPLITUDE_MIN_VALUE)
+			output = AudioSample.AMPLITUDE_MIN_VALUE;
+		
+		previousInput  = amplitude;
+		previousOutput = output;
+		
+		return (short)Math.round(output);
+	}
+	
+	
+	
+	// ===================================================================
+	// Checkpointing
+	//
+	// ===================================================================
+	
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException
+	{
+		out.writeShort (previousInput);
+		out.writeDouble(previousOutput);
+	}
+	
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException
+	{
+		short  checkpointPreviousInput  = in.readShort();
+		double checkpointPreviousOutput = in.readDouble();
+		
+		if (Double.isNaN(checkpointPreviousOutput) || Double.isInfinite(checkpointPreviousOutput))
+			throw new IOException("Invalid checkpoint");
+		
+		previousInput  = checkpointPreviousInput;
+		previousOutput = checkpointPreviousOutput;
+	}
+}
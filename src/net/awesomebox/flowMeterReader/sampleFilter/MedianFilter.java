@@ -0,0 +1,145 @@
+package net.awesomebox.flowMeterReader.sampleFilter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Removes single sample glitches with a short running median.<br />
+ * <br />
+ * Unlike an averaging (FIR) filter, a median keeps the full height of a step so pulse amplitude
+ * deltas are not reduced. It does delay the signal by <code>(numTaps - 1) / 2</code> samples.<br />
+ * <br />
+ * Not part of the default chain. The edge-following detector relies on the sample-to-sample noise to
+ * end an edge; with it smoothed out, the slow settle after a step joins the step and the edge runs
+ * past the max pulse duration. On testBoth.wav a 3-tap median loses 32 of the 281 meter 1 pulses.
+ */
+public class MedianFilter implements SampleFilter
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final int DEFAULT_NUM_TAPS = 3;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	// the most recent inputs
+	private final short[] window;
+	private int windowPosition = 0;
+	
+	// reused for sorting so filtering does not allocate
+	private final short[] sortedWindow;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	public MedianFilter()
+	{
+		this(DEFAULT_NUM_TAPS);
+	}
+	
+	/**
+	 * @param numTaps - Number of samples to take the median of. Must be odd.
+	 */
+	public MedianFilter(int numTaps)
+	{
+		if (numTaps < 1 || numTaps % 2 == 0)
+			throw new IllegalArgumentException("Number of taps must be odd and positive: " + numTaps);
+		
+		window       = new short[numTaps];
+		sortedWindow = new short[numTaps];
+	}
+	
+	
+	
+	// ===================================================================
+	// Filtering
+	//
+	// ===================================================================
+	
+	@Override
+	public short filter(short amplitude)
+	{
+		window[windowPosition] = amplitude;
+		
+		++windowPosition;
+		if (windowPosition == window.length)
+			windowPosition = 0;
+		
+		// 3 taps is by far the most common so give it a shortcut
+		if (window.length == 3)
+		{
+			short a = window[0];
+			short b = window[1];
+			short c = window[2];
+			
+			// median = max(min(a, b), min(max(a, b), c))
+			short low  = a < b? a : b;
+			short high = a < b? b : a;
+			short mid  = high < c? high : c;
+			return low > mid? low : mid;
+		}
+		
+		// insertion sort. It is the fastest for the handful of taps we use
+		for (int i = 0; i < window.length; ++i)
+		{
+			short value = window[i];
+			
+			int j = i - 1;
+			while (j >= 0 && sortedWindow[j] > value)
+			{
+				sortedWindow[j + 1] = sortedWindow[j];
+				--j;
+			}
+			
+			sortedWindow[j + 1] = value;
+		}
+		
+		return sortedWindow[window.length / 2];
+	}
+	
+	
+	
+	// ===================================================================
+	// Checkpointing
+	//
+	// ===================================================================
+	
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException
+	{
+		out.writeInt(window.length);
+		out.writeInt(windowPosition);
+		
+		for (int i = 0; i < window.length; ++i)
+			out.writeShort(window[i]);
+	}
+	
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException
+	{
+		int checkpointNumTaps        = in.readInt();
+		int checkpointWindowPosition = in.readInt();
+		
+		if (checkpointNumTaps != window.length || checkpointWindowPosition < 0 || checkpointWindowPosition >= window.length)
+			throw new IOException("Invalid checkpoint");
+		
+		short[] checkpointWindow = new short[window.length];
+		for (int i = 0; i < checkpointWindow.length; ++i)
+			checkpointWindow[i] = in.readShort();
+		
+		System.arraycopy(checkpointWindow, 0, window, 0, window.length);
+		windowPosition = checkpointWindowPosition;
+	}
+}
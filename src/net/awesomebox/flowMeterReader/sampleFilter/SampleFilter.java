@@ -0,0 +1,22 @@
+package net.awesomebox.flowMeterReader.sampleFilter;
+
+import net.awesomebox.flowMeterReader.checkpoint.Checkpointable;
+
+/**
+ * Filters audio sample amplitudes one at a time.<br />
+ * <br />
+ * Amplitudes are given to a filter over multiple calls and are treated as one continuous stream,
+ * so a filter may keep whatever state it needs. Filters must not allocate while filtering as they
+ * are run on every sample.
+ */
+public interface SampleFilter extends Checkpointable
+{
+	/**
+	 * Filters the next amplitude in the stream.
+	 * 
+	 * @param amplitude - Next amplitude.
+	 * 
+	 * @return The filtered amplitude.
+	 */
+	public short filter(short amplitude);
+}
@@ -0,0 +1,95 @@
+package net.awesomebox.flowMeterReader.sampleFilter;
+
+import java.util.Random;
+
+import net.awesomebox.flowMeterReader.AudioSample;
+
+/**
+ * Measures how long each filter takes per sample.<br />
+ * <br />
+ * Usage: <code>SampleFilterBenchmark [numSamples]</code>
+ */
+public class SampleFilterBenchmark
+{
+	private static final int DEFAULT_NUM_SAMPLES = 50000000;
+	
+	// size of the signal that is filtered over and over
+	private static final int SIGNAL_NUM_SAMPLES = 1 << 20;
+	
+	private static final int NUM_WARM_UP_SAMPLES = 5000000;
+	
+	
+	public static void main(String[] args)
+	{
+		int numSamples = args.length > 0? Integer.parseInt(args[0]) : DEFAULT_NUM_SAMPLES;
+		
+		// create a noisy signal with some steps and drift in it
+		Random random = new Random(42);
+		short[] signal = new short[SIGNAL_NUM_SAMPLES];
+		int level = 0;
+		for (int i = 0; i < signal.length; ++i)
+		{
+			if (random.nextInt(2000) == 0)
+				level = random.nextInt(20000) - 10000;
+			
+			int amplitude = level + (int)(Math.sin(i / 3000.0d) * 2000) + (int)(random.nextGaussian() * 300);
+			signal[i] = (short)Math.max(AudioSample.AMPLITUDE_MIN_VALUE, Math.min(AudioSample.AMPLITUDE_MAX_VALUE, amplitude));
+		}
+		
+		String[] names = {
+			"none",
+			"dc-blocker",
+			"median-3",
+			"median-5",
+			"default-chain"
+		};
+		
+		System.out.println(String.format("%-16s %12s %14s", "filter", "ns/sample", "Msamples/s"));
+		
+		for (int i = 0; i < names.length; ++i)
+		{
+			// warm up on a fresh filter so the JIT has compiled the filter before we time it
+			run(createFilter(i), signal, NUM_WARM_UP_SAMPLES);
+			
+			SampleFilter filter = createFilter(i);
+			
+			long startTimeNS = System.nanoTime();
+			long checksum = run(filter, signal, numSamples);
+			long elapsedNS = System.nanoTime() - startTimeNS;
+			
+			double nsPerSample = (double)elapsedNS / numSamples;
+			
+			System.out.println(String.format("%-16s %12.2f %14.1f", names[i], nsPerSample, 1000.0d / nsPerSample)
+				+ (checksum == 42? " " : "")); // use the checksum so the loop can't be optimized away
+		}
+	}
+	
+	private static SampleFilter createFilter(int index)
+	{
+		switch (index)
+		{
+			case 1: return new DCBlockingFilter();
+			case 2: return new MedianFilter(3);
+			case 3: return new MedianFilter(5);
+			case 4: return SampleFilterChain.createDefault();
+			default: return null;
+		}
+	}
+	
+	private static long run(SampleFilter filter, short[] signal, int numSamples)
+	{
+		long checksum = 0;
+		
+		for (int i = 0; i < numSamples; ++i)
+		{
+			short amplitude = signal[i & (SIGNAL_NUM_SAMPLES - 1)];
+			
+			if (filter != null)
+				amplitude = filter.filter(amplitude);
+			
+			checksum += amplitude;
+		}
+		
+		return checksum;
+	}
+}
@@ -0,0 +1,67 @@
+package net.awesomebox.flowMeterReader.sampleFilter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Runs amplitudes through several filters in order.
+ */
+public class SampleFilterChain implements SampleFilter
+{
+	private final SampleFilter[] filters;
+	
+	/**
+	 * @param filters - Filters to run, in order.
+	 */
+	public SampleFilterChain(SampleFilter... filters)
+	{
+		this.filters = filters;
+	}
+	
+	/**
+	 * Creates the filter chain we use before pulse detection: a DC blocker to remove offset and
+	 * drift. It finds the same pulses as no filter on the bundled recordings.<br />
+	 * <br />
+	 * There is no de-glitch stage as it makes the edge-following detector miss pulses.
+	 * 
+	 * @return A new filter chain.
+	 * 
+	 * @see MedianFilter
+	 */
+	public static SampleFilterChain createDefault()
+	{
+		return new SampleFilterChain(
+			new DCBlockingFilter());
+	}
+	
+	
+	@Override
+	public short filter(short amplitude)
+	{
+		for (int i = 0; i < filters.length; ++i)
+			amplitude = filters[i].filter(amplitude);
+		
+		return amplitude;
+	}
+	
+	
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException
+	{
+		out.writeInt(filters.length);
+		
+		for (int i = 0; i < filters.length; ++i)
+			filters[i].writeCheckpoint(out);
+	}
+	
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException
+	{
+		if (in.readInt() != filters.length)
+			throw new IOException("Invalid checkpoint");
+		
+		for (int i = 0; i < filters.length; ++i)
+			filters[i].readCheckpoint(in);
+	}
+}
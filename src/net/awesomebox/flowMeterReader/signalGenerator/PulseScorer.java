@@ -0,0 +1,219 @@
+package net.awesomebox.flowMeterReader.signalGenerator;
+
+import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.PulseBuffer;
+
+/**
+ * Scores found pulses against expected pulses as they stream in.<br />
+ * <br />
+ * A found pulse matches an expected pulse if it is from the same flow meter and starts within the
+ * tolerance. Pulses are scored and dropped as soon as nothing later can change their outcome, so
+ * memory stays bounded no matter how long the run is.
+ */
+public class PulseScorer
+{
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final int toleranceNumSamples;
+	
+	// pulses not yet scored, one buffer per flow meter
+	private final PulseBuffer[] expectedPulses = new PulseBuffer[SyntheticSignalGenerator.MAX_NUM_FLOW_METERS + 1];
+	private final PulseBuffer[] foundPulses    = new PulseBuffer[SyntheticSignalGenerator.MAX_NUM_FLOW_METERS + 1];
+	
+	private final long[] numTruePositives  = new long[SyntheticSignalGenerator.MAX_NUM_FLOW_METERS + 1];
+	private final long[] numFalsePositives = new long[SyntheticSignalGenerator.MAX_NUM_FLOW_METERS + 1];
+	private final long[] numFalseNegatives = new long[SyntheticSignalGenerator.MAX_NUM_FLOW_METERS + 1];
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param toleranceNumSamples - Max number of samples a found pulse's start can be from the expected start.
+	 */
+	public PulseScorer(int toleranceNumSamples)
+	{
+		this.toleranceNumSamples = toleranceNumSamples;
+		
+		for (int i = 1; i < expectedPulses.length; ++i)
+		{
+			expectedPulses[i] = new PulseBuffer();
+			foundPulses   [i] = new PulseBuffer();
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Adds the given expected pulses and removes them from the buffer.
+	 */
+	public void addExpected(PulseBuffer pulses)
+	{
+		for (int i = 0; i < pulses.size(); ++i)
+			add(expectedPulses, pulses, i);
+		
+		pulses.clear();
+	}
+	
+	public void addFound(Pulse[] pulses)
+	{
+		for (int i = 0; i < pulses.length; ++i)
+			foundPulses[pulses[i].flowMeterID].add(pulses[i]);
+	}
+	
+	public void addFound(PulseBuffer pulses)
+	{
+		for (int i = 0; i < pulses.size(); ++i)
+			add(foundPulses, pulses, i);
+	}
+	
+	/**
+	 * Scores every pulse that can no longer be affected by pulses added later.
+	 * 
+	 * @param sampleIndex - No pulses starting before this sample index will be added anymore.
+	 */
+	public void score(long sampleIndex)
+	{
+		for (int i = 1; i < expectedPulses.length; ++i)
+			score(i, sampleIndex - toleranceNumSamples);
+	}
+	
+	/**
+	 * Scores all remaining pulses. Call once everything has been added.
+	 */
+	public void finish()
+	{
+		for (int i = 1; i < expectedPulses.length; ++i)
+			score(i, Long.MAX_VALUE);
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public long getNumTruePositives(int flowMeterID)
+	{
+		return numTruePositives[flowMeterID];
+	}
+	
+	public long getNumFalsePositives(int flowMeterID)
+	{
+		return numFalsePositives[flowMeterID];
+	}
+	
+	public long getNumFalseNegatives(int flowMeterID)
+	{
+		return numFalseNegatives[flowMeterID];
+	}
+	
+	/**
+	 * @return The ratio of expected pulses that were found across all flow meters, or 1 if none were expected.
+	 */
+	public double getRecall()
+	{
+		long numTruePositives  = sum(this.numTruePositives);
+		long numExpected       = numTruePositives + sum(numFalseNegatives);
+		return numExpected == 0? 1.0d : (double)numTruePositives / numExpected;
+	}
+	
+	/**
+	 * @return The ratio of found pulses that were expected across all flow meters, or 1 if none were found.
+	 */
+	public double getPrecision()
+	{
+		long numTruePositives  = sum(this.numTruePositives);
+		long numFound          = numTruePositives + sum(numFalsePositives);
+		return numFound == 0? 1.0d : (double)numTruePositives / numFound;
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	/**
+	 * Scores every expected pulse for a flow meter starting before the given sample index.
+	 */
+	private void score(int flowMeterID, long horizonSampleIndex)
+	{
+		PulseBuffer expected = expectedPulses[flowMeterID];
+		PulseBuffer found    = foundPulses   [flowMeterID];
+		
+		int e = 0;
+		int f = 0;
+		
+		for (; e < expected.size(); ++e)
+		{
+			long start = expected.getStartSampleIndex(e);
+			if (start >= horizonSampleIndex)
+				break;
+			
+			// anything found before the window can't match this or any later expected pulse
+			while (f < found.size() && found.getStartSampleIndex(f) < start - toleranceNumSamples)
+			{
+				++numFalsePositives[flowMeterID];
+				++f;
+			}
+			
+			if (f < found.size() && found.getStartSampleIndex(f) <= start + toleranceNumSamples)
+			{
+				++numTruePositives[flowMeterID];
+				++f;
+			}
+			else
+			{
+				++numFalseNegatives[flowMeterID];
+			}
+		}
+		
+		// found pulses this early can't match any expected pulse still to come
+		while (f < found.size() && found.getStartSampleIndex(f) < horizonSampleIndex - toleranceNumSamples)
+		{
+			++numFalsePositives[flowMeterID];
+			++f;
+		}
+		
+		if (horizonSampleIndex == Long.MAX_VALUE)
+		{
+			numFalsePositives[flowMeterID] += found.size() - f;
+			f = found.size();
+		}
+		
+		expected.removeOldest(e);
+		found   .removeOldest(f);
+	}
+	
+	private static void add(PulseBuffer[] buffers, PulseBuffer pulses, int index)
+	{
+		buffers[pulses.getFlowMeterID(index)].add(
+			pulses.getStartSampleIndex(index),
+			pulses.getDurationNumSamples(index),
+			pulses.getAmplitudeDelta(index),
+			pulses.getFlowMeterID(index));
+	}
+	
+	private static long sum(long[] values)
+	{
+		long sum = 0;
+		for (int i = 0; i < values.length; ++i)
+			sum += values[i];
+		
+		return sum;
+	}
+}
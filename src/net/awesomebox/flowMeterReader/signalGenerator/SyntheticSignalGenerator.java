@@ -0,0 +1,405 @@
+package net.awesomebox.flowMeterReader.signalGenerator;
+
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import net.awesomebox.flowMeterReader.AudioSample;
+import net.awesomebox.flowMeterReader.PulseBuffer;
+
+/**
+ * Generates audio data that looks like what the flow meters produce, along with a list of every
+ * pulse in it.<br />
+ * <br />
+ * Each flow meter is a square wave whose every switch is a pulse. The waves are added together and
+ * go through the mic input's AC coupling, so each switch shows up as a sharp edge that slowly
+ * decays back to 0. Noise, DC drift and dropouts can be added on top.<br />
+ * <br />
+ * The same seed and settings always produce the same data. Data is generated as it is asked for,
+ * so any length can be streamed in constant memory (other than the ground truth, which can be
+ * drained or turned off).
+ */
+public class SyntheticSignalGenerator
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final int MAX_NUM_FLOW_METERS = 2;
+	
+	// defaults based on the recordings in res/
+	public static final int    DEFAULT_RISE_TIME_NUM_SAMPLES = 2;
+	public static final double DEFAULT_DECAY_TIME_S          = 0.018d;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final int  sampleRate;
+	private final Random random;
+	
+	// -------------------------------------------------------------------
+	// settings
+	
+	// number of samples each edge takes to rise/fall
+	private int riseTimeNumSamples = DEFAULT_RISE_TIME_NUM_SAMPLES;
+	
+	// how much of the level is left after each sample. Models the AC coupling
+	private double decayPerSample;
+	
+	// standard deviation of the noise as a ratio of the max amplitude
+	private double noiseRatio = 0;
+	
+	// DC drift as a ratio of the max amplitude and how long it takes to drift up and back down
+	private double dcDriftRatio             = 0;
+	private double dcDriftPeriodNumSamples  = 1;
+	
+	// chance of a dropout starting on any sample and how long they last
+	private double dropoutChancePerSample = 0;
+	private int    dropoutNumSamples      = 0;
+	
+	// pulses from different flow meters are kept at least this far apart
+	// so each pulse in the ground truth is actually distinguishable
+	private int minPulseSeparationNumSamples = 0;
+	
+	// how much each pulse interval varies as a ratio of the interval
+	private double pulseIntervalJitterRatio = 0;
+	
+	// -------------------------------------------------------------------
+	// flow meters
+	
+	private int numFlowMeters = 0;
+	
+	private final int   [] flowMeterIDs                  = new int   [MAX_NUM_FLOW_METERS];
+	private final double[] flowMeterPulseIntervalSamples = new double[MAX_NUM_FLOW_METERS];
+	private final double[] flowMeterAmplitudes           = new double[MAX_NUM_FLOW_METERS];
+	
+	// the state of each flow meter's wave: +1 or -1
+	private final int   [] flowMeterWaveStates          = new int   [MAX_NUM_FLOW_METERS];
+	private final double[] flowMeterNextPulseIndexes    = new double[MAX_NUM_FLOW_METERS];
+	private final int   [] flowMeterRiseRemainingSamples = new int   [MAX_NUM_FLOW_METERS];
+	private final double[] flowMeterRiseStep            = new double[MAX_NUM_FLOW_METERS];
+	
+	// -------------------------------------------------------------------
+	// signal state
+	
+	private long   numSamplesGenerated = 0;
+	private double level = 0;
+	private long   lastPulseIndex = Long.MIN_VALUE / 2;
+	private int    dropoutRemainingSamples = 0;
+	
+	// -------------------------------------------------------------------
+	// ground truth
+	
+	// every pulse generated, or null if not recording
+	private PulseBuffer groundTruth = new PulseBuffer();
+	
+	private final long[] numPulsesGenerated = new long[MAX_NUM_FLOW_METERS + 1];
+	private long numPulsesHiddenByDropouts = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param sampleRate - Sample rate of the data to generate.
+	 * @param seed       - Seed for all randomness.
+	 */
+	public SyntheticSignalGenerator(int sampleRate, long seed)
+	{
+		this.sampleRate = sampleRate;
+		this.random     = new Random(seed);
+		
+		setDecayTimeS(DEFAULT_DECAY_TIME_S);
+	}
+	
+	
+	
+	// ===================================================================
+	// Settings
+	//
+	// ===================================================================
+	
+	/**
+	 * Adds a flow meter.
+	 * 
+	 * @param flowMeterID    - ID of the flow meter. Used in the ground truth.
+	 * @param pulseRateHz    - Number of pulses per second.
+	 * @param amplitudeRatio - Height of each pulse's edge as a ratio of the max amplitude.
+	 */
+	public void addFlowMeter(int flowMeterID, double pulseRateHz, double amplitudeRatio)
+	{
+		if (numFlowMeters == MAX_NUM_FLOW_METERS)
+			throw new IllegalStateException("Only " + MAX_NUM_FLOW_METERS + " flow meters are supported");
+		if (pulseRateHz <= 0)
+			throw new IllegalArgumentException("Pulse rate must be positive: " + pulseRateHz);
+		
+		int i = numFlowMeters++;
+		flowMeterIDs[i]                  = flowMeterID;
+		flowMeterPulseIntervalSamples[i] = sampleRate / pulseRateHz;
+		flowMeterAmplitudes[i]           = amplitudeRatio * AudioSample.AMPLITUDE_MAX_VALUE;
+		flowMeterWaveStates[i]           = -1;
+		
+		// start each meter part way through its first interval so they don't all start together
+		flowMeterNextPulseIndexes[i] = numSamplesGenerated + flowMeterPulseIntervalSamples[i] * (0.5d + random.nextDouble() * 0.5d);
+	}
+	
+	/**
+	 * @param riseTimeNumSamples - Number of samples each edge takes to rise/fall. At least 1.
+	 */
+	public void setRiseTimeNumSamples(int riseTimeNumSamples)
+	{
+		this.riseTimeNumSamples = Math.max(1, riseTimeNumSamples);
+	}
+	
+	/**
+	 * @param decayTimeS - Time constant of the mic input's AC coupling in seconds.
+	 */
+	public void setDecayTimeS(double decayTimeS)
+	{
+		decayPerSample = Math.exp(-1.0d / (decayTimeS * sampleRate));
+	}
+	
+	/**
+	 * @param noiseRatio - Standard deviation of the noise as a ratio of the max amplitude.
+	 */
+	public void setNoiseRatio(double noiseRatio)
+	{
+		this.noiseRatio = noiseRatio;
+	}
+	
+	/**
+	 * @param dcDriftRatio - How far the DC offset drifts as a ratio of the max amplitude.
+	 * @param periodS      - How long it takes to drift up and back down in seconds.
+	 */
+	public void setDCDrift(double dcDriftRatio, double periodS)
+	{
+		this.dcDriftRatio            = dcDriftRatio;
+		this.dcDriftPeriodNumSamples = Math.max(1, periodS * sampleRate);
+	}
+	
+	/**
+	 * Sets how often the signal drops out to silence. Pulses during a dropout are not in the ground truth.
+	 * 
+	 * @param dropoutsPerHour - Average number of dropouts per hour.
+	 * @param durationMS      - How long each dropout lasts in milliseconds.
+	 */
+	public void setDropouts(double dropoutsPerHour, int durationMS)
+	{
+		this.dropoutChancePerSample = dropoutsPerHour / (3600.0d * sampleRate);
+		this.dropoutNumSamples      = (int)((long)durationMS * sampleRate / 1000);
+	}
+	
+	/**
+	 * @param minPulseSeparationNumSamples - Pulses from different flow meters are kept at least this
+	 *                                       many samples apart.
+	 */
+	public void setMinPulseSeparationNumSamples(int minPulseSeparationNumSamples)
+	{
+		this.minPulseSeparationNumSamples = minPulseSeparationNumSamples;
+	}
+	
+	/**
+	 * @param pulseIntervalJitterRatio - How much each pulse interval randomly varies as a ratio of the interval.
+	 */
+	public void setPulseIntervalJitterRatio(double pulseIntervalJitterRatio)
+	{
+		this.pulseIntervalJitterRatio = pulseIntervalJitterRatio;
+	}
+	
+	/**
+	 * @param recordGroundTruth - If every pulse should be recorded in {@link #getGroundTruth}. Turn off
+	 *                            for long runs that only need {@link #getNumPulsesGenerated}.
+	 */
+	public void setRecordGroundTruth(boolean recordGroundTruth)
+	{
+		if (!recordGroundTruth)
+			groundTruth = null;
+		else if (groundTruth == null)
+			groundTruth = new PulseBuffer();
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public int getSampleRate()
+	{
+		return sampleRate;
+	}
+	
+	/**
+	 * @return The format of the generated data: 16 bit, signed, mono, big-endian.
+	 */
+	public AudioFormat getAudioFormat()
+	{
+		return new AudioFormat(sampleRate, 16, 1, true, true);
+	}
+	
+	public long getNumSamplesGenerated()
+	{
+		return numSamplesGenerated;
+	}
+	
+	/**
+	 * @return Every pulse generated so far (sorted by start sample index) or <code>null</code> if not recording.
+	 *         Pulses may be removed from it as they are consumed.
+	 */
+	public PulseBuffer getGroundTruth()
+	{
+		return groundTruth;
+	}
+	
+	/**
+	 * @return The number of pulses generated for the given flow meter, not counting those hidden by dropouts.
+	 */
+	public long getNumPulsesGenerated(int flowMeterID)
+	{
+		return numPulsesGenerated[flowMeterID];
+	}
+	
+	public long getNumPulsesHiddenByDropouts()
+	{
+		return numPulsesHiddenByDropouts;
+	}
+	
+	
+	
+	// ===================================================================
+	// Generating
+	//
+	// ===================================================================
+	
+	/**
+	 * Generates the next chunk of audio data.
+	 * 
+	 * @param buffer     - Buffer to write the data to.
+	 * @param offset     - Offset to start writing at in bytes.
+	 * @param numSamples - Number of samples to generate. Two bytes are written for each.
+	 * 
+	 * @return The number of bytes written.
+	 */
+	public int generate(byte[] buffer, int offset, int numSamples)
+	{
+		for (int i = 0; i < numSamples; ++i)
+		{
+			int amplitude = generateSample();
+			
+			// big-endian
+			buffer[offset + i * 2]     = (byte)(amplitude >> 8);
+			buffer[offset + i * 2 + 1] = (byte)amplitude;
+		}
+		
+		return numSamples * 2;
+	}
+	
+	/**
+	 * Generates the next sample.
+	 */
+	private int generateSample()
+	{
+		long sampleIndex = numSamplesGenerated++;
+		
+		// check if a dropout starts
+		if (dropoutRemainingSamples == 0 && dropoutChancePerSample > 0 && random.nextDouble() < dropoutChancePerSample)
+			dropoutRemainingSamples = dropoutNumSamples;
+		
+		boolean inDropout = dropoutRemainingSamples > 0;
+		if (inDropout)
+			--dropoutRemainingSamples;
+		
+		
+		// the AC coupling lets through changes and then decays back to 0
+		level *= decayPerSample;
+		
+		for (int i = 0; i < numFlowMeters; ++i)
+		{
+			// start a new pulse
+			if (sampleIndex >= flowMeterNextPulseIndexes[i])
+			{
+				// keep pulses from different meters apart
+				if (sampleIndex - lastPulseIndex < minPulseSeparationNumSamples)
+				{
+					flowMeterNextPulseIndexes[i] = lastPulseIndex + minPulseSeparationNumSamples;
+				}
+				else
+				{
+					startPulse(i, sampleIndex, inDropout);
+				}
+			}
+			
+			// rise/fall
+			if (flowMeterRiseRemainingSamples[i] > 0)
+			{
+				level += flowMeterRiseStep[i];
+				--flowMeterRiseRemainingSamples[i];
+			}
+		}
+		
+		if (inDropout)
+			return 0;
+		
+		
+		double value = level;
+		
+		if (dcDriftRatio != 0)
+			value += dcDriftRatio * AudioSample.AMPLITUDE_MAX_VALUE * Math.sin(2 * Math.PI * sampleIndex / dcDriftPeriodNumSamples);
+		
+		if (noiseRatio != 0)
+			value += random.nextGaussian() * noiseRatio * AudioSample.AMPLITUDE_MAX_VALUE;
+		
+		// clip like a real input would
+		long amplitude = Math.round(value);
+		if (amplitude > AudioSample.AMPLITUDE_MAX_VALUE)
+			return AudioSample.AMPLITUDE_MAX_VALUE;
+		if (amplitude < AudioSample.AMPLITUDE_MIN_VALUE)
+			return AudioSample.AMPLITUDE_MIN_VALUE;
+		
+		return (int)amplitude;
+	}
+	
+	/**
+	 * Switches a flow meter's wave and records the pulse.
+	 */
+	private void startPulse(int flowMeterIndex, long sampleIndex, boolean inDropout)
+	{
+		int direction = -flowMeterWaveStates[flowMeterIndex];
+		flowMeterWaveStates[flowMeterIndex] = direction;
+		
+		flowMeterRiseRemainingSamples[flowMeterIndex] = riseTimeNumSamples;
+		flowMeterRiseStep[flowMeterIndex] = direction * flowMeterAmplitudes[flowMeterIndex] / riseTimeNumSamples;
+		
+		lastPulseIndex = sampleIndex;
+		
+		// schedule the next pulse
+		double interval = flowMeterPulseIntervalSamples[flowMeterIndex];
+		if (pulseIntervalJitterRatio != 0)
+			interval *= 1 + pulseIntervalJitterRatio * (random.nextDouble() * 2 - 1);
+		
+		flowMeterNextPulseIndexes[flowMeterIndex] += Math.max(1, interval);
+		
+		// a pulse during a dropout can't be seen
+		if (inDropout)
+		{
+			++numPulsesHiddenByDropouts;
+			return;
+		}
+		
+		int flowMeterID = flowMeterIDs[flowMeterIndex];
+		++numPulsesGenerated[flowMeterID];
+		
+		// the pulse starts at the last sample before the rise
+		if (groundTruth != null)
+			groundTruth.add(Math.max(0, sampleIndex - 1), riseTimeNumSamples, (int)Math.round(direction * flowMeterAmplitudes[flowMeterIndex]), flowMeterID);
+	}
+}
@@ -0,0 +1,172 @@
+package net.awesomebox.flowMeterReader.signalGenerator;
+
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+import net.awesomebox.flowMeterReader.FlowMeterReading;
+import net.awesomebox.flowMeterReader.pulseDetector.PulseDetectorType;
+
+/**
+ * Streams a long synthetic signal through a {@link FlowMeterReader} as fast as possible and checks
+ * every pulse it finds against the generator's ground truth. No audio hardware is needed.<br />
+ * <br />
+ * Progress is printed every simulated 10 minutes so slowdowns, memory growth and accuracy drift over
+ * a long run are visible.<br />
+ * <br />
+ * Some meter 2 pulses are expected to be missed. When a meter 2 switch comes soon after a meter 1
+ * switch in the same direction, the two swings add up past full scale and the input clips. What is
+ * left of the meter 2 swing is under its threshold, so it is missed or taken for a meter 1 pulse.
+ * Real recordings clip the same way. With the default signal this is about 2% of meter 2 pulses;
+ * the dropouts account for none of them as pulses hidden by a dropout are not counted as
+ * generated. The run fails with a non-zero exit status if either meter misses more than
+ * {@link #MAX_MISSED_RATIO} of its pulses.<br />
+ * <br />
+ * Usage: <code>SyntheticSoakTest [durationS] [pulseDetector] [seed]</code>
+ */
+public class SyntheticSoakTest
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	private static final int  DEFAULT_DURATION_S = 60 * 60;
+	private static final long DEFAULT_SEED       = 1;
+	
+	private static final int SAMPLE_RATE       = 16000;
+	private static final int CHUNK_NUM_BYTES   = 180; // matches Main's mic reads
+	private static final int REPORT_INTERVAL_S = 10 * 60;
+	
+	// signal params. Pulse rates are well above what the meters see at full flow
+	private static final double FM1_RATE_HZ         = 15.0d;
+	private static final double FM2_RATE_HZ         = 6.5d;
+	private static final double FM1_AMPLITUDE       = 0.27d;
+	private static final double FM2_AMPLITUDE       = 0.8d;
+	private static final double PULSE_JITTER        = 0.2d;
+	private static final double NOISE               = 0.005d;
+	private static final double DC_DRIFT            = 0.02d;
+	private static final double DC_DRIFT_PERIOD_S   = 120.0d;
+	private static final double DROPOUTS_PER_HOUR   = 6.0d;
+	private static final int    DROPOUT_DURATION_MS = 250;
+	
+	// most of a meter's pulses that may be missed before the run fails. See the class doc for why
+	// some are missed
+	private static final double MAX_MISSED_RATIO = 0.03d;
+	
+	
+	
+	// ===================================================================
+	// Main
+	//
+	// ===================================================================
+	
+	public static void main(String[] args)
+	{
+		long              durationS = args.length > 0? Long.parseLong(args[0]) : DEFAULT_DURATION_S;
+		PulseDetectorType type      = args.length > 1? PulseDetectorType.fromName(args[1]) : PulseDetectorType.EDGE_FOLLOWING;
+		long              seed      = args.length > 2? Long.parseLong(args[2]) : DEFAULT_SEED;
+		
+		int maxPulseDurationNumSamples = FlowMeterReader.calculateMaxPulseDurationNumSamples(SAMPLE_RATE);
+		
+		SyntheticSignalGenerator generator = new SyntheticSignalGenerator(SAMPLE_RATE, seed);
+		generator.addFlowMeter(1, FM1_RATE_HZ, FM1_AMPLITUDE);
+		generator.addFlowMeter(2, FM2_RATE_HZ, FM2_AMPLITUDE);
+		generator.setPulseIntervalJitterRatio(PULSE_JITTER);
+		generator.setNoiseRatio(NOISE);
+		generator.setDCDrift(DC_DRIFT, DC_DRIFT_PERIOD_S);
+		generator.setDropouts(DROPOUTS_PER_HOUR, DROPOUT_DURATION_MS);
+		generator.setMinPulseSeparationNumSamples(maxPulseDurationNumSamples * 2);
+		
+		FlowMeterReader flowMeterReader = new FlowMeterReader(SAMPLE_RATE, type);
+		PulseScorer scorer = new PulseScorer(maxPulseDurationNumSamples);
+		
+		System.out.println("Soak testing " + type.name().toLowerCase() + " over " + durationS + "s of synthetic signal (seed " + seed + ")");
+		System.out.println(String.format("%10s %10s %10s %10s %10s %10s %10s",
+			"sim time", "speed", "FM1", "FM2", "recall", "precision", "heap MB"));
+		
+		byte[] buffer = new byte[CHUNK_NUM_BYTES];
+		int chunkNumSamples = CHUNK_NUM_BYTES / 2;
+		
+		long totalNumSamples = durationS * SAMPLE_RATE;
+		long reportIntervalNumSamples = (long)REPORT_INTERVAL_S * SAMPLE_RATE;
+		long nextReportNumSamples = reportIntervalNumSamples;
+		
+		long startTimeNS = System.nanoTime();
+		
+		while (generator.getNumSamplesGenerated() < totalNumSamples)
+		{
+			int numSamples = (int)Math.min(chunkNumSamples, totalNumSamples - generator.getNumSamplesGenerated());
+			int numBytes = generator.generate(buffer, 0, numSamples);
+			
+			FlowMeterReading reading = flowMeterReader.readFlowMeterAudioData(buffer, 0, numBytes, true);
+			
+			scorer.addExpected(generator.getGroundTruth());
+			scorer.addFound(reading.pulses);
+			
+			// detectors hold back up to the max pulse duration of samples
+			scorer.score(generator.getNumSamplesGenerated() - maxPulseDurationNumSamples * 2);
+			
+			// the last report is printed once everything has been scored
+			if (generator.getNumSamplesGenerated() >= nextReportNumSamples && generator.getNumSamplesGenerated() < totalNumSamples)
+			{
+				printProgress(generator, scorer, startTimeNS);
+				nextReportNumSamples += reportIntervalNumSamples;
+			}
+		}
+		
+		scorer.addFound(flowMeterReader.finish().pulses);
+		scorer.finish();
+		
+		System.out.println();
+		printProgress(generator, scorer, startTimeNS);
+		System.out.println();
+		
+		for (int flowMeterID = 1; flowMeterID <= 2; ++flowMeterID)
+		{
+			System.out.println(String.format("FM%d: %d generated, %d found, %d missed, %d extra",
+				flowMeterID,
+				generator.getNumPulsesGenerated(flowMeterID),
+				scorer.getNumTruePositives(flowMeterID),
+				scorer.getNumFalseNegatives(flowMeterID),
+				scorer.getNumFalsePositives(flowMeterID)));
+		}
+		
+		System.out.println(generator.getNumPulsesHiddenByDropouts() + " pulses hidden by dropouts");
+		
+		// fail if more were missed than clipping explains
+		boolean passed = true;
+		for (int flowMeterID = 1; flowMeterID <= 2; ++flowMeterID)
+		{
+			long numGenerated = generator.getNumPulsesGenerated(flowMeterID);
+			double missedRatio = numGenerated == 0? 0 : (double)scorer.getNumFalseNegatives(flowMeterID) / numGenerated;
+			
+			if (missedRatio > MAX_MISSED_RATIO)
+			{
+				System.out.println(String.format("FAIL: FM%d missed %.2f%% of its pulses, more than the %.2f%% allowed",
+					flowMeterID,
+					missedRatio * 100,
+					MAX_MISSED_RATIO * 100));
+				passed = false;
+			}
+		}
+		
+		if (!passed)
+			System.exit(1);
+	}
+	
+	private static void printProgress(SyntheticSignalGenerator generator, PulseScorer scorer, long startTimeNS)
+	{
+		double simTimeS = (double)generator.getNumSamplesGenerated() / generator.getSampleRate();
+		double elapsedS = (double)(System.nanoTime() - startTimeNS) / FlowMeterReader.NS_IN_S;
+		
+		Runtime runtime = Runtime.getRuntime();
+		long heapUsedMB = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+		
+		System.out.println(String.format("%9.0fs %9.0fx %10d %10d %9.2f%% %9.2f%% %10d",
+			simTimeS,
+			simTimeS / elapsedS,
+			scorer.getNumTruePositives(1) + scorer.getNumFalsePositives(1),
+			scorer.getNumTruePositives(2) + scorer.getNumFalsePositives(2),
+			scorer.getRecall() * 100,
+			scorer.getPrecision() * 100,
+			heapUsedMB));
+	}
+}
@@ -0,0 +1,296 @@
+package net.awesomebox.flowMeterReader.signalQuality;
+
+import net.awesomebox.flowMeterReader.AudioSample;
+import net.awesomebox.flowMeterReader.FlowMeterReading;
+import net.awesomebox.flowMeterReader.metrics.MetricSource;
+import net.awesomebox.flowMeterReader.metrics.MetricsWriter;
+import net.awesomebox.flowMeterReader.pulseDetector.EdgeListener;
+
+/**
+ * Keeps a rolling picture of the signal so the pulse thresholds can be set by looking rather than
+ * guessing: a histogram of the raw amplitudes, a histogram of the amplitude deltas of the edges the
+ * pulse detector measures, the RMS, the noise floor, and how often the signal clips.<br />
+ * <br />
+ * Everything is kept in fixed arrays of buckets and updated as readings come in, so nothing is ever
+ * rescanned. The window is split into {@link #NUM_BLOCKS} blocks of {@link #BLOCK_MS} milliseconds.
+ * Each block keeps its own counts and the window keeps their totals. When the oldest block is
+ * reused its counts are taken off the totals.<br />
+ * <br />
+ * {@link #process} and {@link #onEdge} must be called on the same thread, the one reading the
+ * signal. Other threads read the stats with {@link #copyTo}.
+ */
+public class SignalQualityMonitor implements EdgeListener, MetricSource
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final int NUM_BUCKETS = 128;
+	
+	// amplitudes and amplitude deltas span 2^16 values. This puts 512 in each bucket
+	private static final int BUCKET_SHIFT = 16 - 7;
+	
+	// the window is this many blocks of this long
+	public static final int BLOCK_MS   = 100;
+	public static final int NUM_BLOCKS = 50;
+	
+	// amplitudes at or past this are counted as clipped
+	public static final double CLIPPING_AMPLITUDE_RATIO = 0.99d;
+	private static final int   CLIPPING_AMPLITUDE       = (int)(CLIPPING_AMPLITUDE_RATIO * AudioSample.AMPLITUDE_MAX_VALUE);
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final int blockNumSamples;
+	
+	// -------------------------------------------------------------------
+	// per block
+	
+	private final int[][] blockAmplitudeCounts          = new int[NUM_BLOCKS][NUM_BUCKETS];
+	private final int[][] blockEdgeAmplitudeDeltaCounts = new int[NUM_BLOCKS][NUM_BUCKETS];
+	private final long[]  blockSumSquares               = new long[NUM_BLOCKS];
+	private final int[]   blockNumSamplesAdded          = new int[NUM_BLOCKS];
+	private final int[]   blockNumClipped               = new int[NUM_BLOCKS];
+	private final int[]   blockNumEdges                 = new int[NUM_BLOCKS];
+	
+	// block being filled
+	private int currentBlock = 0;
+	
+	
+	// -------------------------------------------------------------------
+	// totals over the window
+	
+	private final long[] amplitudeCounts          = new long[NUM_BUCKETS];
+	private final long[] edgeAmplitudeDeltaCounts = new long[NUM_BUCKETS];
+	private long sumSquares = 0;
+	private long numSamples = 0;
+	private long numClipped = 0;
+	private long numEdges   = 0;
+	
+	
+	// -------------------------------------------------------------------
+	// edges seen during detection, added to the window with the reading they came from. Only
+	// touched by the reading thread so they need no lock
+	
+	private final int[] pendingEdgeAmplitudeDeltaCounts = new int[NUM_BUCKETS];
+	private int numPendingEdges = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param sampleRate - Sample rate of the readings.
+	 */
+	public SignalQualityMonitor(int sampleRate)
+	{
+		blockNumSamples = Math.max(sampleRate * BLOCK_MS / 1000, 1);
+	}
+	
+	
+	
+	// ===================================================================
+	// Static Helpers
+	//
+	// ===================================================================
+	
+	/**
+	 * @return Bucket the amplitude is counted in.
+	 */
+	public static int getAmplitudeBucket(int amplitude)
+	{
+		return (amplitude - AudioSample.AMPLITUDE_MIN_VALUE) >> BUCKET_SHIFT;
+	}
+	
+	/**
+	 * @return Lowest amplitude counted in the bucket.
+	 */
+	public static int getAmplitudeBucketStart(int bucket)
+	{
+		return (bucket << BUCKET_SHIFT) + AudioSample.AMPLITUDE_MIN_VALUE;
+	}
+	
+	/**
+	 * @return Bucket the size of the amplitude delta is counted in.
+	 */
+	public static int getEdgeAmplitudeDeltaBucket(int amplitudeDelta)
+	{
+		return Math.min(Math.abs(amplitudeDelta) >> BUCKET_SHIFT, NUM_BUCKETS - 1);
+	}
+	
+	/**
+	 * @return Smallest amplitude delta counted in the bucket.
+	 */
+	public static int getEdgeAmplitudeDeltaBucketStart(int bucket)
+	{
+		return bucket << BUCKET_SHIFT;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Counts an edge the pulse detector measured. It is added to the window with the next reading.
+	 */
+	@Override
+	public void onEdge(int amplitudeDelta)
+	{
+		++pendingEdgeAmplitudeDeltaCounts[getEdgeAmplitudeDeltaBucket(amplitudeDelta)];
+		++numPendingEdges;
+	}
+	
+	/**
+	 * Adds the samples of a reading and the edges measured while detecting its pulses.
+	 */
+	public synchronized void process(FlowMeterReading reading)
+	{
+		AudioSample[] samples = reading.samples;
+		
+		for (int i = 0; i < samples.length; ++i)
+		{
+			if (blockNumSamplesAdded[currentBlock] >= blockNumSamples)
+				startNextBlock();
+			
+			int  amplitude = samples[i].amplitude;
+			int  bucket    = getAmplitudeBucket(amplitude);
+			long square    = (long)amplitude * amplitude;
+			
+			++blockAmplitudeCounts[currentBlock][bucket];
+			++amplitudeCounts[bucket];
+			
+			blockSumSquares[currentBlock] += square;
+			sumSquares += square;
+			
+			++blockNumSamplesAdded[currentBlock];
+			++numSamples;
+			
+			if (amplitude >= CLIPPING_AMPLITUDE || amplitude <= -CLIPPING_AMPLITUDE)
+			{
+				++blockNumClipped[currentBlock];
+				++numClipped;
+			}
+		}
+		
+		// add the pending edges to the block the reading ended in
+		if (numPendingEdges > 0)
+		{
+			int[] blockCounts = blockEdgeAmplitudeDeltaCounts[currentBlock];
+			
+			for (int bucket = 0; bucket < NUM_BUCKETS; ++bucket)
+			{
+				int count = pendingEdgeAmplitudeDeltaCounts[bucket];
+				if (count == 0)
+					continue;
+				
+				blockCounts[bucket] += count;
+				edgeAmplitudeDeltaCounts[bucket] += count;
+				pendingEdgeAmplitudeDeltaCounts[bucket] = 0;
+			}
+			
+			blockNumEdges[currentBlock] += numPendingEdges;
+			numEdges += numPendingEdges;
+			numPendingEdges = 0;
+		}
+	}
+	
+	/**
+	 * Copies the stats over the window. Only reads the buckets and block totals.
+	 * 
+	 * @param snapshot - Snapshot to fill in. Can be reused.
+	 */
+	public synchronized void copyTo(SignalQualitySnapshot snapshot)
+	{
+		System.arraycopy(amplitudeCounts,          0, snapshot.amplitudeCounts,          0, NUM_BUCKETS);
+		System.arraycopy(edgeAmplitudeDeltaCounts, 0, snapshot.edgeAmplitudeDeltaCounts, 0, NUM_BUCKETS);
+		
+		snapshot.numSamples    = numSamples;
+		snapshot.numEdges      = numEdges;
+		snapshot.rmsRatio      = getRMSRatio(sumSquares, numSamples);
+		snapshot.clippingRatio = numSamples > 0? (double)numClipped / numSamples : 0;
+		
+		// the noise floor is the RMS of the quietest full block
+		double noiseFloorRatio = -1;
+		for (int block = 0; block < NUM_BLOCKS; ++block)
+		{
+			if (blockNumSamplesAdded[block] < blockNumSamples)
+				continue;
+			
+			double blockRMSRatio = getRMSRatio(blockSumSquares[block], blockNumSamplesAdded[block]);
+			if (noiseFloorRatio < 0 || blockRMSRatio < noiseFloorRatio)
+				noiseFloorRatio = blockRMSRatio;
+		}
+		
+		snapshot.noiseFloorRatio = Math.max(noiseFloorRatio, 0);
+	}
+	
+	@Override
+	public synchronized void writeMetrics(MetricsWriter out)
+	{
+		SignalQualitySnapshot snapshot = new SignalQualitySnapshot();
+		copyTo(snapshot);
+		
+		out.write("signal_rms_ratio",         snapshot.getRMSRatio());
+		out.write("signal_noise_floor_ratio", snapshot.getNoiseFloorRatio());
+		out.write("signal_clipping_ratio",    snapshot.getClippingRatio());
+		out.write("signal_edges",             snapshot.getNumEdges());
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	/**
+	 * Moves on to the oldest block, taking its counts off the window's totals.
+	 */
+	private void startNextBlock()
+	{
+		currentBlock = (currentBlock + 1) % NUM_BLOCKS;
+		
+		int[] blockCounts = blockAmplitudeCounts[currentBlock];
+		for (int bucket = 0; bucket < NUM_BUCKETS; ++bucket)
+		{
+			amplitudeCounts[bucket] -= blockCounts[bucket];
+			blockCounts[bucket] = 0;
+		}
+		
+		blockCounts = blockEdgeAmplitudeDeltaCounts[currentBlock];
+		for (int bucket = 0; bucket < NUM_BUCKETS; ++bucket)
+		{
+			edgeAmplitudeDeltaCounts[bucket] -= blockCounts[bucket];
+			blockCounts[bucket] = 0;
+		}
+		
+		sumSquares -= blockSumSquares[currentBlock];
+		numSamples -= blockNumSamplesAdded[currentBlock];
+		numClipped -= blockNumClipped[currentBlock];
+		numEdges   -= blockNumEdges[currentBlock];
+		
+		blockSumSquares     [currentBlock] = 0;
+		blockNumSamplesAdded[currentBlock] = 0;
+		blockNumClipped     [currentBlock] = 0;
+		blockNumEdges       [currentBlock] = 0;
+	}
+	
+	private static double getRMSRatio(long sumSquares, long numSamples)
+	{
+		if (numSamples <= 0)
+			return 0;
+		
+		return Math.sqrt((double)sumSquares / numSamples) / AudioSample.AMPLITUDE_MAX_VALUE;
+	}
+}
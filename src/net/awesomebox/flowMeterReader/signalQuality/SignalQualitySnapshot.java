@@ -0,0 +1,68 @@
+package net.awesomebox.flowMeterReader.signalQuality;
+
+/**
+ * A copy of a {@link SignalQualityMonitor}'s stats at one point, so they can be drawn without
+ * holding up the thread reading the signal. Fill it in with {@link SignalQualityMonitor#copyTo}.
+ */
+public class SignalQualitySnapshot
+{
+	final long[] amplitudeCounts          = new long[SignalQualityMonitor.NUM_BUCKETS];
+	final long[] edgeAmplitudeDeltaCounts = new long[SignalQualityMonitor.NUM_BUCKETS];
+	
+	long   numSamples      = 0;
+	long   numEdges        = 0;
+	double rmsRatio        = 0;
+	double noiseFloorRatio = 0;
+	double clippingRatio   = 0;
+	
+	
+	/**
+	 * @return Number of samples in the window with an amplitude in the bucket.
+	 */
+	public long getAmplitudeCount(int bucket)
+	{
+		return amplitudeCounts[bucket];
+	}
+	
+	/**
+	 * @return Number of edges in the window with an amplitude delta in the bucket.
+	 */
+	public long getEdgeAmplitudeDeltaCount(int bucket)
+	{
+		return edgeAmplitudeDeltaCounts[bucket];
+	}
+	
+	public long getNumSamples()
+	{
+		return numSamples;
+	}
+	
+	public long getNumEdges()
+	{
+		return numEdges;
+	}
+	
+	/**
+	 * @return RMS amplitude over the window as a ratio of full scale.
+	 */
+	public double getRMSRatio()
+	{
+		return rmsRatio;
+	}
+	
+	/**
+	 * @return RMS amplitude of the quietest block in the window as a ratio of full scale.
+	 */
+	public double getNoiseFloorRatio()
+	{
+		return noiseFloorRatio;
+	}
+	
+	/**
+	 * @return Ratio of samples in the window that clipped.
+	 */
+	public double getClippingRatio()
+	{
+		return clippingRatio;
+	}
+}
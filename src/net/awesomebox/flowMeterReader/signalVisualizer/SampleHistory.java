@@ -0,0 +1,485 @@
+package net.awesomebox.flowMeterReader.signalVisualizer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import net.awesomebox.flowMeterReader.AudioSample;
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+
+/**
+ * Keeps the amplitudes of the newest samples outside of the Java heap so hours of signal can be
+ * kept for viewing.<br />
+ * <br />
+ * Amplitudes are stored 2 bytes each in fixed size pages, either direct buffers or regions of a
+ * memory-mapped file. Each page holds a run of samples with no gap in it, so a gap always starts a
+ * new page. The pages form a ring: once the retention is full, the oldest page is reused for the
+ * newest samples. Each page also keeps the min and max amplitude of every block of
+ * {@link #BLOCK_NUM_SAMPLES} samples, so a zoomed out view reads a summary instead of every
+ * sample.<br />
+ * <br />
+ * Only a few small arrays describing the pages are on the heap, so the heap used does not grow
+ * with the retention. Direct buffers count against <code>-XX:MaxDirectMemorySize</code>. Use a
+ * file for long retentions, which the OS pages in and out as the view needs.<br />
+ * <br />
+ * Methods are synchronized so the history can be drawn while samples are being added.
+ */
+public class SampleHistory implements Closeable
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	// about 4 seconds at 16000Hz
+	public static final int DEFAULT_PAGE_NUM_SAMPLES = 1 << 16;
+	
+	// number of samples summarized by each min and max
+	public static final int BLOCK_NUM_SAMPLES = 256;
+	
+	// number of pages to start with when the retention is unlimited
+	private static final int UNLIMITED_INITIAL_NUM_PAGES = 16;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final int pageNumSamples;
+	private final int pageNumBytes;
+	
+	// false if pages are added forever
+	private final boolean limited;
+	
+	// null if the pages are direct buffers
+	private final RandomAccessFile file;
+	private final FileChannel      fileChannel;
+	
+	
+	// -------------------------------------------------------------------
+	// the ring of pages. The page with sequence number S is in slot S % pages.length
+	
+	// amplitudes followed by a min and max for each block
+	private ShortBuffer[] pages;
+	
+	private long[] pageFirstSampleIndexes;
+	private int [] pageNumSamplesUsed;
+	
+	// sequence numbers of the oldest page and the one after the newest
+	private long oldestPageSequence = 0;
+	private long endPageSequence    = 0;
+	
+	// index of the sample after the newest one
+	private long endSampleIndex = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * Creates a history in direct buffers.
+	 * 
+	 * @param sampleRate  - Sample rate of the samples.
+	 * @param retentionNS - How long to keep samples for in nanoseconds. Use <= 0 to keep forever.
+	 */
+	public SampleHistory(int sampleRate, long retentionNS)
+	{
+		this(sampleRate, retentionNS, DEFAULT_PAGE_NUM_SAMPLES, null);
+	}
+	
+	/**
+	 * Creates a history in a memory-mapped file. Anything already in the file is overwritten.
+	 * 
+	 * @param sampleRate  - Sample rate of the samples.
+	 * @param retentionNS - How long to keep samples for in nanoseconds. Use <= 0 to keep forever.
+	 * @param file        - File to map or <code>null</code> to use direct buffers.
+	 */
+	public SampleHistory(int sampleRate, long retentionNS, File file) throws IOException
+	{
+		this(sampleRate, retentionNS, DEFAULT_PAGE_NUM_SAMPLES, file != null? openFile(file) : null);
+	}
+	
+	/**
+	 * @param file - Open file to map or <code>null</code> to use direct buffers.
+	 */
+	private SampleHistory(int sampleRate, long retentionNS, int pageNumSamples, RandomAccessFile file)
+	{
+		if (pageNumSamples <= 0 || pageNumSamples % BLOCK_NUM_SAMPLES != 0)
+			throw new IllegalArgumentException("Page size must be a multiple of " + BLOCK_NUM_SAMPLES + ": " + pageNumSamples);
+		
+		this.pageNumSamples = pageNumSamples;
+		this.pageNumBytes   = (pageNumSamples + 2 * (pageNumSamples / BLOCK_NUM_SAMPLES)) * 2;
+		this.limited        = retentionNS > 0;
+		
+		int numPages;
+		if (limited)
+		{
+			// +1 so the full retention is kept while the newest page is filling
+			long retentionNumSamples = (long)Math.ceil(retentionNS * (double)sampleRate / FlowMeterReader.NS_IN_S);
+			numPages = (int)Math.min((retentionNumSamples + pageNumSamples - 1) / pageNumSamples + 1, Integer.MAX_VALUE);
+		}
+		else
+		{
+			numPages = UNLIMITED_INITIAL_NUM_PAGES;
+		}
+		
+		pages                  = new ShortBuffer[numPages];
+		pageFirstSampleIndexes = new long[numPages];
+		pageNumSamplesUsed     = new int [numPages];
+		
+		this.file        = file;
+		this.fileChannel = file != null? file.getChannel() : null;
+	}
+	
+	private static RandomAccessFile openFile(File file) throws IOException
+	{
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(0);
+		
+		return randomAccessFile;
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public synchronized boolean isEmpty()
+	{
+		return endPageSequence == oldestPageSequence;
+	}
+	
+	/**
+	 * @return Index of the oldest sample kept, or the end sample index if there are none.
+	 */
+	public synchronized long getOldestSampleIndex()
+	{
+		if (isEmpty())
+			return endSampleIndex;
+		
+		return pageFirstSampleIndexes[getSlot(oldestPageSequence)];
+	}
+	
+	/**
+	 * @return Index of the sample after the newest one.
+	 */
+	public synchronized long getEndSampleIndex()
+	{
+		return endSampleIndex;
+	}
+	
+	/**
+	 * @return If the sample at the given index is kept. Samples in gaps and samples that are too old
+	 *         are not.
+	 */
+	public synchronized boolean contains(long sampleIndex)
+	{
+		return findPage(sampleIndex) != -1;
+	}
+	
+	/**
+	 * @return The amplitude of the sample at the given index.
+	 * 
+	 * @throws IndexOutOfBoundsException If the sample is not kept.
+	 */
+	public synchronized short getAmplitude(long sampleIndex)
+	{
+		long pageSequence = findPage(sampleIndex);
+		if (pageSequence == -1)
+			throw new IndexOutOfBoundsException("Sample not kept: " + sampleIndex);
+		
+		int slot = getSlot(pageSequence);
+		return pages[slot].get((int)(sampleIndex - pageFirstSampleIndexes[slot]));
+	}
+	
+	/**
+	 * Finds the lowest and highest amplitudes in a range of samples.
+	 * 
+	 * @param startSampleIndex - Index of the first sample in the range.
+	 * @param endSampleIndex   - Index of the sample after the range.
+	 * @param minMax           - Gets the lowest amplitude at 0 and the highest at 1.
+	 * 
+	 * @return <code>false</code> if none of the samples in the range are kept.
+	 */
+	public synchronized boolean getMinMax(long startSampleIndex, long endSampleIndex, short[] minMax)
+	{
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		
+		// start at the page the range starts in, or the page after it if it starts in a gap
+		long pageSequence = findPageAtOrBefore(startSampleIndex);
+		if (pageSequence == -1)
+			pageSequence = oldestPageSequence;
+		
+		for (; pageSequence < endPageSequence; ++pageSequence)
+		{
+			int  slot                 = getSlot(pageSequence);
+			long pageFirstSampleIndex = pageFirstSampleIndexes[slot];
+			if (pageFirstSampleIndex >= endSampleIndex)
+				break;
+			
+			int from = (int)Math.max(startSampleIndex - pageFirstSampleIndex, 0);
+			int to   = (int)Math.min(endSampleIndex   - pageFirstSampleIndex, pageNumSamplesUsed[slot]);
+			
+			ShortBuffer page = pages[slot];
+			int i = from;
+			
+			// samples before the first whole block
+			for (; i < to && i % BLOCK_NUM_SAMPLES != 0; ++i)
+			{
+				short amplitude = page.get(i);
+				if (amplitude < min) min = amplitude;
+				if (amplitude > max) max = amplitude;
+			}
+			
+			// whole blocks
+			for (; i + BLOCK_NUM_SAMPLES <= to; i += BLOCK_NUM_SAMPLES)
+			{
+				int blockOffset = getBlockOffset(i / BLOCK_NUM_SAMPLES);
+				short blockMin = page.get(blockOffset);
+				short blockMax = page.get(blockOffset + 1);
+				if (blockMin < min) min = blockMin;
+				if (blockMax > max) max = blockMax;
+			}
+			
+			// samples after the last whole block
+			for (; i < to; ++i)
+			{
+				short amplitude = page.get(i);
+				if (amplitude < min) min = amplitude;
+				if (amplitude > max) max = amplitude;
+			}
+		}
+		
+		if (min > max)
+			return false;
+		
+		minMax[0] = (short)min;
+		minMax[1] = (short)max;
+		return true;
+	}
+	
+	/**
+	 * @return Number of bytes of direct buffers or mapped file in use.
+	 */
+	public synchronized long getNumBytes()
+	{
+		long numPages = 0;
+		for (int i = 0; i < pages.length; ++i)
+		{
+			if (pages[i] != null)
+				++numPages;
+		}
+		
+		return numPages * pageNumBytes;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Adds samples to the history.
+	 * 
+	 * @param samples          - Samples to add.
+	 * @param firstSampleIndex - Index of the first sample in the stream. If this skips ahead of the
+	 *                           samples already added, the samples in between are a gap.
+	 */
+	public synchronized void add(AudioSample[] samples, long firstSampleIndex)
+	{
+		if (samples.length == 0)
+			return;
+		
+		if (firstSampleIndex < endSampleIndex)
+			throw new IllegalArgumentException("Samples must be added in order: " + firstSampleIndex + " < " + endSampleIndex);
+		
+		// a gap starts a new page
+		if (firstSampleIndex != endSampleIndex && !isEmpty())
+			startPage(firstSampleIndex);
+		
+		for (int i = 0; i < samples.length; ++i)
+		{
+			if (isEmpty() || pageNumSamplesUsed[getSlot(endPageSequence - 1)] == pageNumSamples)
+				startPage(firstSampleIndex + i);
+			
+			int         slot      = getSlot(endPageSequence - 1);
+			ShortBuffer page      = pages[slot];
+			int         offset    = pageNumSamplesUsed[slot]++;
+			short       amplitude = samples[i].amplitude;
+			
+			page.put(offset, amplitude);
+			
+			// keep the block's min and max
+			int blockOffset = getBlockOffset(offset / BLOCK_NUM_SAMPLES);
+			if (offset % BLOCK_NUM_SAMPLES == 0)
+			{
+				page.put(blockOffset,     amplitude);
+				page.put(blockOffset + 1, amplitude);
+			}
+			else
+			{
+				if (amplitude < page.get(blockOffset))     page.put(blockOffset,     amplitude);
+				if (amplitude > page.get(blockOffset + 1)) page.put(blockOffset + 1, amplitude);
+			}
+		}
+		
+		endSampleIndex = firstSampleIndex + samples.length;
+	}
+	
+	/**
+	 * Releases the file. Direct buffers and mappings are freed once they are garbage collected.
+	 */
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (file != null)
+			file.close();
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	private int getSlot(long pageSequence)
+	{
+		return (int)(pageSequence % pages.length);
+	}
+	
+	/**
+	 * @return Offset in a page of the min of the given block. The max follows it.
+	 */
+	private int getBlockOffset(int blockIndex)
+	{
+		return pageNumSamples + 2 * blockIndex;
+	}
+	
+	/**
+	 * @return Sequence number of the page holding the given sample, or -1 if it is not kept.
+	 */
+	private long findPage(long sampleIndex)
+	{
+		long pageSequence = findPageAtOrBefore(sampleIndex);
+		if (pageSequence == -1)
+			return -1;
+		
+		int slot = getSlot(pageSequence);
+		if (sampleIndex >= pageFirstSampleIndexes[slot] + pageNumSamplesUsed[slot])
+			return -1;
+		
+		return pageSequence;
+	}
+	
+	/**
+	 * @return Sequence number of the newest page starting at or before the given sample, or -1 if
+	 *         every page starts after it.
+	 */
+	private long findPageAtOrBefore(long sampleIndex)
+	{
+		long low  = oldestPageSequence;
+		long high = endPageSequence - 1;
+		
+		while (low <= high)
+		{
+			long mid = (low + high) >>> 1;
+			if (pageFirstSampleIndexes[getSlot(mid)] <= sampleIndex)
+				low = mid + 1;
+			else
+				high = mid - 1;
+		}
+		
+		return high >= oldestPageSequence? high : -1;
+	}
+	
+	/**
+	 * Starts a new page at the given sample, reusing the oldest page if the ring is full.
+	 */
+	private void startPage(long firstSampleIndex)
+	{
+		if (endPageSequence - oldestPageSequence == pages.length)
+		{
+			if (limited)
+				++oldestPageSequence;
+			else
+				grow();
+		}
+		
+		int slot = getSlot(endPageSequence);
+		if (pages[slot] == null)
+			pages[slot] = createPage(endPageSequence);
+		
+		pageFirstSampleIndexes[slot] = firstSampleIndex;
+		pageNumSamplesUsed    [slot] = 0;
+		++endPageSequence;
+	}
+	
+	/**
+	 * Doubles the number of pages, keeping each page in the slot for its sequence number.
+	 */
+	private void grow()
+	{
+		int numPages = pages.length;
+		if (numPages > Integer.MAX_VALUE / 2)
+			throw new IllegalStateException("Too many pages");
+		
+		int newNumPages = numPages * 2;
+		ShortBuffer[] newPages                  = new ShortBuffer[newNumPages];
+		long[]        newPageFirstSampleIndexes = new long[newNumPages];
+		int []        newPageNumSamplesUsed     = new int [newNumPages];
+		
+		for (long pageSequence = oldestPageSequence; pageSequence < endPageSequence; ++pageSequence)
+		{
+			int oldSlot = (int)(pageSequence % numPages);
+			int newSlot = (int)(pageSequence % newNumPages);
+			
+			newPages                 [newSlot] = pages                 [oldSlot];
+			newPageFirstSampleIndexes[newSlot] = pageFirstSampleIndexes[oldSlot];
+			newPageNumSamplesUsed    [newSlot] = pageNumSamplesUsed    [oldSlot];
+		}
+		
+		pages                  = newPages;
+		pageFirstSampleIndexes = newPageFirstSampleIndexes;
+		pageNumSamplesUsed     = newPageNumSamplesUsed;
+	}
+	
+	private ShortBuffer createPage(long pageSequence)
+	{
+		ByteBuffer buffer;
+		if (fileChannel == null)
+		{
+			buffer = ByteBuffer.allocateDirect(pageNumBytes);
+		}
+		else
+		{
+			// a limited ring maps one region per slot. An unlimited one keeps growing the file
+			long pageIndex = limited? getSlot(pageSequence) : pageSequence;
+			try
+			{
+				buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, pageIndex * pageNumBytes, pageNumBytes);
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException("Unable to map sample history page", e);
+			}
+		}
+		
+		return buffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+	}
+}
@@ -0,0 +1,223 @@
+package net.awesomebox.flowMeterReader.signalVisualizer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.awesomebox.flowMeterReader.AudioSample;
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+import net.awesomebox.flowMeterReader.PulseBuffer;
+
+/**
+ * Draws a time range of samples and pulses onto an image without a window, the same way the
+ * visualizer draws them.<br />
+ * <br />
+ * The image is split into strips of {@link #STRIP_WIDTH} pixels. Each strip is drawn on its own
+ * thread with its own {@link SignalVisualizerDrawer} into its part of the image. The grid lines and
+ * their labels span strips so they are drawn once over the whole image after.
+ */
+public class SignalRenderer
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final int DEFAULT_WIDTH  = 1920;
+	public static final int DEFAULT_HEIGHT = 500;
+	
+	// width of the strips drawn in parallel
+	private static final int STRIP_WIDTH = 512;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final int sampleRate;
+	private final SampleHistory history;
+	private final PulseBuffer pulses;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param sampleRate - Sample rate of the samples.
+	 * @param history    - Samples to draw.
+	 * @param pulses     - Pulses to draw over the samples.
+	 */
+	public SignalRenderer(int sampleRate, SampleHistory history, PulseBuffer pulses)
+	{
+		this.sampleRate = sampleRate;
+		this.history    = history;
+		this.pulses     = pulses;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Draws a time range.
+	 * 
+	 * @param startTimeNS - Time at the left edge of the image.
+	 * @param endTimeNS   - Time at the right edge of the image.
+	 * @param width       - Width of the image in pixels.
+	 * @param height      - Height of the image in pixels.
+	 * @param numThreads  - Number of strips to draw at once.
+	 */
+	public BufferedImage render(long startTimeNS, long endTimeNS, int width, int height, int numThreads) throws InterruptedException
+	{
+		if (endTimeNS <= startTimeNS)
+			throw new IllegalArgumentException("End must be after start: " + startTimeNS + " >= " + endTimeNS);
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("Size must be positive: " + width + "x" + height);
+		
+		final double xScale = (double)width / (endTimeNS - startTimeNS);
+		
+		final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		
+		// background, amplitude lines, and time lines for the whole image
+		SignalVisualizerDrawer imageDrawer = createDrawer(width, height, xScale);
+		imageDrawer.updateVisualizationView(startTimeNS, endTimeNS - startTimeNS, -1, -1);
+		
+		Graphics2D g = image.createGraphics();
+		try
+		{
+			g.setColor(Color.WHITE);
+			g.fillRect(0, 0, width, height);
+			
+			imageDrawer.drawGridLines(g);
+			imageDrawer.drawBoundaryLines(g);
+		}
+		finally
+		{
+			g.dispose();
+		}
+		
+		
+		// draw the strips in parallel. Each draws into its own part of the image
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(numThreads, 1));
+		try
+		{
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			
+			for (int stripX = 0; stripX < width; stripX += STRIP_WIDTH)
+			{
+				final int stripWidth = Math.min(STRIP_WIDTH, width - stripX);
+				
+				final BufferedImage strip = image.getSubimage(stripX, 0, stripWidth, height);
+				final long stripStartTimeNS = startTimeNS + (long)(stripX / xScale);
+				final long stripEndTimeNS   = startTimeNS + (long)((stripX + stripWidth) / xScale);
+				
+				futures.add(executor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call()
+					{
+						renderStrip(strip, stripStartTimeNS, stripEndTimeNS, xScale);
+						return null;
+					}
+				}));
+			}
+			
+			for (Future<Void> future : futures)
+				future.get();
+		}
+		catch (ExecutionException e)
+		{
+			throw new IllegalStateException("Unable to render strip", e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		
+		
+		// labels on top
+		g = image.createGraphics();
+		try
+		{
+			imageDrawer.drawGridLineLables(g);
+		}
+		finally
+		{
+			g.dispose();
+		}
+		
+		return image;
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	private void renderStrip(BufferedImage strip, long startTimeNS, long endTimeNS, double xScale)
+	{
+		SignalVisualizerDrawer drawer = createDrawer(strip.getWidth(), strip.getHeight(), xScale);
+		
+		// include the samples just past each side so the lines to them are drawn
+		long firstSampleIndex = Math.max(getSampleIndexAtOrBefore(startTimeNS),   history.getOldestSampleIndex());
+		long lastSampleIndex  = Math.min(getSampleIndexAtOrBefore(endTimeNS) + 1, history.getEndSampleIndex() - 1);
+		
+		if (firstSampleIndex > lastSampleIndex)
+		{
+			firstSampleIndex = -1;
+			lastSampleIndex  = -1;
+		}
+		
+		drawer.updateVisualizationView(startTimeNS, endTimeNS - startTimeNS, firstSampleIndex, lastSampleIndex);
+		
+		Graphics2D g = strip.createGraphics();
+		try
+		{
+			drawer.drawPulses(pulses, history, sampleRate, 0, true, true, false, g);
+			drawer.drawSamples(history, sampleRate, g);
+		}
+		finally
+		{
+			g.dispose();
+		}
+	}
+	
+	/**
+	 * Creates a drawer with the same Y axis the visualizer uses for the given size.
+	 */
+	private static SignalVisualizerDrawer createDrawer(int width, int height, double xScale)
+	{
+		int rangeHeight = height - (SignalVisualizer.VISUALIZATION_PADDING_TOP + SignalVisualizer.VISUALIZATION_PADDING_BOTTOM);
+		int yOrigin     = SignalVisualizer.VISUALIZATION_PADDING_TOP + rangeHeight / 2;
+		int yRange      = rangeHeight / 2;
+		
+		SignalVisualizerDrawer drawer = new SignalVisualizerDrawer();
+		drawer.updateVisualizationSize(width, height);
+		drawer.updateVisualizationXAxis(xScale);
+		drawer.updateVisualizationYAxis(yOrigin, yRange, (double)yRange / AudioSample.AMPLITUDE_MAX_VALUE);
+		
+		return drawer;
+	}
+	
+	private long getSampleIndexAtOrBefore(long timeNS)
+	{
+		return (long)Math.floor(timeNS * (double)sampleRate / FlowMeterReader.NS_IN_S);
+	}
+}
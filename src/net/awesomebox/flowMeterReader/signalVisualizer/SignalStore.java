@@ -0,0 +1,413 @@
+package net.awesomebox.flowMeterReader.signalVisualizer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.awesomebox.flowMeterReader.AudioSample;
+import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.PulseBuffer;
+import net.awesomebox.flowMeterReader.SampleGap;
+import net.awesomebox.flowMeterReader.checkpoint.Checkpointable;
+
+/**
+ * Holds the samples, pulses, and gaps the visualizer shows so several views can draw from one copy
+ * of them.<br />
+ * <br />
+ * Data is only ever appended and old data dropped. Views take the read lock while they draw and
+ * adding takes the write lock, so any number of views can draw at once. Each view keeps its own
+ * zoom, position, and filters, so memory does not grow with the number of views.<br />
+ * <br />
+ * The store is reference counted. Each view retains it and releases it when closed. The samples are
+ * closed once the last view is closed.<br />
+ * <br />
+ * The running totals are kept apart from the pulses and gaps stored for drawing. They are counted
+ * on the thread reading the signal, the same thread that checkpoints them, so they stay exact even
+ * when the pulses to draw are stored later on another thread or dropped.
+ */
+public class SignalStore implements Checkpointable
+{
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	// the sample rate of all samples given
+	private final int sampleRate;
+	
+	// samples are kept off the heap. Pulses and gaps are kept as long as their samples
+	private final SampleHistory        history;
+	private final PulseBuffer          pulses = new PulseBuffer();
+	private final ArrayList<SampleGap> gaps   = new ArrayList<SampleGap>();
+	
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	// number of views using the store. The samples are closed when it drops back to 0
+	private int     refCount = 0;
+	private boolean closed   = false;
+	
+	// keep track of some stats. Only changed on the thread reading the signal
+	private volatile long totalNumSamples   = 0;
+	private volatile long totalNumPulsesFM1 = 0;
+	private volatile long totalNumPulsesFM2 = 0;
+	
+	// gaps since starting. Not checkpointed
+	private volatile long totalNumGaps       = 0;
+	private volatile long totalNumGapSamples = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	/**
+	 * @param sampleRate          - Sample rate. It is assumed that all samples given are <code>1/sampleRate</code>
+	 *                              seconds apart, except across gaps.
+	 * @param dataStoreDurationNS - How long samples and pulses are stored for in nanoseconds. Use <= 0 to keep forever.
+	 */
+	public SignalStore(int sampleRate, long dataStoreDurationNS)
+	{
+		this(sampleRate, new SampleHistory(sampleRate, dataStoreDurationNS));
+	}
+	
+	/**
+	 * @param sampleRate - Sample rate. It is assumed that all samples given are <code>1/sampleRate</code>
+	 *                     seconds apart, except across gaps.
+	 * @param history    - Where to store samples. Decides how long they are kept for. Should be empty.
+	 */
+	public SignalStore(int sampleRate, SampleHistory history)
+	{
+		this.sampleRate = sampleRate;
+		this.history    = history;
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public int getSampleRate()
+	{
+		return sampleRate;
+	}
+	
+	public SampleHistory getHistory()
+	{
+		return history;
+	}
+	
+	public long getTotalNumSamples()
+	{
+		return totalNumSamples;
+	}
+	
+	public long getTotalNumPulsesFM1()
+	{
+		return totalNumPulsesFM1;
+	}
+	
+	public long getTotalNumPulsesFM2()
+	{
+		return totalNumPulsesFM2;
+	}
+	
+	public long getTotalNumGaps()
+	{
+		return totalNumGaps;
+	}
+	
+	public long getTotalNumGapSamples()
+	{
+		return totalNumGapSamples;
+	}
+	
+	public synchronized int getRefCount()
+	{
+		return refCount;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Adds samples right after the last samples added.
+	 * 
+	 * @see #addSamples(AudioSample[], long)
+	 */
+	public void addSamples(AudioSample[] samples)
+	{
+		addSamples(samples, history.getEndSampleIndex());
+	}
+	
+	/**
+	 * Adds samples and drops the pulses and gaps older than the samples still kept.
+	 * 
+	 * @param samples          - Samples to add.
+	 * @param firstSampleIndex - Index of the first sample in the stream.
+	 */
+	public void addSamples(AudioSample[] samples, long firstSampleIndex)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			history.add(samples, firstSampleIndex);
+			totalNumSamples += samples.length;
+			
+			if (!history.isEmpty())
+			{
+				removeOldPulses();
+				removeOldGaps();
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Counts and stores pulses.
+	 * 
+	 * @param pulses - Pulses to add.
+	 */
+	public void addPulses(Pulse[] pulses)
+	{
+		countPulses(pulses);
+		storePulses(pulses);
+	}
+	
+	/**
+	 * Adds pulses to the totals without storing them. Call from the thread reading the signal.
+	 * 
+	 * @param pulses - Pulses to count.
+	 */
+	public void countPulses(Pulse[] pulses)
+	{
+		for (int i = 0; i < pulses.length; ++i)
+		{
+			if (pulses[i].flowMeterID == 1)
+				++totalNumPulsesFM1;
+			else
+				++totalNumPulsesFM2;
+		}
+	}
+	
+	/**
+	 * Stores pulses to be drawn without counting them. Can be called from any thread.
+	 * 
+	 * @param pulses - Pulses to store.
+	 */
+	public void storePulses(Pulse[] pulses)
+	{
+		if (pulses.length == 0)
+			return;
+		
+		lock.writeLock().lock();
+		try
+		{
+			for (int i = 0; i < pulses.length; ++i)
+				this.pulses.add(pulses[i]);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Counts and stores a gap where samples are missing. Add it before the samples after it.
+	 * 
+	 * @param gap - Gap to add or <code>null</code> for none.
+	 */
+	public void addGap(SampleGap gap)
+	{
+		countGap(gap);
+		storeGap(gap);
+	}
+	
+	/**
+	 * Adds a gap to the totals without storing it. Call from the thread reading the signal.
+	 * 
+	 * @param gap - Gap to count or <code>null</code> for none.
+	 */
+	public void countGap(SampleGap gap)
+	{
+		if (gap == null)
+			return;
+		
+		++totalNumGaps;
+		totalNumGapSamples += gap.numSamples;
+	}
+	
+	/**
+	 * Stores a gap to be drawn without counting it. Can be called from any thread.
+	 * 
+	 * @param gap - Gap to store or <code>null</code> for none.
+	 */
+	public void storeGap(SampleGap gap)
+	{
+		if (gap == null)
+			return;
+		
+		lock.writeLock().lock();
+		try
+		{
+			gaps.add(gap);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds a reference for a new user of the store.
+	 * 
+	 * @return This store.
+	 */
+	public synchronized SignalStore retain()
+	{
+		if (closed)
+			throw new IllegalStateException("Store already closed");
+		
+		++refCount;
+		return this;
+	}
+	
+	/**
+	 * Drops a reference. The samples are closed when the last one is dropped.
+	 */
+	public synchronized void release() throws IOException
+	{
+		if (refCount <= 0)
+			throw new IllegalStateException("Store not retained");
+		
+		if (--refCount == 0)
+		{
+			closed = true;
+			history.close();
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Checkpointing
+	//
+	// ===================================================================
+	
+	/**
+	 * Writes the running totals. The stored samples and pulses are only kept for viewing and are
+	 * not checkpointed.
+	 */
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException
+	{
+		out.writeLong(totalNumSamples);
+		out.writeLong(totalNumPulsesFM1);
+		out.writeLong(totalNumPulsesFM2);
+	}
+	
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException
+	{
+		long checkpointTotalNumSamples   = in.readLong();
+		long checkpointTotalNumPulsesFM1 = in.readLong();
+		long checkpointTotalNumPulsesFM2 = in.readLong();
+		
+		if (checkpointTotalNumSamples < 0 || checkpointTotalNumPulsesFM1 < 0 || checkpointTotalNumPulsesFM2 < 0)
+			throw new IOException("Invalid checkpoint");
+		
+		lock.writeLock().lock();
+		try
+		{
+			totalNumSamples   = checkpointTotalNumSamples;
+			totalNumPulsesFM1 = checkpointTotalNumPulsesFM1;
+			totalNumPulsesFM2 = checkpointTotalNumPulsesFM2;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// View Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Keeps data from being added or dropped until {@link #unlockForReading} is called. Hold it
+	 * while drawing from the pulses and gaps.
+	 */
+	void lockForReading()
+	{
+		lock.readLock().lock();
+	}
+	
+	void unlockForReading()
+	{
+		lock.readLock().unlock();
+	}
+	
+	/**
+	 * Only use while holding the read lock.
+	 */
+	PulseBuffer getPulses()
+	{
+		return pulses;
+	}
+	
+	/**
+	 * Only use while holding the read lock.
+	 */
+	ArrayList<SampleGap> getGaps()
+	{
+		return gaps;
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	/**
+	 * Removes all pulses whose samples are no longer kept.
+	 */
+	private void removeOldPulses()
+	{
+		int numToRemove = pulses.indexOfFirstStartingAtOrAfter(history.getOldestSampleIndex());
+		if (numToRemove > 0)
+			pulses.removeOldest(numToRemove);
+	}
+	
+	/**
+	 * Removes all gaps that can no longer be seen.
+	 */
+	private void removeOldGaps()
+	{
+		// a view can't go before the oldest sample so a gap that ends by then can't be seen
+		long oldestSampleIndex = history.getOldestSampleIndex();
+		
+		int numToRemove = 0;
+		while (numToRemove < gaps.size() && gaps.get(numToRemove).getEndSampleIndex() <= oldestSampleIndex)
+			++numToRemove;
+		
+		if (numToRemove > 0)
+			gaps.subList(0, numToRemove).clear();
+	}
+}
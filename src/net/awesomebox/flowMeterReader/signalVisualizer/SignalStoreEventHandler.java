@@ -0,0 +1,60 @@
+package net.awesomebox.flowMeterReader.signalVisualizer;
+
+import java.util.ArrayList;
+
+import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.eventBus.PulseEvent;
+import net.awesomebox.flowMeterReader.eventBus.PulseEventBus;
+import net.awesomebox.flowMeterReader.eventBus.PulseEventHandler;
+
+/**
+ * Stores the pulses and gaps from a {@link PulseEventBus} in a {@link SignalStore} to be drawn, so
+ * the thread reading the signal never waits on the store's write lock for them. Pulses are saved up
+ * and stored a batch at a time, so the lock is taken once per batch rather than once per pulse.<br />
+ * <br />
+ * Only stores them. The thread reading the signal counts them into the store's totals itself as it
+ * publishes them, so the totals it checkpoints don't depend on how far behind this handler is.
+ */
+public class SignalStoreEventHandler implements PulseEventHandler
+{
+	private final SignalStore store;
+	
+	// pulses waiting for the end of the batch. Only used on the consumer's thread
+	private final ArrayList<Pulse> pendingPulses = new ArrayList<Pulse>();
+	
+	
+	public SignalStoreEventHandler(SignalStore store)
+	{
+		this.store = store;
+	}
+	
+	
+	@Override
+	public void onPulseEvent(PulseEvent event, long sequence, boolean endOfBatch)
+	{
+		switch (event.type)
+		{
+			case PulseEvent.TYPE_PULSE:
+				pendingPulses.add(event.pulse);
+				break;
+			
+			case PulseEvent.TYPE_GAP:
+				// keep the pulses before the gap in order with it
+				addPendingPulses();
+				store.storeGap(event.gap);
+				break;
+		}
+		
+		if (endOfBatch)
+			addPendingPulses();
+	}
+	
+	private void addPendingPulses()
+	{
+		if (pendingPulses.isEmpty())
+			return;
+		
+		store.storePulses(pendingPulses.toArray(new Pulse[pendingPulses.size()]));
+		pendingPulses.clear();
+	}
+}
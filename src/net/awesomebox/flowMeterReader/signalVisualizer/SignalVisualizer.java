@@ -1,15 +1,20 @@
 package net.awesomebox.flowMeterReader.signalVisualizer;
 
 import java.awt.Graphics;
-import java.util.ArrayList;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 import net.awesomebox.flowMeterReader.AudioSample;
 import net.awesomebox.flowMeterReader.FlowMeterReader;
 import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.SampleGap;
+import net.awesomebox.flowMeterReader.checkpoint.Checkpointable;
 
 
 
-public class SignalVisualizer
+public class SignalVisualizer implements Checkpointable, Closeable
 {
 	// ===================================================================
 	// Constants
@@ -32,15 +37,11 @@ public class SignalVisualizer
 	// the sample rate of all samples given
 	private final int sampleRate;
 	
-	// how long to keep samples and pulses for in nanoseconds
-	private final long dataStoreDurationNS;
-	private final int dataStoreNumSamples;
-	
 	// if the view should update to show the latest sample when one is added
 	private boolean tailing;
 	
-	// time of the newest sample when refresh was last called
-	private AudioSample lastSampleTailed;
+	// index of the newest sample when the view last tailed
+	private long lastTailedSampleIndex = -1;
 	
 	
 	// -------------------------------------------------------------------
@@ -48,6 +49,9 @@ public class SignalVisualizer
 	
 	private final SignalVisualizerDrawer drawer = new SignalVisualizerDrawer();
 	
+	// pre-rendered samples or null to draw them directly
+	private SignalVisualizerTileCache tileCache = null;
+	
 	// pixel position of the Y origin (y=0) in the visualization
 	private int visualizationYOrigin;
 	
@@ -63,6 +67,14 @@ public class SignalVisualizer
 	private boolean showFM2PulseBoxes        = false;
 	private boolean showPulseAmplitudeDeltas = false;
 	private boolean showGridLines            = false;
+	private boolean showPaintStats           = false;
+	private boolean showSamples              = true;
+	
+	// only draw the pulses of this flow meter, or all of them if 0
+	private int pulseFlowMeterIDFilter = 0;
+	
+	// how long each drawing pass takes
+	private final SignalVisualizerPaintStats paintStats = new SignalVisualizerPaintStats();
 	
 	
 	// -------------------------------------------------------------------
@@ -75,26 +87,22 @@ public class SignalVisualizer
 	// meaning, data at this time appears at the far left side of the visualizer
 	private long visualizationViewTimePositionNS = 0;
 	
-	// the index of the first and last samples visible in the view
-	private int visualizationViewFirstVisibleSampleIndex;
-	private int visualizationViewLastVisibleSampleIndex;
+	// the stream index of the first and last samples visible in the view
+	private long visualizationViewFirstVisibleSampleIndex;
+	private long visualizationViewLastVisibleSampleIndex;
 	
 	
 	// -------------------------------------------------------------------
 	// visualization data
 	
-	private ArrayList<AudioSample> samples = new ArrayList<AudioSample>();
-	private ArrayList<Pulse>       pulses  = new ArrayList<Pulse>();
+	// samples, pulses, and gaps. May be shared with other views
+	private final SignalStore   store;
+	private final SampleHistory history;
 	
-	// the newest and oldest samples
+	// the newest and oldest samples as of the last refresh
 	private AudioSample oldestSample = null;
 	private AudioSample newestSample = null;
 	
-	// keep track of some stats
-	private long totalNumSamples   = 0;
-	private long totalNumPulsesFM1 = 0;
-	private long totalNumPulsesFM2 = 0;
-	
 	
 	
 	// ===================================================================
@@ -106,7 +114,7 @@ public class SignalVisualizer
 	 * Creates a utility for visualizing audio samples and pulses.
 	 * 
 	 * @param sampleRate - Sample rate. It is assumed that all samples given are <code>1/sampleRate</code>
-	 *                     seconds apart.
+	 *                     seconds apart, except across gaps.
 	 */
 	public SignalVisualizer(int sampleRate)
 	{
@@ -117,21 +125,41 @@ public class SignalVisualizer
 	 * Creates a utility for visualizing audio samples and pulses.
 	 * 
 	 * @param sampleRate          - Sample rate. It is assumed that all samples given are <code>1/sampleRate</code>
-	 *                              seconds apart.
+	 *                              seconds apart, except across gaps.
 	 * @param dataStoreDurationNS - How long samples and pulses are stored for in nanoseconds. Use <= 0 to keep forever.
 	 * @param tailing             - If the view should update to show the latest samples as they are added.
 	 */
 	public SignalVisualizer(int sampleRate, long dataStoreDurationNS, boolean tailing)
 	{
-		this.sampleRate = sampleRate;
-		this.dataStoreDurationNS = dataStoreDurationNS;
-		this.tailing = tailing;
-		
-		// calculate the number of samples to store
-		if (this.dataStoreDurationNS > 0)
-			dataStoreNumSamples = (int)((sampleRate * dataStoreDurationNS) / (double)FlowMeterReader.NS_IN_S + 0.5d);
-		else
-			dataStoreNumSamples = 0;
+		this(sampleRate, new SampleHistory(sampleRate, dataStoreDurationNS), tailing);
+	}
+	
+	/**
+	 * Creates a utility for visualizing audio samples and pulses.
+	 * 
+	 * @param sampleRate - Sample rate. It is assumed that all samples given are <code>1/sampleRate</code>
+	 *                     seconds apart, except across gaps.
+	 * @param history    - Where to store samples. Decides how long they are kept for. Should be empty.
+	 * @param tailing    - If the view should update to show the latest samples as they are added.
+	 */
+	public SignalVisualizer(int sampleRate, SampleHistory history, boolean tailing)
+	{
+		this(new SignalStore(sampleRate, history), tailing);
+	}
+	
+	/**
+	 * Creates a view of a store that other views may be drawing from too. The view keeps a
+	 * reference to the store until it is closed.
+	 * 
+	 * @param store   - Samples, pulses, and gaps to show.
+	 * @param tailing - If the view should update to show the latest samples as they are added.
+	 */
+	public SignalVisualizer(SignalStore store, boolean tailing)
+	{
+		this.store      = store.retain();
+		this.sampleRate = store.getSampleRate();
+		this.history    = store.getHistory();
+		this.tailing    = tailing;
 		
 		setVisualizationSize(100, 100);
 	}
@@ -239,7 +267,32 @@ public class SignalVisualizer
 	
 	public long getTotalNumSamples()
 	{
-		return totalNumSamples;
+		return store.getTotalNumSamples();
+	}
+	
+	public SampleHistory getHistory()
+	{
+		return history;
+	}
+	
+	public SignalStore getStore()
+	{
+		return store;
+	}
+	
+	public SignalVisualizerPaintStats getPaintStats()
+	{
+		return paintStats;
+	}
+	
+	/**
+	 * Sets where to get pre-rendered samples from.
+	 * 
+	 * @param tileCache - The cache or <code>null</code> to draw samples directly.
+	 */
+	public void setTileCache(SignalVisualizerTileCache tileCache)
+	{
+		this.tileCache = tileCache;
 	}
 	
 	
@@ -248,18 +301,32 @@ public class SignalVisualizer
 	
 	public long getTotalNumPulsesFM1()
 	{
-		return totalNumPulsesFM1;
+		return store.getTotalNumPulsesFM1();
 	}
 	
 	public long getTotalNumPulsesFM2()
 	{
-		return totalNumPulsesFM2;
+		return store.getTotalNumPulsesFM2();
 	}
 	
 	
 	// -------------------------------------------------------------------
 	// drawing decorations
 	
+	public long getTotalNumGaps()
+	{
+		return store.getTotalNumGaps();
+	}
+	
+	public long getTotalNumGapSamples()
+	{
+		return store.getTotalNumGapSamples();
+	}
+	
+	
+	// -------------------------------------------------------------------
+	// toggles
+	
 	public void toggleShowFM1PulseBoxes()
 	{
 		showFM1PulseBoxes = !showFM1PulseBoxes;
@@ -280,6 +347,45 @@ public class SignalVisualizer
 		showGridLines = !showGridLines;
 	}
 	
+	public void toggleShowPaintStats()
+	{
+		showPaintStats = !showPaintStats;
+	}
+	
+	public void setShowFM1PulseBoxes(boolean showFM1PulseBoxes)
+	{
+		this.showFM1PulseBoxes = showFM1PulseBoxes;
+	}
+	
+	public void setShowFM2PulseBoxes(boolean showFM2PulseBoxes)
+	{
+		this.showFM2PulseBoxes = showFM2PulseBoxes;
+	}
+	
+	public void setShowSamples(boolean showSamples)
+	{
+		this.showSamples = showSamples;
+	}
+	
+	
+	// -------------------------------------------------------------------
+	// filters
+	
+	/**
+	 * Only draws the pulses of one flow meter.
+	 * 
+	 * @param flowMeterID - ID of the flow meter to draw the pulses of or 0 for all of them.
+	 */
+	public void setPulseFlowMeterIDFilter(int flowMeterID)
+	{
+		this.pulseFlowMeterIDFilter = flowMeterID;
+	}
+	
+	public int getPulseFlowMeterIDFilter()
+	{
+		return pulseFlowMeterIDFilter;
+	}
+	
 	
 	
 	// ===================================================================
@@ -288,19 +394,28 @@ public class SignalVisualizer
 	// ===================================================================
 	
 	/**
-	 * Adds samples to the list of samples to be displayed.<br />
+	 * Adds samples right after the last samples added.
+	 * 
+	 * @see #addSamples(AudioSample[], long)
+	 */
+	public void addSamples(AudioSample[] samples)
+	{
+		store.addSamples(samples);
+	}
+	
+	/**
+	 * Adds samples to the list of samples to be displayed. They are added to the store so every
+	 * view of it sees them.<br />
 	 * <br />
 	 * Make sure to call {@link #refresh} after adding samples.
 	 * @see #refresh
 	 * 
-	 * @param samples - Samples to add.
+	 * @param samples          - Samples to add.
+	 * @param firstSampleIndex - Index of the first sample in the stream.
 	 */
-	public void addSamples(AudioSample[] samples)
+	public void addSamples(AudioSample[] samples, long firstSampleIndex)
 	{
-		for (int i = 0; i < samples.length; ++i)
-			this.samples.add(samples[i]);
-		
-		totalNumSamples += samples.length;
+		store.addSamples(samples, firstSampleIndex);
 	}
 	
 	/**
@@ -310,54 +425,66 @@ public class SignalVisualizer
 	 */
 	public void addPulses(Pulse[] pulses)
 	{
-		for (int i = 0; i < pulses.length; ++i)
-		{
-			this.pulses.add(pulses[i]);
-			
-			if (pulses[i].flowMeterID == 1)
-				++totalNumPulsesFM1;
-			else
-				++totalNumPulsesFM2;
-		}
+		store.addPulses(pulses);
+	}
+	
+	
+	/**
+	 * Adds a gap to be displayed where samples are missing. Add it before the samples after it.
+	 * 
+	 * @param gap - Gap to add or <code>null</code> for none.
+	 */
+	public void addGap(SampleGap gap)
+	{
+		store.addGap(gap);
+	}
+	
+	/**
+	 * Counts the pulses and gap in a reading into the totals without storing them to be displayed.
+	 * Use when they are stored separately, for example by a {@link SignalStoreEventHandler}.
+	 * 
+	 * @param pulses - Pulses to count.
+	 * @param gap    - Gap to count or <code>null</code> for none.
+	 */
+	public void countPulsesAndGap(Pulse[] pulses, SampleGap gap)
+	{
+		store.countPulses(pulses);
+		store.countGap(gap);
+	}
+	
+	
+	/**
+	 * Releases this view's reference to the store.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		store.release();
 	}
 	
 	
 	/**
-	 * Updates the visualization and removes old data.<br />
+	 * Updates the visualization.<br />
 	 * <br />
-	 * This should be called after one or more samples are added via {@link #addRawSample} or {@link #addNormalizedSample}.
+	 * This should be called after one or more samples are added via {@link #addSamples}, on each
+	 * view of the store.
 	 */
 	public void refresh()
 	{
-		if (samples.size() == 0)
-			return;
-		
-		// remove old samples
-		removeOldSamples();
-		
-		// recalculate oldest and newest samples
-		if (samples.size() == 0)
-		{
-			oldestSample = null;
-			newestSample = null;
-		}
-		else
-		{
-			oldestSample = samples.get(0);
-			newestSample = samples.get(samples.size() - 1);
-		}
-		
-		// remove old pulses
-		removeOldPulses();
-		
-		
 		// check if we have any samples
-		if (oldestSample == null)
+		if (history.isEmpty())
 		{
 			recalculateVisualizationViewVisibleSamples();
 			return;
 		}
 		
+		// recalculate oldest and newest samples
+		long oldestSampleIndex = history.getOldestSampleIndex();
+		long newestSampleIndex = history.getEndSampleIndex() - 1;
+		
+		oldestSample = new AudioSample(getTimeNS(oldestSampleIndex), history.getAmplitude(oldestSampleIndex));
+		newestSample = new AudioSample(getTimeNS(newestSampleIndex), history.getAmplitude(newestSampleIndex));
+		
 		
 		if (tailing)
 		{
@@ -378,78 +505,34 @@ public class SignalVisualizer
 	
 	
 	// ===================================================================
-	// Private Methods
+	// Checkpointing
 	//
 	// ===================================================================
 	
-	// -------------------------------------------------------------------
-	// removing old data
-	
 	/**
-	 * Removes all samples that can no longer be seen.
+	 * Writes the store's running totals.
+	 * 
+	 * @see SignalStore#writeCheckpoint
 	 */
-	private void removeOldSamples()
+	@Override
+	public void writeCheckpoint(DataOutput out) throws IOException
 	{
-		if (dataStoreNumSamples <= 0)
-			return;
-		
-		// find the oldest sample to keep
-		int oldestSampleToKeepIndex = samples.size() - dataStoreNumSamples;
-		
-		// check if we have anything to remove
-		if (oldestSampleToKeepIndex < 1)
-			return;
-		
-		// remove old samples
-		samples.subList(0, oldestSampleToKeepIndex).clear();
+		store.writeCheckpoint(out);
 	}
 	
-	/**
-	 * Removes all pulses that can no longer be seen.
-	 */
-	private void removeOldPulses()
+	@Override
+	public void readCheckpoint(DataInput in) throws IOException
 	{
-		if (dataStoreNumSamples <= 0)
-			return;
-		
-		if (samples.size() == 0)
-			return;
-		
-		// a pulse can not be older than the oldest sample
-		long oldestTimeToKeepNS = oldestSample.timeNS;
-		
-		// find the oldest pulse to keep
-		int oldestPulseToKeepIndex = -1;
-		for (int i = 0; i < pulses.size(); ++i)
-		{
-			// check if the end of the pulse is new enough to be kept
-			if (pulses.get(i).endSample.timeNS >= oldestTimeToKeepNS)
-			{
-				oldestPulseToKeepIndex = i;
-				break;
-			}
-		}
-		
-		// check if we found a pulse to keep
-		if (oldestPulseToKeepIndex == -1)
-		{
-			// we didn't, they are all too old
-			// remove them all
-			pulses.clear();
-			return;
-		}
-		
-		int removeUpToIndex = oldestPulseToKeepIndex;
-		
-		// check if we have anything to remove
-		if (removeUpToIndex < 1)
-			return;
-		
-		// remove old pulses
-		pulses.subList(0, removeUpToIndex).clear();
+		store.readCheckpoint(in);
 	}
 	
 	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
 	// -------------------------------------------------------------------
 	// recalculating visualization variables
 	
@@ -474,72 +557,30 @@ public class SignalVisualizer
 	 */
 	private void recalculateVisualizationViewVisibleSamples()
 	{
-		if (samples.size() == 0)
-		{
-			visualizationViewFirstVisibleSampleIndex = -1;
-			visualizationViewLastVisibleSampleIndex  = -1;
-			return;
-		}
-		
-		// find the first visible sample
-		// get time from oldest sample to visualization view's left side
-		long timeTillViewLeftNS = visualizationViewTimePositionNS - oldestSample.timeNS;
-		
-		// get the number of samples that would make up this time (rounded down)
-		int numSamplesTillViewLeft = (int)((double)(timeTillViewLeftNS * sampleRate) / FlowMeterReader.NS_IN_S);
-		
-		// if it is negative, this means the oldest sample is past the left side of the visualization view
-		if (numSamplesTillViewLeft < 0)
-			numSamplesTillViewLeft = 0;
-		
-		// if this greater than the number of samples, then there are no samples that are past the left side of the visualization view
-		if (numSamplesTillViewLeft > samples.size())
+		if (history.isEmpty())
 		{
-			// if the there are no samples past the left side, there are no visible samples
 			visualizationViewFirstVisibleSampleIndex = -1;
 			visualizationViewLastVisibleSampleIndex  = -1;
 			return;
 		}
 		
-		int firstVisibleIndex = numSamplesTillViewLeft - 1;
-		
-		// if this is negative, that means it took 0 samples to get to the view's left side
-		if (firstVisibleIndex < 0)
-		{
-			// the first visible sample is the first sample
-			firstVisibleIndex = 0;
-		}
-		
-		visualizationViewFirstVisibleSampleIndex = firstVisibleIndex;
-		
-		
-		// find the last visible sample
-		// get time from oldest sample to visualization view's right side
-		long timeTillViewRightNS = (visualizationViewTimePositionNS + visualizationViewTimeSpanNS) - oldestSample.timeNS;
+		long oldestSampleIndex = history.getOldestSampleIndex();
+		long newestSampleIndex = history.getEndSampleIndex() - 1;
 		
-		// get the number of samples that would make up this time (rounded up)
-		int numSamplesTillViewRight = (int)(((double)(timeTillViewRightNS * sampleRate) / FlowMeterReader.NS_IN_S) + 0.5d);
+		// include the samples just past each side so the lines to them are drawn
+		long firstVisibleIndex = getSampleIndexAtOrBefore(visualizationViewTimePositionNS);
+		long lastVisibleIndex  = getSampleIndexAtOrBefore(visualizationViewTimePositionNS + visualizationViewTimeSpanNS) + 1;
 		
-		// if it is negative, this means the oldest sample is past the right side of the visualization view
-		if (numSamplesTillViewRight < 0)
+		// check if any samples are in the view
+		if (firstVisibleIndex > newestSampleIndex || lastVisibleIndex < oldestSampleIndex)
 		{
-			// if the oldest sample is past the right side, there are no visible samples
 			visualizationViewFirstVisibleSampleIndex = -1;
 			visualizationViewLastVisibleSampleIndex  = -1;
 			return;
 		}
 		
-		// +1 to account for rounding errors
-		++numSamplesTillViewRight;
-		
-		// if this greater than the number of samples, then their are no samples past the right side of the visualization view
-		if (numSamplesTillViewRight > samples.size() - 1)
-		{
-			// use the last sample
-			numSamplesTillViewRight = samples.size() - 1;
-		}
-		
-		visualizationViewLastVisibleSampleIndex = numSamplesTillViewRight;
+		visualizationViewFirstVisibleSampleIndex = Math.max(firstVisibleIndex, oldestSampleIndex);
+		visualizationViewLastVisibleSampleIndex  = Math.min(lastVisibleIndex,  newestSampleIndex);
 	}
 	
 	/**
@@ -562,6 +603,22 @@ public class SignalVisualizer
 	// -------------------------------------------------------------------
 	// other
 	
+	/**
+	 * @return Time of the sample at the given index in the stream, the same way the reader works it out.
+	 */
+	private long getTimeNS(long sampleIndex)
+	{
+		return (sampleIndex * FlowMeterReader.NS_IN_S) / sampleRate;
+	}
+	
+	/**
+	 * @return Index of the newest sample at or before the given time, whether it is kept or not.
+	 */
+	private long getSampleIndexAtOrBefore(long timeNS)
+	{
+		return (long)Math.floor(timeNS * (double)sampleRate / FlowMeterReader.NS_IN_S);
+	}
+	
 	/**
 	 * Updates the view's position so it shows the latest sample when one
 	 * is added.
@@ -572,10 +629,11 @@ public class SignalVisualizer
 			return;
 		
 		// check if we have already tailed this sample
-		if (newestSample == lastSampleTailed)
+		long newestSampleIndex = history.getEndSampleIndex() - 1;
+		if (newestSampleIndex == lastTailedSampleIndex)
 			return;
 		
-		lastSampleTailed = newestSample;
+		lastTailedSampleIndex = newestSampleIndex;
 		
 		// update the view to show the newest sample
 		visualizationViewTimePositionNS = newestSample.timeNS - visualizationViewTimeSpanNS;
@@ -619,15 +677,65 @@ public class SignalVisualizer
 			visualizationViewLastVisibleSampleIndex
 		);
 		
-		// draw
+		// draw, timing each pass
+		drawer.resetCounts();
+		long frameStartTimeNS = System.nanoTime();
+		long passStartTimeNS  = frameStartTimeNS;
+		
 		if (showGridLines)
+		{
 			drawer.drawGridLines(g);
+			passStartTimeNS = endPass(SignalVisualizerPaintStats.PASS_GRID_LINES, passStartTimeNS);
+		}
 		
 		drawer.drawBoundaryLines(g);
-		drawer.drawPulses(pulses, showFM1PulseBoxes, showFM2PulseBoxes, showPulseAmplitudeDeltas, g);
-		drawer.drawSamples(samples, g);
+		passStartTimeNS = endPass(SignalVisualizerPaintStats.PASS_BOUNDARY_LINES, passStartTimeNS);
+		
+		// keep the pulses and gaps from changing while they are drawn
+		store.lockForReading();
+		try
+		{
+			drawer.drawGaps(store.getGaps(), sampleRate, g);
+			passStartTimeNS = endPass(SignalVisualizerPaintStats.PASS_GAPS, passStartTimeNS);
+			
+			drawer.drawPulses(store.getPulses(), history, sampleRate, pulseFlowMeterIDFilter, showFM1PulseBoxes, showFM2PulseBoxes, showPulseAmplitudeDeltas, g);
+			passStartTimeNS = endPass(SignalVisualizerPaintStats.PASS_PULSES, passStartTimeNS);
+		}
+		finally
+		{
+			store.unlockForReading();
+		}
+		
+		if (showSamples)
+		{
+			drawer.drawSamples(history, sampleRate, tileCache, g);
+			passStartTimeNS = endPass(SignalVisualizerPaintStats.PASS_SAMPLES, passStartTimeNS);
+		}
 		
 		if (showGridLines)
+		{
 			drawer.drawGridLineLables(g);
+			passStartTimeNS = endPass(SignalVisualizerPaintStats.PASS_GRID_LINE_LABELS, passStartTimeNS);
+		}
+		
+		paintStats.addPassTime(SignalVisualizerPaintStats.PASS_TOTAL, passStartTimeNS - frameStartTimeNS);
+		paintStats.endFrame(passStartTimeNS, drawer.getNumLinesDrawn(), drawer.getNumPulsesDrawn());
+		
+		// drawn last so it is not timed
+		if (showPaintStats)
+			drawer.drawPaintStats(paintStats, g);
+	}
+	
+	/**
+	 * Records the time a pass took.
+	 * 
+	 * @return The time the pass ended, which the next pass starts at.
+	 */
+	private long endPass(int pass, long passStartTimeNS)
+	{
+		long passEndTimeNS = System.nanoTime();
+		paintStats.addPassTime(pass, passEndTimeNS - passStartTimeNS);
+		
+		return passEndTimeNS;
 	}
 }
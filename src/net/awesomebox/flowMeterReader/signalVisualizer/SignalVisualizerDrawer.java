@@ -1,12 +1,17 @@
 package net.awesomebox.flowMeterReader.signalVisualizer;
 
 import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 
 import net.awesomebox.flowMeterReader.AudioSample;
 import net.awesomebox.flowMeterReader.FlowMeterReader;
-import net.awesomebox.flowMeterReader.Pulse;
+import net.awesomebox.flowMeterReader.PulseBuffer;
+import net.awesomebox.flowMeterReader.SampleGap;
 
 public class SignalVisualizerDrawer
 {
@@ -19,6 +24,12 @@ public class SignalVisualizerDrawer
 	public static final Color FM1_LIGHT_COLOR = new Color(255, 128, 128);
 	public static final Color FM2_COLOR       = new Color(0,   0,   255);
 	public static final Color FM2_LIGHT_COLOR = new Color(128, 128, 255);
+	public static final Color GAP_COLOR       = new Color(255, 200, 120);
+	
+	private static final Color PAINT_STATS_BACKGROUND_COLOR = new Color(0, 0, 0, 180);
+	
+	// fewest pixels between samples to draw each sample. Closer samples are drawn as a min/max per column
+	private static final double MIN_PIXELS_PER_SAMPLE = 0.5d;
 	
 	
 	
@@ -42,8 +53,16 @@ public class SignalVisualizerDrawer
 	// view
 	private long visualizationViewTimePositionNS;
 	private long visualizationViewTimeSpanNS;
-	private int visualizationViewFirstVisibleSampleIndex;
-	private int visualizationViewLastVisibleSampleIndex;
+	private long visualizationViewFirstVisibleSampleIndex;
+	private long visualizationViewLastVisibleSampleIndex;
+	
+	// lowest and highest amplitude of a column
+	private final short[] minMax = new short[2];
+	
+	// what has been drawn since the counts were last reset
+	private long numLinesDrawn  = 0;
+	private long numPulsesDrawn = 0;
+	private long numTilesDrawn  = 0;
 	
 	
 	
@@ -78,8 +97,8 @@ public class SignalVisualizerDrawer
 	void updateVisualizationView(
 		long visualizationViewTimePositionNS,
 		long visualizationViewTimeSpanNS,
-		int visualizationViewFirstVisibleSampleIndex,
-		int visualizationViewLastVisibleSampleIndex)
+		long visualizationViewFirstVisibleSampleIndex,
+		long visualizationViewLastVisibleSampleIndex)
 	{
 		this.visualizationViewTimePositionNS          = visualizationViewTimePositionNS;
 		this.visualizationViewTimeSpanNS              = visualizationViewTimeSpanNS;
@@ -89,6 +108,41 @@ public class SignalVisualizerDrawer
 	
 	
 	
+	// ===================================================================
+	// Counts
+	//
+	// ===================================================================
+	
+	void resetCounts()
+	{
+		numLinesDrawn  = 0;
+		numPulsesDrawn = 0;
+		numTilesDrawn  = 0;
+	}
+	
+	/**
+	 * @return Number of lines samples were drawn with directly.
+	 */
+	long getNumLinesDrawn()
+	{
+		return numLinesDrawn;
+	}
+	
+	long getNumPulsesDrawn()
+	{
+		return numPulsesDrawn;
+	}
+	
+	/**
+	 * @return Number of pre-rendered tiles of samples drawn.
+	 */
+	long getNumTilesDrawn()
+	{
+		return numTilesDrawn;
+	}
+	
+	
+	
 	// ===================================================================
 	// Drawing Methods
 	//
@@ -98,22 +152,152 @@ public class SignalVisualizerDrawer
 	// samples
 	
 	void drawSamples(
-		ArrayList<AudioSample> samples,
+		SampleHistory history,
+		int sampleRate,
 		Graphics g)
 	{
 		if (visualizationViewFirstVisibleSampleIndex < 0)
 			return;
 		
 		g.setColor(Color.BLACK);
-		for (int i = visualizationViewFirstVisibleSampleIndex + 1; i <= visualizationViewLastVisibleSampleIndex; ++i)
+		
+		double pixelsPerSample = visualizationXScale * FlowMeterReader.NS_IN_S / sampleRate;
+		if (pixelsPerSample < MIN_PIXELS_PER_SAMPLE)
+			drawSampleColumns(history, sampleRate, g);
+		else
+			drawSampleLines(history, sampleRate, g);
+	}
+	
+	/**
+	 * Draws the samples from pre-rendered tiles where they are ready and directly everywhere else.
+	 * 
+	 * @param tileCache - Cache of tiles or <code>null</code> to draw directly.
+	 */
+	void drawSamples(
+		SampleHistory history,
+		int sampleRate,
+		SignalVisualizerTileCache tileCache,
+		Graphics g)
+	{
+		if (tileCache == null)
+		{
+			drawSamples(history, sampleRate, g);
+			return;
+		}
+		
+		if (visualizationViewFirstVisibleSampleIndex < 0)
+			return;
+		
+		tileCache.startFrame();
+		
+		long firstTileIndex = SignalVisualizerTileCache.getTileIndex(visualizationXScale, visualizationViewTimePositionNS);
+		long lastTileIndex  = SignalVisualizerTileCache.getTileIndex(visualizationXScale, visualizationViewTimePositionNS + visualizationViewTimeSpanNS);
+		
+		// where tiles are missing
+		int missingStartX = Integer.MAX_VALUE;
+		int missingEndX   = Integer.MIN_VALUE;
+		
+		for (long tileIndex = firstTileIndex; tileIndex <= lastTileIndex; ++tileIndex)
+		{
+			int tileX = getXForTime(SignalVisualizerTileCache.getTileStartNS(visualizationXScale, tileIndex));
+			
+			BufferedImage tile = tileCache.getTile(
+				history,
+				sampleRate,
+				visualizationXScale,
+				visualizationYOrigin,
+				visualizationYRange,
+				visualizationYScale,
+				visualizationHeight,
+				tileIndex);
+			
+			if (tile != null)
+			{
+				g.drawImage(tile, tileX, 0, null);
+				++numTilesDrawn;
+			}
+			else
+			{
+				missingStartX = Math.min(missingStartX, tileX);
+				missingEndX   = Math.max(missingEndX,   tileX + SignalVisualizerTileCache.TILE_WIDTH);
+			}
+		}
+		
+		// draw the missing tiles directly
+		if (missingStartX < missingEndX)
+		{
+			Shape clip = g.getClip();
+			g.clipRect(missingStartX, 0, missingEndX - missingStartX, visualizationHeight);
+			
+			drawSamples(history, sampleRate, g);
+			
+			g.setClip(clip);
+		}
+	}
+	
+	/**
+	 * Draws a line between each pair of visible samples.
+	 */
+	private void drawSampleLines(
+		SampleHistory history,
+		int sampleRate,
+		Graphics g)
+	{
+		for (long i = visualizationViewFirstVisibleSampleIndex + 1; i <= visualizationViewLastVisibleSampleIndex; ++i)
 		{
-			AudioSample sample         = samples.get(i);
-			AudioSample previousSample = samples.get(i - 1);
+			// don't join samples across a gap
+			if (!history.contains(i) || !history.contains(i - 1))
+				continue;
 			
 			// draw a line from the previous sample to this one
+			++numLinesDrawn;
 			g.drawLine(
-				getXForTime(previousSample.timeNS), getYForAmplitude(previousSample.amplitude),
-				getXForTime(sample        .timeNS), getYForAmplitude(sample        .amplitude));
+				getXForTime(getTimeNS(i - 1, sampleRate)), getYForAmplitude(history.getAmplitude(i - 1)),
+				getXForTime(getTimeNS(i,     sampleRate)), getYForAmplitude(history.getAmplitude(i)));
+		}
+	}
+	
+	/**
+	 * Draws a line from the lowest to the highest sample in each column. Each column's line is
+	 * stretched to meet the previous column's so the signal stays joined up.
+	 */
+	private void drawSampleColumns(
+		SampleHistory history,
+		int sampleRate,
+		Graphics g)
+	{
+		double samplesPerPixel = sampleRate / (visualizationXScale * FlowMeterReader.NS_IN_S);
+		double firstSampleIndex = visualizationViewTimePositionNS * (double)sampleRate / FlowMeterReader.NS_IN_S;
+		
+		boolean hasPreviousColumn = false;
+		int previousTopY    = 0;
+		int previousBottomY = 0;
+		
+		for (int x = 0; x < visualizationWidth; ++x)
+		{
+			long startSampleIndex = (long)Math.ceil(firstSampleIndex + x       * samplesPerPixel);
+			long endSampleIndex   = (long)Math.ceil(firstSampleIndex + (x + 1) * samplesPerPixel);
+			
+			// columns with no samples (EX: in a gap) break the line
+			if (!history.getMinMax(startSampleIndex, endSampleIndex, minMax))
+			{
+				hasPreviousColumn = false;
+				continue;
+			}
+			
+			int topY    = getYForAmplitude(minMax[1]);
+			int bottomY = getYForAmplitude(minMax[0]);
+			
+			if (hasPreviousColumn)
+				g.drawLine(x, Math.min(topY, previousBottomY), x, Math.max(bottomY, previousTopY));
+			else
+				g.drawLine(x, topY, x, bottomY);
+			
+			++numLinesDrawn;
+			
+			hasPreviousColumn = true;
+			previousTopY      = topY;
+			previousBottomY   = bottomY;
 		}
 	}
 	
@@ -122,28 +306,50 @@ public class SignalVisualizerDrawer
 	// pulses
 	
 	void drawPulses(
-		ArrayList<Pulse> pulses,
+		PulseBuffer pulses,
+		SampleHistory history,
+		int sampleRate,
+		int flowMeterIDFilter,
 		boolean showFM1PulseBoxes,
 		boolean showFM2PulseBoxes,
 		boolean showPulseAmplitudeDeltas,
 		Graphics g)
 	{
-		for (int i = 0; i < pulses.size(); ++i)
+		if (visualizationViewFirstVisibleSampleIndex < 0)
+			return;
+		
+		// pulses can't be longer than this so none starting before it can be visible
+		int firstIndex = pulses.indexOfFirstStartingAtOrAfter(visualizationViewFirstVisibleSampleIndex - Short.MAX_VALUE);
+		
+		for (int i = firstIndex; i < pulses.size(); ++i)
 		{
-			Pulse pulse = pulses.get(i);
+			long startSampleIndex = pulses.getStartSampleIndex(i);
+			long endSampleIndex   = pulses.getEndSampleIndex(i);
 			
 			// check if the pulse is visible
-			if (pulse.endSample.timeNS < visualizationViewTimePositionNS)
+			if (endSampleIndex < visualizationViewFirstVisibleSampleIndex)
 				continue;
-			if (pulse.startSample.timeNS > visualizationViewTimePositionNS + visualizationViewTimeSpanNS)
+			if (startSampleIndex > visualizationViewLastVisibleSampleIndex)
 				break;
 			
-			g.setColor(pulse.flowMeterID == 1? FM1_LIGHT_COLOR : FM2_LIGHT_COLOR);
+			if (!history.contains(startSampleIndex))
+				continue;
+			
+			int flowMeterID = pulses.getFlowMeterID(i);
+			if (flowMeterIDFilter != 0 && flowMeterID != flowMeterIDFilter)
+				continue;
+			
+			++numPulsesDrawn;
+			
+			short startAmplitude = history.getAmplitude(startSampleIndex);
+			int   amplitudeDelta = pulses.getAmplitudeDelta(i);
+			
+			g.setColor(flowMeterID == 1? FM1_LIGHT_COLOR : FM2_LIGHT_COLOR);
 			
-			int startX = getXForTime(pulse.startSample.timeNS);
-			int startY = getYForAmplitude(pulse.startSample.amplitude);
-			int endX   = getXForTime(pulse.endSample.timeNS);
-			int endY   = getYForAmplitude(pulse.endSample.amplitude);
+			int startX = getXForTime(getTimeNS(startSampleIndex, sampleRate));
+			int startY = getYForAmplitude(startAmplitude);
+			int endX   = getXForTime(getTimeNS(endSampleIndex, sampleRate));
+			int endY   = getYForAmplitude(startAmplitude + amplitudeDelta);
 			
 			int topY;
 			int bottomY;
@@ -161,8 +367,8 @@ public class SignalVisualizerDrawer
 			
 			
 			// draw boxes if enabled
-			if ((pulse.flowMeterID == 1 && showFM1PulseBoxes) ||
-				(pulse.flowMeterID == 2 && showFM2PulseBoxes))
+			if ((flowMeterID == 1 && showFM1PulseBoxes) ||
+				(flowMeterID == 2 && showFM2PulseBoxes))
 			{
 				// draw a box from the pulse's start time to end time
 				g.fillRect(
@@ -183,15 +389,15 @@ public class SignalVisualizerDrawer
 			// draw amplitude delta if enabled
 			if (showPulseAmplitudeDeltas)
 			{
-				g.setColor(pulse.flowMeterID == 1? FM1_COLOR : FM2_COLOR);
+				g.setColor(flowMeterID == 1? FM1_COLOR : FM2_COLOR);
 				
-				double amplitudeDelta = (pulse.endSample.amplitude - pulse.startSample.amplitude) / (double)AudioSample.AMPLITUDE_MAX_VALUE;
+				double normalizedAmplitudeDelta = amplitudeDelta / (double)AudioSample.AMPLITUDE_MAX_VALUE;
 				
 				// round amplitude delta to 3 decimal places
-				amplitudeDelta = (int)(amplitudeDelta * 1000) / 1000.0d;
+				normalizedAmplitudeDelta = (int)(normalizedAmplitudeDelta * 1000) / 1000.0d;
 				
 				g.drawString(
-					Double.toString(amplitudeDelta),
+					Double.toString(normalizedAmplitudeDelta),
 					startX - 5,
 					bottomY + 20);
 			}
@@ -199,6 +405,43 @@ public class SignalVisualizerDrawer
 	}
 	
 	
+	// -------------------------------------------------------------------
+	// gaps
+	
+	void drawGaps(
+		ArrayList<SampleGap> gaps,
+		int sampleRate,
+		Graphics g)
+	{
+		for (int i = indexOfFirstGapEndingAfter(gaps, visualizationViewFirstVisibleSampleIndex); i < gaps.size(); ++i)
+		{
+			SampleGap gap = gaps.get(i);
+			
+			long startTimeNS = (gap.startSampleIndex    * FlowMeterReader.NS_IN_S) / sampleRate;
+			long endTimeNS   = (gap.getEndSampleIndex() * FlowMeterReader.NS_IN_S) / sampleRate;
+			
+			// check if the gap is visible
+			if (endTimeNS < visualizationViewTimePositionNS)
+				continue;
+			if (startTimeNS > visualizationViewTimePositionNS + visualizationViewTimeSpanNS)
+				break;
+			
+			// shade where the samples are missing. At least a pixel wide so short gaps show up
+			int startX = Math.max(getXForTime(startTimeNS), -1);
+			int endX   = Math.min(getXForTime(endTimeNS), visualizationWidth + 1);
+			
+			g.setColor(GAP_COLOR);
+			g.fillRect(startX, 0, Math.max(endX - startX, 1), visualizationHeight);
+			
+			g.setColor(Color.BLACK);
+			g.drawString(
+				"gap " + ((gap.numSamples * 1000) / sampleRate) + "ms",
+				Math.max(startX, 0) + 2,
+				SignalVisualizer.VISUALIZATION_PADDING_TOP + 12);
+		}
+	}
+	
+	
 	// -------------------------------------------------------------------
 	// boundary lines
 	
@@ -245,11 +488,11 @@ public class SignalVisualizerDrawer
 		long lineTimeSpacingNS = visualizationViewTimeSpanNS / optimalNumLines;
 		
 		// round the spacing using the most significant digit
-		int mul = 10;
+		long mul = 10;
 		while (lineTimeSpacingNS/mul >= 10) // continue until we have only 1 digit
 			mul *= 10;
 		
-		lineTimeSpacingNS = (int)Math.round((double)lineTimeSpacingNS / mul) * mul;
+		lineTimeSpacingNS = Math.round((double)lineTimeSpacingNS / mul) * mul;
 		
 		// find the starting time using the spacing (rounded down)
 		long firstLineTimesNS = ((long)((double)visualizationViewTimePositionNS / lineTimeSpacingNS)) * lineTimeSpacingNS;
@@ -311,9 +554,78 @@ public class SignalVisualizerDrawer
 	}
 	
 	
+	// -------------------------------------------------------------------
+	// paint stats
+	
+	void drawPaintStats(SignalVisualizerPaintStats paintStats, Graphics g)
+	{
+		String[] lines = new String[SignalVisualizerPaintStats.NUM_PASSES + 2];
+		lines[0] = String.format("%.1f fps  %d lines  %d pulses  %d tiles",
+			paintStats.getFPS(),
+			paintStats.getLastNumLinesDrawn(),
+			paintStats.getLastNumPulsesDrawn(),
+			numTilesDrawn);
+		lines[1] = String.format("%-17s %7s %7s %7s", "pass", "last", "p50", "p99");
+		
+		for (int pass = 0; pass < SignalVisualizerPaintStats.NUM_PASSES; ++pass)
+		{
+			lines[pass + 2] = String.format("%-17s %7.2f %7.2f %7.2f",
+				SignalVisualizerPaintStats.getPassName(pass),
+				paintStats.getLastPassTimeMS(pass),
+				paintStats.getPassTimeQuantileMS(pass, 0.5d),
+				paintStats.getPassTimeQuantileMS(pass, 0.99d));
+		}
+		
+		// in the top right corner
+		Font font = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+		g.setFont(font);
+		FontMetrics fontMetrics = g.getFontMetrics(font);
+		
+		int width = 0;
+		for (String line : lines)
+			width = Math.max(width, fontMetrics.stringWidth(line));
+		
+		int lineHeight = fontMetrics.getHeight();
+		int x = visualizationWidth - width - 10;
+		int y = SignalVisualizer.VISUALIZATION_PADDING_TOP;
+		
+		g.setColor(PAINT_STATS_BACKGROUND_COLOR);
+		g.fillRect(x - 5, y, width + 10, lines.length * lineHeight + 6);
+		
+		g.setColor(Color.WHITE);
+		for (int i = 0; i < lines.length; ++i)
+			g.drawString(lines[i], x, y + (i + 1) * lineHeight);
+	}
+	
+	
 	// -------------------------------------------------------------------
 	// helpers
 	
+	/**
+	 * Finds the first gap that ends after the given sample index, so a view far into a long
+	 * history does not have to look at every gap before it.
+	 * 
+	 * @return Index of the gap or the number of gaps if they all end at or before the sample.
+	 */
+	private static int indexOfFirstGapEndingAfter(ArrayList<SampleGap> gaps, long sampleIndex)
+	{
+		// gaps are in order and don't overlap, so their ends are in order too
+		int low  = 0;
+		int high = gaps.size();
+		
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			
+			if (gaps.get(mid).getEndSampleIndex() <= sampleIndex)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		
+		return low;
+	}
+	
 	/**
 	 * Translates the given time into an X position on the visualization using the
 	 * current time position and X scale.
@@ -327,6 +639,14 @@ public class SignalVisualizerDrawer
 		return (int)((timeNS - visualizationViewTimePositionNS) * visualizationXScale);
 	}
 	
+	/**
+	 * @return Time of the sample at the given stream index in nanoseconds.
+	 */
+	private static long getTimeNS(long sampleIndex, int sampleRate)
+	{
+		return (sampleIndex * FlowMeterReader.NS_IN_S) / sampleRate;
+	}
+	
 	/**
 	 * Translates the given amplitude into a Y position on the visualization using the
 	 * Y origin and Y scale.
@@ -335,7 +655,7 @@ public class SignalVisualizerDrawer
 	 * 
 	 * @return Y position on the visualization.
 	 */
-	private int getYForAmplitude(short amplitude)
+	private int getYForAmplitude(int amplitude)
 	{
 		return (int)(visualizationYOrigin - amplitude * visualizationYScale);
 	}
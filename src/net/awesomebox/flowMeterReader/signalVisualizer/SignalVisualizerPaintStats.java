@@ -0,0 +1,247 @@
+package net.awesomebox.flowMeterReader.signalVisualizer;
+
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+import net.awesomebox.flowMeterReader.flowRate.IntervalHistogram;
+import net.awesomebox.flowMeterReader.metrics.MetricSource;
+import net.awesomebox.flowMeterReader.metrics.MetricsWriter;
+
+/**
+ * Times each pass of drawing the visualization so slow frames can be traced to what made them
+ * slow.<br />
+ * <br />
+ * Pass times are kept in microseconds in rolling histograms. Each pass has two: one filling and
+ * one full. Once the filling one has counted {@link #WINDOW_NUM_FRAMES} frames, the full one is
+ * cleared and they swap. Quantiles are taken over both, so they cover the last one to two windows
+ * of frames.<br />
+ * <br />
+ * Every metric is labeled with the lane it is for so lanes drawn side by side can be told apart.
+ */
+public class SignalVisualizerPaintStats implements MetricSource
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final int PASS_GRID_LINES       = 0;
+	public static final int PASS_BOUNDARY_LINES   = 1;
+	public static final int PASS_GAPS             = 2;
+	public static final int PASS_PULSES           = 3;
+	public static final int PASS_SAMPLES          = 4;
+	public static final int PASS_GRID_LINE_LABELS = 5;
+	public static final int PASS_TOTAL            = 6;
+	
+	public static final int NUM_PASSES = 7;
+	
+	private static final String[] PASS_NAMES = {
+		"grid_lines",
+		"boundary_lines",
+		"gaps",
+		"pulses",
+		"samples",
+		"grid_line_labels",
+		"total"
+	};
+	
+	// number of frames in each half of a rolling histogram
+	public static final int WINDOW_NUM_FRAMES = 256;
+	
+	// quantiles shown and written as metrics
+	private static final double[] QUANTILES = {0.5d, 0.99d};
+	
+	public static final String DEFAULT_LANE_NAME = "signal";
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final IntervalHistogram[] fillingHistograms = new IntervalHistogram[NUM_PASSES];
+	private final IntervalHistogram[] fullHistograms    = new IntervalHistogram[NUM_PASSES];
+	
+	// both halves of a histogram, added together when asked for a quantile
+	private final IntervalHistogram mergedHistogram = new IntervalHistogram();
+	
+	private final long[] lastPassTimesNS = new long[NUM_PASSES];
+	
+	// frames drawn in the current second, and the frame rate over the last one
+	private long   fpsWindowStartNS   = 0;
+	private int    fpsWindowNumFrames = 0;
+	private double fps                = 0;
+	
+	private long numFrames = 0;
+	
+	private String laneName = DEFAULT_LANE_NAME;
+	
+	// what the last frame drew
+	private long lastNumLinesDrawn  = 0;
+	private long lastNumPulsesDrawn = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	public SignalVisualizerPaintStats()
+	{
+		for (int i = 0; i < NUM_PASSES; ++i)
+		{
+			fillingHistograms[i] = new IntervalHistogram();
+			fullHistograms   [i] = new IntervalHistogram();
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Records how long a pass of the frame being drawn took.
+	 * 
+	 * @param pass   - One of the <code>PASS_</code> constants.
+	 * @param timeNS - Time the pass took in nanoseconds.
+	 */
+	public synchronized void addPassTime(int pass, long timeNS)
+	{
+		lastPassTimesNS[pass] = timeNS;
+		fillingHistograms[pass].add(timeNS / 1000);
+	}
+	
+	/**
+	 * Records a frame once all of its passes have been recorded.
+	 * 
+	 * @param endTimeNS      - {@link System#nanoTime} when the frame finished.
+	 * @param numLinesDrawn  - Number of lines the samples were drawn with.
+	 * @param numPulsesDrawn - Number of pulses drawn.
+	 */
+	public synchronized void endFrame(long endTimeNS, long numLinesDrawn, long numPulsesDrawn)
+	{
+		++numFrames;
+		lastNumLinesDrawn  = numLinesDrawn;
+		lastNumPulsesDrawn = numPulsesDrawn;
+		
+		// roll the histograms
+		if (fillingHistograms[PASS_TOTAL].getTotalCount() >= WINDOW_NUM_FRAMES)
+		{
+			for (int i = 0; i < NUM_PASSES; ++i)
+			{
+				IntervalHistogram fullHistogram = fullHistograms[i];
+				fullHistogram.clear();
+				
+				fullHistograms   [i] = fillingHistograms[i];
+				fillingHistograms[i] = fullHistogram;
+			}
+		}
+		
+		// count frames per second
+		if (fpsWindowNumFrames == 0)
+			fpsWindowStartNS = endTimeNS;
+		
+		++fpsWindowNumFrames;
+		
+		long fpsWindowNS = endTimeNS - fpsWindowStartNS;
+		if (fpsWindowNS >= FlowMeterReader.NS_IN_S)
+		{
+			fps = (fpsWindowNumFrames - 1) * (double)FlowMeterReader.NS_IN_S / fpsWindowNS;
+			fpsWindowNumFrames = 0;
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	/**
+	 * Sets the value of the <code>lane</code> label on the metrics.
+	 */
+	public synchronized void setLaneName(String laneName)
+	{
+		this.laneName = laneName;
+	}
+	
+	public synchronized String getLaneName()
+	{
+		return laneName;
+	}
+	
+	public static String getPassName(int pass)
+	{
+		return PASS_NAMES[pass];
+	}
+	
+	/**
+	 * @return Frames drawn per second over the last second or so.
+	 */
+	public synchronized double getFPS()
+	{
+		return fps;
+	}
+	
+	public synchronized long getNumFrames()
+	{
+		return numFrames;
+	}
+	
+	/**
+	 * @return How long the pass took in the last frame in milliseconds.
+	 */
+	public synchronized double getLastPassTimeMS(int pass)
+	{
+		return (double)lastPassTimesNS[pass] / FlowMeterReader.NS_IN_MS;
+	}
+	
+	/**
+	 * @param quantile - Between 0 and 1. EX: 0.99 for the 99th percentile.
+	 * 
+	 * @return How long the pass took at the given quantile over recent frames in milliseconds.
+	 */
+	public synchronized double getPassTimeQuantileMS(int pass, double quantile)
+	{
+		mergedHistogram.clear();
+		mergedHistogram.add(fillingHistograms[pass]);
+		mergedHistogram.add(fullHistograms[pass]);
+		
+		return mergedHistogram.getQuantile(quantile) / 1000;
+	}
+	
+	public synchronized long getLastNumLinesDrawn()
+	{
+		return lastNumLinesDrawn;
+	}
+	
+	public synchronized long getLastNumPulsesDrawn()
+	{
+		return lastNumPulsesDrawn;
+	}
+	
+	@Override
+	public synchronized void writeMetrics(MetricsWriter out)
+	{
+		out.write("signal_visualizer_fps",          "lane", laneName, fps);
+		out.write("signal_visualizer_frames_total", "lane", laneName, numFrames);
+		out.write("signal_visualizer_lines_drawn",  "lane", laneName, lastNumLinesDrawn);
+		out.write("signal_visualizer_pulses_drawn", "lane", laneName, lastNumPulsesDrawn);
+		
+		for (int pass = 0; pass < NUM_PASSES; ++pass)
+		{
+			for (double quantile : QUANTILES)
+			{
+				out.write("signal_visualizer_pass_ms",
+					"lane",     laneName,
+					"pass",     PASS_NAMES[pass],
+					"quantile", Double.toString(quantile),
+					getPassTimeQuantileMS(pass, quantile));
+			}
+		}
+	}
+}
@@ -0,0 +1,405 @@
+package net.awesomebox.flowMeterReader.signalVisualizer;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+
+/**
+ * Keeps the waveform pre-rendered as fixed width image tiles so panning and zooming through a long
+ * history copies images instead of drawing every sample again.<br />
+ * <br />
+ * A tile is {@link #TILE_WIDTH} pixels of the waveform at one X scale. Tiles are numbered from time
+ * 0 at each scale, so the same tile is reused however the view lines up with it. Missing tiles are
+ * rendered on a pool of background threads while the view draws that part directly. Tiles are only
+ * kept once every sample they cover has been added. Samples never change after that, so a kept
+ * tile never goes stale. The least recently drawn tiles are dropped to stay within the memory
+ * budget.<br />
+ * <br />
+ * Only the samples are tiled. Pulses, gaps, and grid lines are cheap and still drawn directly.
+ */
+public class SignalVisualizerTileCache
+{
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	public static final int TILE_WIDTH = 256;
+	
+	public static final long DEFAULT_MEMORY_BUDGET_BYTES = 64L * 1024 * 1024;
+	public static final int  DEFAULT_NUM_THREADS         = 2;
+	
+	// ARGB
+	private static final int BYTES_PER_PIXEL = 4;
+	
+	
+	
+	// ===================================================================
+	// Variables
+	//
+	// ===================================================================
+	
+	private final long memoryBudgetBytes;
+	private final SignalVisualizerTileCacheListener listener;
+	
+	private final ThreadPoolExecutor executor;
+	
+	// tiles in least to most recently drawn order
+	private final LinkedHashMap<TileKey, BufferedImage> tiles = new LinkedHashMap<TileKey, BufferedImage>(16, 0.75f, true);
+	private long numBytes = 0;
+	
+	// tiles waiting to be rendered and the frame they were last wanted in
+	private final HashMap<TileKey, Long> pendingTiles = new HashMap<TileKey, Long>();
+	
+	// counts views drawn. Pending tiles not wanted by the last couple of frames are skipped
+	private long frameNumber = 0;
+	
+	private long numHits   = 0;
+	private long numMisses = 0;
+	
+	
+	
+	// ===================================================================
+	// Constructor
+	//
+	// ===================================================================
+	
+	public SignalVisualizerTileCache(SignalVisualizerTileCacheListener listener)
+	{
+		this(DEFAULT_MEMORY_BUDGET_BYTES, DEFAULT_NUM_THREADS, listener);
+	}
+	
+	/**
+	 * @param memoryBudgetBytes - Most bytes of tiles to keep.
+	 * @param numThreads        - Number of threads to render tiles on.
+	 * @param listener          - Told when a tile has been rendered or <code>null</code>.
+	 */
+	public SignalVisualizerTileCache(long memoryBudgetBytes, int numThreads, SignalVisualizerTileCacheListener listener)
+	{
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + numThreads);
+		
+		this.memoryBudgetBytes = memoryBudgetBytes;
+		this.listener          = listener;
+		
+		executor = new ThreadPoolExecutor(
+			numThreads, numThreads,
+			0, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "SignalVisualizerTileCache");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+	
+	
+	
+	// ===================================================================
+	// Getters
+	//
+	// ===================================================================
+	
+	public synchronized int getNumTiles()
+	{
+		return tiles.size();
+	}
+	
+	/**
+	 * @return Number of bytes of tiles kept.
+	 */
+	public synchronized long getNumBytes()
+	{
+		return numBytes;
+	}
+	
+	public synchronized long getNumHits()
+	{
+		return numHits;
+	}
+	
+	public synchronized long getNumMisses()
+	{
+		return numMisses;
+	}
+	
+	
+	
+	// ===================================================================
+	// Public Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Drops every tile and stops the render threads.
+	 */
+	public void shutdown()
+	{
+		executor.shutdownNow();
+		
+		synchronized (this)
+		{
+			tiles.clear();
+			pendingTiles.clear();
+			numBytes = 0;
+		}
+	}
+	
+	
+	
+	// ===================================================================
+	// Drawer Interface
+	//
+	// ===================================================================
+	
+	/**
+	 * Called once before the tiles for a view are asked for.
+	 */
+	synchronized void startFrame()
+	{
+		++frameNumber;
+	}
+	
+	/**
+	 * @return Index of the tile holding the given time.
+	 */
+	static long getTileIndex(double visualizationXScale, long timeNS)
+	{
+		return (long)Math.floor(timeNS * visualizationXScale / TILE_WIDTH);
+	}
+	
+	/**
+	 * @return Time at the left edge of the given tile.
+	 */
+	static long getTileStartNS(double visualizationXScale, long tileIndex)
+	{
+		return (long)Math.floor(tileIndex * (TILE_WIDTH / visualizationXScale));
+	}
+	
+	/**
+	 * Gets a rendered tile. If it is not rendered yet it is queued to be, unless it covers samples
+	 * that have not been added yet.
+	 * 
+	 * @return The tile or <code>null</code> if it has to be drawn directly for now.
+	 */
+	BufferedImage getTile(
+		SampleHistory history,
+		int sampleRate,
+		double visualizationXScale,
+		int visualizationYOrigin,
+		int visualizationYRange,
+		double visualizationYScale,
+		int visualizationHeight,
+		long tileIndex)
+	{
+		final TileKey key = new TileKey(visualizationXScale, visualizationHeight, tileIndex);
+		
+		synchronized (this)
+		{
+			BufferedImage tile = tiles.get(key);
+			if (tile != null)
+			{
+				++numHits;
+				return tile;
+			}
+			
+			++numMisses;
+		}
+		
+		// the newest tile is still filling in
+		final long tileStartNS = getTileStartNS(visualizationXScale, tileIndex);
+		final long tileEndNS   = getTileStartNS(visualizationXScale, tileIndex + 1);
+		
+		if (getSampleIndexAtOrBefore(tileEndNS, sampleRate) + 1 >= history.getEndSampleIndex())
+			return null;
+		
+		synchronized (this)
+		{
+			// already queued. Mark it as still wanted
+			if (pendingTiles.put(key, frameNumber) != null)
+				return null;
+		}
+		
+		final Renderer renderer = new Renderer(history, sampleRate, visualizationXScale, visualizationYOrigin, visualizationYRange, visualizationYScale, visualizationHeight);
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (SignalVisualizerTileCache.this)
+				{
+					// skip tiles that scrolled out of view while they waited
+					Long wantedFrameNumber = pendingTiles.get(key);
+					if (wantedFrameNumber == null || wantedFrameNumber < frameNumber - 1)
+					{
+						pendingTiles.remove(key);
+						return;
+					}
+				}
+				
+				BufferedImage tile = renderer.render(tileStartNS, tileEndNS);
+				
+				synchronized (SignalVisualizerTileCache.this)
+				{
+					pendingTiles.remove(key);
+					addTile(key, tile);
+				}
+				
+				if (listener != null)
+					listener.onTileRendered();
+			}
+		});
+		
+		return null;
+	}
+	
+	
+	
+	// ===================================================================
+	// Private Methods
+	//
+	// ===================================================================
+	
+	private static long getSampleIndexAtOrBefore(long timeNS, int sampleRate)
+	{
+		return (long)Math.floor(timeNS * (double)sampleRate / FlowMeterReader.NS_IN_S);
+	}
+	
+	/**
+	 * Keeps a tile, dropping the least recently drawn tiles to stay within the budget.
+	 */
+	private void addTile(TileKey key, BufferedImage tile)
+	{
+		BufferedImage oldTile = tiles.put(key, tile);
+		if (oldTile != null)
+			numBytes -= getNumBytes(oldTile);
+		
+		numBytes += getNumBytes(tile);
+		
+		Iterator<Map.Entry<TileKey, BufferedImage>> iterator = tiles.entrySet().iterator();
+		while (numBytes > memoryBudgetBytes && iterator.hasNext())
+		{
+			numBytes -= getNumBytes(iterator.next().getValue());
+			iterator.remove();
+		}
+	}
+	
+	private static long getNumBytes(BufferedImage tile)
+	{
+		return (long)tile.getWidth() * tile.getHeight() * BYTES_PER_PIXEL;
+	}
+	
+	
+	
+	// ===================================================================
+	// Classes
+	//
+	// ===================================================================
+	
+	/**
+	 * Identifies a tile by its X scale, height, and position.
+	 */
+	private static final class TileKey
+	{
+		private final long xScaleBits;
+		private final int  height;
+		private final long tileIndex;
+		
+		public TileKey(double visualizationXScale, int height, long tileIndex)
+		{
+			this.xScaleBits = Double.doubleToLongBits(visualizationXScale);
+			this.height     = height;
+			this.tileIndex  = tileIndex;
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof TileKey))
+				return false;
+			
+			TileKey other = (TileKey)obj;
+			return xScaleBits == other.xScaleBits && height == other.height && tileIndex == other.tileIndex;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			int hash = (int)(xScaleBits ^ (xScaleBits >>> 32));
+			hash = 31 * hash + height;
+			hash = 31 * hash + (int)(tileIndex ^ (tileIndex >>> 32));
+			return hash;
+		}
+	}
+	
+	/**
+	 * Draws tiles with its own drawer so rendering does not disturb the view.
+	 */
+	private static final class Renderer
+	{
+		private final SampleHistory history;
+		private final int sampleRate;
+		private final SignalVisualizerDrawer drawer = new SignalVisualizerDrawer();
+		private final int height;
+		
+		public Renderer(
+			SampleHistory history,
+			int sampleRate,
+			double visualizationXScale,
+			int visualizationYOrigin,
+			int visualizationYRange,
+			double visualizationYScale,
+			int visualizationHeight)
+		{
+			this.history    = history;
+			this.sampleRate = sampleRate;
+			this.height     = visualizationHeight;
+			
+			drawer.updateVisualizationSize(TILE_WIDTH, visualizationHeight);
+			drawer.updateVisualizationXAxis(visualizationXScale);
+			drawer.updateVisualizationYAxis(visualizationYOrigin, visualizationYRange, visualizationYScale);
+		}
+		
+		public BufferedImage render(long tileStartNS, long tileEndNS)
+		{
+			// include the samples just past each side so the lines to them are drawn
+			long firstSampleIndex = Math.max(getSampleIndexAtOrBefore(tileStartNS, sampleRate),   history.getOldestSampleIndex());
+			long lastSampleIndex  = Math.min(getSampleIndexAtOrBefore(tileEndNS,   sampleRate) + 1, history.getEndSampleIndex() - 1);
+			
+			if (firstSampleIndex > lastSampleIndex)
+			{
+				firstSampleIndex = -1;
+				lastSampleIndex  = -1;
+			}
+			
+			drawer.updateVisualizationView(tileStartNS, tileEndNS - tileStartNS, firstSampleIndex, lastSampleIndex);
+			
+			BufferedImage tile = new BufferedImage(TILE_WIDTH, height, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = tile.createGraphics();
+			try
+			{
+				drawer.drawSamples(history, sampleRate, g);
+			}
+			finally
+			{
+				g.dispose();
+			}
+			
+			return tile;
+		}
+	}
+}
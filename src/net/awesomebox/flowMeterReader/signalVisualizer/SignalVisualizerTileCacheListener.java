@@ -0,0 +1,9 @@
+package net.awesomebox.flowMeterReader.signalVisualizer;
+
+public interface SignalVisualizerTileCacheListener
+{
+	/**
+	 * Called on a render thread when a tile has been rendered, so the view can be repainted.
+	 */
+	public void onTileRendered();
+}
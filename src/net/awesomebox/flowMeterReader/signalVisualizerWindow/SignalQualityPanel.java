@@ -0,0 +1,172 @@
+package net.awesomebox.flowMeterReader.signalVisualizerWindow;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+
+import javax.swing.JPanel;
+
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+import net.awesomebox.flowMeterReader.config.DetectionConfig;
+import net.awesomebox.flowMeterReader.signalQuality.SignalQualityMonitor;
+import net.awesomebox.flowMeterReader.signalQuality.SignalQualitySnapshot;
+import net.awesomebox.flowMeterReader.signalVisualizer.SignalVisualizerDrawer;
+
+/**
+ * Shows a {@link SignalQualityMonitor}'s histograms and levels. The edge amplitude delta histogram
+ * is marked with the pulse thresholds so it can be seen where they fall among the edges.<br />
+ * <br />
+ * The stats are copied into a snapshot when painting, so the panel never reads the samples.
+ */
+public class SignalQualityPanel extends JPanel
+{
+	private static final long serialVersionUID = 3021596437718305266L;
+	
+	private static final int PREFERRED_WIDTH  = 320;
+	private static final int PREFERRED_HEIGHT = 200;
+	
+	private static final int PADDING     = 5;
+	private static final int LINE_HEIGHT = 15;
+	
+	private static final Color BAR_COLOR = Color.GRAY;
+	
+	
+	private final SignalQualityMonitor signalQualityMonitor;
+	private final FlowMeterReader      flowMeterReader;
+	
+	// reused every paint
+	private final SignalQualitySnapshot snapshot = new SignalQualitySnapshot();
+	
+	public SignalQualityPanel(SignalQualityMonitor signalQualityMonitor)
+	{
+		this(signalQualityMonitor, null);
+	}
+	
+	/**
+	 * @param flowMeterReader - Reader to mark the thresholds of or <code>null</code> to mark the defaults.
+	 */
+	public SignalQualityPanel(SignalQualityMonitor signalQualityMonitor, FlowMeterReader flowMeterReader)
+	{
+		super();
+		
+		this.signalQualityMonitor = signalQualityMonitor;
+		this.flowMeterReader      = flowMeterReader;
+		this.setPreferredSize(new Dimension(PREFERRED_WIDTH, PREFERRED_HEIGHT));
+	}
+	
+	
+	/**
+	 * Redraws the panel with the latest stats.
+	 */
+	public void refresh()
+	{
+		repaint();
+	}
+	
+	@Override
+	protected void paintComponent(Graphics g)
+	{
+		super.paintComponent(g);
+		
+		signalQualityMonitor.copyTo(snapshot);
+		
+		int width = getWidth() - PADDING * 2;
+		int y     = PADDING + LINE_HEIGHT;
+		
+		// levels
+		g.setColor(Color.BLACK);
+		g.drawString(String.format("RMS %.3f (%.1f dBFS)", snapshot.getRMSRatio(), toDBFS(snapshot.getRMSRatio())), PADDING, y);
+		
+		y += LINE_HEIGHT;
+		g.drawString(String.format("Noise Floor %.3f (%.1f dBFS)", snapshot.getNoiseFloorRatio(), toDBFS(snapshot.getNoiseFloorRatio())), PADDING, y);
+		
+		y += LINE_HEIGHT;
+		g.drawString(String.format("Clipping %.2f%%  Edges %d", snapshot.getClippingRatio() * 100, snapshot.getNumEdges()), PADDING, y);
+		
+		
+		// split the rest between the histograms
+		int histogramHeight = (getHeight() - y - PADDING - LINE_HEIGHT * 2) / 2;
+		if (histogramHeight <= 0 || width <= 0)
+			return;
+		
+		y += LINE_HEIGHT;
+		g.setColor(Color.BLACK);
+		g.drawString("Amplitudes", PADDING, y);
+		drawAmplitudeHistogram(g, PADDING, y + 2, width, histogramHeight);
+		
+		y += histogramHeight + LINE_HEIGHT + 2;
+		g.setColor(Color.BLACK);
+		g.drawString("Edge Amplitude Deltas", PADDING, y);
+		drawEdgeAmplitudeDeltaHistogram(g, PADDING, y + 2, width, histogramHeight);
+	}
+	
+	
+	
+	private void drawAmplitudeHistogram(Graphics g, int x, int y, int width, int height)
+	{
+		long maxCount = 0;
+		for (int bucket = 0; bucket < SignalQualityMonitor.NUM_BUCKETS; ++bucket)
+			maxCount = Math.max(maxCount, snapshot.getAmplitudeCount(bucket));
+		
+		g.setColor(BAR_COLOR);
+		for (int bucket = 0; bucket < SignalQualityMonitor.NUM_BUCKETS; ++bucket)
+			drawBar(g, x, y, width, height, bucket, snapshot.getAmplitudeCount(bucket), maxCount);
+		
+		// mark 0
+		g.setColor(Color.BLACK);
+		int zeroX = x + width / 2;
+		g.drawLine(zeroX, y, zeroX, y + height);
+		
+		g.drawRect(x, y, width, height);
+	}
+	
+	private void drawEdgeAmplitudeDeltaHistogram(Graphics g, int x, int y, int width, int height)
+	{
+		long maxCount = 0;
+		for (int bucket = 0; bucket < SignalQualityMonitor.NUM_BUCKETS; ++bucket)
+			maxCount = Math.max(maxCount, snapshot.getEdgeAmplitudeDeltaCount(bucket));
+		
+		g.setColor(BAR_COLOR);
+		for (int bucket = 0; bucket < SignalQualityMonitor.NUM_BUCKETS; ++bucket)
+			drawBar(g, x, y, width, height, bucket, snapshot.getEdgeAmplitudeDeltaCount(bucket), maxCount);
+		
+		// mark the thresholds the reader is using now
+		DetectionConfig detectionConfig = flowMeterReader != null? flowMeterReader.getDetectionConfig() : DetectionConfig.DEFAULT;
+		drawThreshold(g, x, y, width, height, detectionConfig.getFM1PulseAmplitudeDeltaThreshold(), SignalVisualizerDrawer.FM1_COLOR);
+		drawThreshold(g, x, y, width, height, detectionConfig.getFM2PulseAmplitudeDeltaThreshold(), SignalVisualizerDrawer.FM2_COLOR);
+		
+		g.setColor(Color.BLACK);
+		g.drawRect(x, y, width, height);
+	}
+	
+	/**
+	 * Draws a bucket's bar. Counts are drawn on a log scale so the rare buckets, where the pulses
+	 * are, still show next to the noise.
+	 */
+	private static void drawBar(Graphics g, int x, int y, int width, int height, int bucket, long count, long maxCount)
+	{
+		if (count <= 0)
+			return;
+		
+		int barHeight = (int)Math.round(height * Math.log1p(count) / Math.log1p(maxCount));
+		int barStartX = x + bucket       * width / SignalQualityMonitor.NUM_BUCKETS;
+		int barEndX   = x + (bucket + 1) * width / SignalQualityMonitor.NUM_BUCKETS;
+		
+		g.fillRect(barStartX, y + height - barHeight, Math.max(barEndX - barStartX, 1), barHeight);
+	}
+	
+	private static void drawThreshold(Graphics g, int x, int y, int width, int height, int amplitudeDelta, Color color)
+	{
+		// bucket edges are linear in the amplitude delta
+		int bucketsSpan = SignalQualityMonitor.getEdgeAmplitudeDeltaBucketStart(SignalQualityMonitor.NUM_BUCKETS);
+		int thresholdX  = x + (int)((long)amplitudeDelta * width / bucketsSpan);
+		
+		g.setColor(color);
+		g.drawLine(thresholdX, y, thresholdX, y + height);
+	}
+	
+	private static double toDBFS(double ratio)
+	{
+		return ratio > 0? 20 * Math.log10(ratio) : Double.NEGATIVE_INFINITY;
+	}
+}
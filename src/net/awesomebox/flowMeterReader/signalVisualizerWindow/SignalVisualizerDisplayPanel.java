@@ -24,12 +24,18 @@ public class SignalVisualizerDisplayPanel extends JPanel implements ComponentLis
 	private final SignalVisualizer signalVisualizer;
 	private final SignalVisualizerDisplayPanelListener listener;
 	
+	// the X scale is always the starting scale times a whole power of the zoom rate. This way
+	// zooming back to a level gives exactly the same scale and its cached tiles can be reused
+	private final double startingVisualizationXScale;
+	private int zoomLevel = 0;
+	
 	public SignalVisualizerDisplayPanel(SignalVisualizer signalVisualizer, SignalVisualizerDisplayPanelListener listener)
 	{
 		super();
 		
 		this.signalVisualizer = signalVisualizer;
 		this.listener = listener;
+		this.startingVisualizationXScale = signalVisualizer.getVisualizationXScale();
 		this.addComponentListener(this);
 	}
 	
@@ -53,11 +59,13 @@ public class SignalVisualizerDisplayPanel extends JPanel implements ComponentLis
 	
 	public void zoomIn()
 	{
-		double newVisualizationXScale = signalVisualizer.getVisualizationXScale() * ZOOM_RATE;
+		double newVisualizationXScale = getVisualizationXScale(zoomLevel + 1);
 		
 		if (newVisualizationXScale > MAX_VISUALIZATION_X_SCALE)
 			return;
 		
+		++zoomLevel;
+		
 		// record the center of the view
 		long visualizationViewCenterTimeNS = signalVisualizer.getVisualizationViewTimePositionNS() + signalVisualizer.getVisualizationViewTimeSpanNS() / 2;
 		
@@ -70,11 +78,13 @@ public class SignalVisualizerDisplayPanel extends JPanel implements ComponentLis
 	
 	public void zoomOut()
 	{
-		double newVisualizationXScale = signalVisualizer.getVisualizationXScale() / ZOOM_RATE;
+		double newVisualizationXScale = getVisualizationXScale(zoomLevel - 1);
 		
 		if (newVisualizationXScale < MIN_VISUALIZATION_X_SCALE)
 			return;
 		
+		--zoomLevel;
+		
 		// record the center of the view
 		long visualizationViewCenterTimeNS = signalVisualizer.getVisualizationViewTimePositionNS() + signalVisualizer.getVisualizationViewTimeSpanNS() / 2;
 		
@@ -86,6 +96,13 @@ public class SignalVisualizerDisplayPanel extends JPanel implements ComponentLis
 	
 	
 	
+	private double getVisualizationXScale(int zoomLevel)
+	{
+		return startingVisualizationXScale * Math.pow(ZOOM_RATE, zoomLevel);
+	}
+	
+	
+	
 	@Override public void componentMoved(ComponentEvent e) {}
 	@Override public void componentShown(ComponentEvent e) {}
 	@Override public void componentHidden(ComponentEvent e) {}
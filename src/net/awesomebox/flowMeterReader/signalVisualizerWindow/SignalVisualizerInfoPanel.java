@@ -6,6 +6,9 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 
 import net.awesomebox.flowMeterReader.FlowMeterReader;
+import net.awesomebox.flowMeterReader.config.DetectionConfig;
+import net.awesomebox.flowMeterReader.flowRate.FlowRateEstimator;
+import net.awesomebox.flowMeterReader.flowRate.FlowRateMonitor;
 import net.awesomebox.flowMeterReader.signalVisualizer.SignalVisualizer;
 import net.awesomebox.flowMeterReader.signalVisualizer.SignalVisualizerDrawer;
 
@@ -14,16 +17,38 @@ public class SignalVisualizerInfoPanel extends JPanel
 	private static final long serialVersionUID = -1745153348775713789L;
 	
 	private final SignalVisualizer signalVisualizer;
+	private final FlowMeterReader  flowMeterReader;
+	private final FlowRateMonitor  flowRateMonitor;
 	
 	private final JLabel samplesProcessedLabel;
 	private final JLabel fm1PulsesLabel;
 	private final JLabel fm2PulsesLabel;
+	private final JLabel samplesMissingLabel;
+	private final JLabel fm1ThresholdLabel;
+	private final JLabel fm2ThresholdLabel;
+	
+	// only created if there is a flow rate monitor
+	private JLabel fm1RateLabel;
+	private JLabel fm2RateLabel;
+	private JLabel fm1IntervalLabel;
+	private JLabel fm2IntervalLabel;
 	
 	public SignalVisualizerInfoPanel(SignalVisualizer signalVisualizer)
+	{
+		this(signalVisualizer, null, null);
+	}
+	
+	/**
+	 * @param flowMeterReader - Reader to show the detection settings of or <code>null</code> to show the defaults.
+	 * @param flowRateMonitor - Monitor to show the flow rates of or <code>null</code> to not show them.
+	 */
+	public SignalVisualizerInfoPanel(SignalVisualizer signalVisualizer, FlowMeterReader flowMeterReader, FlowRateMonitor flowRateMonitor)
 	{
 		super();
 		
 		this.signalVisualizer = signalVisualizer;
+		this.flowMeterReader  = flowMeterReader;
+		this.flowRateMonitor  = flowRateMonitor;
 		
 		// main layout
 		this.setLayout(new GridLayout(1, 2));
@@ -44,11 +69,33 @@ public class SignalVisualizerInfoPanel extends JPanel
 		statsPanel.add(fm2PulsesLabel = new JLabel());
 		fm2PulsesLabel.setForeground(SignalVisualizerDrawer.FM2_COLOR);
 		
+		statsPanel.add(new JLabel("Samples Missing:"));
+		statsPanel.add(samplesMissingLabel = new JLabel());
+		
+		if (flowRateMonitor != null)
+		{
+			statsPanel.add(new JLabel("FM1 Pulse Rate:"));
+			statsPanel.add(fm1RateLabel = new JLabel());
+			fm1RateLabel.setForeground(SignalVisualizerDrawer.FM1_COLOR);
+			
+			statsPanel.add(new JLabel("FM1 Pulse Interval:"));
+			statsPanel.add(fm1IntervalLabel = new JLabel());
+			fm1IntervalLabel.setForeground(SignalVisualizerDrawer.FM1_COLOR);
+			
+			statsPanel.add(new JLabel("FM2 Pulse Rate:"));
+			statsPanel.add(fm2RateLabel = new JLabel());
+			fm2RateLabel.setForeground(SignalVisualizerDrawer.FM2_COLOR);
+			
+			statsPanel.add(new JLabel("FM2 Pulse Interval:"));
+			statsPanel.add(fm2IntervalLabel = new JLabel());
+			fm2IntervalLabel.setForeground(SignalVisualizerDrawer.FM2_COLOR);
+		}
+		
 		statsPanel.add(new JLabel("FM1 Pulse Amplitude Delta Threshold:"));
-		statsPanel.add(new JLabel(FlowMeterReader.FM1_PULSE_AMPLITUDE_DELTA_THRESHOLD_RATIO + " (" + FlowMeterReader.FM1_PULSE_AMPLITUDE_DELTA_THRESHOLD + ")"));
+		statsPanel.add(fm1ThresholdLabel = new JLabel());
 		
 		statsPanel.add(new JLabel("FM2 Pulse Amplitude Delta Threshold:"));
-		statsPanel.add(new JLabel(FlowMeterReader.FM2_PULSE_AMPLITUDE_DELTA_THRESHOLD_RATIO + " (" + FlowMeterReader.FM2_PULSE_AMPLITUDE_DELTA_THRESHOLD + ")"));
+		statsPanel.add(fm2ThresholdLabel = new JLabel());
 		
 		this.add(statsPanel);
 		
@@ -75,5 +122,31 @@ public class SignalVisualizerInfoPanel extends JPanel
 		samplesProcessedLabel.setText(Long.toString(signalVisualizer.getTotalNumSamples()));
 		fm1PulsesLabel.setText(Long.toString(signalVisualizer.getTotalNumPulsesFM1()));
 		fm2PulsesLabel.setText(Long.toString(signalVisualizer.getTotalNumPulsesFM2()));
+		samplesMissingLabel.setText(signalVisualizer.getTotalNumGapSamples() + " (" + signalVisualizer.getTotalNumGaps() + " gaps)");
+		
+		// the settings can be reloaded while running
+		DetectionConfig detectionConfig = flowMeterReader != null? flowMeterReader.getDetectionConfig() : DetectionConfig.DEFAULT;
+		fm1ThresholdLabel.setText(detectionConfig.getFM1PulseAmplitudeDeltaThresholdRatio() + " (" + detectionConfig.getFM1PulseAmplitudeDeltaThreshold() + ")");
+		fm2ThresholdLabel.setText(detectionConfig.getFM2PulseAmplitudeDeltaThresholdRatio() + " (" + detectionConfig.getFM2PulseAmplitudeDeltaThreshold() + ")");
+		
+		if (flowRateMonitor != null)
+		{
+			long currentSampleIndex = flowRateMonitor.getCurrentSampleIndex();
+			
+			refreshFlowRate(flowRateMonitor.getEstimator(1), currentSampleIndex, fm1RateLabel, fm1IntervalLabel);
+			refreshFlowRate(flowRateMonitor.getEstimator(2), currentSampleIndex, fm2RateLabel, fm2IntervalLabel);
+		}
+	}
+	
+	private static void refreshFlowRate(FlowRateEstimator estimator, long currentSampleIndex, JLabel rateLabel, JLabel intervalLabel)
+	{
+		rateLabel.setText(String.format("%.2f Hz (avg %.2f Hz)",
+			estimator.getRateHz(currentSampleIndex),
+			estimator.getAverageRateHz(currentSampleIndex)));
+		
+		intervalLabel.setText(String.format("p50 %.1f ms, p99 %.1f ms, jitter %.1f%%",
+			estimator.getIntervalQuantileMS(0.5d),
+			estimator.getIntervalQuantileMS(0.99d),
+			estimator.getIntervalJitterRatio() * 100));
 	}
 }
\ No newline at end of file
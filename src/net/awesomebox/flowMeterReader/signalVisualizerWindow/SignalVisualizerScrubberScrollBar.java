@@ -12,15 +12,25 @@ public class SignalVisualizerScrubberScrollBar extends JScrollBar implements Adj
 {
 	private static final long serialVersionUID = 5286426886080675707L;
 	
-	// The scroll bar uses ints and our times are in nanoseconds.
-	// This means we will only be able to span 2 seconds. Scaling
-	// the values down before converting to ints will allow use to
-	// operate longer before overflowing
-	private static final double SCROLL_BAR_SCALE = 0.0005d;
+	// The scroll bar uses ints and our times are in nanoseconds, which
+	// overflow an int after 2 seconds. Instead the scroll bar always spans
+	// this many units from the oldest sample to the newest, however long
+	// that is. It is fine enough to pick out a single pixel on any screen
+	private static final int SCROLL_BAR_RANGE = 1 << 24;
+	
+	// fraction of the view to pan by
+	private static final double PAN_VIEW_FRACTION = 0.1d;
 	
 	private final SignalVisualizer signalVisualizer;
 	private final SignalVisualizerScrubberScrollBarListener listener;
 	
+	// the time at the scroll bar's minimum and the scroll bar units per nanosecond as of the last refresh
+	private long   timelineStartNS;
+	private double scrollBarScale;
+	
+	// set while the scroll bar is being updated to match the view so the update is not taken as a scrub
+	private boolean updating = false;
+	
 	public SignalVisualizerScrubberScrollBar(SignalVisualizer signalVisualizer, SignalVisualizerScrubberScrollBarListener listener)
 	{
 		super();
@@ -33,8 +43,11 @@ public class SignalVisualizerScrubberScrollBar extends JScrollBar implements Adj
 	@Override
 	public void adjustmentValueChanged(AdjustmentEvent e)
 	{
+		if (updating || scrollBarScale <= 0)
+			return;
+		
 		// set visualization view position
-		long newVisualizationViewTimePositionNS = (long)(this.getModel().getValue() / SCROLL_BAR_SCALE);
+		long newVisualizationViewTimePositionNS = timelineStartNS + (long)(this.getModel().getValue() / scrollBarScale);
 		signalVisualizer.setVisualizationViewTimePositionNS(newVisualizationViewTimePositionNS);
 		
 		listener.onScrubberChange();
@@ -42,12 +55,12 @@ public class SignalVisualizerScrubberScrollBar extends JScrollBar implements Adj
 	
 	public void panLeft()
 	{
-		getModel().setValue(getModel().getValue() - getUnitIncrement());
+		pan(-1);
 	}
 	
 	public void panRight()
 	{
-		getModel().setValue(getModel().getValue() + getUnitIncrement());
+		pan(1);
 	}
 	
 	
@@ -62,28 +75,54 @@ public class SignalVisualizerScrubberScrollBar extends JScrollBar implements Adj
 		if (oldestSample == null)
 			return;
 		
-		// set the position and the extent to reflect the visualizer's view
-		int value  = (int)(signalVisualizer.getVisualizationViewTimePositionNS() * SCROLL_BAR_SCALE);
-		int extent = (int)(signalVisualizer.getVisualizationViewTimeSpanNS()     * SCROLL_BAR_SCALE);
+		// scale the timeline to fit the scroll bar
+		long timelineSpanNS = newestSample.timeNS - oldestSample.timeNS;
+		
+		timelineStartNS = oldestSample.timeNS;
+		scrollBarScale  = timelineSpanNS > 0? (double)SCROLL_BAR_RANGE / timelineSpanNS : 0;
 		
-		// set the min and max values to reflect the visualizer's oldest and newest samples
-		int min = (int)(oldestSample.timeNS * SCROLL_BAR_SCALE);
-		int max = (int)(newestSample.timeNS * SCROLL_BAR_SCALE);
+		// set the position and the extent to reflect the visualizer's view
+		int value  = toScrollBarUnits(signalVisualizer.getVisualizationViewTimePositionNS() - timelineStartNS);
+		int extent = toScrollBarUnits(signalVisualizer.getVisualizationViewTimeSpanNS());
 		
 		update(
 			value,
 			extent,
-			min,
-			max
+			0,
+			SCROLL_BAR_RANGE
 		);
 		
-		setBlockIncrement(extent / 2);
-		setUnitIncrement(extent / 10);
+		setBlockIncrement(Math.max(extent / 2, 1));
+		setUnitIncrement(Math.max(extent / 10, 1));
 	}
 	
 	
 	
 	
+	/**
+	 * Moves the view by a fraction of its span. Done in nanoseconds rather than scroll bar units
+	 * so it still moves when the view is narrower than a unit.
+	 */
+	private void pan(int direction)
+	{
+		long panNS = Math.max((long)(signalVisualizer.getVisualizationViewTimeSpanNS() * PAN_VIEW_FRACTION), 1);
+		signalVisualizer.setVisualizationViewTimePositionNS(signalVisualizer.getVisualizationViewTimePositionNS() + direction * panNS);
+		
+		refresh();
+	}
+	
+	private int toScrollBarUnits(long timeNS)
+	{
+		double units = timeNS * scrollBarScale;
+		
+		if (units < 0)
+			return 0;
+		if (units > SCROLL_BAR_RANGE)
+			return SCROLL_BAR_RANGE;
+		
+		return (int)Math.round(units);
+	}
+	
 	private void update(int value, int extent, int min, int max)
 	{
 		if (extent > max - min)
@@ -95,6 +134,14 @@ public class SignalVisualizerScrubberScrollBar extends JScrollBar implements Adj
 		if (value + extent > max)
 			value = max - extent;
 		
-		getModel().setRangeProperties(value, extent, min, max, getModel().getValueIsAdjusting());
+		updating = true;
+		try
+		{
+			getModel().setRangeProperties(value, extent, min, max, getModel().getValueIsAdjusting());
+		}
+		finally
+		{
+			updating = false;
+		}
 	}
 }
@@ -1,23 +1,52 @@
 package net.awesomebox.flowMeterReader.signalVisualizerWindow;
 
 import java.awt.BorderLayout;
+import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.GridLayout;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 
+import javax.swing.BorderFactory;
 import javax.swing.JFrame;
+import javax.swing.JPanel;
 import javax.swing.JScrollBar;
+import javax.swing.border.Border;
 
+import net.awesomebox.flowMeterReader.FlowMeterReader;
+import net.awesomebox.flowMeterReader.flowRate.FlowRateMonitor;
+import net.awesomebox.flowMeterReader.signalQuality.SignalQualityMonitor;
 import net.awesomebox.flowMeterReader.signalVisualizer.SignalVisualizer;
+import net.awesomebox.flowMeterReader.signalVisualizer.SignalVisualizerTileCache;
+import net.awesomebox.flowMeterReader.signalVisualizer.SignalVisualizerTileCacheListener;
 
-public class SignalVisualizerWindow implements KeyListener, SignalVisualizerDisplayPanelListener, SignalVisualizerScrubberScrollBarListener
+/**
+ * Shows one or more lanes stacked on top of each other. Each lane is a view with its own zoom,
+ * position, and filters. Lanes usually share one store so they cost no more memory than one. The
+ * keys act on the selected lane.
+ */
+public class SignalVisualizerWindow implements KeyListener, SignalVisualizerDisplayPanelListener, SignalVisualizerScrubberScrollBarListener, SignalVisualizerTileCacheListener
 {
+	// ===================================================================
+	// Constants
+	//
+	// ===================================================================
+	
+	// marks the selected lane
+	private static final int   SELECTED_LANE_BORDER_WIDTH = 3;
+	private static final Color SELECTED_LANE_BORDER_COLOR = new Color(0x3366CC);
+	
+	
+	
 	// ===================================================================
 	// Variables
 	//
 	// ===================================================================
 	
-	private SignalVisualizer signalVisualizer;
+	private final SignalVisualizer[] lanes;
+	
+	// lane the keys act on
+	private int selectedLane = 0;
 	
 	// if the streamer should pause
 	private boolean streamerShouldPause = false;
@@ -31,17 +60,41 @@ public class SignalVisualizerWindow implements KeyListener, SignalVisualizerDisp
 	// window elements
 	
 	private final JFrame frame;
-	private final SignalVisualizerInfoPanel         visualizerInfoPanel;
-	private final SignalVisualizerDisplayPanel      visualizerDisplayPanel;
-	private final SignalVisualizerScrubberScrollBar visualizerScrubberScrollBar;
+	private final SignalVisualizerInfoPanel           visualizerInfoPanel;
+	private final SignalQualityPanel                  signalQualityPanel;
+	private final JPanel[]                            lanePanels;
+	private final SignalVisualizerDisplayPanel[]      visualizerDisplayPanels;
+	private final SignalVisualizerScrubberScrollBar[] visualizerScrubberScrollBars;
 	
 	
 	
 	
 	public SignalVisualizerWindow(SignalVisualizer signalVisualizer, int visulizationWidth, int visulizationHeight)
 	{
-		this.signalVisualizer = signalVisualizer;
-		signalVisualizer.setVisualizationSize(visulizationWidth, visulizationHeight);
+		this(signalVisualizer, null, visulizationWidth, visulizationHeight);
+	}
+	
+	/**
+	 * @param flowRateMonitor - Monitor to show the flow rates of in the info panel or <code>null</code>.
+	 */
+	public SignalVisualizerWindow(SignalVisualizer signalVisualizer, FlowRateMonitor flowRateMonitor, int visulizationWidth, int visulizationHeight)
+	{
+		this(new SignalVisualizer[] {signalVisualizer}, null, flowRateMonitor, null, visulizationWidth, visulizationHeight);
+	}
+	
+	/**
+	 * @param lanes                - Views to stack from top to bottom. The info panel shows the totals of the first.
+	 * @param flowMeterReader      - Reader to show the detection settings of or <code>null</code> to show the defaults.
+	 * @param flowRateMonitor      - Monitor to show the flow rates of in the info panel or <code>null</code>.
+	 * @param signalQualityMonitor - Monitor to show the histograms and levels of beside the lanes or <code>null</code>.
+	 * @param visulizationHeight   - Height of all the lanes together.
+	 */
+	public SignalVisualizerWindow(SignalVisualizer[] lanes, FlowMeterReader flowMeterReader, FlowRateMonitor flowRateMonitor, SignalQualityMonitor signalQualityMonitor, int visulizationWidth, int visulizationHeight)
+	{
+		if (lanes.length == 0)
+			throw new IllegalArgumentException("At least one lane is needed");
+		
+		this.lanes = lanes;
 		
 		// create the frame
 		frame = new JFrame("SignalVisualizer");
@@ -51,28 +104,62 @@ public class SignalVisualizerWindow implements KeyListener, SignalVisualizerDisp
 		
 		
 		// create the info panel
-		visualizerInfoPanel = new SignalVisualizerInfoPanel(signalVisualizer);
+		visualizerInfoPanel = new SignalVisualizerInfoPanel(lanes[0], flowMeterReader, flowRateMonitor);
 		frame.add(visualizerInfoPanel, BorderLayout.NORTH);
 		
 		
-		// create the display
-		visualizerDisplayPanel = new SignalVisualizerDisplayPanel(signalVisualizer, this);
+		// create the signal quality panel
+		if (signalQualityMonitor != null)
+		{
+			signalQualityPanel = new SignalQualityPanel(signalQualityMonitor, flowMeterReader);
+			frame.add(signalQualityPanel, BorderLayout.EAST);
+		}
+		else
+		{
+			signalQualityPanel = null;
+		}
+		
+		
+		// pre-render the waveform so panning and zooming don't redraw every sample. Lanes at the
+		// same zoom and height use the same tiles
+		SignalVisualizerTileCache tileCache = new SignalVisualizerTileCache(this);
 		
-		// set the starting size
-		// TODO: set frame size and not panel size?
-		visualizerDisplayPanel.setPreferredSize(new Dimension(
-			signalVisualizer.getVisualizationWidth(),
-			signalVisualizer.getVisualizationHeight()
-		));
 		
-		frame.add(visualizerDisplayPanel, BorderLayout.CENTER);
+		// create the lanes
+		lanePanels                   = new JPanel[lanes.length];
+		visualizerDisplayPanels      = new SignalVisualizerDisplayPanel[lanes.length];
+		visualizerScrubberScrollBars = new SignalVisualizerScrubberScrollBar[lanes.length];
 		
+		JPanel lanesPanel = new JPanel(new GridLayout(lanes.length, 1));
 		
-		// create the scrubber
-		visualizerScrubberScrollBar = new SignalVisualizerScrubberScrollBar(signalVisualizer, this);
-		visualizerScrubberScrollBar.setOrientation(JScrollBar.HORIZONTAL);
+		for (int i = 0; i < lanes.length; ++i)
+		{
+			SignalVisualizer signalVisualizer = lanes[i];
+			signalVisualizer.setVisualizationSize(visulizationWidth, visulizationHeight / lanes.length);
+			signalVisualizer.setTileCache(tileCache);
+			
+			// create the display
+			visualizerDisplayPanels[i] = new SignalVisualizerDisplayPanel(signalVisualizer, this);
+			
+			// set the starting size
+			// TODO: set frame size and not panel size?
+			visualizerDisplayPanels[i].setPreferredSize(new Dimension(
+				signalVisualizer.getVisualizationWidth(),
+				signalVisualizer.getVisualizationHeight()
+			));
+			
+			// create the scrubber
+			visualizerScrubberScrollBars[i] = new SignalVisualizerScrubberScrollBar(signalVisualizer, this);
+			visualizerScrubberScrollBars[i].setOrientation(JScrollBar.HORIZONTAL);
+			
+			lanePanels[i] = new JPanel(new BorderLayout());
+			lanePanels[i].add(visualizerDisplayPanels[i],      BorderLayout.CENTER);
+			lanePanels[i].add(visualizerScrubberScrollBars[i], BorderLayout.SOUTH);
+			lanesPanel.add(lanePanels[i]);
+		}
 		
-		frame.add(visualizerScrubberScrollBar, BorderLayout.SOUTH);
+		frame.add(lanesPanel, BorderLayout.CENTER);
+		updateSelectedLaneBorders();
 		
 		
 		// finalize
@@ -91,18 +178,22 @@ public class SignalVisualizerWindow implements KeyListener, SignalVisualizerDisp
 	/**
 	 * Refreshes the window.
 	 * 
-	 * This should be called after the signal visualizer has been refreshed.
+	 * This should be called after the signal visualizers have been refreshed.
 	 */
 	public void refresh()
 	{
-		// update the scrubber
-		visualizerScrubberScrollBar.refresh();
+		// update the scrubbers
+		for (SignalVisualizerScrubberScrollBar visualizerScrubberScrollBar : visualizerScrubberScrollBars)
+			visualizerScrubberScrollBar.refresh();
 		
-		// update the info panel
+		// update the info panels
 		visualizerInfoPanel.refresh();
 		
-		// redraw the display
-		visualizerDisplayPanel.repaint();
+		if (signalQualityPanel != null)
+			signalQualityPanel.refresh();
+		
+		// redraw the displays
+		repaintLanes();
 	}
 	
 	
@@ -110,19 +201,27 @@ public class SignalVisualizerWindow implements KeyListener, SignalVisualizerDisp
 	@Override
 	public void onScrubberChange()
 	{
-		// redraw the display
-		visualizerDisplayPanel.repaint();
+		// redraw the displays
+		repaintLanes();
+	}
+	
+	@Override
+	public void onTileRendered()
+	{
+		// redraw the displays. Safe to call from the render thread
+		repaintLanes();
 	}
 	
 	@Override
 	public void onDisplayPanelReszied()
 	{
-		// update the scrubber
-		visualizerScrubberScrollBar.refresh();
+		// update the scrubbers
+		for (SignalVisualizerScrubberScrollBar visualizerScrubberScrollBar : visualizerScrubberScrollBars)
+			visualizerScrubberScrollBar.refresh();
 	}
 	
 	
-	@Override
+		@Override
 	public void keyPressed(KeyEvent e)
 	{
 		switch(e.getKeyCode())
@@ -132,50 +231,89 @@ public class SignalVisualizerWindow implements KeyListener, SignalVisualizerDisp
 				System.out.println(streamerShouldPause);
 				break;
 			
+			case KeyEvent.VK_Q:
+				selectLane(selectedLane - 1);
+				break;
+			
+			case KeyEvent.VK_E:
+				selectLane(selectedLane + 1);
+				break;
+			
 			case KeyEvent.VK_W:
-				visualizerDisplayPanel.zoomIn();
-				visualizerDisplayPanel.repaint();
-				visualizerScrubberScrollBar.refresh();
+				visualizerDisplayPanels[selectedLane].zoomIn();
+				visualizerDisplayPanels[selectedLane].repaint();
+				visualizerScrubberScrollBars[selectedLane].refresh();
 				break;
 			
 			case KeyEvent.VK_S: 
-				visualizerDisplayPanel.zoomOut();
-				visualizerDisplayPanel.repaint();
-				visualizerScrubberScrollBar.refresh();
+				visualizerDisplayPanels[selectedLane].zoomOut();
+				visualizerDisplayPanels[selectedLane].repaint();
+				visualizerScrubberScrollBars[selectedLane].refresh();
 				break;
 			
 			case KeyEvent.VK_A: 
-				visualizerScrubberScrollBar.panLeft();
-				visualizerDisplayPanel.repaint();
+				visualizerScrubberScrollBars[selectedLane].panLeft();
+				visualizerDisplayPanels[selectedLane].repaint();
 				break;
 			
 			case KeyEvent.VK_D: 
-				visualizerScrubberScrollBar.panRight();
-				visualizerDisplayPanel.repaint();
+				visualizerScrubberScrollBars[selectedLane].panRight();
+				visualizerDisplayPanels[selectedLane].repaint();
 				break;
 			
 			case KeyEvent.VK_1: 
-				signalVisualizer.toggleShowFM1PulseBoxes();
-				visualizerDisplayPanel.repaint();
+				lanes[selectedLane].toggleShowFM1PulseBoxes();
+				visualizerDisplayPanels[selectedLane].repaint();
 				break;
 			
 			case KeyEvent.VK_2: 
-				signalVisualizer.toggleShowFM2PulseBoxes();
-				visualizerDisplayPanel.repaint();
+				lanes[selectedLane].toggleShowFM2PulseBoxes();
+				visualizerDisplayPanels[selectedLane].repaint();
 				break;
 			
 			case KeyEvent.VK_3: 
-				signalVisualizer.toggleShowPulseAmplitudeDeltas();
-				visualizerDisplayPanel.repaint();
+				lanes[selectedLane].toggleShowPulseAmplitudeDeltas();
+				visualizerDisplayPanels[selectedLane].repaint();
 				break;
 			
 			case KeyEvent.VK_4: 
-				signalVisualizer.toggleShowGridLines();
-				visualizerDisplayPanel.repaint();
+				lanes[selectedLane].toggleShowGridLines();
+				visualizerDisplayPanels[selectedLane].repaint();
+				break;
+			
+			case KeyEvent.VK_5: 
+				lanes[selectedLane].toggleShowPaintStats();
+				visualizerDisplayPanels[selectedLane].repaint();
 				break;
 		}
 	}
 	
 	@Override public void keyTyped(KeyEvent e) {}
 	@Override public void keyReleased(KeyEvent e) {}
+	
+	
+	
+	
+	private void selectLane(int lane)
+	{
+		// wrap around
+		selectedLane = (lane + lanes.length) % lanes.length;
+		updateSelectedLaneBorders();
+	}
+	
+	private void updateSelectedLaneBorders()
+	{
+		// only mark the selected lane when there is more than one to pick from
+		Border selectedBorder   = BorderFactory.createMatteBorder(0, SELECTED_LANE_BORDER_WIDTH, 0, 0, SELECTED_LANE_BORDER_COLOR);
+		Border unselectedBorder = BorderFactory.createEmptyBorder(0, SELECTED_LANE_BORDER_WIDTH, 0, 0);
+		
+		for (int i = 0; i < lanePanels.length; ++i)
+			lanePanels[i].setBorder(lanes.length == 1? null : (i == selectedLane? selectedBorder : unselectedBorder));
+	}
+	
+	private void repaintLanes()
+	{
+		for (SignalVisualizerDisplayPanel visualizerDisplayPanel : visualizerDisplayPanels)
+			visualizerDisplayPanel.repaint();
+	}
 }